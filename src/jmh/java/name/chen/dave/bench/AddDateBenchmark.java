@@ -0,0 +1,70 @@
+/**
+ * Throughput of {@link name.chen.dave.impl.ArrayDateHistogram#addDate} from 1, 4 and as many threads as there are
+ * processors, each adding random birthdays, without persistence. Shows how well the stripes spread the adds.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.ArrayDateHistogram;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AddDateBenchmark {
+
+    private static final int NUM_DATES = 4096;
+
+    private ArrayDateHistogram histogram;
+    private final LocalDate[] dates = new LocalDate[NUM_DATES];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        histogram = new ArrayDateHistogram(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false));
+        for (int i = 0; i < NUM_DATES; i++) {
+            dates[i] = LocalDate.of(1940, 1, 1).plusDays(ThreadLocalRandom.current().nextInt(80 * 365));
+        }
+    }
+
+    private void addRandomDate() {
+        histogram.addDate(dates[ThreadLocalRandom.current().nextInt(NUM_DATES)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addDate1Thread() {
+        addRandomDate();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addDate4Threads() {
+        addRandomDate();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void addDateMaxThreads() {
+        addRandomDate();
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * An age distribution in buckets of 5 and of 1 years from one request, against the way it was put together before:
+ * one median query per 5-year band of birth dates, 40 for 200 years, which only gives a median per band and not a
+ * count. The median cache is disabled.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.AgeDistribution;
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AgeDistributionBenchmark {
+
+    private static final LocalDate AS_OF = LocalDate.of(2019, 8, 20);
+    private static final LocalDate FIRST = LocalDate.of(1850, 1, 1);
+
+    private MedianDB medianDB;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false).setRecoverFromPersistFile(false)
+                .setMedianCacheSize(0));
+        Random random = new Random(1);
+        for (int i = 0; i < 1_000_000; i++) {
+            medianDB.addBirthday(LocalDate.of(1940, 1, 1).plusDays(random.nextInt(80 * 365)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        medianDB.close();
+    }
+
+    @Benchmark
+    public AgeDistribution distributionBy5Years() {
+        return medianDB.findAgeDistribution(AS_OF, 5);
+    }
+
+    @Benchmark
+    public AgeDistribution distributionBy1Year() {
+        return medianDB.findAgeDistribution(AS_OF, 1);
+    }
+
+    @Benchmark
+    public void mediansOf5YearBands(Blackhole blackhole) {
+        for (LocalDate start = FIRST; start.isBefore(AS_OF); start = start.plusYears(5)) {
+            blackhole.consume(medianDB.findMedian(start, start.plusYears(5).minusDays(1)));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Overhead of the REST layer's {@link name.chen.dave.rest.Birthday} around the engine: parsing the date of an add
+ * with a DateTimeFormatter, against {@link name.chen.dave.impl.IsoDateParser}, and the whole add and median calls
+ * including formatting their responses. Persistence goes to a temporary directory, without the write-ahead log.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.IsoDateParser;
+import name.chen.dave.rest.Birthday;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BirthdayBenchmark {
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final String[] DATES = {"1999-01-05", "1985-07-31", "2004-02-29", "1962-11-11"};
+
+    private File dataDirectory;
+    private Birthday birthday;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-bench").toFile();
+        System.setProperty("mediandb.dataDirectory", dataDirectory.getAbsolutePath());
+        System.setProperty("mediandb.wal.enabled", "false");
+        birthday = new Birthday();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        birthday.close();
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    private String nextDate() {
+        return DATES[next++ & (DATES.length - 1)];
+    }
+
+    @Benchmark
+    public LocalDate parseWithFormatter() {
+        return LocalDate.parse(nextDate(), DATE_FORMATTER);
+    }
+
+    @Benchmark
+    public long parseWithIsoDateParser() {
+        return IsoDateParser.parseEpochDay(nextDate());
+    }
+
+    @Benchmark
+    public Birthday.Add addBirthday() {
+        return birthday.addBirthday(nextDate());
+    }
+
+    @Benchmark
+    public Birthday.Median getMedianAge() {
+        return birthday.getMedianAge("1950-01-01", nextDate());
+    }
+}
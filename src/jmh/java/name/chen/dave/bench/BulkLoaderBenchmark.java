@@ -0,0 +1,91 @@
+/**
+ * Loading a CSV export of 5 million birthdays with {@link name.chen.dave.impl.BulkLoader} on 1, 2 and 4 threads,
+ * against streaming the same file into a median DB with {@link name.chen.dave.impl.BatchIngester}, as the batch
+ * endpoint does, which runs on one thread whatever the threads parameter. The bulk loader writes its checkpoint
+ * file every time; the median DB is not persisted.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.BatchIngester;
+import name.chen.dave.impl.BulkLoader;
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BulkLoaderBenchmark {
+
+    private static final int NUM_LINES = 5_000_000;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private File dataDirectory;
+    private File input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-bench").toFile();
+        input = File.createTempFile("mediandb-export", ".csv");
+        Random random = new Random(1);
+        try (BufferedWriter writer = Files.newBufferedWriter(input.toPath())) {
+            for (int i = 0; i < NUM_LINES; i++) {
+                writer.write(LocalDate.of(1940, 1, 1).plusDays(random.nextInt(80 * 365)).toString());
+                writer.write('\n');
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+        input.delete();
+    }
+
+    @Benchmark
+    public BulkLoader.Result bulkLoad() throws IOException {
+        return new BulkLoader(new MedianDBConfig().setDataDirectory(dataDirectory.getAbsolutePath()), threads)
+                .load(Collections.singletonList(input), BatchIngester.Format.CSV, true);
+    }
+
+    @Benchmark
+    public BatchIngester.Result batchIngest() throws IOException {
+        try (MedianDB medianDB = new MedianDB(false, false); InputStream in = new FileInputStream(input)) {
+            return new BatchIngester(medianDB).ingest(in, BatchIngester.Format.CSV);
+        }
+    }
+}
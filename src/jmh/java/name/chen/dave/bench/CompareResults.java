@@ -0,0 +1,88 @@
+/**
+ * Compares two JMH result files written with -rf json, such as runs of the same benchmarks on two commits, and
+ * prints the change of every score found in both. A change is flagged when the error margins of the two scores
+ * don't overlap.
+ *
+ * Usage: CompareResults baseline.json candidate.json
+ */
+package name.chen.dave.bench;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class CompareResults {
+
+    private static final class Score {
+        final double score;
+        final double error;
+        final String unit;
+
+        Score(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    private static double toDouble(Object value) {
+        // JMH writes NaN as a string
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+
+    /**
+     * @return scores by benchmark name and parameters, in the order of the file
+     */
+    static Map<String, Score> readScores(String fileName) throws IOException, ParseException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        try (Reader reader = new FileReader(fileName)) {
+            for (Object element : (JSONArray) new JSONParser().parse(reader)) {
+                JSONObject result = (JSONObject) element;
+                String benchmark = (String) result.get("benchmark");
+                // Class and method, without the package
+                StringBuilder name = new StringBuilder(
+                        benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+                JSONObject params = (JSONObject) result.get("params");
+                if (params != null) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> sorted = new TreeMap<>(params);
+                    name.append(sorted);
+                }
+                JSONObject metric = (JSONObject) result.get("primaryMetric");
+                scores.put(name.toString(), new Score(toDouble(metric.get("score")),
+                        toDouble(metric.get("scoreError")), (String) metric.get("scoreUnit")));
+            }
+        }
+        return scores;
+    }
+
+    public static void main(String[] args) throws IOException, ParseException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompareResults baseline.json candidate.json");
+            System.exit(2);
+        }
+        Map<String, Score> baseline = readScores(args[0]);
+        Map<String, Score> candidate = readScores(args[1]);
+        System.out.printf("%-55s %14s %14s %9s%n", "Benchmark", "Baseline", "Candidate", "Change");
+        for (Map.Entry<String, Score> entry : candidate.entrySet()) {
+            Score before = baseline.get(entry.getKey());
+            Score after = entry.getValue();
+            if (before == null || !before.unit.equals(after.unit)) {
+                System.out.printf("%-55s %14s %14.3f %9s  %s%n", entry.getKey(), "-", after.score, "new",
+                        after.unit);
+                continue;
+            }
+            boolean significant = Math.abs(after.score - before.score) > before.error + after.error;
+            System.out.printf("%-55s %14.3f %14.3f %+8.1f%% %s %s%n", entry.getKey(), before.score, after.score,
+                    100 * (after.score - before.score) / before.score, significant ? "*" : " ", after.unit);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Latency of {@link name.chen.dave.impl.MedianDB#findMedian}, without the median cache, for narrow (a month), wide
+ * (the whole default range of 1850-2049) and ragged (random start and end) ranges, over an empty histogram, a
+ * million birthdays spread evenly over 1850-2049, and a million skewed towards recent decades. findMedianEpochDay
+ * is the same query on epoch days, which allocates nothing: compare with -prof gc.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FindMedianBenchmark {
+
+    private static final int NUM_BIRTHDAYS = 1_000_000;
+    private static final int NUM_RANGES = 1024;
+    private static final LocalDate FIRST = LocalDate.of(1850, 1, 1);
+    private static final int NUM_DAYS = (int) (LocalDate.of(2049, 12, 31).toEpochDay() - FIRST.toEpochDay()) + 1;
+
+    @Param({"EMPTY", "DENSE", "SKEWED"})
+    public String distribution;
+
+    @Param({"NARROW", "WIDE", "RAGGED"})
+    public String range;
+
+    private MedianDB medianDB;
+    private final LocalDate[] starts = new LocalDate[NUM_RANGES];
+    private final LocalDate[] ends = new LocalDate[NUM_RANGES];
+    private final int[] startEpochDays = new int[NUM_RANGES];
+    private final int[] endEpochDays = new int[NUM_RANGES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false).setRecoverFromPersistFile(false)
+                .setMedianCacheSize(0));
+        Random random = new Random(1);
+        if (!"EMPTY".equals(distribution)) {
+            int[] epochDays = new int[NUM_BIRTHDAYS];
+            int[] counts = new int[NUM_BIRTHDAYS];
+            long mean = LocalDate.of(1985, 1, 1).toEpochDay();
+            for (int i = 0; i < NUM_BIRTHDAYS; i++) {
+                long epochDay = "DENSE".equals(distribution) ? FIRST.toEpochDay() + random.nextInt(NUM_DAYS)
+                        : mean + (long) (random.nextGaussian() * 15 * 365);
+                epochDays[i] = (int) epochDay;
+                counts[i] = 1;
+            }
+            medianDB.addBirthdays(epochDays, counts, NUM_BIRTHDAYS);
+        }
+        for (int i = 0; i < NUM_RANGES; i++) {
+            int a = random.nextInt(NUM_DAYS);
+            int b = random.nextInt(NUM_DAYS);
+            switch (range) {
+                case "NARROW":
+                    starts[i] = FIRST.plusDays(Math.min(a, NUM_DAYS - 31));
+                    ends[i] = starts[i].plusDays(30);
+                    break;
+                case "WIDE":
+                    starts[i] = FIRST;
+                    ends[i] = FIRST.plusDays(NUM_DAYS - 1);
+                    break;
+                default:
+                    starts[i] = FIRST.plusDays(Math.min(a, b));
+                    ends[i] = FIRST.plusDays(Math.max(a, b));
+            }
+            startEpochDays[i] = (int) starts[i].toEpochDay();
+            endEpochDays[i] = (int) ends[i].toEpochDay();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        medianDB.close();
+    }
+
+    @Benchmark
+    public Optional<LocalDate> findMedian() {
+        int i = next++ & (NUM_RANGES - 1);
+        return medianDB.findMedian(starts[i], ends[i]);
+    }
+
+    @Benchmark
+    public long findMedianEpochDay() {
+        int i = next++ & (NUM_RANGES - 1);
+        return medianDB.findMedianEpochDay(startEpochDays[i], endEpochDays[i]);
+    }
+}
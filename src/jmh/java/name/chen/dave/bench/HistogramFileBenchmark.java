@@ -0,0 +1,92 @@
+/**
+ * Store and load time of the histogram file: the legacy bare counters of
+ * {@link name.chen.dave.impl.IntArrayPersistence}, and the checksummed {@link name.chen.dave.impl.HistogramFile},
+ * which also fsyncs and renames on store. 75649 counters is the histogram of 1850-2049; the larger size stands for
+ * a wider date range or a finer layout.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.HistogramFile;
+import name.chen.dave.impl.IntArrayPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistogramFileBenchmark {
+
+    @Param({"LEGACY", "CHECKSUMMED"})
+    public String format;
+
+    @Param({"75649", "1000000"})
+    public int numValues;
+
+    private File dataDirectory;
+    private File file;
+    private int[] values;
+    private long generation;
+    private final IntArrayPersistence intArrayPersistence = new IntArrayPersistence();
+    private HistogramFile histogramFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-bench").toFile();
+        file = new File(dataDirectory, "bdayhistogram.bin");
+        histogramFile = new HistogramFile(file, 0, numValues - 1, numValues);
+        values = new int[numValues];
+        Random random = new Random(1);
+        for (int i = 0; i < numValues; i++) {
+            values[i] = random.nextInt(4) == 0 ? random.nextInt(1000) : 0;
+        }
+        store();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    @Benchmark
+    public void store() throws IOException {
+        if ("LEGACY".equals(format)) {
+            intArrayPersistence.toLocalDisk(values, file.getPath());
+        } else {
+            histogramFile.write(values, ++generation);
+        }
+    }
+
+    @Benchmark
+    public int[] load() throws IOException {
+        if ("LEGACY".equals(format)) {
+            return intArrayPersistence.fromLocalDisk(file.getPath());
+        }
+        return histogramFile.read();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * What ingestion windows cost an add, with windows kept for 7 days and without, and the median of the birthdays
+ * added in the last 15 minutes, hour and day, after 100000 adds at the start of the trial. Without windows, the
+ * queries are the cached all-time median, for reference. Without persistence.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestionWindowBenchmark {
+
+    private static final int NUM_DATES = 4096;
+    private static final LocalDate START = LocalDate.of(1900, 1, 1);
+    private static final LocalDate END = LocalDate.of(2049, 12, 31);
+
+    @Param({"0", "7"})
+    private int windowDays;
+
+    private MedianDB medianDB;
+    private final LocalDate[] dates = new LocalDate[NUM_DATES];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false).setRecoverFromPersistFile(false)
+                .setIngestionWindowDays(windowDays));
+        for (int i = 0; i < NUM_DATES; i++) {
+            dates[i] = LocalDate.of(1940, 1, 1).plusDays(ThreadLocalRandom.current().nextInt(80 * 365));
+        }
+        for (int i = 0; i < 100_000; i++) {
+            medianDB.addBirthday(dates[i % NUM_DATES]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        medianDB.close();
+    }
+
+    @Benchmark
+    public void addBirthday() {
+        medianDB.addBirthday(dates[ThreadLocalRandom.current().nextInt(NUM_DATES)]);
+    }
+
+    private Optional<LocalDate> windowMedian(Duration window) {
+        return windowDays == 0 ? medianDB.findMedian(START, END) : medianDB.findWindowMedian(window, START, END);
+    }
+
+    @Benchmark
+    public Optional<LocalDate> medianOfLast15Minutes() {
+        return windowMedian(Duration.ofMinutes(15));
+    }
+
+    @Benchmark
+    public Optional<LocalDate> medianOfLastHour() {
+        return windowMedian(Duration.ofHours(1));
+    }
+
+    @Benchmark
+    public Optional<LocalDate> medianOfLastDay() {
+        return windowMedian(Duration.ofDays(1));
+    }
+}
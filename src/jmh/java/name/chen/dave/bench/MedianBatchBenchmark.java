@@ -0,0 +1,87 @@
+/**
+ * Medians of many ranges in one batch, against one median query per range, for 200 adjacent yearly cohorts and for
+ * 20000 random ranges, which the batch splits across cores. The median cache is disabled.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MedianBatchBenchmark {
+
+    public enum Ranges { COHORTS, RANDOM }
+
+    @Param
+    private Ranges ranges;
+
+    private MedianDB medianDB;
+    private final List<LocalDate> startDates = new ArrayList<>();
+    private final List<LocalDate> endDates = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false).setRecoverFromPersistFile(false)
+                .setMedianCacheSize(0));
+        Random random = new Random(1);
+        for (int i = 0; i < 1_000_000; i++) {
+            medianDB.addBirthday(LocalDate.of(1940, 1, 1).plusDays(random.nextInt(80 * 365)));
+        }
+        if (ranges == Ranges.COHORTS) {
+            for (int year = 1850; year < 2050; year++) {
+                startDates.add(LocalDate.of(year, 1, 1));
+                endDates.add(LocalDate.of(year, 12, 31));
+            }
+        } else {
+            for (int i = 0; i < 20000; i++) {
+                LocalDate start = LocalDate.of(1900, 1, 1).plusDays(random.nextInt(100 * 365));
+                startDates.add(start);
+                endDates.add(start.plusDays(random.nextInt(30 * 365)));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        medianDB.close();
+    }
+
+    @Benchmark
+    public List<Optional<LocalDate>> batch() {
+        return medianDB.findMedians(startDates, endDates);
+    }
+
+    @Benchmark
+    public void oneByOne(Blackhole blackhole) {
+        for (int i = 0; i < startDates.size(); i++) {
+            blackhole.consume(medianDB.findMedian(startDates.get(i), endDates.get(i)));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Latency of {@link name.chen.dave.impl.MedianDB#findMedian} for a handful of cohort ranges asked for over and
+ * over, as by dashboards, with and without the median cache. A million birthdays, none added while measuring.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MedianCacheBenchmark {
+
+    private static final int NUM_BIRTHDAYS = 1_000_000;
+    private static final int NUM_RANGES = 8;
+
+    @Param({"0", "1024"})
+    public int cacheSize;
+
+    private MedianDB medianDB;
+    private final LocalDate[] starts = new LocalDate[NUM_RANGES];
+    private final LocalDate[] ends = new LocalDate[NUM_RANGES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false).setRecoverFromPersistFile(false)
+                .setMedianCacheSize(cacheSize));
+        Random random = new Random(1);
+        int[] epochDays = new int[NUM_BIRTHDAYS];
+        int[] counts = new int[NUM_BIRTHDAYS];
+        for (int i = 0; i < NUM_BIRTHDAYS; i++) {
+            epochDays[i] = (int) LocalDate.of(1940, 1, 1).toEpochDay() + random.nextInt(80 * 365);
+            counts[i] = 1;
+        }
+        medianDB.addBirthdays(epochDays, counts, NUM_BIRTHDAYS);
+        for (int i = 0; i < NUM_RANGES; i++) {
+            starts[i] = LocalDate.of(1940 + 10 * (i % 6), 1, 1);
+            ends[i] = starts[i].plusYears(10 + i).minusDays(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        medianDB.close();
+    }
+
+    @Benchmark
+    public Optional<LocalDate> findMedian() {
+        int range = next++ & (NUM_RANGES - 1);
+        return medianDB.findMedian(starts[range], ends[range]);
+    }
+}
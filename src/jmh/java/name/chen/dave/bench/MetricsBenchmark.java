@@ -0,0 +1,89 @@
+/**
+ * Cost of the latency metrics on the hot paths: adds from one and four threads, and cached and uncached median
+ * queries, timing 1 in 16 of them (the default), every one, or none. Counters are kept either way.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private static final LocalDate FIRST = LocalDate.of(1940, 1, 1);
+    private static final LocalDate LAST = LocalDate.of(2019, 12, 31);
+
+    @Param({"16", "1", "0"})
+    public int sampleEvery;
+
+    private MedianDB cached;
+    private MedianDB uncached;
+
+    private MedianDB open(int cacheSize) throws IOException {
+        MedianDB medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false).setMedianCacheSize(cacheSize).setMetricsSampleEvery(sampleEvery));
+        for (int i = 0; i < 100_000; i++) {
+            medianDB.addBirthday(FIRST.plusDays(ThreadLocalRandom.current().nextInt(80 * 365)));
+        }
+        return medianDB;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        cached = open(1024);
+        uncached = open(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cached.close();
+        uncached.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addBirthday1Thread() {
+        uncached.addBirthday(FIRST.plusDays(ThreadLocalRandom.current().nextInt(80 * 365)));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addBirthday4Threads() {
+        uncached.addBirthday(FIRST.plusDays(ThreadLocalRandom.current().nextInt(80 * 365)));
+    }
+
+    @Benchmark
+    public Optional<LocalDate> findCachedMedian() {
+        return cached.findMedian(FIRST, LAST);
+    }
+
+    @Benchmark
+    public Optional<LocalDate> findMedian() {
+        return uncached.findMedian(FIRST, LAST.minusDays(ThreadLocalRandom.current().nextInt(365)));
+    }
+}
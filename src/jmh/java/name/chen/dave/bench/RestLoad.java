@@ -0,0 +1,150 @@
+/**
+ * Load test of the REST API, comparing adds and queries on the Tomcat request threads with adds and queries on
+ * their own pools. Each mode starts the application on port 8097 with a fresh data directory and a small Tomcat pool,
+ * then runs writer threads posting batches of birthdays, with the write-ahead log fsynced per batch and a checkpoint
+ * every second, against reader threads asking for medians. It prints the throughput of both, the latency of the
+ * queries as seen by the client, and the requests rejected with a 503. This is not a JMH benchmark: it runs the
+ * whole server, over HTTP.
+ *
+ * Usage: mvn -Pjmh test-compile exec:exec -Djmh.main=name.chen.dave.bench.RestLoad -Djmh.args="[seconds] [writers]
+ * [readers] [tomcat threads]", by default 10 seconds, 32 writers, 8 readers and 16 Tomcat threads.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.LatencyRecorder;
+import name.chen.dave.rest.Application;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+public class RestLoad {
+
+    private static final String URL = "http://localhost:8097/birthday";
+    private static final int BATCH_SIZE = 5000;
+
+    private static final class Result {
+        final LatencyRecorder queryLatency = new LatencyRecorder(1);
+        final LongAdder birthdaysAdded = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+    }
+
+    private static String batchBody() {
+        StringBuilder body = new StringBuilder(BATCH_SIZE * 11);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            body.append(LocalDate.ofEpochDay(-20000 + ThreadLocalRandom.current().nextInt(30000))).append('\n');
+        }
+        return body.toString();
+    }
+
+    private static String medianPath() {
+        LocalDate start = LocalDate.ofEpochDay(-20000 + ThreadLocalRandom.current().nextInt(20000));
+        return "/medianage?start=" + start + "&end=" + start.plusDays(ThreadLocalRandom.current().nextInt(10000));
+    }
+
+    private static void count(HttpStatusCodeException e, Result result) {
+        if (e.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE) {
+            result.rejected.increment();
+        } else {
+            result.failed.increment();
+        }
+    }
+
+    private static Result run(int seconds, int writers, int readers, int tomcatThreads, int readThreads,
+                              int writeThreads) throws IOException, InterruptedException {
+        Path dataDirectory = Files.createTempDirectory("rest-load");
+        ConfigurableApplicationContext context = SpringApplication.run(Application.class,
+                "--server.port=8097",
+                "--server.tomcat.max-threads=" + tomcatThreads,
+                "--spring.jmx.enabled=false",
+                "--logging.level.root=WARN",
+                "--mediandb.dataDirectory=" + dataDirectory,
+                "--mediandb.checkpointIntervalSeconds=1",
+                "--mediandb.wal.fsync=batch",
+                "--mediandb.rest.readThreads=" + readThreads,
+                "--mediandb.rest.writeThreads=" + writeThreads);
+        Result result = new Result();
+        RestTemplate restTemplate = new RestTemplate();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            threads.add(new Thread(() -> {
+                String body = batchBody();
+                while (System.nanoTime() < end) {
+                    try {
+                        restTemplate.postForEntity(URL + "/batch", body, String.class);
+                        result.birthdaysAdded.add(BATCH_SIZE);
+                    } catch (HttpStatusCodeException e) {
+                        count(e, result);
+                    }
+                }
+            }));
+        }
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    try {
+                        restTemplate.getForEntity(URL + medianPath(), String.class);
+                        result.queryLatency.recordSince(start);
+                    } catch (HttpStatusCodeException e) {
+                        count(e, result);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        SpringApplication.exit(context);
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+        return result;
+    }
+
+    private static void print(String mode, Result result, int seconds) {
+        LatencyRecorder.Summary latency = result.queryLatency.summary();
+        System.out.printf("%-8s %12d %12d %10.2f %10.2f %10.2f %10.2f %9d %7d%n", mode,
+                latency.getCount() / seconds, result.birthdaysAdded.sum() / seconds,
+                latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6,
+                latency.getPercentileNanos(99.9) / 1e6, latency.getMaxNanos() / 1e6, result.rejected.sum(),
+                result.failed.sum());
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int tomcatThreads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        int poolThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        // Keep a connection per client thread alive, rather than the 5 HttpURLConnection keeps by default
+        System.setProperty("http.maxConnections", String.valueOf(writers + readers));
+
+        Result sync = run(seconds, writers, readers, tomcatThreads, 0, 0);
+        Result async = run(seconds, writers, readers, tomcatThreads, poolThreads, poolThreads);
+        System.out.printf("%d writers of %d birthdays per batch, %d readers, %d Tomcat threads, %d s each%n",
+                writers, BATCH_SIZE, readers, tomcatThreads, seconds);
+        System.out.printf("%-8s %12s %12s %10s %10s %10s %10s %9s %7s%n", "Mode", "Queries/s", "Birthdays/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms", "Rejected", "Failed");
+        print("sync", sync, seconds);
+        print("async", async, seconds);
+        // The persistence service of each run leaves a scheduler thread behind
+        System.exit(0);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Median queries on a segment against the same queries on the global histogram, for a segment holding a million
+ * birthdays (the same as the global histogram) and one holding a hundred, and adds to a segment. The median cache
+ * is disabled, as segment queries are not cached.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentBenchmark {
+
+    private static final int NUM_RANGES = 1024;
+    private static final LocalDate FIRST = LocalDate.of(1940, 1, 1);
+    private static final int NUM_DAYS = 80 * 365;
+
+    private MedianDB medianDB;
+    private final LocalDate[] starts = new LocalDate[NUM_RANGES];
+    private final LocalDate[] ends = new LocalDate[NUM_RANGES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false).setRecoverFromPersistFile(false)
+                .setMedianCacheSize(0));
+        Random random = new Random(1);
+        for (int i = 0; i < 1_000_000; i++) {
+            medianDB.addBirthday("large", FIRST.plusDays(random.nextInt(NUM_DAYS)));
+        }
+        for (int i = 0; i < 100; i++) {
+            medianDB.addBirthday("small", FIRST.plusDays(random.nextInt(NUM_DAYS)));
+        }
+        for (int i = 0; i < NUM_RANGES; i++) {
+            int a = random.nextInt(NUM_DAYS);
+            int b = random.nextInt(NUM_DAYS);
+            starts[i] = FIRST.plusDays(Math.min(a, b));
+            ends[i] = FIRST.plusDays(Math.max(a, b));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        medianDB.close();
+    }
+
+    @Benchmark
+    public Optional<LocalDate> findGlobalMedian() {
+        int i = next++ & (NUM_RANGES - 1);
+        return medianDB.findMedian(starts[i], ends[i]);
+    }
+
+    @Benchmark
+    public Optional<LocalDate> findLargeSegmentMedian() {
+        int i = next++ & (NUM_RANGES - 1);
+        return medianDB.findMedian("large", starts[i], ends[i]);
+    }
+
+    @Benchmark
+    public Optional<LocalDate> findSmallSegmentMedian() {
+        int i = next++ & (NUM_RANGES - 1);
+        return medianDB.findMedian("small", starts[i], ends[i]);
+    }
+
+    @Benchmark
+    public void addToSegment() {
+        medianDB.addBirthday("small", FIRST.plusDays(ThreadLocalRandom.current().nextInt(NUM_DAYS)));
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Cost of a new version of the histogram: a median query right after an add publishes a copy-on-write snapshot
+ * holding the add, and {@link name.chen.dave.impl.ArrayDateHistogram#getHistogramArrayCopy} copies the whole
+ * histogram out of the latest one. Over a million birthdays spread over 1940-2020.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.ArrayDateHistogram;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    private static final int NUM_BIRTHDAYS = 1_000_000;
+    private static final LocalDate START = LocalDate.of(1940, 1, 1);
+    private static final LocalDate END = LocalDate.of(2020, 12, 31);
+
+    private MedianDB medianDB;
+    private ArrayDateHistogram histogram;
+    private final Random random = new Random(1);
+
+    private int[] randomEpochDays(int length) {
+        int[] epochDays = new int[length];
+        for (int i = 0; i < length; i++) {
+            epochDays[i] = (int) START.toEpochDay() + random.nextInt(80 * 365);
+        }
+        return epochDays;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        MedianDBConfig config = new MedianDBConfig().setPersistToDisk(false).setRecoverFromPersistFile(false)
+                .setMedianCacheSize(0);
+        int[] counts = new int[NUM_BIRTHDAYS];
+        java.util.Arrays.fill(counts, 1);
+        medianDB = new MedianDB(config);
+        medianDB.addBirthdays(randomEpochDays(NUM_BIRTHDAYS), counts, NUM_BIRTHDAYS);
+        histogram = new ArrayDateHistogram(config);
+        histogram.addEpochDays(randomEpochDays(NUM_BIRTHDAYS), counts, NUM_BIRTHDAYS);
+    }
+
+    @Benchmark
+    public Optional<LocalDate> addThenFindMedian() {
+        medianDB.addBirthday(START.plusDays(random.nextInt(80 * 365)));
+        return medianDB.findMedian(START, END);
+    }
+
+    @Benchmark
+    public int[] histogramArrayCopy() {
+        return histogram.getHistogramArrayCopy();
+    }
+}
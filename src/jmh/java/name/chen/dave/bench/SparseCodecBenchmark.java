@@ -0,0 +1,76 @@
+/**
+ * Encode and decode time of {@link name.chen.dave.impl.SparseHistogramCodec} on the day histogram, for birthdays
+ * spread uniformly over 1940-2020 or normally around 1985. The encoded size, against the 4 bytes per counter of
+ * the dense file, is printed at setup.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.SparseHistogramCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SparseCodecBenchmark {
+    // Day histogram of 1850-2049, by epoch day
+    private static final int FIRST_EPOCH_DAY = (int) LocalDate.of(1850, 1, 1).toEpochDay();
+    private static final int NUM_DAYS = (int) LocalDate.of(2049, 12, 31).toEpochDay() - FIRST_EPOCH_DAY + 1;
+
+    @Param({"UNIFORM", "NORMAL"})
+    public String distribution;
+
+    @Param({"10000", "1000000"})
+    public int birthdays;
+
+    private int[] days;
+    private byte[] encoded;
+    private final int[] decoded = new int[NUM_DAYS];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        days = new int[NUM_DAYS];
+        Random random = new Random(1);
+        long from = LocalDate.of(1940, 1, 1).toEpochDay();
+        long to = LocalDate.of(2020, 12, 31).toEpochDay();
+        long mean = LocalDate.of(1985, 1, 1).toEpochDay();
+        for (int i = 0; i < birthdays; i++) {
+            long epochDay = "UNIFORM".equals(distribution)
+                    ? from + (long) (random.nextDouble() * (to - from + 1))
+                    : mean + (long) (random.nextGaussian() * 15 * 365);
+            days[(int) Math.max(from, Math.min(to, epochDay)) - FIRST_EPOCH_DAY]++;
+        }
+        encoded = SparseHistogramCodec.encode(days, 0, NUM_DAYS);
+        System.out.printf("%n%s, %d birthdays: %d bytes encoded, %.1f%% of %d dense%n", distribution, birthdays,
+                encoded.length, 100.0 * encoded.length / (4 * NUM_DAYS), 4 * NUM_DAYS);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return SparseHistogramCodec.encode(days, 0, NUM_DAYS);
+    }
+
+    @Benchmark
+    public int[] decode() {
+        SparseHistogramCodec.decode(ByteBuffer.wrap(encoded), decoded, 0, NUM_DAYS);
+        return decoded;
+    }
+}
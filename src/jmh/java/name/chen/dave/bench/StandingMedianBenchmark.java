@@ -0,0 +1,102 @@
+/**
+ * Median queries of a handful of cohort ranges registered as standing ranges, against the same ranges found from
+ * scratch with and without the median cache. A million birthdays to begin with. addAndFindMedians adds a birthday
+ * before asking for the median of every range, so each query sees a new snapshot and the cache always misses;
+ * findMedians only asks.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StandingMedianBenchmark {
+
+    private static final int NUM_BIRTHDAYS = 1_000_000;
+    private static final int NUM_RANGES = 4;
+    private static final int FIRST_DAY = (int) LocalDate.of(1940, 1, 1).toEpochDay();
+
+    @Param({"STANDING", "CACHED", "UNCACHED"})
+    public String mode;
+
+    private MedianDB medianDB;
+    private final int[] starts = new int[NUM_RANGES];
+    private final int[] ends = new int[NUM_RANGES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Born 1980-1999, everyone 18 or older, born in 1990, and born in the 1950s
+        LocalDate[][] ranges = {
+                {LocalDate.of(1980, 1, 1), LocalDate.of(1999, 12, 31)},
+                {LocalDate.of(1850, 1, 1), LocalDate.of(2008, 10, 18)},
+                {LocalDate.of(1990, 1, 1), LocalDate.of(1990, 12, 31)},
+                {LocalDate.of(1950, 1, 1), LocalDate.of(1959, 12, 31)}};
+        MedianDBConfig config = new MedianDBConfig().setPersistToDisk(false).setRecoverFromPersistFile(false)
+                .setMedianCacheSize(mode.equals("CACHED") ? 1024 : 0);
+        for (int i = 0; i < NUM_RANGES; i++) {
+            starts[i] = (int) ranges[i][0].toEpochDay();
+            ends[i] = (int) ranges[i][1].toEpochDay();
+            if (mode.equals("STANDING")) {
+                config.addStandingRange(ranges[i][0], ranges[i][1]);
+            }
+        }
+        medianDB = new MedianDB(config);
+        Random random = new Random(1);
+        int[] epochDays = new int[NUM_BIRTHDAYS];
+        int[] counts = new int[NUM_BIRTHDAYS];
+        for (int i = 0; i < NUM_BIRTHDAYS; i++) {
+            epochDays[i] = FIRST_DAY + random.nextInt(80 * 365);
+            counts[i] = 1;
+        }
+        medianDB.addBirthdays(epochDays, counts, NUM_BIRTHDAYS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        medianDB.close();
+    }
+
+    @Benchmark
+    public long addAndFindMedians() {
+        int i = next++;
+        medianDB.addBirthday(FIRST_DAY + (i * 7919) % (80 * 365));
+        long sum = 0;
+        for (int range = 0; range < NUM_RANGES; range++) {
+            sum += medianDB.findMedianEpochDay(starts[range], ends[range]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long findMedians() {
+        long sum = 0;
+        for (int range = 0; range < NUM_RANGES; range++) {
+            sum += medianDB.findMedianEpochDay(starts[range], ends[range]);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Checkpoint and restart cost of each {@link name.chen.dave.impl.MedianDBConfig.StorageMode}, with a histogram of
+ * a million birthdays. A checkpoint follows a handful of adds, as with a steady trickle of traffic.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.ArrayDateHistogram;
+import name.chen.dave.impl.MedianDBConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageModeBenchmark {
+
+    private static final int NUM_BIRTHDAYS = 1_000_000;
+    private static final int ADDS_PER_CHECKPOINT = 16;
+
+    @Param({"HEAP", "MAPPED"})
+    public String storage;
+
+    private File dataDirectory;
+    private ArrayDateHistogram histogram;
+    private ArrayDateHistogram restarted;
+    private final Random random = new Random();
+
+    private MedianDBConfig config(boolean recover) {
+        return new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setStorageMode(MedianDBConfig.StorageMode.valueOf(storage))
+                .setRecoverFromPersistFile(recover)
+                .setWriteAheadLog(false)
+                .setCheckpointIntervalSeconds(3600);
+    }
+
+    private int randomEpochDay() {
+        return (int) LocalDate.of(1940, 1, 1).toEpochDay() + random.nextInt(80 * 365);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-bench").toFile();
+        histogram = new ArrayDateHistogram(config(false));
+        int[] epochDays = new int[NUM_BIRTHDAYS];
+        int[] counts = new int[NUM_BIRTHDAYS];
+        for (int i = 0; i < NUM_BIRTHDAYS; i++) {
+            epochDays[i] = randomEpochDay();
+            counts[i] = 1;
+        }
+        histogram.addEpochDays(epochDays, counts, NUM_BIRTHDAYS);
+        histogram.persistToLocalDisk();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        histogram.close();
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeRestarted() throws IOException {
+        if (restarted != null) {
+            restarted.close();
+            restarted = null;
+        }
+    }
+
+    @Benchmark
+    public void checkpoint() throws IOException {
+        for (int i = 0; i < ADDS_PER_CHECKPOINT; i++) {
+            histogram.addEpochDays(new int[]{randomEpochDay()}, new int[]{1}, 1);
+        }
+        histogram.persistToLocalDisk();
+    }
+
+    @Benchmark
+    public ArrayDateHistogram restart() throws IOException {
+        restarted = new ArrayDateHistogram(config(true));
+        return restarted;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Add throughput with each durability setting: checkpoints only (OFF), and the write-ahead log with each
+ * {@link name.chen.dave.impl.WriteAheadLog.FsyncPolicy}. With BATCH, every add waits for the fsync of its group,
+ * so throughput depends on how many adds a group commit can gather, i.e. on the number of threads.
+ */
+package name.chen.dave.bench;
+
+import name.chen.dave.impl.ArrayDateHistogram;
+import name.chen.dave.impl.MedianDBConfig;
+import name.chen.dave.impl.WriteAheadLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteAheadLogBenchmark {
+
+    @Param({"OFF", "NONE", "INTERVAL", "BATCH"})
+    public String durability;
+
+    private File dataDirectory;
+    private ArrayDateHistogram histogram;
+
+    @State(Scope.Thread)
+    public static class Dates {
+        private final LocalDate[] dates = new LocalDate[4096];
+        private int next = 0;
+
+        @Setup
+        public void setUp() {
+            Random random = new Random();
+            for (int i = 0; i < dates.length; i++) {
+                dates[i] = LocalDate.of(1940, 1, 1).plusDays(random.nextInt(80 * 365));
+            }
+        }
+
+        LocalDate next() {
+            return dates[next++ & (dates.length - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-bench").toFile();
+        MedianDBConfig config = new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setRecoverFromPersistFile(false)
+                .setWriteAheadLog(!"OFF".equals(durability));
+        if (config.isWriteAheadLog()) {
+            config.setFsyncPolicy(WriteAheadLog.FsyncPolicy.valueOf(durability));
+        }
+        histogram = new ArrayDateHistogram(config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        histogram.close();
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addDateOneThread(Dates dates) {
+        histogram.addDate(dates.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void addDateEightThreads(Dates dates) {
+        histogram.addDate(dates.next());
+    }
+}
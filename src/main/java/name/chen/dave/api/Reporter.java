@@ -12,4 +12,13 @@ public interface Reporter {
     int traverseDates(LocalDate startDate, LocalDate endDate);
 
     Optional<LocalDate> traverseUntil(LocalDate startDate, int untilNumBirthdays);
+
+    /**
+     * Same as traverseUntil for several numbers of birthdays at once, from a single count of the birthdays before
+     * startDate.
+     *
+     * @param untilNumBirthdays numbers of birthdays to reach, counting from startDate
+     * @param dates where the date reaching each number is put, or null if there are fewer birthdays
+     */
+    void traverseUntil(LocalDate startDate, int[] untilNumBirthdays, LocalDate[] dates);
 }
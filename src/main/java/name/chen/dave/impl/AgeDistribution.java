@@ -0,0 +1,132 @@
+/**
+ * How many birthdays there are at each age, as of a reference date, in buckets of a number of years of age, with
+ * the minimum, maximum, mean and median age.
+ *
+ * Everyone born on or before the reference date minus a years is at least a years old on it, so the birthdays at
+ * least a years old are one count of a range of the day index. One count per year of age gives the count at every
+ * age, from which the buckets and the mean are summed; the median is one more count and one rank lookup. With the
+ * default 200 years that is about 200 counts of O(log n) each, from one snapshot, whatever the number of birthdays.
+ * Birthdays after the reference date are left out.
+ */
+package name.chen.dave.impl;
+
+import name.chen.dave.api.Reporter;
+
+import java.time.LocalDate;
+import java.time.Period;
+
+public final class AgeDistribution {
+
+    private final LocalDate asOf;
+    private final int bucketWidth;
+    // Count of birthdays by bucket, from ages 0 to bucketWidth - 1 up to the bucket of the oldest age
+    private final long[] bucketCounts;
+    private final long total;
+    private final int minAge;
+    private final int maxAge;
+    private final double meanAge;
+    private final int medianAge;
+
+    private AgeDistribution(LocalDate asOf, int bucketWidth, long[] bucketCounts, long total, int minAge, int maxAge,
+                            double meanAge, int medianAge) {
+        this.asOf = asOf;
+        this.bucketWidth = bucketWidth;
+        this.bucketCounts = bucketCounts;
+        this.total = total;
+        this.minAge = minAge;
+        this.maxAge = maxAge;
+        this.meanAge = meanAge;
+        this.medianAge = medianAge;
+    }
+
+    /**
+     * @param reporter the birthdays, between the first and last date supported
+     * @throws IllegalArgumentException if the bucket width is not positive
+     */
+    static AgeDistribution of(Reporter reporter, LocalDate firstDate, LocalDate lastDate, LocalDate asOf,
+                              int bucketWidth) {
+        if (bucketWidth <= 0) {
+            throw new IllegalArgumentException("Bucket width " + bucketWidth + " is not positive");
+        }
+        LocalDate last = asOf.isBefore(lastDate) ? asOf : lastDate;
+        if (last.isBefore(firstDate)) {
+            return new AgeDistribution(asOf, bucketWidth, new long[0], 0, 0, 0, 0, 0);
+        }
+        int oldestAge = Period.between(firstDate, asOf).getYears();
+        // atLeast[a]: birthdays at least a years old
+        long[] atLeast = new long[oldestAge + 2];
+        for (int age = 0; age <= oldestAge; age++) {
+            LocalDate bornBy = asOf.minusYears(age);
+            atLeast[age] = reporter.traverseDates(firstDate, bornBy.isBefore(last) ? bornBy : last);
+        }
+        long total = atLeast[0];
+        if (total == 0) {
+            return new AgeDistribution(asOf, bucketWidth, new long[0], 0, 0, 0, 0, 0);
+        }
+        int minAge = -1;
+        int maxAge = 0;
+        double sum = 0;
+        for (int age = 0; age <= oldestAge; age++) {
+            long count = atLeast[age] - atLeast[age + 1];
+            if (count > 0) {
+                if (minAge < 0) {
+                    minAge = age;
+                }
+                maxAge = age;
+                sum += (double) age * count;
+            }
+        }
+        long[] bucketCounts = new long[maxAge / bucketWidth + 1];
+        for (int age = 0; age <= maxAge; age++) {
+            bucketCounts[age / bucketWidth] += atLeast[age] - atLeast[age + 1];
+        }
+        LocalDate[] median = MedianDB.findQuantiles(reporter, firstDate, last, new double[]{0.5});
+        return new AgeDistribution(asOf, bucketWidth, bucketCounts, total, minAge, maxAge, sum / total,
+                Period.between(median[0], asOf).getYears());
+    }
+
+    public LocalDate getAsOf() {
+        return asOf;
+    }
+
+    public int getBucketWidth() {
+        return bucketWidth;
+    }
+
+    public int getNumBuckets() {
+        return bucketCounts.length;
+    }
+
+    /**
+     * @return number of birthdays with an age from bucket * bucketWidth to (bucket + 1) * bucketWidth - 1
+     */
+    public long getBucketCount(int bucket) {
+        return bucketCounts[bucket];
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Ages are 0 when there are no birthdays: check {@link #getTotal()} first
+     */
+    public int getMinAge() {
+        return minAge;
+    }
+
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    public double getMeanAge() {
+        return meanAge;
+    }
+
+    /**
+     * @return the age at the median birthday, as the median age endpoint gives it
+     */
+    public int getMedianAge() {
+        return medianAge;
+    }
+}
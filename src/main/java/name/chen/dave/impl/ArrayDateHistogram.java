@@ -7,6 +7,22 @@
  *
  * Because traversing day-by-day can take many iterations, histograms of birthdays by month and by year
  * can help us traverse more quickly by covering more ground.
+ *
+ * Queries are answered from a {@link name.chen.dave.impl.DayCountIndex} over the day level, kept in step with
+ * addDate. The year/month/day walk (traverseDates and traverseUntil) is kept as the reference implementation.
+ *
+ * The day histogram is indexed by epoch day (see {@link java.time.LocalDate#toEpochDay}) from the first day of a
+ * configurable range of years, so it has no unused slots and a date's slot is found by arithmetic. Histogram files
+ * written for another layout are migrated when they are loaded: see {@link name.chen.dave.impl.HistogramLayout}.
+ *
+ * In the mapped storage mode, every published version is also written into a memory-mapped histogram file, so a
+ * checkpoint only forces the mapping to disk and a restart reads the file straight from the mapping.
+ *
+ * Adds, snapshots and checkpoints are timed and counted in {@link name.chen.dave.impl.MedianDBMetrics}.
+ *
+ * A leader keeps the changes of its last published versions in a {@link name.chen.dave.impl.ChangeLog}. A replica
+ * takes no adds: it applies the changes of its leader, and checkpoints how far it got with each checkpoint, see
+ * {@link name.chen.dave.impl.ReplicaPosition}.
  */
 
 package name.chen.dave.impl;
@@ -14,40 +30,65 @@ package name.chen.dave.impl;
 import name.chen.dave.api.DiskPersistable;
 
 import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
-public class ArrayDateHistogram implements DiskPersistable {
+public class ArrayDateHistogram implements DiskPersistable, Closeable {
     private final static Logger LOGGER = Logger.getLogger(ArrayDateHistogram.class.getName());
 
-    // In histogramArray, first TOTAL_NUM_YEARS_REPRESENTED elements of array represent the "years" histogram
-    // representing the birthday count in the year 1850, 1851, ... , 2049
-    private static final int EARLIEST_YEAR = 1850;
-    private static final LocalDate MIN_DATE_SUPPORTED = LocalDate.of(1850,1,1);
-    private static final LocalDate MAX_DATE_SUPPORTED = LocalDate.of(2049,12,31);
-    private static final int TOTAL_NUM_YEARS_REPRESENTED = 200;
-    private static final int YEARS_HISTOGRAM_NUM = TOTAL_NUM_YEARS_REPRESENTED;
+    // The histogram array holds the "years" histogram, the "months" histogram, then the "days" histogram, for the
+    // range of years in the config: 1850, 1851, ..., 2049 by default
+    private final HistogramLayout layout;
+    private final LocalDate minDateSupported;
+    private final LocalDate maxDateSupported;
 
-    // Next TOTAL_NUM_YEARS_REPRESENTED*12 elements represent the "months" histogram
-    // representing the birthday count in the month 1850-01, 1850-02, ..., 2049-12
-    private static final int MONTHS_HISTOGRAM_NUM = YEARS_HISTOGRAM_NUM*12;
+        // Latest published snapshot, holding an order-statistics index over the "days" histogram with every
+        // birthday drained from the stripes. Never modified once published; a new version replaces it.
+        // The year and month histograms are derived from it when the whole histogram is copied or persisted.
+        private volatile SnapshotReport published;
+        private final Object publishLock = new Object();
 
-    // Lastly, TOTAL_NUM_YEARS_REPRESENTED*12*31 represent the "days" histogram
-    // representing the birthday count in 1850-01-01, 1850-01-02, ... , 2049-12-31
-    private static final int DAYS_HISTOGRAM_NUM = YEARS_HISTOGRAM_NUM*12*31;
-        private static final int TOTAL_NUM_VALUES = YEARS_HISTOGRAM_NUM + MONTHS_HISTOGRAM_NUM + DAYS_HISTOGRAM_NUM;
-
-        // Histogram representing year, month, and day birthday count
-        private int[] histogramArray = new int[TOTAL_NUM_VALUES];
+        // Adds go to one of several stripes (picked by thread) instead of a single monitor
+        private static final int NUM_STRIPES =
+                Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+        private final HistogramStripe[] stripes = new HistogramStripe[NUM_STRIPES];
+        // Birthdays published and pending in the stripes, reserved before they are added to a stripe
+        private final AtomicLong totalBirthdays = new AtomicLong();
 
         // persist to disk
+        static final String PERSISTENCE_BASE_NAME = "bdayhistogram";
+        private final MedianDBConfig config;
         private final boolean persistToDisk;
-        private final String persistenceFile = System.getProperty("java.io.tmpdir") + File.separator + "bdayhistogram.bin";
         private final IntArrayPersistence intArrayToDisk = new IntArrayPersistence();
-        private PersistenceService persistenceService;
+        private volatile PersistenceService persistenceService;
+        // Log of adds since the last checkpoint, if enabled
+        private WriteAheadLog writeAheadLog;
+        private final Object checkpointLock = new Object();
+        // Checkpoints alternate between two histogram files, so that a torn write leaves the previous one intact.
+        // The version of the day index in each file is kept, if known, so that a checkpoint only writes what changed.
+        private final HistogramFile[] checkpointFiles = new HistogramFile[2];
+        private final DayCountIndex[] checkpointedIndexes = new DayCountIndex[2];
+        private int latestCheckpointFile;
+        private long checkpointGeneration;
+        private volatile long checkpointBytesWritten;
+        // Histogram file kept in step with the published snapshot, in the mapped storage mode
+        private MappedHistogramFile mappedFile;
+        private final MedianDBMetrics metrics;
+        // Changes of the last published versions, for followers. Null unless enabled in the config.
+        private final ChangeLog changeLog;
+        // Written with the publish lock held, together with the snapshot the changes were applied to
+        private final boolean replica;
+        private volatile ReplicaPosition replicaPosition;
+        private ReplicaPosition checkpointedPosition;
+        // Moved along by every version published. Copied on write, with the publish lock held.
+        private volatile StandingMedian[] standingMedians = new StandingMedian[0];
 
         enum HISTOGRAMS { YEAR, MONTH, DAY; }
 
@@ -55,13 +96,243 @@ public class ArrayDateHistogram implements DiskPersistable {
             this(true, true);
         }
     public ArrayDateHistogram(boolean recoverFromPersistFile, boolean persistToDisk) throws IOException {
-            if (recoverFromPersistFile) {
-                File persistedFile = new File(persistenceFile);
-                if (persistedFile.exists()) {
-                    this.histogramArray = intArrayToDisk.fromLocalDisk(persistenceFile);
+            this(MedianDBConfig.fromSystemProperties().setRecoverFromPersistFile(recoverFromPersistFile)
+                    .setPersistToDisk(persistToDisk));
+        }
+
+    public ArrayDateHistogram(MedianDBConfig config) throws IOException {
+            this.config = config;
+            this.metrics = new MedianDBMetrics(config.getMetricsSampleEvery());
+            this.layout = new HistogramLayout(config.getFirstYear(), config.getLastYear());
+            this.minDateSupported = LocalDate.ofEpochDay(layout.getFirstEpochDay());
+            this.maxDateSupported = LocalDate.ofEpochDay(layout.getLastEpochDay());
+            this.persistToDisk = config.isPersistToDisk();
+            this.replica = config.isReplica();
+            boolean mapped = persistToDisk && config.getStorageMode() == MedianDBConfig.StorageMode.MAPPED;
+            if (mapped && replica) {
+                // A mapped file can be ahead of its last checkpoint, and so of the replica position
+                LOGGER.warning("Mapped storage is not supported for replicas, using HEAP");
+                mapped = false;
+            }
+            HistogramFile.Codec codec = config.getCodec();
+            if (mapped && codec != HistogramFile.Codec.DENSE) {
+                LOGGER.warning("The " + codec + " codec is not supported with mapped storage, using DENSE");
+                codec = HistogramFile.Codec.DENSE;
+            }
+            for (int i = 0; i < checkpointFiles.length; i++) {
+                // The year and month histograms are derived from the days, so a sparse file leaves them out
+                checkpointFiles[i] = new HistogramFile(new File(config.getDataDirectory(),
+                        PERSISTENCE_BASE_NAME + (i == 0 ? "" : "." + i) + ".bin"),
+                        layout.getFirstEpochDay(), layout.getLastEpochDay(), layout.numValues())
+                        .setCodec(codec, layout.daysOffset());
+            }
+            int[] histogramArray;
+            if (mapped) {
+                histogramArray = openMappedFile();
+            } else if (config.isRecoverFromPersistFile()) {
+                histogramArray = recoverCheckpoint();
+            } else {
+                histogramArray = new int[layout.numValues()];
+                checkpointGeneration = latestGeneration();
+            }
+            if (replica && config.isRecoverFromPersistFile()) {
+                replicaPosition = ReplicaPosition.read(replicaPositionFile(), checkpointGeneration);
+                checkpointedPosition = replicaPosition;
+            }
+            DayCountIndex checkpointedIndex = checkpointedIndexes[latestCheckpointFile];
+            this.published = new SnapshotReport(this, checkpointedIndex != null ? checkpointedIndex
+                    : DayCountIndex.fromCounts(histogramArray, layout.daysOffset(), layout.getNumDays()), 0);
+            totalBirthdays.set(published.getDayIndex().total());
+            this.changeLog = config.getReplicationLogRecords() > 0 && !replica
+                    ? new ChangeLog(config.getReplicationLogRecords(), 0) : null;
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                stripes[i] = new HistogramStripe(layout.getNumDays());
+            }
+            if (mapped) {
+                // The day level is the source of truth: a crash can leave the year and month levels behind it
+                mappedFile.write(0, layout.toHistogramArray(published.getDayIndex()), 0, layout.daysOffset());
+                if (config.isWriteAheadLog()) {
+                    LOGGER.warning("The write-ahead log is not supported with mapped storage and is disabled");
+                }
+            } else if (persistToDisk && config.isWriteAheadLog() && !replica) {
+                // A replica's changes since its last checkpoint are fetched from the leader again instead
+                openWriteAheadLog();
+            }
+    }
+
+    /**
+     * Load the checkpoint file with the latest generation that passes every check, migrating a file written for
+     * another layout.
+     *
+     * @return the histogram in it, or an empty one if there is no checkpoint file. Only the day histogram is
+     * sure to be filled in: a sparse or migrated file leaves out the year and month histograms.
+     * @throws IllegalArgumentException if there are checkpoint files, but none is valid
+     */
+    private int[] recoverCheckpoint() throws IOException {
+        int[] latest = null;
+        IllegalArgumentException invalid = null;
+        for (int i = 0; i < checkpointFiles.length; i++) {
+            HistogramFile file = checkpointFiles[i];
+            if (!file.getFile().exists()) {
+                continue;
+            }
+            int[] histogramArray;
+            long generation;
+            try {
+                histogramArray = file.read();
+                generation = file.getGeneration();
+                checkpointedIndexes[i] = DayCountIndex.fromCounts(histogramArray, layout.daysOffset(),
+                        layout.getNumDays());
+            } catch (IllegalArgumentException e) {
+                histogramArray = new int[layout.numValues()];
+                try {
+                    generation = migrateCheckpoint(file.getFile(), histogramArray);
+                } catch (IllegalArgumentException migrationFailure) {
+                    e = migrationFailure;
+                    generation = -1;
                 }
+                if (generation < 0) {
+                    LOGGER.warning(e.getMessage());
+                    invalid = e;
+                    continue;
+                }
+            }
+            if (latest == null || generation > checkpointGeneration) {
+                latest = histogramArray;
+                latestCheckpointFile = i;
+                checkpointGeneration = generation;
             }
-            this.persistToDisk = persistToDisk;
+        }
+        if (latest == null && invalid != null) {
+            throw invalid;
+        }
+        return latest == null ? new int[layout.numValues()] : latest;
+    }
+
+    /**
+     * Read a checkpoint file written for another layout: with 31 day slots for every month of 1850-2049, either
+     * checksummed or a legacy file of bare counters, or checksummed for another range of years. Birthdays outside
+     * of the current range are logged and left out.
+     *
+     * @param histogramArray where the day histogram of the file is copied to, in the current layout
+     * @return the generation of the file, 0 for a legacy file, or -1 if the file is in none of those layouts
+     * @throws IllegalArgumentException if the file is in one of those layouts, but not valid
+     */
+    private long migrateCheckpoint(File file, int[] histogramArray) throws IOException {
+        int monthSlotsFirstEpochDay = (int) LocalDate.of(HistogramLayout.MONTH_SLOTS_FIRST_YEAR, 1, 1).toEpochDay();
+        int monthSlotsLastEpochDay = (int) LocalDate.of(HistogramLayout.MONTH_SLOTS_FIRST_YEAR
+                + HistogramLayout.MONTH_SLOTS_NUM_YEARS - 1, 12, 31).toEpochDay();
+        HistogramFile written = HistogramFile.fromHeader(file);
+        int leftOut;
+        long generation;
+        if (written == null) {
+            if (!new HistogramFile(file, monthSlotsFirstEpochDay, monthSlotsLastEpochDay,
+                    HistogramLayout.MONTH_SLOTS_NUM_VALUES).isLegacyFile()) {
+                return -1;
+            }
+            LOGGER.info("Migrating " + file + " from the legacy format");
+            leftOut = layout.copyDaysFromMonthSlots(intArrayToDisk.fromLocalDisk(file.getPath()), histogramArray);
+            generation = 0;
+        } else if (written.getFirstEpochDay() == monthSlotsFirstEpochDay
+                && written.getLastEpochDay() == monthSlotsLastEpochDay
+                && written.getNumValues() == HistogramLayout.MONTH_SLOTS_NUM_VALUES) {
+            LOGGER.info("Migrating " + file + " from 31 day slots for every month to days by epoch day");
+            leftOut = layout.copyDaysFromMonthSlots(written.read(), histogramArray);
+            generation = written.getGeneration();
+        } else {
+            HistogramLayout writtenLayout = HistogramLayout.ofEpochDays(written.getFirstEpochDay(),
+                    written.getLastEpochDay());
+            if (writtenLayout.numValues() != written.getNumValues()) {
+                return -1;
+            }
+            LOGGER.info("Migrating " + file + " from the years " + writtenLayout.getFirstYear() + " to "
+                    + writtenLayout.getLastYear());
+            leftOut = layout.copyDaysFrom(writtenLayout, written.read(), histogramArray);
+            generation = written.getGeneration();
+        }
+        if (leftOut > 0) {
+            LOGGER.warning(leftOut + " birthdays in " + file + " are outside of the years " + layout.getFirstYear()
+                    + " to " + layout.getLastYear() + " and were left out");
+        }
+        return generation;
+    }
+
+    /**
+     * @return the latest generation in the header of any checkpoint file, so that new checkpoints come after it
+     */
+    private long latestGeneration() throws IOException {
+        long generation = 0;
+        for (HistogramFile file : checkpointFiles) {
+            // Files written for another layout count too, as they are migrated if recovered from later
+            HistogramFile written = HistogramFile.fromHeader(file.getFile());
+            if (written != null) {
+                generation = Math.max(generation, written.readGeneration());
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Map the first checkpoint file, after writing the latest checkpoint to it if it doesn't hold it already.
+     * The second file is not used in the mapped storage mode, and is deleted.
+     *
+     * @return the histogram in the mapped file
+     */
+    private int[] openMappedFile() throws IOException {
+        HistogramFile file = checkpointFiles[0];
+        long generation = config.isRecoverFromPersistFile() && !checkpointFiles[1].getFile().exists()
+                && file.readCodec() == HistogramFile.Codec.DENSE ? file.readGeneration() : -1;
+        if (generation < 0) {
+            int[] histogramArray;
+            if (config.isRecoverFromPersistFile()) {
+                histogramArray = recoverCheckpoint();
+            } else {
+                histogramArray = new int[layout.numValues()];
+                checkpointGeneration = latestGeneration();
+            }
+            generation = checkpointGeneration + 1;
+            file.write(histogramArray, generation);
+            checkpointFiles[1].delete();
+            checkpointedIndexes[0] = null;
+            checkpointedIndexes[1] = null;
+            latestCheckpointFile = 0;
+        }
+        checkpointGeneration = generation;
+        mappedFile = new MappedHistogramFile(file);
+        int[] histogramArray = new int[layout.numValues()];
+        mappedFile.read(0, histogramArray, 0, layout.numValues());
+        return histogramArray;
+    }
+
+    /**
+     * Replay the log left by the last run on top of the checkpoint, write a checkpoint covering all of it,
+     * and start a new log from there.
+     */
+    private void openWriteAheadLog() throws IOException {
+        File dataDirectory = new File(config.getDataDirectory());
+        if (config.isRecoverFromPersistFile()) {
+            long replayed = WriteAheadLog.replay(dataDirectory, PERSISTENCE_BASE_NAME,
+                    published.getDayIndex().total(), this::replayRecord);
+            LOGGER.info("Replayed " + replayed + " write-ahead log records");
+        }
+        SnapshotReport snapshot = getSnapshot();
+        writeCheckpoint(snapshot.getDayIndex());
+        WriteAheadLog.deleteAllSegments(dataDirectory, PERSISTENCE_BASE_NAME);
+        writeAheadLog = new WriteAheadLog(dataDirectory, PERSISTENCE_BASE_NAME, config.getFsyncPolicy(),
+                config.getFsyncIntervalMillis(), NUM_STRIPES, snapshot.getDayIndex().total());
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i].attachLog(writeAheadLog.buffer(i));
+        }
+    }
+
+    private void replayRecord(int epochDay, int delta) {
+        int daySlot = layout.daySlot(epochDay);
+        if (daySlot < 0) {
+            LOGGER.warning("Skipping write-ahead log record for unsupported epoch day " + epochDay);
+            return;
+        }
+        totalBirthdays.addAndGet(delta);
+        stripes[0].add(daySlot, epochDay, delta);
     }
 
     private LocalDate getLastDayOfYear(LocalDate date) {
@@ -73,58 +344,535 @@ public class ArrayDateHistogram implements DiskPersistable {
     }
 
     private int getHistogramIndex(LocalDate date, HISTOGRAMS type) {
-        validateDate(date);
-        int year = date.getYear();
-        int month = date.getMonthValue();
-        int day = date.getDayOfMonth();
+        int daySlot = getDaySlot(date);
         switch (type) {
             case YEAR:
-                return year - EARLIEST_YEAR;
+                return date.getYear() - layout.getFirstYear();
             case MONTH:
-                return TOTAL_NUM_YEARS_REPRESENTED + 12*(year - EARLIEST_YEAR) + month - 1;
+                return layout.monthsOffset() + 12*(date.getYear() - layout.getFirstYear()) + date.getMonthValue() - 1;
             case DAY:
-                return TOTAL_NUM_YEARS_REPRESENTED + TOTAL_NUM_YEARS_REPRESENTED*12 +
-                        12*31*(year - EARLIEST_YEAR) + 31*(month - 1) + day - 1;
+                return layout.daysOffset() + daySlot;
             default: throw new IllegalArgumentException("Invalid Histogram type: " + type);
         }
     }
 
-    private void validateDate(LocalDate date) {
-        if (date.isBefore(MIN_DATE_SUPPORTED) || date.isAfter(MAX_DATE_SUPPORTED)) {
+    /**
+     * @throws IllegalArgumentException if the date is outside of the configured range of years
+     */
+    private int getDaySlot(LocalDate date) {
+        int daySlot = layout.daySlot((int) date.toEpochDay());
+        if (daySlot < 0) {
             throw new IllegalArgumentException("Date: " + date + " not supported. "
-             + "Min Date: " + MIN_DATE_SUPPORTED + ", Max Date: " + MAX_DATE_SUPPORTED);
+             + "Min Date: " + minDateSupported + ", Max Date: " + maxDateSupported);
         }
+        return daySlot;
+    }
+
+    private int getDaySlot(int epochDay) {
+        int daySlot = layout.daySlot(epochDay);
+        if (daySlot < 0) {
+            throw new IllegalArgumentException("Date: " + LocalDate.ofEpochDay(epochDay) + " not supported. "
+                    + "Min Date: " + minDateSupported + ", Max Date: " + maxDateSupported);
+        }
+        return daySlot;
+    }
+
+    private LocalDate getDateOfDaySlot(int daySlot) {
+        return LocalDate.ofEpochDay(layout.epochDayOf(daySlot));
     }
 
     private int getHistogramValue(int[] histogramArrayParam, LocalDate date, HISTOGRAMS type) {
         return histogramArrayParam[getHistogramIndex(date, type)];
     }
 
-    public synchronized void addDate(LocalDate date) {
+    public void addDate(LocalDate date) {
+        addDaySlot(getDaySlot(date), (int) date.toEpochDay());
+    }
+
+    /**
+     * Same as {@link #addDate(LocalDate)}, for a date given as its epoch day. Allocates nothing once every stripe
+     * has the page of the day, unless the write-ahead log buffer has to grow.
+     *
+     * @throws IllegalArgumentException if the date is not supported, or there are already
+     * {@link MedianDB#MAX_BIRTHDAYS}
+     * @throws IllegalStateException if writing to the write-ahead log has failed
+     */
+    public void addEpochDay(int epochDay) {
+        addDaySlot(getDaySlot(epochDay), epochDay);
+    }
+
+    private void addDaySlot(int daySlot, int epochDay) {
+        long start = metrics.adds.start();
+        checkLogWritable();
+        if (totalBirthdays.incrementAndGet() > MedianDB.MAX_BIRTHDAYS) {
+            totalBirthdays.decrementAndGet();
+            throw new IllegalArgumentException("Date: " + LocalDate.ofEpochDay(epochDay) + " not added: there are "
+                    + "already " + MedianDB.MAX_BIRTHDAYS + " birthdays");
+        }
+        if (persistToDisk && persistenceService == null) {
+            startPersistenceService();
+        }
+        WriteAheadLog.Commit commit = getStripe().add(daySlot, epochDay, 1);
+        if (persistToDisk) {
+            persistenceService.indicateNewChanges();
+        }
+        awaitCommit(commit);
+        metrics.addCount.increment();
+        metrics.birthdaysAdded.increment();
+        metrics.adds.recordSince(start);
+    }
+
+    /**
+     * Add a batch of birthdays, as (epoch day, count) pairs, taking a stripe lock once for the whole batch.
+     *
+     * @return number of pairs rejected because the date is not supported, the count is not from 1 to
+     * {@link MedianDB#MAX_COUNT}, or they come from the first pair that would take the birthdays past
+     * {@link MedianDB#MAX_BIRTHDAYS}
+     * @throws IllegalStateException if writing to the write-ahead log has failed
+     */
+    public int addEpochDays(int[] epochDays, int[] counts, int length) {
+        long start = metrics.adds.start();
+        checkLogWritable();
+        int[] daySlots = new int[length];
+        int[] acceptedEpochDays = new int[length];
+        int[] acceptedCounts = new int[length];
+        int accepted = 0;
+        for (int i = 0; i < length; i++) {
+            int daySlot = layout.daySlot(epochDays[i]);
+            if (daySlot >= 0 && counts[i] > 0 && counts[i] <= MedianDB.MAX_COUNT) {
+                daySlots[accepted] = daySlot;
+                acceptedEpochDays[accepted] = epochDays[i];
+                acceptedCounts[accepted] = counts[i];
+                accepted++;
+            }
+        }
+        long reserved;
+        while (true) {
+            long before = totalBirthdays.get();
+            // As many of the pairs, in order, as there is room for
+            long room = MedianDB.MAX_BIRTHDAYS - before;
+            int fitting = 0;
+            reserved = 0;
+            while (fitting < accepted && reserved + acceptedCounts[fitting] <= room) {
+                reserved += acceptedCounts[fitting++];
+            }
+            if (totalBirthdays.compareAndSet(before, before + reserved)) {
+                accepted = fitting;
+                break;
+            }
+        }
+        if (accepted > 0) {
+            if (persistToDisk && persistenceService == null) {
+                startPersistenceService();
+            }
+            WriteAheadLog.Commit commit = getStripe().addAll(daySlots, acceptedEpochDays, acceptedCounts, accepted);
+            if (persistToDisk) {
+                persistenceService.indicateNewChanges();
+            }
+            awaitCommit(commit);
+            metrics.birthdaysAdded.add(reserved);
+        }
+        metrics.addCount.increment();
+        metrics.adds.recordSince(start);
+        return length - accepted;
+    }
+
+    /**
+     * Refuse adds once the write-ahead log has failed, so that an add retried after an error is not counted twice
+     */
+    private void checkLogWritable() {
+        IOException failure = writeAheadLog == null ? null : writeAheadLog.getFailure();
+        if (failure != null) {
+            throw new IllegalStateException("Writing to the write-ahead log failed: read-only until restarted",
+                    failure);
+        }
+    }
+
+    private static void awaitCommit(WriteAheadLog.Commit commit) {
+        if (commit != null) {
+            try {
+                commit.await();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private synchronized void startPersistenceService() {
+        if (persistenceService == null) {
+            PersistenceService service = new PersistenceService(this, config.getCheckpointIntervalSeconds());
+            service.start();
+            persistenceService = service;
+        }
+    }
+
+    private HistogramStripe getStripe() {
+        long threadId = Thread.currentThread().getId();
+        return stripes[(int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32) & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * Pin the current version of the histogram. If no birthdays were added since the last version was published,
+     * this is a handful of volatile reads. Otherwise the pending counts of every stripe are drained into a
+     * copy-on-write copy of the last version, which is published as the next version.
+     */
+    SnapshotReport getSnapshot() {
+        if (!hasPendingCounts()) {
+            return published;
+        }
+        long start = metrics.publishLockWait.start();
+        synchronized (publishLock) {
+            metrics.publishLockWait.recordSince(start);
+            return publish();
+        }
+    }
+
+    /**
+     * Drain the stripes into the next version, with the publish lock held.
+     */
+    private SnapshotReport publish() {
+        long start = metrics.snapshotPublishes.start();
+        SnapshotReport current = published;
+        DayCountIndex next = current.getDayIndex().copyOnWrite();
+        boolean changed = false;
+        for (HistogramStripe stripe : stripes) {
+            changed |= stripe.drainTo(next);
+        }
+        if (changed) {
+            if (mappedFile != null) {
+                writeChangedPages(current.getDayIndex(), next);
+            }
+            if (changeLog != null) {
+                logChanges(current.getDayIndex(), next, current.getVersion() + 1);
+            }
+            // Before the version is published, so no query sees it with the standing medians of the one before
+            for (StandingMedian standing : standingMedians) {
+                standing.advance(current.getDayIndex(), next);
+            }
+            published = new SnapshotReport(this, next, current.getVersion() + 1);
+            metrics.snapshotBytesCopied.add(next.copiedBytes());
+        }
+        metrics.snapshotPublishes.recordSince(start);
+        return published;
+    }
+
+    /**
+     * Write the day pages changed since the previous version into the mapped file, and add their differences to
+     * the year and month levels.
+     */
+    private void writeChangedPages(DayCountIndex previous, DayCountIndex next) {
+        for (int page = 0; page < next.numPages(); page++) {
+            if (!next.isPageWritten(page)) {
+                continue;
+            }
+            int[] counts = next.page(page);
+            int[] previousCounts = previous.page(page);
+            int from = page << DayCountIndex.PAGE_SHIFT;
+            int length = Math.min(DayCountIndex.PAGE_SIZE, layout.getNumDays() - from);
+            for (int i = 0; i < length; i++) {
+                int delta = previousCounts == null ? counts[i] : counts[i] - previousCounts[i];
+                if (delta != 0) {
+                    int month = layout.monthOf(from + i);
+                    mappedFile.add(month / 12, delta);
+                    mappedFile.add(layout.monthsOffset() + month, delta);
+                }
+            }
+            mappedFile.write(layout.daysOffset() + from, counts, 0, length);
+        }
+    }
+
+    /**
+     * Append the days that changed since the previous version to the change log, as the changes of the next one.
+     */
+    private void logChanges(DayCountIndex previous, DayCountIndex next, long version) {
+        int[] epochDays = new int[DayCountIndex.PAGE_SIZE];
+        int[] deltas = new int[DayCountIndex.PAGE_SIZE];
+        int length = 0;
+        for (int page = 0; page < next.numPages(); page++) {
+            if (!next.isPageWritten(page)) {
+                continue;
+            }
+            int[] counts = next.page(page);
+            int[] previousCounts = previous.page(page);
+            int from = page << DayCountIndex.PAGE_SHIFT;
+            int pageLength = Math.min(DayCountIndex.PAGE_SIZE, layout.getNumDays() - from);
+            for (int i = 0; i < pageLength; i++) {
+                int delta = previousCounts == null ? counts[i] : counts[i] - previousCounts[i];
+                if (delta != 0) {
+                    if (length == epochDays.length) {
+                        epochDays = Arrays.copyOf(epochDays, 2 * length);
+                        deltas = Arrays.copyOf(deltas, 2 * length);
+                    }
+                    epochDays[length] = layout.epochDayOf(from + i);
+                    deltas[length++] = delta;
+                }
+            }
+        }
+        changeLog.append(version, Arrays.copyOf(epochDays, length), Arrays.copyOf(deltas, length));
+    }
+
+    StandingMedian[] getStandingMedians() {
+        return standingMedians;
+    }
+
+    /**
+     * Start keeping a standing median up to date, from the latest version
+     */
+    void addStandingMedian(StandingMedian standing) {
+        synchronized (publishLock) {
+            publish();
+            standing.reset(published.getDayIndex());
+            StandingMedian[] added = Arrays.copyOf(standingMedians, standingMedians.length + 1);
+            added[added.length - 1] = standing;
+            standingMedians = added;
+        }
+    }
+
+    void removeStandingMedian(StandingMedian standing) {
+        synchronized (publishLock) {
+            StandingMedian[] remaining = new StandingMedian[standingMedians.length - 1];
+            int i = 0;
+            for (StandingMedian registered : standingMedians) {
+                if (registered != standing) {
+                    remaining[i++] = registered;
+                }
+            }
+            standingMedians = remaining;
+        }
+    }
+
+    /**
+     * @return the write-ahead log, or null if this histogram keeps none
+     */
+    WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * @return the log of changes, or null if this histogram keeps none
+     */
+    ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * @return how far this replica has applied the changes of its leader, or null if it has applied none that
+     * were checkpointed, or is not a replica
+     */
+    ReplicaPosition getReplicaPosition() {
+        return replicaPosition;
+    }
+
+    /**
+     * Apply changes of the leader to this replica, and move it to the position they bring it to. The changes are
+     * published with the position, so a checkpoint holds both or neither. Called by one thread at a time.
+     *
+     * @return number of birthdays left out because their day is outside of the range of years of this replica
+     */
+    long applyReplicated(int[] epochDays, int[] deltas, int length, ReplicaPosition position) {
+        if (!replica) {
+            throw new IllegalStateException("Not a replica");
+        }
+        int[] daySlots = new int[length];
+        int[] acceptedEpochDays = new int[length];
+        int[] acceptedDeltas = new int[length];
+        int accepted = 0;
+        long leftOut = 0;
+        for (int i = 0; i < length; i++) {
+            int daySlot = layout.daySlot(epochDays[i]);
+            if (daySlot < 0) {
+                leftOut += deltas[i];
+                continue;
+            }
+            daySlots[accepted] = daySlot;
+            acceptedEpochDays[accepted] = epochDays[i];
+            acceptedDeltas[accepted++] = deltas[i];
+            totalBirthdays.addAndGet(deltas[i]);
+        }
         if (persistToDisk && persistenceService == null) {
-            persistenceService = new PersistenceService(this, 10);
-            persistenceService.start();
+            startPersistenceService();
+        }
+        synchronized (publishLock) {
+            stripes[0].addAll(daySlots, acceptedEpochDays, acceptedDeltas, accepted);
+            publish();
+            replicaPosition = position;
         }
-        this.histogramArray[getHistogramIndex(date, HISTOGRAMS.YEAR)]++;
-        this.histogramArray[getHistogramIndex(date, HISTOGRAMS.MONTH)]++;
-        this.histogramArray[getHistogramIndex(date, HISTOGRAMS.DAY)]++;
         if (persistToDisk) {
             persistenceService.indicateNewChanges();
         }
+        return leftOut;
+    }
+
+    private File replicaPositionFile() {
+        return new File(config.getDataDirectory(), PERSISTENCE_BASE_NAME + ".replica");
+    }
+
+    private boolean hasPendingCounts() {
+        for (HistogramStripe stripe : stripes) {
+            if (stripe.hasPendingCounts()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the year, month and day histograms in one array, from the current version of the histogram
+     */
+    public int[] getHistogramArrayCopy() {
+        return layout.toHistogramArray(getSnapshot().getDayIndex());
+    }
+
+    /**
+     * Count birthdays from startDate to endDate (inclusive) using the day index.
+     */
+    int countDates(LocalDate startDate, LocalDate endDate, DayCountIndex index) {
+        int startSlot = getDaySlot(startDate);
+        int endSlot = getDaySlot(endDate);
+        return index.count(startSlot, endSlot);
+    }
+
+    /**
+     * Same contract as traverseUntil, answered by a descent of the day index instead of a walk.
+     *
+     * @param startDate
+     * @param numBirthdays
+     * @return
+     */
+    Optional<LocalDate> findDateUntil(LocalDate startDate, int numBirthdays, DayCountIndex index) {
+        int startSlot = getDaySlot(startDate);
+        if (numBirthdays <= 0) {
+            return Optional.of(startDate);
+        }
+        int slot = index.findKth(index.prefixCount(startSlot - 1) + numBirthdays);
+        if (slot < 0) {
+            return Optional.empty();
+        }
+        return Optional.of(getDateOfDaySlot(slot));
+    }
+
+    /**
+     * Same contract as findDateUntil for several numbers of birthdays, from one count of the birthdays before
+     * startDate and one descent of the day index for each number.
+     */
+    void findDatesUntil(LocalDate startDate, int[] numBirthdays, LocalDate[] dates, DayCountIndex index) {
+        int startSlot = getDaySlot(startDate);
+        int before = index.prefixCount(startSlot - 1);
+        for (int i = 0; i < numBirthdays.length; i++) {
+            if (numBirthdays[i] <= 0) {
+                dates[i] = startDate;
+                continue;
+            }
+            int slot = index.findKth(before + numBirthdays[i]);
+            dates[i] = slot < 0 ? null : getDateOfDaySlot(slot);
+        }
+    }
+
+    /**
+     * Same contract as a median of quantile 0.5, as an epoch day, from two prefix counts and one or two descents of
+     * the day index. Allocates nothing.
+     *
+     * @return the epoch day of the median, or {@link name.chen.dave.impl.MedianDB#NO_MEDIAN} if there are no
+     * birthdays in the range
+     * @throws IllegalArgumentException if a date is not supported
+     */
+    long findMedianEpochDay(int startEpochDay, int endEpochDay, DayCountIndex index) {
+        int startSlot = getDaySlot(startEpochDay);
+        int endSlot = getDaySlot(endEpochDay);
+        if (endSlot < startSlot) {
+            return MedianDB.NO_MEDIAN;
+        }
+        int before = index.prefixCount(startSlot - 1);
+        int birthdays = index.prefixCount(endSlot) - before;
+        if (birthdays == 0) {
+            return MedianDB.NO_MEDIAN;
+        }
+        // The middle birthday, or the two around the middle of an even number of birthdays
+        int lowerSlot = index.findKth(before + (birthdays + 1) / 2);
+        int upperSlot = birthdays % 2 == 0 ? index.findKth(before + birthdays / 2 + 1) : lowerSlot;
+        return layout.epochDayOf(lowerSlot + (upperSlot - lowerSlot) / 2);
     }
 
-    public synchronized int[] getHistogramArrayCopy() {
-        return Arrays.copyOf(this.histogramArray, TOTAL_NUM_VALUES);
+    /**
+     * Same contract as a median of quantile 0.5 for each of many ranges, from prefix counts shared between the
+     * ranges. The day before each start and each end are sorted and counted in one sweep of the day index, so
+     * adjacent ranges count their common boundary once. The ranks of the birthdays around every median are then
+     * sorted and found in a second sweep.
+     *
+     * @param medians where the median of each range, from..to (exclusive), is put, or null if there are no
+     *                birthdays in it
+     * @throws IllegalArgumentException if a date is not supported
+     */
+    void findMedians(LocalDate[] startDates, LocalDate[] endDates, int from, int to, LocalDate[] medians,
+                     DayCountIndex index) {
+        int numRanges = to - from;
+        // Boundary slot + 1 (to keep the day before the first slot positive) in the high half, position in the low
+        long[] keys = new long[2 * numRanges];
+        for (int i = 0; i < numRanges; i++) {
+            keys[2 * i] = (long) getDaySlot(startDates[from + i]) << 32 | (2 * i);
+            keys[2 * i + 1] = (long) (getDaySlot(endDates[from + i]) + 1) << 32 | (2 * i + 1);
+        }
+        int[] prefixCounts = sweep(keys, keys.length, index, true);
+
+        int numRanks = 0;
+        for (int i = 0; i < numRanges; i++) {
+            int before = prefixCounts[2 * i];
+            int birthdays = prefixCounts[2 * i + 1] - before;
+            if (birthdays <= 0) {
+                medians[from + i] = null;
+                continue;
+            }
+            // The middle birthday, or the two around the middle of an even number of birthdays
+            int lower = before + (birthdays + 1) / 2;
+            int upper = birthdays % 2 == 0 ? lower + 1 : lower;
+            keys[numRanks++] = (long) lower << 32 | (2 * i);
+            keys[numRanks++] = (long) upper << 32 | (2 * i + 1);
+        }
+        int[] rankSlots = sweep(keys, numRanks, index, false);
+        for (int i = 0; i < numRanges; i++) {
+            if (prefixCounts[2 * i + 1] - prefixCounts[2 * i] <= 0) {
+                continue;
+            }
+            int lowerSlot = rankSlots[2 * i];
+            medians[from + i] = getDateOfDaySlot(lowerSlot + (rankSlots[2 * i + 1] - lowerSlot) / 2);
+        }
+    }
+
+    /**
+     * Sort the keys and answer them in order, by prefix count of slot - 1 or by slot of the k-th birthday
+     *
+     * @return the answer for each key, at the position in its low half
+     */
+    private static int[] sweep(long[] keys, int length, DayCountIndex index, boolean prefixCounts) {
+        Arrays.sort(keys, 0, length);
+        int[] values = new int[length];
+        int[] answers = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = (int) (keys[i] >>> 32);
+            if (prefixCounts) {
+                values[i]--;
+            }
+        }
+        if (prefixCounts) {
+            index.prefixCounts(values, length, answers);
+        } else {
+            index.findKths(values, length, answers);
+        }
+        int[] byPosition = new int[keys.length];
+        for (int i = 0; i < length; i++) {
+            byPosition[(int) keys[i]] = answers[i];
+        }
+        return byPosition;
     }
 
     public int traverseDates(LocalDate startDate, LocalDate endDate, Optional<int[]> histogramCopyParam) {
-        int[] histogramCopy = histogramCopyParam.orElse(getHistogramArrayCopy());
+        int[] histogramCopy = histogramCopyParam.orElseGet(this::getHistogramArrayCopy);
         LocalDate currentDate = startDate;
         int birthdayCount = 0;
         int currentDateMonth = 0;
 
         yearlyHistogram:
-        while (currentDate.isBefore(endDate)) {
+        while (!currentDate.isAfter(endDate)) {
             while ((currentDate.getDayOfYear() == 1) &&
                     (getLastDayOfYear(currentDate).isBefore(endDate.plusDays(1)))) {
                 birthdayCount += getHistogramValue(histogramCopy, currentDate, HISTOGRAMS.YEAR);
@@ -158,11 +906,11 @@ public class ArrayDateHistogram implements DiskPersistable {
      * @return
      */
     public Optional<LocalDate> traverseUntil(LocalDate startDate, int numBirthdays, Optional<int[]> histogramParam) {
-        int[] histogramCopy = histogramParam.orElse(getHistogramArrayCopy());
+        int[] histogramCopy = histogramParam.orElseGet(this::getHistogramArrayCopy);
         LocalDate currentDate = startDate;
         int birthdayCount = 0;
         int currentDateMonth = 0;
-        LocalDate pastDateRange = LocalDate.of(EARLIEST_YEAR+TOTAL_NUM_YEARS_REPRESENTED, 1,1);
+        LocalDate pastDateRange = maxDateSupported.plusDays(1);
         yearlyHistogram:
         while ((birthdayCount < numBirthdays) && (currentDate.isBefore(pastDateRange))) {
             while ((currentDate.isBefore(pastDateRange)) && (currentDate.getDayOfYear() == 1) &&
@@ -195,10 +943,156 @@ public class ArrayDateHistogram implements DiskPersistable {
     }
 
     @Override
-    public synchronized void persistToLocalDisk() throws IOException {
-        intArrayToDisk.toLocalDisk(histogramArray, persistenceFile);
+    public void persistToLocalDisk() throws IOException {
+        long start = metrics.checkpoints.start();
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            metrics.checkpointFailures.increment();
+            throw e;
+        }
+        metrics.lastCheckpointMillis = System.currentTimeMillis();
+        metrics.checkpoints.recordSince(start);
     }
 
+    private void checkpoint() throws IOException {
+        if (mappedFile != null) {
+            synchronized (checkpointLock) {
+                long start = metrics.publishLockWait.start();
+                synchronized (publishLock) {
+                    metrics.publishLockWait.recordSince(start);
+                    long held = metrics.checkpointLockHolds.start();
+                    getSnapshot();
+                    mappedFile.checkpoint(++checkpointGeneration);
+                    metrics.checkpointLockHolds.recordSince(held);
+                }
+                mappedFile.force();
+            }
+            return;
+        }
+        synchronized (checkpointLock) {
+            if (replica) {
+                SnapshotReport snapshot;
+                ReplicaPosition position;
+                synchronized (publishLock) {
+                    snapshot = getSnapshot();
+                    position = replicaPosition;
+                }
+                writeCheckpoint(snapshot.getDayIndex());
+                if (position != checkpointedPosition) {
+                    position.write(replicaPositionFile(), checkpointGeneration);
+                    checkpointedPosition = position;
+                }
+                return;
+            }
+            if (writeAheadLog == null) {
+                writeCheckpoint(getSnapshot().getDayIndex());
+                return;
+            }
+            SnapshotReport snapshot;
+            long start = metrics.publishLockWait.start();
+            synchronized (publishLock) {
+                metrics.publishLockWait.recordSince(start);
+                long held = metrics.checkpointLockHolds.start();
+                snapshot = cutLog(0);
+                metrics.checkpointLockHolds.recordSince(held);
+            }
+            writeCheckpoint(snapshot.getDayIndex());
+            writeAheadLog.deleteSegmentsBefore(writeAheadLog.getGeneration());
+        }
+    }
 
+    /**
+     * Write a published version of the day index to the checkpoint file not holding the latest checkpoint.
+     * If that file holds an earlier version, only the blocks that changed since are written, in place.
+     * No lock is held: a published version never changes.
+     */
+    private void writeCheckpoint(DayCountIndex index) throws IOException {
+        if (index == checkpointedIndexes[latestCheckpointFile]) {
+            return;
+        }
+        int target = 1 - latestCheckpointFile;
+        HistogramFile file = checkpointFiles[target];
+        long generation = checkpointGeneration + 1;
+        long written;
+        if (file.isKnown() && checkpointedIndexes[target] != null) {
+            written = file.update(changedBlocks(index, checkpointedIndexes[target]),
+                    (from, to, dest) -> layout.putValues(index, from, to, dest), generation);
+        } else {
+            written = file.write(layout.toHistogramArray(index), generation);
+        }
+        checkpointedIndexes[target] = index;
+        latestCheckpointFile = target;
+        checkpointGeneration = generation;
+        checkpointBytesWritten += written;
+        metrics.checkpointBytesWritten.add(written);
+    }
 
+    /**
+     * @return the blocks of the histogram file that differ between two versions of the day index: those holding
+     * the changed day pages, and the months and years they fall in
+     */
+    private BitSet changedBlocks(DayCountIndex index, DayCountIndex earlier) {
+        BitSet changedPages = index.changedPagesSince(earlier);
+        BitSet blocks = new BitSet();
+        for (int page = changedPages.nextSetBit(0); page >= 0; page = changedPages.nextSetBit(page + 1)) {
+            int from = page << DayCountIndex.PAGE_SHIFT;
+            int to = Math.min(from + DayCountIndex.PAGE_SIZE, layout.getNumDays()) - 1;
+            int fromMonth = layout.monthOf(from);
+            int toMonth = layout.monthOf(to);
+            setBlocks(blocks, layout.daysOffset() + from, layout.daysOffset() + to);
+            setBlocks(blocks, layout.monthsOffset() + fromMonth, layout.monthsOffset() + toMonth);
+            setBlocks(blocks, fromMonth / 12, toMonth / 12);
+        }
+        return blocks;
+    }
+
+    private static void setBlocks(BitSet blocks, int from, int to) {
+        blocks.set(from / HistogramFile.BLOCK_SIZE, to / HistogramFile.BLOCK_SIZE + 1);
+    }
+
+    MedianDBMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return bytes written to checkpoint files since this histogram was created
+     */
+    long getCheckpointBytesWritten() {
+        return checkpointBytesWritten;
+    }
+
+    /**
+     * Take every stripe's monitor, so that no add is in progress, then publish a snapshot and rotate the log.
+     * Everything logged before the rotation is in the snapshot, and nothing logged after it is.
+     */
+    private SnapshotReport cutLog(int stripe) throws IOException {
+        if (stripe == NUM_STRIPES) {
+            SnapshotReport snapshot = getSnapshot();
+            writeAheadLog.rotate(snapshot.getDayIndex().total());
+            return snapshot;
+        }
+        synchronized (stripes[stripe]) {
+            return cutLog(stripe + 1);
+        }
+    }
+
+    /**
+     * Stop the periodic checkpoints, write a last one and close the log.
+     */
+    @Override
+    public void close() throws IOException {
+        if (persistenceService != null) {
+            persistenceService.stop();
+        }
+        if (persistToDisk) {
+            persistToLocalDisk();
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+        if (mappedFile != null) {
+            mappedFile.close();
+        }
+    }
 }
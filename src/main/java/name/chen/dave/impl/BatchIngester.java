@@ -0,0 +1,235 @@
+/**
+ * Streams birthdays from an input stream into {@link name.chen.dave.impl.MedianDB} in large batches.
+ *
+ * The input is read through a fixed byte buffer, one line per record, and never held in memory as a whole.
+ * Supported line formats:
+ *
+ * CSV: 1999-01-05 or, pre-aggregated, 1999-01-05,42
+ * NDJSON: {"birthday":"1999-01-05"} or, pre-aggregated, {"birthday":"1999-01-05","count":42}
+ *
+ * Dates are parsed by {@link name.chen.dave.impl.IsoDateParser} straight from the buffer. Lines that can't be parsed,
+ * have a date outside of the supported range or a count over {@link name.chen.dave.impl.MedianDB#MAX_COUNT}, or
+ * would take the birthdays past {@link name.chen.dave.impl.MedianDB#MAX_BIRTHDAYS}, are counted as rejected and
+ * skipped.
+ */
+package name.chen.dave.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class BatchIngester {
+
+    public enum Format { CSV, NDJSON }
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int BATCH_SIZE = 8192;
+    private static final byte[] BIRTHDAY_KEY = "\"birthday\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COUNT_KEY = "\"count\"".getBytes(StandardCharsets.US_ASCII);
+    // Parsed records are packed as (epoch day << 32 | count)
+    static final long INVALID_RECORD = Long.MIN_VALUE;
+
+    private final MedianDB medianDB;
+    private final int bufferSize;
+
+    public static class Result {
+        private final long accepted;
+        private final long rejected;
+        private final long elapsedNanos;
+
+        Result(long accepted, long rejected, long elapsedNanos) {
+            this.accepted = accepted;
+            this.rejected = rejected;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : (long) ((accepted + rejected) * 1e9 / elapsedNanos);
+        }
+    }
+
+    public BatchIngester(MedianDB medianDB) {
+        this(medianDB, DEFAULT_BUFFER_SIZE);
+    }
+
+    BatchIngester(MedianDB medianDB, int bufferSize) {
+        this.medianDB = medianDB;
+        this.bufferSize = bufferSize;
+    }
+
+    public Result ingest(InputStream in, Format format) throws IOException {
+        long startTime = System.nanoTime();
+        byte[] buffer = new byte[bufferSize];
+        int[] epochDays = new int[BATCH_SIZE];
+        int[] counts = new int[BATCH_SIZE];
+        int batchLength = 0;
+        long accepted = 0;
+        long rejected = 0;
+
+        int start = 0;
+        int end = 0;
+        boolean skippingLongLine = false;
+        boolean endOfStream = false;
+        while (!endOfStream || start < end) {
+            int newline = indexOf(buffer, start, end, (byte) '\n');
+            int lineEnd;
+            if (newline >= 0) {
+                lineEnd = newline;
+            } else if (endOfStream) {
+                lineEnd = end;
+            } else {
+                // No complete line in the buffer: move the partial line to the front and read more
+                if (start == 0 && end == buffer.length) {
+                    // Longer than the whole buffer, so it can't be a valid record
+                    skippingLongLine = true;
+                    end = 0;
+                } else {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                }
+                start = 0;
+                int read = in.read(buffer, end, buffer.length - end);
+                if (read < 0) {
+                    endOfStream = true;
+                } else {
+                    end += read;
+                }
+                continue;
+            }
+
+            int nextStart = newline >= 0 ? newline + 1 : end;
+            if (skippingLongLine) {
+                skippingLongLine = false;
+                rejected++;
+            } else {
+                int trimmedEnd = lineEnd > start && buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+                if (trimmedEnd > start) {
+                    long record = format == Format.NDJSON ? parseJsonLine(buffer, start, trimmedEnd)
+                            : parseCsvLine(buffer, start, trimmedEnd);
+                    if (record == INVALID_RECORD) {
+                        rejected++;
+                    } else {
+                        epochDays[batchLength] = (int) (record >> 32);
+                        counts[batchLength] = (int) record;
+                        batchLength++;
+                        if (batchLength == BATCH_SIZE) {
+                            int batchRejected = medianDB.addBirthdays(epochDays, counts, batchLength);
+                            accepted += batchLength - batchRejected;
+                            rejected += batchRejected;
+                            batchLength = 0;
+                        }
+                    }
+                }
+            }
+            start = nextStart;
+        }
+        if (skippingLongLine) {
+            // The stream ended right after a long line filled the buffer, so nothing of it was left to skip
+            rejected++;
+        }
+        if (batchLength > 0) {
+            int batchRejected = medianDB.addBirthdays(epochDays, counts, batchLength);
+            accepted += batchLength - batchRejected;
+            rejected += batchRejected;
+        }
+        return new Result(accepted, rejected, System.nanoTime() - startTime);
+    }
+
+    private static long record(int epochDay, int count) {
+        if (epochDay == IsoDateParser.INVALID_DATE || count <= 0) {
+            return INVALID_RECORD;
+        }
+        return ((long) epochDay << 32) | (count & 0xFFFFFFFFL);
+    }
+
+    static long parseCsvLine(byte[] buffer, int from, int to) {
+        int comma = indexOf(buffer, from, to, (byte) ',');
+        if (comma < 0) {
+            return record(IsoDateParser.parseEpochDay(buffer, from, to), 1);
+        }
+        return record(IsoDateParser.parseEpochDay(buffer, from, comma), parseCount(buffer, comma + 1, to));
+    }
+
+    static long parseJsonLine(byte[] buffer, int from, int to) {
+        int birthdayValue = valueOf(buffer, from, to, BIRTHDAY_KEY);
+        if (birthdayValue < 0 || birthdayValue + 12 > to || buffer[birthdayValue] != '"'
+                || buffer[birthdayValue + 11] != '"') {
+            return INVALID_RECORD;
+        }
+        int epochDay = IsoDateParser.parseEpochDay(buffer, birthdayValue + 1, birthdayValue + 11);
+        int countValue = valueOf(buffer, from, to, COUNT_KEY);
+        if (countValue < 0) {
+            return record(epochDay, 1);
+        }
+        int countEnd = countValue;
+        while (countEnd < to && buffer[countEnd] >= '0' && buffer[countEnd] <= '9') {
+            countEnd++;
+        }
+        return record(epochDay, parseCount(buffer, countValue, countEnd));
+    }
+
+    /**
+     * @return position of the value following "key": in a JSON object, or -1 if the key is not there
+     */
+    private static int valueOf(byte[] buffer, int from, int to, byte[] key) {
+        for (int i = from; i <= to - key.length; i++) {
+            int j = 0;
+            while (j < key.length && buffer[i + j] == key[j]) {
+                j++;
+            }
+            if (j == key.length) {
+                int pos = skipWhitespace(buffer, i + key.length, to);
+                if (pos < to && buffer[pos] == ':') {
+                    return skipWhitespace(buffer, pos + 1, to);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] buffer, int from, int to) {
+        while (from < to && (buffer[from] == ' ' || buffer[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * @return the positive count in buffer[from, to), or -1 if it is not a number up to {@link MedianDB#MAX_COUNT}
+     */
+    private static int parseCount(byte[] buffer, int from, int to) {
+        if (from == to || to - from > 10) {
+            return -1;
+        }
+        long count = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            count = count * 10 + digit;
+        }
+        return count > MedianDB.MAX_COUNT ? -1 : (int) count;
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
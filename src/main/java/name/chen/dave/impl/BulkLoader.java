@@ -0,0 +1,369 @@
+/**
+ * Builds a checkpoint file from large exports of birthdays, offline, for a new node or to rebuild one, instead of
+ * adding them one by one through a running node.
+ *
+ * Every input file is memory-mapped and split into chunks. A chunk holds the lines that start in it: it skips the
+ * end of a line running into it from the chunk before, and reads its last line past its end. Chunks are parsed on a
+ * fork-join pool: each worker thread copies a chunk out of the mapping into a buffer of its own, and counts its
+ * lines into a day histogram of its own, with the same line formats as {@link name.chen.dave.impl.BatchIngester}.
+ * The histograms of the threads are added up once every chunk is done, and written as the checkpoint file of the
+ * data directory, in the configured codec, ready for a node to start from.
+ *
+ * The data directory must not hold a checkpoint or a write-ahead log already, unless they are to be replaced.
+ *
+ * Usage: BulkLoader [--format=csv|ndjson] [--threads=N] [--replace] file..., with the data directory, years and
+ * codec taken from the mediandb system properties, e.g.
+ * mvn -q compile exec:java -Dstart-class=name.chen.dave.impl.BulkLoader -Dexec.args="export.csv"
+ * -Dmediandb.dataDirectory=/var/lib/mediandb
+ */
+package name.chen.dave.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public final class BulkLoader {
+
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    // Longer lines can't be valid records, and are counted as malformed
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final MedianDBConfig config;
+    private final HistogramLayout layout;
+    private final int threads;
+    private final int chunkSize;
+
+    public static class Result {
+        private final long lines;
+        private final long birthdays;
+        private final long malformed;
+        private final long outOfRange;
+        private final long elapsedNanos;
+
+        Result(long lines, long birthdays, long malformed, long outOfRange, long elapsedNanos) {
+            this.lines = lines;
+            this.birthdays = birthdays;
+            this.malformed = malformed;
+            this.outOfRange = outOfRange;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return non-empty lines read, loaded or not
+         */
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * @return birthdays loaded, adding up the counts of pre-aggregated lines
+         */
+        public long getBirthdays() {
+            return birthdays;
+        }
+
+        /**
+         * @return lines that could not be parsed
+         */
+        public long getMalformed() {
+            return malformed;
+        }
+
+        /**
+         * @return lines with a date outside of the years of the histogram
+         */
+        public long getOutOfRange() {
+            return outOfRange;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getLinesPerSecond() {
+            return elapsedNanos == 0 ? 0 : (long) (lines * 1e9 / elapsedNanos);
+        }
+    }
+
+    private static final class Chunk {
+        final FileChannel channel;
+        final long fileSize;
+        final long start;
+        final long end;
+
+        Chunk(FileChannel channel, long fileSize, long start, long end) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Counts of one worker thread
+    private static final class Partial {
+        final int[] days;
+        // The bytes of the chunk being parsed
+        byte[] bytes = new byte[0];
+        long lines;
+        long birthdays;
+        long malformed;
+        long outOfRange;
+
+        Partial(int numDays) {
+            days = new int[numDays];
+        }
+    }
+
+    /**
+     * @param threads threads parsing chunks, at least 1
+     */
+    public BulkLoader(MedianDBConfig config, int threads) {
+        this(config, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    BulkLoader(MedianDBConfig config, int threads, int chunkSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The bulk loader needs at least 1 thread, not " + threads);
+        }
+        this.config = config;
+        this.layout = new HistogramLayout(config.getFirstYear(), config.getLastYear());
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    private File checkpointFile(int i) {
+        return new File(config.getDataDirectory(),
+                ArrayDateHistogram.PERSISTENCE_BASE_NAME + (i == 0 ? "" : "." + i) + ".bin");
+    }
+
+    /**
+     * Load the input files and write the checkpoint file of the data directory.
+     *
+     * @param replace whether to replace the checkpoint files and write-ahead log already in the data directory
+     * @throws IllegalStateException if the data directory holds a checkpoint or a write-ahead log, not replaced
+     * @throws IllegalArgumentException if the files hold more than {@link MedianDB#MAX_BIRTHDAYS}
+     */
+    public Result load(List<File> inputs, BatchIngester.Format format, boolean replace) throws IOException {
+        long startTime = System.nanoTime();
+        File dataDirectory = new File(config.getDataDirectory());
+        boolean logged = !WriteAheadLog.listGenerations(dataDirectory,
+                ArrayDateHistogram.PERSISTENCE_BASE_NAME).isEmpty();
+        if (!replace && (checkpointFile(0).exists() || checkpointFile(1).exists() || logged)) {
+            throw new IllegalStateException("Data directory " + dataDirectory + " already holds a checkpoint or a "
+                    + "write-ahead log");
+        }
+        Queue<Partial> partials = new ConcurrentLinkedQueue<>();
+        List<RandomAccessFile> files = new ArrayList<>();
+        try {
+            List<Chunk> chunks = new ArrayList<>();
+            for (File input : inputs) {
+                RandomAccessFile file = new RandomAccessFile(input, "r");
+                files.add(file);
+                long size = file.length();
+                for (long start = 0; start < size; start += chunkSize) {
+                    chunks.add(new Chunk(file.getChannel(), size, start, Math.min(size, start + chunkSize)));
+                }
+            }
+            ThreadLocal<Partial> threadPartial = ThreadLocal.withInitial(() -> {
+                Partial partial = new Partial(layout.getNumDays());
+                partials.add(partial);
+                return partial;
+            });
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new ChunkTask(chunks, 0, chunks.size(), format, threadPartial));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            for (RandomAccessFile file : files) {
+                file.close();
+            }
+        }
+
+        long lines = 0;
+        long birthdays = 0;
+        long malformed = 0;
+        long outOfRange = 0;
+        for (Partial partial : partials) {
+            lines += partial.lines;
+            birthdays += partial.birthdays;
+            malformed += partial.malformed;
+            outOfRange += partial.outOfRange;
+        }
+        // Then no day, month or year count overflows either, nor any rank the histogram computes over them
+        if (birthdays > MedianDB.MAX_BIRTHDAYS) {
+            throw new IllegalArgumentException(birthdays + " birthdays are more than the " + MedianDB.MAX_BIRTHDAYS
+                    + " a histogram can count");
+        }
+        int[] histogramArray = new int[layout.numValues()];
+        for (Partial partial : partials) {
+            for (int slot = 0; slot < layout.getNumDays(); slot++) {
+                histogramArray[layout.daysOffset() + slot] += partial.days[slot];
+            }
+        }
+        layout.totalYearsAndMonths(histogramArray);
+        writeCheckpoint(histogramArray, dataDirectory);
+        return new Result(lines, birthdays, malformed, outOfRange, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Write the first checkpoint file with a later generation than any in the data directory, then delete the
+     * second one and the write-ahead log, so that a node starts from this file alone.
+     */
+    private void writeCheckpoint(int[] histogramArray, File dataDirectory) throws IOException {
+        long generation = 0;
+        for (int i = 0; i < 2; i++) {
+            HistogramFile written = HistogramFile.fromHeader(checkpointFile(i));
+            if (written != null) {
+                generation = Math.max(generation, written.readGeneration());
+            }
+        }
+        new HistogramFile(checkpointFile(0), layout.getFirstEpochDay(), layout.getLastEpochDay(),
+                layout.numValues()).setCodec(config.getCodec(), layout.daysOffset())
+                .write(histogramArray, generation + 1);
+        if (checkpointFile(1).exists() && !checkpointFile(1).delete()) {
+            throw new IOException("Could not delete " + checkpointFile(1));
+        }
+        WriteAheadLog.deleteAllSegments(dataDirectory, ArrayDateHistogram.PERSISTENCE_BASE_NAME);
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Chunk> chunks;
+        private final int from;
+        private final int to;
+        private final BatchIngester.Format format;
+        private final ThreadLocal<Partial> threadPartial;
+
+        ChunkTask(List<Chunk> chunks, int from, int to, BatchIngester.Format format,
+                  ThreadLocal<Partial> threadPartial) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.format = format;
+            this.threadPartial = threadPartial;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(chunks, from, middle, format, threadPartial),
+                        new ChunkTask(chunks, middle, to, format, threadPartial));
+            } else if (to > from) {
+                try {
+                    parse(chunks.get(from), format, threadPartial.get());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the lines that start in a chunk. The byte before the chunk tells whether its first line starts at its
+     * start, and its last line is read past its end, up to the longest line allowed.
+     */
+    private void parse(Chunk chunk, BatchIngester.Format format, Partial partial) throws IOException {
+        long mapStart = chunk.start == 0 ? 0 : chunk.start - 1;
+        long mapEnd = Math.min(chunk.fileSize, chunk.end + MAX_LINE_LENGTH + 1);
+        MappedByteBuffer mapped = chunk.channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        int limit = mapped.limit();
+        if (partial.bytes.length < limit) {
+            partial.bytes = new byte[Math.max(limit, chunkSize + MAX_LINE_LENGTH + 1)];
+        }
+        byte[] bytes = partial.bytes;
+        mapped.get(bytes, 0, limit);
+        int end = (int) (chunk.end - mapStart);
+        int position = (int) (chunk.start - mapStart);
+        if (position > 0 && bytes[0] != '\n') {
+            // The line running into the chunk belongs to the chunk before
+            while (position < limit && bytes[position] != '\n') {
+                position++;
+            }
+            position++;
+        }
+        while (position < end) {
+            int newline = position;
+            while (newline < limit && bytes[newline] != '\n') {
+                newline++;
+            }
+            if (newline == limit && mapEnd < chunk.fileSize) {
+                // Longer than any line allowed, and the chunk after skips the rest of it
+                partial.lines++;
+                partial.malformed++;
+                return;
+            }
+            int lineEnd = newline > position && bytes[newline - 1] == '\r' ? newline - 1 : newline;
+            if (lineEnd - position > MAX_LINE_LENGTH) {
+                partial.lines++;
+                partial.malformed++;
+            } else if (lineEnd > position) {
+                count(format == BatchIngester.Format.NDJSON
+                        ? BatchIngester.parseJsonLine(bytes, position, lineEnd)
+                        : BatchIngester.parseCsvLine(bytes, position, lineEnd), partial);
+            }
+            position = newline + 1;
+        }
+    }
+
+    private void count(long record, Partial partial) {
+        partial.lines++;
+        if (record == BatchIngester.INVALID_RECORD) {
+            partial.malformed++;
+            return;
+        }
+        int slot = layout.daySlot((int) (record >> 32));
+        if (slot < 0) {
+            partial.outOfRange++;
+            return;
+        }
+        int count = (int) record;
+        partial.days[slot] += count;
+        partial.birthdays += count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        BatchIngester.Format format = BatchIngester.Format.CSV;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean replace = false;
+        List<File> inputs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--format=")) {
+                format = BatchIngester.Format.valueOf(arg.substring("--format=".length()).toUpperCase());
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.equals("--replace")) {
+                replace = true;
+            } else {
+                inputs.add(new File(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: BulkLoader [--format=csv|ndjson] [--threads=N] [--replace] file...");
+            System.exit(2);
+        }
+        MedianDBConfig config = MedianDBConfig.fromSystemProperties();
+        Result result = new BulkLoader(config, threads).load(inputs, format, replace);
+        System.out.printf("Loaded %d birthdays from %d lines in %.1f s, %d lines/s, on %d threads%n",
+                result.getBirthdays(), result.getLines(), result.getElapsedNanos() / 1e9,
+                result.getLinesPerSecond(), threads);
+        System.out.printf("Malformed lines: %d, lines outside of %d to %d: %d%n", result.getMalformed(),
+                config.getFirstYear(), config.getLastYear(), result.getOutOfRange());
+        System.out.println("Wrote " + new File(config.getDataDirectory(),
+                ArrayDateHistogram.PERSISTENCE_BASE_NAME + ".bin"));
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * The changes of the last versions of a leader's histogram, for followers to apply in order: the changes of
+ * version v are the (epoch day, delta) pairs that turn version v - 1 into version v.
+ *
+ * Versions are those of the published snapshots, so they are contiguous and a follower that has applied up to
+ * version v asks for the changes after v. Only the last records are kept: a follower that has fallen further behind
+ * than that copies the whole histogram instead, from a {@link name.chen.dave.impl.HistogramExport} at some version,
+ * and goes on from there.
+ *
+ * Changes are shipped in {@link name.chen.dave.impl.ChangeLog.Batch}es of whole versions, in a binary form like that
+ * of the export: a 48 byte header, big-endian, with magic, format version, instance id, the versions the batch goes
+ * from (exclusive) and to, the latest version of the leader and the number of records, padded; then 8-byte records of
+ * epoch day and delta; then a CRC-32C of everything before it.
+ */
+package name.chen.dave.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class ChangeLog {
+
+    private static final class Entry {
+        final long version;
+        final int[] epochDays;
+        final int[] deltas;
+
+        Entry(long version, int[] epochDays, int[] deltas) {
+            this.version = version;
+            this.epochDays = epochDays;
+            this.deltas = deltas;
+        }
+    }
+
+    private final int maxRecords;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int numRecords;
+    // The earliest version the changes can be read after, and the latest one appended
+    private long oldestVersion;
+    private long latestVersion;
+
+    /**
+     * @param maxRecords number of records to keep, at least. The latest version is always kept whole.
+     * @param version version of the histogram the log starts from
+     */
+    ChangeLog(int maxRecords, long version) {
+        this.maxRecords = maxRecords;
+        this.oldestVersion = version;
+        this.latestVersion = version;
+    }
+
+    /**
+     * @param version the next version: one more than the last one appended
+     */
+    synchronized void append(long version, int[] epochDays, int[] deltas) {
+        if (version != latestVersion + 1) {
+            throw new IllegalStateException("Version " + version + " appended after version " + latestVersion);
+        }
+        entries.addLast(new Entry(version, epochDays, deltas));
+        numRecords += epochDays.length;
+        latestVersion = version;
+        while (numRecords > maxRecords && entries.size() > 1) {
+            Entry evicted = entries.removeFirst();
+            numRecords -= evicted.epochDays.length;
+            oldestVersion = evicted.version;
+        }
+    }
+
+    synchronized long getLatestVersion() {
+        return latestVersion;
+    }
+
+    synchronized long getOldestVersion() {
+        return oldestVersion;
+    }
+
+    /**
+     * @param maxRecords records to read at most, unless the first version after afterVersion has more
+     * @return the changes of the versions after afterVersion, or null if they are no longer kept, or afterVersion
+     * is ahead of the log
+     */
+    synchronized Batch read(long instanceId, long afterVersion, int maxRecords) {
+        if (afterVersion < oldestVersion || afterVersion > latestVersion) {
+            return null;
+        }
+        List<Entry> read = new ArrayList<>();
+        int length = 0;
+        long toVersion = afterVersion;
+        for (Entry entry : entries) {
+            if (entry.version <= afterVersion) {
+                continue;
+            }
+            if (!read.isEmpty() && length + entry.epochDays.length > maxRecords) {
+                break;
+            }
+            read.add(entry);
+            length += entry.epochDays.length;
+            toVersion = entry.version;
+        }
+        int[] epochDays = new int[length];
+        int[] deltas = new int[length];
+        int offset = 0;
+        for (Entry entry : read) {
+            System.arraycopy(entry.epochDays, 0, epochDays, offset, entry.epochDays.length);
+            System.arraycopy(entry.deltas, 0, deltas, offset, entry.deltas.length);
+            offset += entry.epochDays.length;
+        }
+        return new Batch(instanceId, afterVersion, toVersion, latestVersion, epochDays, deltas);
+    }
+
+    /**
+     * The changes of one or more consecutive versions, in order.
+     */
+    public static final class Batch {
+
+        private static final int MAGIC = 0x4244434C;  // "BDCL"
+        private static final int FORMAT_VERSION = 1;
+        private static final int HEADER_SIZE = 48;
+
+        private final long instanceId;
+        private final long afterVersion;
+        private final long toVersion;
+        private final long latestVersion;
+        private final int[] epochDays;
+        private final int[] deltas;
+
+        Batch(long instanceId, long afterVersion, long toVersion, long latestVersion, int[] epochDays, int[] deltas) {
+            this.instanceId = instanceId;
+            this.afterVersion = afterVersion;
+            this.toVersion = toVersion;
+            this.latestVersion = latestVersion;
+            this.epochDays = epochDays;
+            this.deltas = deltas;
+        }
+
+        long getInstanceId() {
+            return instanceId;
+        }
+
+        public long getAfterVersion() {
+            return afterVersion;
+        }
+
+        public long getToVersion() {
+            return toVersion;
+        }
+
+        /**
+         * @return the latest version of the leader when the batch was read: more batches follow if it is past the
+         * version the batch goes to
+         */
+        public long getLatestVersion() {
+            return latestVersion;
+        }
+
+        int[] getEpochDays() {
+            return epochDays;
+        }
+
+        int[] getDeltas() {
+            return deltas;
+        }
+
+        public int size() {
+            return epochDays.length;
+        }
+
+        public byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * epochDays.length + 4);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(instanceId).putLong(afterVersion)
+                    .putLong(toVersion).putLong(latestVersion).putInt(epochDays.length).putInt(0);
+            for (int i = 0; i < epochDays.length; i++) {
+                buffer.putInt(epochDays[i]).putInt(deltas[i]);
+            }
+            buffer.putInt(Crc32c.checksum(buffer, 0, buffer.position()));
+            return buffer.array();
+        }
+
+        /**
+         * @throws IllegalArgumentException if the bytes are not a batch in this format, or are corrupt
+         */
+        public static Batch decode(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (bytes.length < HEADER_SIZE + 4 || buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a change log batch");
+            }
+            int formatVersion = buffer.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported change log format version " + formatVersion);
+            }
+            long instanceId = buffer.getLong();
+            long afterVersion = buffer.getLong();
+            long toVersion = buffer.getLong();
+            long latestVersion = buffer.getLong();
+            int length = buffer.getInt();
+            buffer.getInt();
+            if (length < 0 || (long) HEADER_SIZE + 8L * length + 4 != bytes.length
+                    || afterVersion > toVersion || toVersion > latestVersion) {
+                throw new IllegalArgumentException("Invalid change log batch header");
+            }
+            if (Crc32c.checksum(buffer, 0, bytes.length - 4) != buffer.getInt(bytes.length - 4)) {
+                throw new IllegalArgumentException("Change log batch checksum mismatch");
+            }
+            int[] epochDays = new int[length];
+            int[] deltas = new int[length];
+            for (int i = 0; i < length; i++) {
+                epochDays[i] = buffer.getInt();
+                deltas[i] = buffer.getInt();
+            }
+            return new Batch(instanceId, afterVersion, toVersion, latestVersion, epochDays, deltas);
+        }
+    }
+}
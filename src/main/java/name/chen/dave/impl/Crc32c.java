@@ -0,0 +1,97 @@
+/**
+ * CRC-32C (Castagnoli), as used by iSCSI, ext4 and many storage formats.
+ *
+ * Uses java.util.zip.CRC32C, which the JVM accelerates with CPU instructions, when running on Java 9 or later.
+ * On Java 8 it is computed 8 bytes at a time with slicing-by-8 tables.
+ */
+package name.chen.dave.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+final class Crc32c {
+
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+    // Constructor of java.util.zip.CRC32C and Checksum.update(ByteBuffer), or null before Java 9
+    private static final MethodHandle NEW_JDK_CHECKSUM;
+    private static final MethodHandle UPDATE_FROM_BUFFER;
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < 8; k++) {
+                int previous = TABLES[k - 1][n];
+                TABLES[k][n] = (previous >>> 8) ^ TABLES[0][previous & 0xFF];
+            }
+        }
+    }
+
+    static {
+        MethodHandle newJdkChecksum = null;
+        MethodHandle updateFromBuffer = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            newJdkChecksum = lookup.findConstructor(Class.forName("java.util.zip.CRC32C"),
+                    MethodType.methodType(void.class)).asType(MethodType.methodType(Checksum.class));
+            updateFromBuffer = lookup.findVirtual(Checksum.class, "update",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            newJdkChecksum = null;
+        }
+        NEW_JDK_CHECKSUM = newJdkChecksum;
+        UPDATE_FROM_BUFFER = updateFromBuffer;
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * @return the CRC-32C of buffer[from, to). The position of the buffer is unchanged.
+     */
+    static int checksum(ByteBuffer buffer, int from, int to) {
+        if (NEW_JDK_CHECKSUM != null) {
+            ByteBuffer range = buffer.duplicate();
+            ((Buffer) range).limit(to).position(from);
+            try {
+                Checksum checksum = (Checksum) NEW_JDK_CHECKSUM.invokeExact();
+                UPDATE_FROM_BUFFER.invokeExact(checksum, range);
+                return (int) checksum.getValue();
+            } catch (Throwable e) {
+                throw new IllegalStateException("CRC32C failed", e);
+            }
+        }
+        return tableChecksum(buffer, from, to);
+    }
+
+    static int tableChecksum(ByteBuffer buffer, int from, int to) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        // The tables take bytes in little-endian order
+        boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+        int crc = ~0;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            int low = bigEndian ? Integer.reverseBytes(buffer.getInt(i)) : buffer.getInt(i);
+            int high = bigEndian ? Integer.reverseBytes(buffer.getInt(i + 4)) : buffer.getInt(i + 4);
+            low ^= crc;
+            crc = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^ t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24]
+                    ^ t3[high & 0xFF] ^ t2[(high >>> 8) & 0xFF] ^ t1[(high >>> 16) & 0xFF] ^ t0[high >>> 24];
+        }
+        for (; i < to; i++) {
+            crc = t0[(crc ^ buffer.get(i)) & 0xFF] ^ (crc >>> 8);
+        }
+        return ~crc;
+    }
+}
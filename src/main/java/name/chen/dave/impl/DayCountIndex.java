@@ -0,0 +1,388 @@
+/**
+ * Order-statistics index over the day level of the histogram.
+ *
+ * Day counts are kept in fixed-size pages, and a Fenwick (binary indexed) tree over the page totals gives:
+ *
+ * 1. The number of birthdays in any range of days in O(log n) plus a scan within at most two pages
+ * 2. The slot of the k-th birthday by a log-time descent of the tree plus a scan within a single page
+ *
+ * This replaces walking {@link java.time.LocalDate}s year by year, month by month and day by day.
+ *
+ * Copies are copy-on-write per page: a copy shares every page with the index it came from until the page is
+ * written to, so publishing a new version only costs the pages that changed.
+ */
+package name.chen.dave.impl;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+class DayCountIndex {
+
+    static final int PAGE_SHIFT = 6;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int[] EMPTY_PAGE = new int[PAGE_SIZE];
+
+    private final int numSlots;
+    private final int numPages;
+    // Pages are only allocated when a birthday is recorded in them
+    private final int[][] pages;
+    // Pages still shared with the index this one was copied from
+    private final boolean[] sharedPages;
+    // 1-based Fenwick tree over the page totals
+    private final int[] pageTree;
+    private int total;
+    // Pages allocated or copied since this index was created, and which, in the order written
+    private int pagesWritten;
+    private int[] writtenPages = new int[4];
+
+    DayCountIndex(int numSlots) {
+        this.numSlots = numSlots;
+        this.numPages = (numSlots + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+        this.pages = new int[numPages][];
+        this.sharedPages = new boolean[numPages];
+        this.pageTree = new int[numPages + 1];
+    }
+
+    /**
+     * Build an index from a dense array of day counts, in linear time.
+     */
+    static DayCountIndex fromCounts(int[] counts, int offset, int numSlots) {
+        DayCountIndex index = new DayCountIndex(numSlots);
+        for (int page = 0; page < index.numPages; page++) {
+            int from = offset + (page << PAGE_SHIFT);
+            int to = Math.min(from + PAGE_SIZE, offset + numSlots);
+            int pageTotal = 0;
+            for (int i = from; i < to; i++) {
+                pageTotal += counts[i];
+            }
+            if (pageTotal != 0) {
+                index.pages[page] = Arrays.copyOfRange(counts, from, from + PAGE_SIZE);
+                if (to - from < PAGE_SIZE) {
+                    Arrays.fill(index.pages[page], to - from, PAGE_SIZE, 0);
+                }
+            }
+            index.pageTree[page + 1] += pageTotal;
+            int parent = (page + 1) + ((page + 1) & -(page + 1));
+            if (parent <= index.numPages) {
+                index.pageTree[parent] += index.pageTree[page + 1];
+            }
+            index.total += pageTotal;
+        }
+        return index;
+    }
+
+    /**
+     * @return a copy sharing every page with this index until the page is written to, in either index
+     */
+    DayCountIndex copyOnWrite() {
+        DayCountIndex copy = new DayCountIndex(numSlots);
+        System.arraycopy(pages, 0, copy.pages, 0, numPages);
+        Arrays.fill(copy.sharedPages, true);
+        Arrays.fill(sharedPages, true);
+        System.arraycopy(pageTree, 0, copy.pageTree, 0, pageTree.length);
+        copy.total = total;
+        return copy;
+    }
+
+    private int[] writablePage(int page) {
+        int[] counts = pages[page];
+        if (counts == null) {
+            counts = new int[PAGE_SIZE];
+            pages[page] = counts;
+            recordWritten(page);
+        } else if (sharedPages[page]) {
+            counts = counts.clone();
+            pages[page] = counts;
+            recordWritten(page);
+        }
+        sharedPages[page] = false;
+        return counts;
+    }
+
+    private void recordWritten(int page) {
+        if (pagesWritten == writtenPages.length) {
+            writtenPages = Arrays.copyOf(writtenPages, 2 * pagesWritten);
+        }
+        writtenPages[pagesWritten++] = page;
+    }
+
+    void add(int slot, int delta) {
+        checkSlot(slot);
+        int page = slot >>> PAGE_SHIFT;
+        writablePage(page)[slot & PAGE_MASK] += delta;
+        for (int i = page + 1; i <= numPages; i += i & -i) {
+            pageTree[i] += delta;
+        }
+        total += delta;
+    }
+
+    /**
+     * Add a whole page of per-day deltas at once, updating the tree a single time.
+     */
+    void addPage(int page, int[] deltas) {
+        if (page < 0 || page >= numPages) {
+            throw new IllegalArgumentException("Page " + page + " outside of index with " + numPages + " pages");
+        }
+        int[] counts = writablePage(page);
+        int pageDelta = 0;
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            counts[i] += deltas[i];
+            pageDelta += deltas[i];
+        }
+        for (int i = page + 1; i <= numPages; i += i & -i) {
+            pageTree[i] += pageDelta;
+        }
+        total += pageDelta;
+    }
+
+    /**
+     * Copy the day counts into a dense array, starting at offset.
+     */
+    void copyTo(int[] dest, int offset) {
+        for (int page = 0; page < numPages; page++) {
+            if (pages[page] != null) {
+                int from = page << PAGE_SHIFT;
+                System.arraycopy(pages[page], 0, dest, offset + from, Math.min(PAGE_SIZE, numSlots - from));
+            }
+        }
+    }
+
+    /**
+     * @return bytes allocated for this index since it was created by {@link #copyOnWrite()}: the page table, the
+     * tree and every page written to, leaving out object headers
+     */
+    long copiedBytes() {
+        return numPages * (8L + 1) + 4L * pageTree.length + (long) pagesWritten * 4 * PAGE_SIZE;
+    }
+
+    int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the day counts of a page, or null if nothing was ever recorded in it. Must not be modified.
+     */
+    int[] page(int page) {
+        return pages[page];
+    }
+
+    /**
+     * @return whether the page was written to since this index was created by {@link #copyOnWrite()}
+     */
+    boolean isPageWritten(int page) {
+        return pages[page] != null && !sharedPages[page];
+    }
+
+    /**
+     * @return number of pages written to since this index was created by {@link #copyOnWrite()}
+     */
+    int numPagesWritten() {
+        return pagesWritten;
+    }
+
+    /**
+     * @param i from 0 to {@link #numPagesWritten()} (exclusive)
+     * @return the i-th page written to since this index was created by {@link #copyOnWrite()}, in the order the
+     * pages were first written
+     */
+    int writtenPage(int i) {
+        return writtenPages[i];
+    }
+
+    /**
+     * @return the pages whose counts may differ from an earlier version of this index. Pages are copied on write,
+     * so a page not written to since that version is still the same array.
+     */
+    BitSet changedPagesSince(DayCountIndex earlier) {
+        BitSet changed = new BitSet(numPages);
+        for (int page = 0; page < numPages; page++) {
+            if (pages[page] != earlier.pages[page]) {
+                changed.set(page);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Put the day counts of slots fromSlot to toSlot (exclusive) into dest.
+     */
+    void putSlots(int fromSlot, int toSlot, IntBuffer dest) {
+        int slot = fromSlot;
+        while (slot < toSlot) {
+            int page = slot >>> PAGE_SHIFT;
+            int end = Math.min((page + 1) << PAGE_SHIFT, toSlot);
+            int[] counts = pages[page];
+            dest.put(counts == null ? EMPTY_PAGE : counts, slot & PAGE_MASK, end - slot);
+            slot = end;
+        }
+    }
+
+    int get(int slot) {
+        checkSlot(slot);
+        int[] counts = pages[slot >>> PAGE_SHIFT];
+        return counts == null ? 0 : counts[slot & PAGE_MASK];
+    }
+
+    int size() {
+        return numSlots;
+    }
+
+    int total() {
+        return total;
+    }
+
+    /**
+     * @return number of birthdays in slots 0 to slot (inclusive). A slot of -1 counts nothing.
+     */
+    int prefixCount(int slot) {
+        if (slot < 0) {
+            return 0;
+        }
+        checkSlot(slot);
+        int page = slot >>> PAGE_SHIFT;
+        int count = countBeforePage(page);
+        int[] counts = pages[page];
+        if (counts != null) {
+            for (int i = 0; i <= (slot & PAGE_MASK); i++) {
+                count += counts[i];
+            }
+        }
+        return count;
+    }
+
+    private int countBeforePage(int page) {
+        int count = 0;
+        for (int i = page; i > 0; i -= i & -i) {
+            count += pageTree[i];
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link #prefixCount(int)} for many slots in ascending order, in one sweep: a slot in the same page as
+     * the one before it only scans the days in between, so close slots share the work.
+     *
+     * @param slots slots in ascending order, -1 allowed
+     * @param counts where the prefix count of each slot is put
+     */
+    void prefixCounts(int[] slots, int length, int[] counts) {
+        int page = -1;
+        int daysCounted = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            int slot = slots[i];
+            if (slot < 0) {
+                counts[i] = 0;
+                continue;
+            }
+            checkSlot(slot);
+            if (slot >>> PAGE_SHIFT != page) {
+                page = slot >>> PAGE_SHIFT;
+                daysCounted = 0;
+                count = countBeforePage(page);
+            }
+            int[] pageCounts = pages[page];
+            if (pageCounts != null) {
+                for (int day = daysCounted; day <= (slot & PAGE_MASK); day++) {
+                    count += pageCounts[day];
+                }
+            }
+            daysCounted = (slot & PAGE_MASK) + 1;
+            counts[i] = count;
+        }
+    }
+
+    /**
+     * @return number of birthdays in slots fromSlot to toSlot (inclusive)
+     */
+    int count(int fromSlot, int toSlot) {
+        if (toSlot < fromSlot) {
+            return 0;
+        }
+        return prefixCount(toSlot) - prefixCount(fromSlot - 1);
+    }
+
+    /**
+     * Find the k-th birthday, counting from slot 0.
+     *
+     * @param k 1-based rank of the birthday
+     * @return the first slot at which the running count reaches k, or -1 if there are fewer than k birthdays
+     */
+    int findKth(int k) {
+        if (k <= 0 || k > total) {
+            return -1;
+        }
+        int page = 0;
+        int remaining = k;
+        for (int step = Integer.highestOneBit(numPages); step > 0; step >>>= 1) {
+            int next = page + step;
+            if (next <= numPages && pageTree[next] < remaining) {
+                page = next;
+                remaining -= pageTree[next];
+            }
+        }
+        int[] counts = pages[page];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            remaining -= counts[i];
+            if (remaining <= 0) {
+                return (page << PAGE_SHIFT) + i;
+            }
+        }
+        throw new IllegalStateException("Index page totals out of step with day counts at page " + page);
+    }
+
+    /**
+     * Same as {@link #findKth(int)} for many ranks in ascending order, in one sweep: a rank reached in the page of
+     * the one before it is found by scanning on from there, without a descent of the tree.
+     *
+     * @param ks 1-based ranks in ascending order
+     * @param slots where the slot of each rank is put, or -1 if there are fewer birthdays
+     */
+    void findKths(int[] ks, int length, int[] slots) {
+        int page = -1;
+        // Last day of the page scanned, and the count up to it
+        int day = PAGE_SIZE - 1;
+        int reached = 0;
+        for (int i = 0; i < length; i++) {
+            int k = ks[i];
+            if (k <= 0 || k > total) {
+                slots[i] = -1;
+                continue;
+            }
+            if (page >= 0) {
+                int[] counts = pages[page];
+                while (reached < k && day < PAGE_SIZE - 1) {
+                    reached += counts[++day];
+                }
+                if (reached >= k) {
+                    slots[i] = (page << PAGE_SHIFT) + day;
+                    continue;
+                }
+            }
+            page = 0;
+            int remaining = k;
+            for (int step = Integer.highestOneBit(numPages); step > 0; step >>>= 1) {
+                int next = page + step;
+                if (next <= numPages && pageTree[next] < remaining) {
+                    page = next;
+                    remaining -= pageTree[next];
+                }
+            }
+            int[] counts = pages[page];
+            reached = k - remaining;
+            day = -1;
+            while (reached < k) {
+                reached += counts[++day];
+            }
+            slots[i] = (page << PAGE_SHIFT) + day;
+        }
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= numSlots) {
+            throw new IllegalArgumentException("Slot " + slot + " outside of index of size " + numSlots);
+        }
+    }
+}
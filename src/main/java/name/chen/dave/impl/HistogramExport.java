@@ -0,0 +1,113 @@
+/**
+ * The day counts of one node's histogram at one version, in a binary form other nodes can fetch and merge.
+ *
+ * The format is a 40 byte header, big-endian: magic, format version, instance id, histogram version, first and last
+ * epoch day, number of days, and length of the counts; then the day counts, encoded by
+ * {@link name.chen.dave.impl.SparseHistogramCodec}; then a CRC-32C of everything before it.
+ *
+ * The instance id is picked at random by each {@link name.chen.dave.impl.MedianDB}, as the histogram version starts
+ * over on every start, so the two together tell whether a node's histogram changed since it was last fetched.
+ */
+package name.chen.dave.impl;
+
+import java.nio.ByteBuffer;
+
+public final class HistogramExport {
+
+    private static final int MAGIC = 0x42444858;  // "BDHX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+
+    private final long instanceId;
+    private final long version;
+    private final int firstEpochDay;
+    private final int lastEpochDay;
+    private final int[] dayCounts;
+
+    HistogramExport(long instanceId, long version, int firstEpochDay, int lastEpochDay, int[] dayCounts) {
+        this.instanceId = instanceId;
+        this.version = version;
+        this.firstEpochDay = firstEpochDay;
+        this.lastEpochDay = lastEpochDay;
+        this.dayCounts = dayCounts;
+    }
+
+    /**
+     * @return the tag of a histogram version: changes whenever the histogram does
+     */
+    static String tag(long instanceId, long version) {
+        return Long.toHexString(instanceId) + "-" + version;
+    }
+
+    public String getTag() {
+        return tag(instanceId, version);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    long getInstanceId() {
+        return instanceId;
+    }
+
+    int getFirstEpochDay() {
+        return firstEpochDay;
+    }
+
+    int getLastEpochDay() {
+        return lastEpochDay;
+    }
+
+    /**
+     * @return number of birthdays on the day, counted from the first epoch day
+     */
+    int getDayCount(int day) {
+        return dayCounts[day];
+    }
+
+    int getNumDays() {
+        return dayCounts.length;
+    }
+
+    public byte[] encode() {
+        byte[] counts = SparseHistogramCodec.encode(dayCounts, 0, dayCounts.length);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + counts.length + 4);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(instanceId).putLong(version)
+                .putInt(firstEpochDay).putInt(lastEpochDay).putInt(dayCounts.length).putInt(counts.length)
+                .put(counts);
+        buffer.putInt(Crc32c.checksum(buffer, 0, buffer.position()));
+        return buffer.array();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not an export in this format, or are corrupt
+     */
+    public static HistogramExport decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE + 4 || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a histogram export");
+        }
+        int formatVersion = buffer.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported histogram export format version " + formatVersion);
+        }
+        long instanceId = buffer.getLong();
+        long version = buffer.getLong();
+        int firstEpochDay = buffer.getInt();
+        int lastEpochDay = buffer.getInt();
+        int numDays = buffer.getInt();
+        int length = buffer.getInt();
+        if (numDays < 0 || (long) lastEpochDay - firstEpochDay + 1 != numDays || length < 0
+                || length != bytes.length - HEADER_SIZE - 4) {
+            throw new IllegalArgumentException("Invalid histogram export header");
+        }
+        if (Crc32c.checksum(buffer, 0, HEADER_SIZE + length) != buffer.getInt(HEADER_SIZE + length)) {
+            throw new IllegalArgumentException("Histogram export checksum mismatch");
+        }
+        int[] dayCounts = new int[numDays];
+        ByteBuffer counts = ByteBuffer.wrap(bytes, HEADER_SIZE, length);
+        SparseHistogramCodec.decode(counts, dayCounts, 0, numDays);
+        return new HistogramExport(instanceId, version, firstEpochDay, lastEpochDay, dayCounts);
+    }
+}
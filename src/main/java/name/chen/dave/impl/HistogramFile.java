@@ -0,0 +1,499 @@
+/**
+ * Versioned, checksummed histogram file.
+ *
+ * Layout (big-endian):
+ *
+ * 1. A 64 byte header: magic, format version, first and last epoch day of the histogram, counter width in bytes,
+ *    number of counters, generation, CRC-32C of the block checksum table or of the body, codec, and the CRC-32C of
+ *    the header itself
+ * 2. With the DENSE codec, the block checksum table: the CRC-32C of every block of 64 counters, then the counters
+ * 3. With the SPARSE codec, the counters encoded by {@link name.chen.dave.impl.SparseHistogramCodec}, leaving out
+ *    the leading counters that the caller derives from the others (the year and month histograms)
+ *
+ * A whole file is written to a temporary file, fsynced and renamed over the old one. A file can also be updated in
+ * place, block by block, with the header written and fsynced last, if it is DENSE. A write torn by a crash leaves blocks that don't
+ * match the table, or a table that doesn't match the header, so it is detected when the file is read. Callers that
+ * update in place keep a second file with the previous generation to fall back on.
+ *
+ * Files written by {@link name.chen.dave.impl.IntArrayPersistence}, bare counters with no header, are recognised
+ * as legacy files so they can be migrated.
+ */
+package name.chen.dave.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+public class HistogramFile {
+
+    static final int MAGIC = 0x42444159; // "BDAY"
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int BLOCK_SIZE = 64;
+    private static final int COUNTER_WIDTH = 4;
+    private static final int GENERATION_POSITION = 24;
+    private static final int TABLE_CHECKSUM_POSITION = 32;
+    private static final int CODEC_POSITION = 36;
+    private static final int STORED_FROM_POSITION = 40;
+    private static final int BODY_LENGTH_POSITION = 44;
+    private static final int HEADER_CHECKSUM_POSITION = HEADER_SIZE - 4;
+
+    /**
+     * How the counters are stored: every counter as a fixed-width int, or only the non-derived counters, compacted
+     */
+    public enum Codec { DENSE, SPARSE }
+
+    /**
+     * Source of the counters to write for an in-place update.
+     */
+    interface Values {
+        /**
+         * Put the counters from index from to index to (exclusive) into dest.
+         */
+        void put(int from, int to, IntBuffer dest);
+    }
+
+    private final File file;
+    private final int firstEpochDay;
+    private final int lastEpochDay;
+    private final int numValues;
+    private final int numBlocks;
+    private Codec codec = Codec.DENSE;
+    private int derivedValues;
+    // Block checksums of the file as last read or written by this object, or null if its contents are unknown
+    private int[] blockChecksums;
+    private long generation = -1;
+    private ByteBuffer updateBuffer;
+
+    public HistogramFile(File file, int firstEpochDay, int lastEpochDay, int numValues) {
+        this.file = file;
+        this.firstEpochDay = firstEpochDay;
+        this.lastEpochDay = lastEpochDay;
+        this.numValues = numValues;
+        this.numBlocks = (numValues + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * @param codec how whole files are written. Files are read with whichever codec they were written with.
+     * @param derivedValues number of leading counters that the SPARSE codec leaves out. They are read as zeros.
+     */
+    public HistogramFile setCodec(Codec codec, int derivedValues) {
+        this.codec = codec;
+        this.derivedValues = derivedValues;
+        return this;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    int getNumBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * @return generation of the file as last read or written by this object, or -1 if its contents are unknown
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return whether this object knows the contents of the file, so it can be updated in place. Never true when
+     * whole files are written SPARSE, even if the file on disk was read DENSE.
+     */
+    boolean isKnown() {
+        return blockChecksums != null && codec == Codec.DENSE;
+    }
+
+    long fileSize() {
+        return bodyOffset() + (long) COUNTER_WIDTH * numValues;
+    }
+
+    int bodyOffset() {
+        return HEADER_SIZE + 4 * numBlocks;
+    }
+
+    /**
+     * @return whether the file has the size and the bare counters of a file written by IntArrayPersistence
+     */
+    public boolean isLegacyFile() throws IOException {
+        if (file.length() != (long) COUNTER_WIDTH * numValues) {
+            return false;
+        }
+        ByteBuffer first = ByteBuffer.allocate(4);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, first, 0);
+        }
+        return first.getInt(0) != MAGIC;
+    }
+
+    /**
+     * Read the header only.
+     *
+     * @return the generation in the header, or -1 if the file is missing, or its header or size is not valid
+     */
+    public long readGeneration() throws IOException {
+        ByteBuffer header = readHeader();
+        return header == null ? -1 : header.getLong(GENERATION_POSITION);
+    }
+
+    /**
+     * @return the codec the file was written with, or null if the file is missing, or its header or size is not valid
+     */
+    Codec readCodec() throws IOException {
+        ByteBuffer header = readHeader();
+        return header == null ? null : codecOf(header);
+    }
+
+    /**
+     * For reading a file whose date range and number of counters are not known in advance, such as one written
+     * for another range.
+     *
+     * @return a histogram file for the date range and number of counters in the header of file, or null if the file
+     * is missing or its header is not valid
+     */
+    static HistogramFile fromHeader(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, header, 0);
+        }
+        if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION || header.getInt(20) < 0
+                || header.getInt(HEADER_CHECKSUM_POSITION) != Crc32c.checksum(header, 0, HEADER_CHECKSUM_POSITION)) {
+            return null;
+        }
+        return new HistogramFile(file, header.getInt(8), header.getInt(12), header.getInt(20));
+    }
+
+    int getFirstEpochDay() {
+        return firstEpochDay;
+    }
+
+    int getLastEpochDay() {
+        return lastEpochDay;
+    }
+
+    int getNumValues() {
+        return numValues;
+    }
+
+    private ByteBuffer readHeader() throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, header, 0);
+        }
+        try {
+            checkHeader(header);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return file.length() == fileSize(header) ? header : null;
+    }
+
+    private long fileSize(ByteBuffer header) {
+        return codecOf(header) == Codec.DENSE ? fileSize() : HEADER_SIZE + (long) header.getInt(BODY_LENGTH_POSITION);
+    }
+
+    Codec codecOf(ByteBuffer header) {
+        return Codec.values()[header.getInt(CODEC_POSITION)];
+    }
+
+    /**
+     * Read the whole file and verify every checksum.
+     *
+     * @throws IllegalArgumentException if the file is not a valid histogram file with the expected date range
+     */
+    public int[] read() throws IOException {
+        blockChecksums = null;
+        generation = -1;
+        long length = file.length();
+        if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+            throw corrupt("unexpected size of " + length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, buffer, 0);
+        }
+        checkHeader(buffer);
+        if (length != fileSize(buffer)) {
+            throw corrupt("expected " + fileSize(buffer) + " bytes but found " + length);
+        }
+        int[] values = new int[numValues];
+        if (codecOf(buffer) == Codec.SPARSE) {
+            if (buffer.getInt(TABLE_CHECKSUM_POSITION) != Crc32c.checksum(buffer, HEADER_SIZE, (int) length)) {
+                throw corrupt("checksum mismatch in the encoded counters");
+            }
+            buffer.position(HEADER_SIZE);
+            try {
+                SparseHistogramCodec.decode(buffer, values, buffer.getInt(STORED_FROM_POSITION), numValues);
+            } catch (IllegalArgumentException e) {
+                throw corrupt(e.getMessage());
+            }
+        } else {
+            int[] checksums = checkBlocks(buffer, true);
+            buffer.position(bodyOffset());
+            buffer.asIntBuffer().get(values);
+            this.blockChecksums = checksums;
+        }
+        this.generation = buffer.getLong(GENERATION_POSITION);
+        return values;
+    }
+
+    /**
+     * Check the header of a file mapped or read into buffer.
+     *
+     * @throws IllegalArgumentException if the header is not valid, or not for the expected date range
+     */
+    void checkHeader(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC) {
+            throw corrupt("not a histogram file");
+        }
+        if (buffer.getInt(HEADER_CHECKSUM_POSITION) != Crc32c.checksum(buffer, 0, HEADER_CHECKSUM_POSITION)) {
+            throw corrupt("header checksum mismatch");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw corrupt("unsupported format version " + buffer.getInt(4));
+        }
+        if (buffer.getInt(8) != firstEpochDay || buffer.getInt(12) != lastEpochDay) {
+            throw corrupt("written for epoch days " + buffer.getInt(8) + " to " + buffer.getInt(12)
+                    + ", expected " + firstEpochDay + " to " + lastEpochDay);
+        }
+        if (buffer.getInt(16) != COUNTER_WIDTH || buffer.getInt(20) != numValues) {
+            throw corrupt("expected " + numValues + " counters of " + COUNTER_WIDTH + " bytes but found "
+                    + buffer.getInt(20) + " of " + buffer.getInt(16));
+        }
+        int codecId = buffer.getInt(CODEC_POSITION);
+        if (codecId < 0 || codecId >= Codec.values().length) {
+            throw corrupt("unknown codec " + codecId);
+        }
+        int storedFrom = buffer.getInt(STORED_FROM_POSITION);
+        if (storedFrom < 0 || storedFrom > numValues || buffer.getInt(BODY_LENGTH_POSITION) < 0) {
+            throw corrupt("invalid encoded counters " + storedFrom + " to " + numValues + " of "
+                    + buffer.getInt(BODY_LENGTH_POSITION) + " bytes");
+        }
+    }
+
+    /**
+     * Check the block checksum table of a file mapped or read into buffer against the header, and optionally every
+     * block against the table.
+     *
+     * @return the block checksum table
+     * @throws IllegalArgumentException on a checksum mismatch
+     */
+    int[] checkBlocks(ByteBuffer buffer, boolean checkEveryBlock) {
+        if (buffer.getInt(TABLE_CHECKSUM_POSITION) != Crc32c.checksum(buffer, HEADER_SIZE, bodyOffset())) {
+            throw corrupt("block checksum table mismatch");
+        }
+        int[] checksums = new int[numBlocks];
+        buffer.position(HEADER_SIZE);
+        buffer.asIntBuffer().get(checksums);
+        buffer.position(0);
+        if (checkEveryBlock) {
+            for (int block = 0; block < numBlocks; block++) {
+                if (blockChecksum(buffer, bodyOffset(), block) != checksums[block]) {
+                    throw corrupt("checksum mismatch in block " + block);
+                }
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * @return the checksum of a block of counters, in a buffer holding the counters from position offset
+     */
+    int blockChecksum(ByteBuffer buffer, int offset, int block) {
+        int from = offset + COUNTER_WIDTH * BLOCK_SIZE * block;
+        int to = offset + COUNTER_WIDTH * Math.min(BLOCK_SIZE * (block + 1), numValues);
+        return Crc32c.checksum(buffer, from, to);
+    }
+
+    /**
+     * Write the table and header into a file mapped or read into buffer, for the given block checksums.
+     */
+    void putTableAndHeader(ByteBuffer buffer, int[] checksums, long generation) {
+        buffer.position(HEADER_SIZE);
+        buffer.asIntBuffer().put(checksums);
+        buffer.position(0);
+        putHeader(buffer, generation, Crc32c.checksum(buffer, HEADER_SIZE, bodyOffset()), Codec.DENSE, 0,
+                COUNTER_WIDTH * numValues);
+    }
+
+    private void putHeader(ByteBuffer buffer, long generation, int checksum, Codec codec, int storedFrom,
+                           int bodyLength) {
+        buffer.putInt(0, MAGIC).putInt(4, FORMAT_VERSION).putInt(8, firstEpochDay).putInt(12, lastEpochDay)
+                .putInt(16, COUNTER_WIDTH).putInt(20, numValues).putLong(GENERATION_POSITION, generation)
+                .putInt(TABLE_CHECKSUM_POSITION, checksum).putInt(CODEC_POSITION, codec.ordinal())
+                .putInt(STORED_FROM_POSITION, storedFrom).putInt(BODY_LENGTH_POSITION, bodyLength);
+        for (int i = BODY_LENGTH_POSITION + 4; i < HEADER_CHECKSUM_POSITION; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.putInt(HEADER_CHECKSUM_POSITION, Crc32c.checksum(buffer, 0, HEADER_CHECKSUM_POSITION));
+    }
+
+    /**
+     * Write a whole new file: to a temporary file, fsynced, then atomically renamed over this one.
+     *
+     * @return number of bytes written
+     */
+    public long write(int[] values, long generation) throws IOException {
+        if (values.length != numValues) {
+            throw new IllegalArgumentException("Expected " + numValues + " counters but got " + values.length);
+        }
+        blockChecksums = null;
+        this.generation = -1;
+        if (codec == Codec.SPARSE) {
+            byte[] encoded = SparseHistogramCodec.encode(values, derivedValues, numValues);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + encoded.length);
+            buffer.position(HEADER_SIZE);
+            buffer.put(encoded);
+            putHeader(buffer, generation, Crc32c.checksum(buffer, HEADER_SIZE, buffer.capacity()), Codec.SPARSE,
+                    derivedValues, encoded.length);
+            replaceWith(buffer);
+            this.generation = generation;
+            return buffer.capacity();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) fileSize());
+        buffer.position(bodyOffset());
+        buffer.asIntBuffer().put(values);
+        int[] checksums = new int[numBlocks];
+        for (int block = 0; block < numBlocks; block++) {
+            checksums[block] = blockChecksum(buffer, bodyOffset(), block);
+        }
+        putTableAndHeader(buffer, checksums, generation);
+        replaceWith(buffer);
+        this.blockChecksums = checksums;
+        this.generation = generation;
+        return buffer.capacity();
+    }
+
+    /**
+     * Write the whole buffer to a temporary file, fsync it, and rename it over this file.
+     */
+    private void replaceWith(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, buffer, 0);
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    /**
+     * Rewrite blocks of the file in place, then the checksum table, then the header with the new generation.
+     * The file must be known, i.e. last read or written by this object.
+     *
+     * @return number of bytes written
+     */
+    long update(BitSet blocks, Values values, long generation) throws IOException {
+        if (blockChecksums == null) {
+            throw new IllegalStateException("Contents of " + file + " are unknown, so it can't be updated in place");
+        }
+        if (updateBuffer == null) {
+            updateBuffer = ByteBuffer.allocateDirect(Math.max(HEADER_SIZE, COUNTER_WIDTH * numValues));
+        }
+        ByteBuffer buffer = updateBuffer;
+        long written = 0;
+        boolean complete = false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            for (int run = blocks.nextSetBit(0); run >= 0; run = blocks.nextSetBit(run)) {
+                int end = blocks.nextClearBit(run);
+                int from = run * BLOCK_SIZE;
+                int to = Math.min(end * BLOCK_SIZE, numValues);
+                buffer.clear();
+                values.put(from, to, buffer.asIntBuffer());
+                buffer.limit(COUNTER_WIDTH * (to - from));
+                for (int block = run; block < end; block++) {
+                    blockChecksums[block] = blockChecksum(buffer, -COUNTER_WIDTH * from, block);
+                }
+                written += writeFully(channel, buffer, bodyOffset() + (long) COUNTER_WIDTH * from);
+                run = end;
+            }
+            for (int run = blocks.nextSetBit(0); run >= 0; run = blocks.nextSetBit(run)) {
+                int end = blocks.nextClearBit(run);
+                buffer.clear();
+                buffer.asIntBuffer().put(blockChecksums, run, end - run);
+                buffer.limit(4 * (end - run));
+                written += writeFully(channel, buffer, HEADER_SIZE + 4L * run);
+                run = end;
+            }
+            channel.force(false);
+
+            // The header goes last: until it is on disk, the file does not claim the new generation
+            ByteBuffer table = ByteBuffer.allocate(4 * numBlocks);
+            table.asIntBuffer().put(blockChecksums);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            putHeader(header, generation, Crc32c.checksum(table, 0, table.capacity()), Codec.DENSE, 0,
+                    COUNTER_WIDTH * numValues);
+            written += writeFully(channel, header, 0);
+            channel.force(false);
+            complete = true;
+        } finally {
+            if (!complete) {
+                blockChecksums = null;
+                this.generation = -1;
+            }
+        }
+        this.generation = generation;
+        return written;
+    }
+
+    public boolean delete() {
+        blockChecksums = null;
+        generation = -1;
+        return file.delete();
+    }
+
+    private IllegalArgumentException corrupt(String reason) {
+        return new IllegalArgumentException("Invalid histogram file " + file + " : " + reason
+                + ". Possible file corruption.");
+    }
+
+    private void syncDirectory() {
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Fsync a directory, so that the files created or renamed in it survive a power loss
+     */
+    static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on every platform; the rename itself is still atomic
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file after " + position + " bytes");
+            }
+            position += read;
+        }
+    }
+
+    static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+}
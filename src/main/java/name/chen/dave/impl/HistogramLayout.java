@@ -0,0 +1,239 @@
+/**
+ * Where each counter of {@link name.chen.dave.impl.ArrayDateHistogram} lives in its histogram array and files.
+ *
+ * For a range of whole years, the array holds the birthday count of every year, then of every month, then of every
+ * day. Days are indexed by their offset from the first day of the range, as given by
+ * {@link java.time.LocalDate#toEpochDay}, so the day level is contiguous and finding a day's slot is a subtraction.
+ *
+ * Histograms written before the day level was indexed by epoch day reserved 31 day slots for every month of
+ * 1850-2049. {@link #copyDaysFromMonthSlots} moves the day counts of such a histogram into a layout.
+ */
+package name.chen.dave.impl;
+
+import java.nio.IntBuffer;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
+import java.util.Arrays;
+
+final class HistogramLayout {
+
+    // The layout with 31 day slots for every month, of the years 1850 to 2049
+    static final int MONTH_SLOTS_FIRST_YEAR = 1850;
+    static final int MONTH_SLOTS_NUM_YEARS = 200;
+    static final int MONTH_SLOTS_NUM_VALUES = MONTH_SLOTS_NUM_YEARS * (1 + 12 + 12 * 31);
+
+    private final int firstYear;
+    private final int numYears;
+    private final int firstEpochDay;
+    private final int numDays;
+    // Day slot of the first day of every month, then numDays
+    private final int[] monthStarts;
+
+    HistogramLayout(int firstYear, int lastYear) {
+        if (lastYear < firstYear || firstYear < LocalDate.MIN.getYear() || lastYear > LocalDate.MAX.getYear()) {
+            throw new IllegalArgumentException("Invalid range of years " + firstYear + " to " + lastYear);
+        }
+        long firstDay = LocalDate.of(firstYear, 1, 1).toEpochDay();
+        long lastDay = LocalDate.of(lastYear, 12, 31).toEpochDay();
+        if (lastDay - firstDay + 1 > Integer.MAX_VALUE - 13L * (lastYear - firstYear + 1)
+                || firstDay < Integer.MIN_VALUE || lastDay > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Range of years " + firstYear + " to " + lastYear + " is too large");
+        }
+        this.firstYear = firstYear;
+        this.numYears = lastYear - firstYear + 1;
+        this.firstEpochDay = (int) firstDay;
+        this.numDays = (int) (lastDay - firstDay + 1);
+        this.monthStarts = new int[12 * numYears + 1];
+        int slot = 0;
+        for (int year = 0; year < numYears; year++) {
+            boolean leapYear = Year.isLeap(firstYear + year);
+            for (int month = 0; month < 12; month++) {
+                monthStarts[12 * year + month] = slot;
+                slot += Month.of(month + 1).length(leapYear);
+            }
+        }
+        monthStarts[12 * numYears] = slot;
+    }
+
+    /**
+     * @return the layout of the whole years from firstEpochDay to lastEpochDay
+     * @throws IllegalArgumentException if the epoch days are not the first and last day of a year
+     */
+    static HistogramLayout ofEpochDays(int firstEpochDay, int lastEpochDay) {
+        LocalDate first = LocalDate.ofEpochDay(firstEpochDay);
+        LocalDate last = LocalDate.ofEpochDay(lastEpochDay);
+        if (first.getDayOfYear() != 1 || last.getMonth() != Month.DECEMBER || last.getDayOfMonth() != 31) {
+            throw new IllegalArgumentException("Epoch days " + firstEpochDay + " to " + lastEpochDay
+                    + " are not a range of whole years");
+        }
+        return new HistogramLayout(first.getYear(), last.getYear());
+    }
+
+    int getFirstYear() {
+        return firstYear;
+    }
+
+    int getLastYear() {
+        return firstYear + numYears - 1;
+    }
+
+    int getFirstEpochDay() {
+        return firstEpochDay;
+    }
+
+    int getLastEpochDay() {
+        return firstEpochDay + numDays - 1;
+    }
+
+    int getNumYears() {
+        return numYears;
+    }
+
+    int getNumDays() {
+        return numDays;
+    }
+
+    /**
+     * @return size of the histogram array
+     */
+    int numValues() {
+        return daysOffset() + numDays;
+    }
+
+    /**
+     * @return index of the first month in the histogram array
+     */
+    int monthsOffset() {
+        return numYears;
+    }
+
+    /**
+     * @return index of the first day in the histogram array
+     */
+    int daysOffset() {
+        return 13 * numYears;
+    }
+
+    /**
+     * @return the day slot of an epoch day, or -1 if it is outside of the layout
+     */
+    int daySlot(int epochDay) {
+        // A single unsigned comparison covers both ends of the range
+        int slot = epochDay - firstEpochDay;
+        return Integer.compareUnsigned(slot, numDays) < 0 ? slot : -1;
+    }
+
+    int epochDayOf(int daySlot) {
+        return firstEpochDay + daySlot;
+    }
+
+    /**
+     * @return the month, counted from the first month of the layout, that a day slot falls in
+     */
+    int monthOf(int daySlot) {
+        int month = Arrays.binarySearch(monthStarts, daySlot);
+        return month >= 0 ? month : -month - 2;
+    }
+
+    /**
+     * @return the day slot of the first day of a month, or the number of days for the month after the last one
+     */
+    int monthStart(int month) {
+        return monthStarts[month];
+    }
+
+    /**
+     * @return the year, month and day histograms in one array, the years and months totalled from the day index
+     */
+    int[] toHistogramArray(DayCountIndex dayIndex) {
+        int[] histogramArray = new int[numValues()];
+        dayIndex.copyTo(histogramArray, daysOffset());
+        totalYearsAndMonths(histogramArray);
+        return histogramArray;
+    }
+
+    /**
+     * Fill in the year and month histograms of a histogram array from its day histogram
+     */
+    void totalYearsAndMonths(int[] histogramArray) {
+        Arrays.fill(histogramArray, 0, daysOffset(), 0);
+        for (int month = 0; month < 12 * numYears; month++) {
+            int count = 0;
+            for (int i = daysOffset() + monthStarts[month]; i < daysOffset() + monthStarts[month + 1]; i++) {
+                count += histogramArray[i];
+            }
+            histogramArray[monthsOffset() + month] = count;
+            histogramArray[month / 12] += count;
+        }
+    }
+
+    /**
+     * Put the counters of the histogram array from index from to index to (exclusive) into dest, totalling the
+     * years and months from the day index.
+     */
+    void putValues(DayCountIndex dayIndex, int from, int to, IntBuffer dest) {
+        int position = from;
+        for (; position < to && position < monthsOffset(); position++) {
+            dest.put(dayIndex.count(monthStarts[12 * position], monthStarts[12 * position + 12] - 1));
+        }
+        for (; position < to && position < daysOffset(); position++) {
+            int month = position - monthsOffset();
+            dest.put(dayIndex.count(monthStarts[month], monthStarts[month + 1] - 1));
+        }
+        if (position < to) {
+            dayIndex.putSlots(position - daysOffset(), to - daysOffset(), dest);
+        }
+    }
+
+    /**
+     * Copy the day counts of a histogram array in another layout into the day level of dest, in this layout.
+     *
+     * @return number of birthdays left out, because their day is outside of this layout
+     */
+    int copyDaysFrom(HistogramLayout source, int[] sourceValues, int[] dest) {
+        int leftOut = 0;
+        for (int slot = 0; slot < source.numDays; slot++) {
+            int count = sourceValues[source.daysOffset() + slot];
+            if (count != 0) {
+                leftOut += copyDay(source.epochDayOf(slot), count, dest);
+            }
+        }
+        return leftOut;
+    }
+
+    /**
+     * Copy the day counts of a histogram array with 31 day slots for every month into the day level of dest, in
+     * this layout. Slots past the end of a month are ignored.
+     *
+     * @return number of birthdays left out, because their day is outside of this layout
+     */
+    int copyDaysFromMonthSlots(int[] sourceValues, int[] dest) {
+        int leftOut = 0;
+        int epochDay = (int) LocalDate.of(MONTH_SLOTS_FIRST_YEAR, 1, 1).toEpochDay();
+        int slot = MONTH_SLOTS_NUM_YEARS * 13;
+        for (int year = MONTH_SLOTS_FIRST_YEAR; year < MONTH_SLOTS_FIRST_YEAR + MONTH_SLOTS_NUM_YEARS; year++) {
+            boolean leapYear = Year.isLeap(year);
+            for (Month month : Month.values()) {
+                int length = month.length(leapYear);
+                for (int day = 0; day < length; day++) {
+                    if (sourceValues[slot + day] != 0) {
+                        leftOut += copyDay(epochDay + day, sourceValues[slot + day], dest);
+                    }
+                }
+                epochDay += length;
+                slot += 31;
+            }
+        }
+        return leftOut;
+    }
+
+    private int copyDay(int epochDay, int count, int[] dest) {
+        int slot = daySlot(epochDay);
+        if (slot < 0) {
+            return count;
+        }
+        dest[daysOffset() + slot] += count;
+        return 0;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * One shard of pending birthday counts for {@link name.chen.dave.impl.ArrayDateHistogram}.
+ *
+ * Writers are spread over several stripes so that adds on different threads rarely meet on the same monitor.
+ * Each stripe only holds the counts added since it was last drained; readers drain every stripe into a new
+ * version of the {@link name.chen.dave.impl.DayCountIndex}. An add lives entirely in one stripe, so a drain never
+ * sees half of it.
+ *
+ * When the histogram has a {@link name.chen.dave.impl.WriteAheadLog}, each stripe also appends its log records
+ * under its monitor, so that holding every stripe's monitor gives a point where the log and the counts agree.
+ */
+package name.chen.dave.impl;
+
+import java.util.Arrays;
+
+class HistogramStripe {
+
+    private final int[][] pages;
+    // Pages written to since the last drain, in order of first write
+    private final boolean[] touched;
+    private final int[] touchedPages;
+    private int numTouchedPages = 0;
+    // Lets readers check for pending counts without taking the monitor. Only written when a page is first touched.
+    private volatile boolean pendingCounts = false;
+    private WriteAheadLog.LogBuffer logBuffer;
+
+    HistogramStripe(int numSlots) {
+        int numPages = (numSlots + DayCountIndex.PAGE_SIZE - 1) >>> DayCountIndex.PAGE_SHIFT;
+        this.pages = new int[numPages][];
+        this.touched = new boolean[numPages];
+        this.touchedPages = new int[numPages];
+    }
+
+    synchronized void attachLog(WriteAheadLog.LogBuffer logBuffer) {
+        this.logBuffer = logBuffer;
+    }
+
+    /**
+     * @return the log commit to wait for before the add is durable, or null if there is nothing to wait for
+     */
+    synchronized WriteAheadLog.Commit add(int slot, int epochDay, int delta) {
+        addUnlocked(slot, delta);
+        return logBuffer == null ? null : logBuffer.append(epochDay, delta);
+    }
+
+    synchronized WriteAheadLog.Commit addAll(int[] slots, int[] epochDays, int[] deltas, int length) {
+        for (int i = 0; i < length; i++) {
+            addUnlocked(slots[i], deltas[i]);
+        }
+        return logBuffer == null ? null : logBuffer.appendAll(epochDays, deltas, length);
+    }
+
+    private void addUnlocked(int slot, int delta) {
+        int page = slot >>> DayCountIndex.PAGE_SHIFT;
+        int[] counts = pages[page];
+        if (counts == null) {
+            counts = new int[DayCountIndex.PAGE_SIZE];
+            pages[page] = counts;
+        }
+        if (!touched[page]) {
+            touched[page] = true;
+            touchedPages[numTouchedPages++] = page;
+            pendingCounts = true;
+        }
+        counts[slot & (DayCountIndex.PAGE_SIZE - 1)] += delta;
+    }
+
+    boolean hasPendingCounts() {
+        return pendingCounts;
+    }
+
+    /**
+     * Move the pending counts of this stripe into the index, leaving the stripe empty.
+     *
+     * @return whether there was anything to drain
+     */
+    synchronized boolean drainTo(DayCountIndex index) {
+        if (numTouchedPages == 0) {
+            return false;
+        }
+        for (int i = 0; i < numTouchedPages; i++) {
+            int[] counts = pages[touchedPages[i]];
+            index.addPage(touchedPages[i], counts);
+            Arrays.fill(counts, 0);
+            touched[touchedPages[i]] = false;
+        }
+        numTouchedPages = 0;
+        pendingCounts = false;
+        return true;
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Birthdays by the time they were added, for medians over the birthdays added in the last minutes, hours or days.
+ *
+ * Every add is counted in the bucket of its minute, of its hour and of its day, in rings of 60 minute buckets, 24
+ * hour buckets and a configured number of day buckets (UTC days), each with one more bucket for the one in
+ * progress. A bucket is a sparse {@link name.chen.dave.impl.SegmentHistogram}, allocated on its first birthday, and
+ * is dropped when its slot of the ring is taken by a later minute, hour or day, so expiry costs nothing.
+ *
+ * A window is covered from its start with the coarsest buckets that start at or after it, and the finest bucket
+ * still kept around its start: to the minute for the last hour, to the hour for the last day, to the day after that.
+ * The bucket around the start is taken whole, so a window may reach back to the start of that bucket. Queries add
+ * up the few buckets of the window into one sparse histogram. Buckets are kept in memory only: the windows start
+ * empty after a restart.
+ */
+package name.chen.dave.impl;
+
+final class IngestionWindows {
+
+    static final long MINUTE_MILLIS = 60_000;
+    static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    private final HistogramLayout layout;
+    // Finest first
+    private final Level[] levels;
+    private final long maxWindowMillis;
+
+    private static final class Level {
+        final long bucketMillis;
+        final Bucket[] buckets;
+
+        Level(long bucketMillis, int numBuckets) {
+            this.bucketMillis = bucketMillis;
+            this.buckets = new Bucket[numBuckets];
+            for (int i = 0; i < numBuckets; i++) {
+                buckets[i] = new Bucket();
+            }
+        }
+
+        Bucket bucket(long index) {
+            return buckets[(int) Math.floorMod(index, (long) buckets.length)];
+        }
+
+        /**
+         * @return whether the bucket of that index is still in the ring, as of the bucket of now
+         */
+        boolean keeps(long index, long nowIndex) {
+            return index > nowIndex - buckets.length && index <= nowIndex;
+        }
+    }
+
+    // Guarded by its monitor
+    private static final class Bucket {
+        // Minutes, hours or days since the epoch
+        long index = Long.MIN_VALUE;
+        // Null until a birthday is added
+        SegmentHistogram histogram;
+    }
+
+    /**
+     * @param days number of days of adds kept, at least 1
+     */
+    IngestionWindows(HistogramLayout layout, int days) {
+        if (days < 1) {
+            throw new IllegalArgumentException("Ingestion windows need at least 1 day, not " + days);
+        }
+        this.layout = layout;
+        this.levels = new Level[]{new Level(MINUTE_MILLIS, 61), new Level(HOUR_MILLIS, 25),
+                new Level(DAY_MILLIS, days + 1)};
+        this.maxWindowMillis = days * DAY_MILLIS;
+    }
+
+    long getMaxWindowMillis() {
+        return maxWindowMillis;
+    }
+
+    /**
+     * @return the histogram of the bucket for index, emptied first if it held an earlier index, or null if it
+     * already holds a later one
+     */
+    private SegmentHistogram histogramFor(Bucket bucket, long index) {
+        if (bucket.index > index) {
+            return null;
+        }
+        if (bucket.index < index || bucket.histogram == null) {
+            bucket.index = index;
+            bucket.histogram = new SegmentHistogram(layout);
+        }
+        return bucket.histogram;
+    }
+
+    /**
+     * @param count number of birthdays to add, positive
+     */
+    void add(int slot, int count, long nowMillis) {
+        for (Level level : levels) {
+            long index = Math.floorDiv(nowMillis, level.bucketMillis);
+            Bucket bucket = level.bucket(index);
+            synchronized (bucket) {
+                SegmentHistogram histogram = histogramFor(bucket, index);
+                if (histogram != null) {
+                    histogram.add(slot, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a batch of birthdays, taking the monitor of each bucket once
+     *
+     * @param slots day slots, of the layout
+     * @param counts number of birthdays on each day, positive
+     */
+    void addAll(int[] slots, int[] counts, int length, long nowMillis) {
+        for (Level level : levels) {
+            long index = Math.floorDiv(nowMillis, level.bucketMillis);
+            Bucket bucket = level.bucket(index);
+            synchronized (bucket) {
+                SegmentHistogram histogram = histogramFor(bucket, index);
+                for (int i = 0; histogram != null && i < length; i++) {
+                    histogram.add(slots[i], counts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add up the buckets covering the birthdays added in the window before now, see the class comment.
+     *
+     * @return a new histogram of those birthdays, only read by the caller
+     * @throws IllegalArgumentException if the window is not positive, or longer than the days kept
+     */
+    SegmentHistogram window(long windowMillis, long nowMillis) {
+        if (windowMillis <= 0 || windowMillis > maxWindowMillis) {
+            throw new IllegalArgumentException("Window of " + windowMillis + " ms is not between 1 ms and "
+                    + maxWindowMillis + " ms");
+        }
+        SegmentHistogram window = new SegmentHistogram(layout);
+        long from = nowMillis - windowMillis + 1;
+        while (from <= nowMillis) {
+            Level cover = null;
+            for (int i = levels.length - 1; i >= 0 && cover == null; i--) {
+                Level level = levels[i];
+                if (Math.floorMod(from, level.bucketMillis) == 0 && level.keeps(
+                        from / level.bucketMillis, Math.floorDiv(nowMillis, level.bucketMillis))) {
+                    cover = level;
+                }
+            }
+            for (int i = 0; i < levels.length && cover == null; i++) {
+                Level level = levels[i];
+                if (level.keeps(Math.floorDiv(from, level.bucketMillis),
+                        Math.floorDiv(nowMillis, level.bucketMillis))) {
+                    cover = level;
+                }
+            }
+            long index = Math.floorDiv(from, cover.bucketMillis);
+            Bucket bucket = cover.bucket(index);
+            synchronized (bucket) {
+                if (bucket.index == index && bucket.histogram != null) {
+                    window.addAll(bucket.histogram);
+                }
+            }
+            from = (index + 1) * cover.bucketMillis;
+        }
+        return window;
+    }
+
+    /**
+     * @return an estimate of the heap taken by the buckets
+     */
+    long sizeInBytes() {
+        long size = 0;
+        for (Level level : levels) {
+            for (Bucket bucket : level.buckets) {
+                synchronized (bucket) {
+                    size += 32 + (bucket.histogram == null ? 0 : bucket.histogram.sizeInBytes());
+                }
+            }
+        }
+        return size;
+    }
+}
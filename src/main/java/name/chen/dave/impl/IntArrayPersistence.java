@@ -10,14 +10,13 @@ public class IntArrayPersistence {
 
     public void toLocalDisk(int[] intArray, String outputFile) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(4 * intArray.length);
-        for (int i : intArray) {
-            buffer.putInt(i);
-        }
-        buffer.rewind();
+        buffer.asIntBuffer().put(intArray);
         FileChannel fc = null;
         try {
             fc = new FileOutputStream(outputFile).getChannel();
-            fc.write(buffer);
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
         } finally {
             ensureClose(fc);
         }
@@ -35,15 +34,13 @@ public class IntArrayPersistence {
         try {
             fc = new FileInputStream(inputFile).getChannel();
             buffer = ByteBuffer.allocate(bytesInFile);
-            fc.read(buffer);
+            HistogramFile.readFully(fc, buffer, 0);
         } finally {
             ensureClose(fc);
         }
-        buffer.rewind();
         int[] newInts = new int[lengthOfIntArray];
-        for (int i=0; i<lengthOfIntArray; i++) {
-            newInts[i] = buffer.getInt();
-        }
+        buffer.rewind();
+        buffer.asIntBuffer().get(newInts);
         return newInts;
     }
 
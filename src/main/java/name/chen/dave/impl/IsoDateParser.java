@@ -0,0 +1,129 @@
+/**
+ * Parses yyyy-MM-dd dates straight to epoch days (days since 1970-01-01, as in {@link java.time.LocalDate#toEpochDay})
+ * with plain arithmetic, so bulk loads don't create a {@link java.time.LocalDate} or a parser context per record.
+ * Ages between epoch days are worked out the same way, for answers that don't create a {@link java.time.Period}.
+ */
+package name.chen.dave.impl;
+
+public final class IsoDateParser {
+
+    // Returned for anything that is not a valid yyyy-MM-dd date
+    public static final int INVALID_DATE = Integer.MIN_VALUE;
+
+    private static final int ISO_DATE_LENGTH = 10;
+
+    private IsoDateParser() {
+    }
+
+    public static int parseEpochDay(byte[] buffer, int from, int to) {
+        if (to - from != ISO_DATE_LENGTH || buffer[from + 4] != '-' || buffer[from + 7] != '-') {
+            return INVALID_DATE;
+        }
+        int year = digits(buffer, from, 4);
+        int month = digits(buffer, from + 5, 2);
+        int day = digits(buffer, from + 8, 2);
+        return toEpochDay(year, month, day);
+    }
+
+    public static int parseEpochDay(CharSequence text) {
+        if (text.length() != ISO_DATE_LENGTH || text.charAt(4) != '-' || text.charAt(7) != '-') {
+            return INVALID_DATE;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        return toEpochDay(year, month, day);
+    }
+
+    /**
+     * @return the epoch day of year-month-day, or INVALID_DATE if there is no such date
+     */
+    public static int toEpochDay(int year, int month, int day) {
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            return INVALID_DATE;
+        }
+        // Days from civil date, counting years from March so that the leap day is the last day of the year
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return the date of an epoch day as year * 10000 + month * 100 + day, e.g. 19990105
+     */
+    static int toPackedDate(int epochDay) {
+        // Civil date from days, the inverse of toEpochDay
+        int z = epochDay + 719468;
+        int era = Math.floorDiv(z, 146097);
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthFromMarch = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+        int month = monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * Same as Period.between(LocalDate.ofEpochDay(birthEpochDay), LocalDate.ofEpochDay(asOfEpochDay)).getYears():
+     * negative for a birthday after asOf. Both dates are in year 0 or later.
+     */
+    public static int ageInYears(int birthEpochDay, int asOfEpochDay) {
+        int birth = toPackedDate(birthEpochDay);
+        int asOf = toPackedDate(asOfEpochDay);
+        int months = (asOf / 10000 - birth / 10000) * 12 + (asOf / 100 % 100 - birth / 100 % 100);
+        int days = asOf % 100 - birth % 100;
+        if (months > 0 && days < 0) {
+            months--;
+        } else if (months < 0 && days > 0) {
+            months++;
+        }
+        return months / 12;
+    }
+
+    static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static int digits(byte[] buffer, int from, int length) {
+        int value = 0;
+        for (int i = from; i < from + length; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int digits(CharSequence text, int from, int length) {
+        int value = 0;
+        for (int i = from; i < from + length; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Records durations in nanoseconds into a histogram with log-linear buckets, in the manner of HdrHistogram: every
+ * power of two is split into 16 buckets, so a percentile is within 1/16 of the durations recorded in its bucket.
+ *
+ * Recording is a couple of atomic increments and allocates nothing. Threads record into one of several stripes,
+ * picked by thread, so that concurrent adds don't contend on the same counters; a summary adds up the stripes.
+ *
+ * Reading the clock twice can cost as much as a cached query, so a recorder on a hot path can time a random
+ * sample of the operations, e.g. 1 in 16. Operations not sampled, and all of them if the recorder is disabled,
+ * don't read the clock.
+ */
+package name.chen.dave.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Durations of 2^40 ns (about 18 minutes) or more are recorded as the largest duration below it
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    static final int NUM_BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    // After the buckets of each stripe: the sum and the maximum of its durations
+    private static final int SUM = NUM_BUCKETS;
+    private static final int MAX = NUM_BUCKETS + 1;
+    private static final int NUM_STRIPES =
+            Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+
+    /**
+     * Returned by {@link #start()} for an operation that is not timed
+     */
+    public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final boolean enabled;
+    private final int sampleMask;
+    private final AtomicLongArray[] stripes;
+
+    /**
+     * @param sampleEvery time 1 in sampleEvery operations on average, or none if 0. A power of two.
+     */
+    public LatencyRecorder(int sampleEvery) {
+        if (sampleEvery < 0 || Integer.bitCount(sampleEvery) > 1) {
+            throw new IllegalArgumentException("Sampling 1 in " + sampleEvery + " is not a power of two");
+        }
+        this.enabled = sampleEvery > 0;
+        this.sampleMask = sampleEvery - 1;
+        this.stripes = new AtomicLongArray[enabled ? NUM_STRIPES : 0];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new AtomicLongArray(NUM_BUCKETS + 2);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the time to pass to {@link #recordSince}, or {@link #NOT_SAMPLED} if this operation is not timed
+     */
+    public long start() {
+        if (!enabled || (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0)) {
+            return NOT_SAMPLED;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time elapsed since start, as returned by {@link #start()}, if the operation was sampled.
+     */
+    public void recordSince(long start) {
+        if (start != NOT_SAMPLED) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    public void record(long nanos) {
+        if (!enabled) {
+            return;
+        }
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        long threadId = Thread.currentThread().getId();
+        AtomicLongArray stripe = stripes[(int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32) & (NUM_STRIPES - 1)];
+        stripe.incrementAndGet(bucket(value));
+        stripe.addAndGet(SUM, value);
+        long max = stripe.get(MAX);
+        while (value > max && !stripe.compareAndSet(MAX, max, value)) {
+            max = stripe.get(MAX);
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest duration recorded into a bucket
+     */
+    static long highestInBucket(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @return the durations recorded so far. Durations recorded while it is taken may be partly counted.
+     */
+    public Summary summary() {
+        long[] counts = new long[NUM_BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                long bucketCount = stripe.get(bucket);
+                counts[bucket] += bucketCount;
+                count += bucketCount;
+            }
+            sum += stripe.get(SUM);
+            max = Math.max(max, stripe.get(MAX));
+        }
+        return new Summary(counts, count, sum, max);
+    }
+
+    public static final class Summary {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Summary(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of durations recorded: the operations sampled
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public long getMaxNanos() {
+            return max;
+        }
+
+        /**
+         * @param percentile from 0 to 100
+         * @return the duration at or below which that percentage of the recorded durations fall, or 0 if none were
+         * recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    return Math.min(highestInBucket(bucket), max);
+                }
+            }
+            return 0;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("samples", count);
+            map.put("meanNanos", getMeanNanos());
+            map.put("p50Nanos", getPercentileNanos(50));
+            map.put("p90Nanos", getPercentileNanos(90));
+            map.put("p99Nanos", getPercentileNanos(99));
+            map.put("p999Nanos", getPercentileNanos(99.9));
+            map.put("maxNanos", max);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * A {@link name.chen.dave.impl.HistogramFile}, memory-mapped.
+ *
+ * Used by the mapped storage mode: every published version of the histogram is written straight into the mapping,
+ * so a checkpoint only updates the checksums of the blocks written since the last one, and calls
+ * {@link java.nio.MappedByteBuffer#force()}. A restart maps the file and reads it with bulk transfers.
+ * Reads and writes go through a single buffer position, so callers must not access it concurrently.
+ */
+package name.chen.dave.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+class MappedHistogramFile implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(MappedHistogramFile.class.getName());
+
+    private final HistogramFile format;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final IntBuffer ints;
+    private final int[] blockChecksums;
+    // Blocks written since the last checkpoint
+    private final BitSet dirtyBlocks;
+
+    /**
+     * Map an existing histogram file, with a valid header.
+     *
+     * @throws IllegalArgumentException if the header is not valid. Block checksums that don't match, as after a
+     * crash, are logged and the blocks are kept: the OS writes mapped pages back in no particular order.
+     */
+    MappedHistogramFile(HistogramFile format) throws IOException {
+        this.format = format;
+        if (format.getFile().length() != format.fileSize()) {
+            throw new IllegalArgumentException("Invalid histogram file " + format.getFile() + " : expected "
+                    + format.fileSize() + " bytes but found " + format.getFile().length()
+                    + ". Possible file corruption.");
+        }
+        this.channel = FileChannel.open(format.getFile().toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, format.fileSize());
+        this.dirtyBlocks = new BitSet(format.getNumBlocks());
+        int[] checksums;
+        try {
+            format.checkHeader(mapped);
+            if (format.codecOf(mapped) != HistogramFile.Codec.DENSE) {
+                throw new IllegalArgumentException("Histogram file " + format.getFile() + " is "
+                        + format.codecOf(mapped) + " and can't be mapped");
+            }
+            checksums = format.checkBlocks(mapped, false);
+        } catch (IllegalArgumentException e) {
+            channel.close();
+            throw e;
+        }
+        for (int block = 0; block < format.getNumBlocks(); block++) {
+            if (format.blockChecksum(mapped, format.bodyOffset(), block) != checksums[block]) {
+                LOGGER.warning("Checksum mismatch in block " + block + " of " + format.getFile()
+                        + ", keeping the counters found there");
+                dirtyBlocks.set(block);
+            }
+        }
+        this.blockChecksums = checksums;
+        mapped.position(format.bodyOffset());
+        this.ints = mapped.slice().asIntBuffer();
+        mapped.position(0);
+    }
+
+    void read(int index, int[] dest, int offset, int length) {
+        ints.position(index);
+        ints.get(dest, offset, length);
+    }
+
+    void write(int index, int[] src, int offset, int length) {
+        ints.position(index);
+        ints.put(src, offset, length);
+        dirtyBlocks.set(index / HistogramFile.BLOCK_SIZE, (index + length - 1) / HistogramFile.BLOCK_SIZE + 1);
+    }
+
+    int get(int index) {
+        return ints.get(index);
+    }
+
+    void add(int index, int delta) {
+        ints.put(index, ints.get(index) + delta);
+        dirtyBlocks.set(index / HistogramFile.BLOCK_SIZE);
+    }
+
+    /**
+     * Update the checksums of the blocks written since the last checkpoint, and the header. Must not run
+     * concurrently with writes, so that the checksums match the counters.
+     */
+    void checkpoint(long generation) {
+        for (int block = dirtyBlocks.nextSetBit(0); block >= 0; block = dirtyBlocks.nextSetBit(block + 1)) {
+            blockChecksums[block] = format.blockChecksum(mapped, format.bodyOffset(), block);
+        }
+        dirtyBlocks.clear();
+        format.putTableAndHeader(mapped, blockChecksums, generation);
+    }
+
+    void force() {
+        mapped.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Bounded cache of median results, by date range, for a version of the histogram.
+ *
+ * Each range holds the median of the latest version of the histogram it was computed for. A lookup for a newer
+ * version misses, and the new result replaces the stale one in place, so adding birthdays only invalidates the
+ * ranges asked for again, and stale results never crowd out fresh ones.
+ *
+ * Entries live in primitive arrays, found through an open-addressing hash table of entry numbers, so a lookup
+ * allocates nothing. When the cache is full, an entry is evicted by the CLOCK algorithm: a hand sweeps the
+ * entries, sparing those used since it last passed them, which approximates least-recently-used eviction without
+ * reordering anything on a hit. Entries can also expire after a fixed time.
+ */
+package name.chen.dave.impl;
+
+import java.util.concurrent.TimeUnit;
+
+public class MedianCache {
+
+    /**
+     * Returned by {@link #get} when the range is not cached for the version
+     */
+    public static final long MISS = Long.MIN_VALUE;
+    /**
+     * Cached for a range with no birthdays
+     */
+    public static final long NO_MEDIAN = Long.MAX_VALUE;
+
+    private final int capacity;
+    private final long ttlNanos;
+    // Entries, by entry number
+    private final long[] keys;
+    private final long[] versions;
+    private final long[] medians;
+    private final long[] expiresAt;
+    private final boolean[] referenced;
+    // Entry number + 1 by hash of the key, or 0 if the bucket is empty. At most half full.
+    private final int[] table;
+    private final int mask;
+    private int size;
+    private int hand;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity maximum number of ranges cached
+     * @param ttlSeconds how long a result is kept, or 0 to keep it until evicted
+     */
+    public MedianCache(int capacity, int ttlSeconds) {
+        if (capacity <= 0 || capacity > 1 << 29) {
+            throw new IllegalArgumentException("Invalid median cache size " + capacity);
+        }
+        if (ttlSeconds < 0) {
+            throw new IllegalArgumentException("Invalid median cache TTL " + ttlSeconds);
+        }
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.keys = new long[capacity];
+        this.versions = new long[capacity];
+        this.medians = new long[capacity];
+        this.expiresAt = new long[capacity];
+        this.referenced = new boolean[capacity];
+        this.table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        this.mask = table.length - 1;
+    }
+
+    private static long key(int startEpochDay, int endEpochDay) {
+        return ((long) startEpochDay << 32) | (endEpochDay & 0xFFFFFFFFL);
+    }
+
+    private int bucket(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /**
+     * @return the bucket holding the key, or the empty bucket where it would go
+     */
+    private int find(long key) {
+        int bucket = bucket(key);
+        while (table[bucket] != 0 && keys[table[bucket] - 1] != key) {
+            bucket = (bucket + 1) & mask;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the median cached for the range and version: an epoch day, or {@link #NO_MEDIAN}. {@link #MISS} if
+     * there is none.
+     */
+    public synchronized long get(int startEpochDay, int endEpochDay, long version) {
+        int entry = table[find(key(startEpochDay, endEpochDay))] - 1;
+        if (entry < 0 || versions[entry] != version || (ttlNanos > 0 && System.nanoTime() - expiresAt[entry] > 0)) {
+            misses++;
+            return MISS;
+        }
+        referenced[entry] = true;
+        hits++;
+        return medians[entry];
+    }
+
+    /**
+     * Cache the median of a range for a version of the histogram, unless a later version is cached already.
+     *
+     * @param median an epoch day, or {@link #NO_MEDIAN}
+     */
+    public synchronized void put(int startEpochDay, int endEpochDay, long version, long median) {
+        long key = key(startEpochDay, endEpochDay);
+        int bucket = find(key);
+        int entry = table[bucket] - 1;
+        if (entry >= 0) {
+            if (versions[entry] > version) {
+                return;
+            }
+        } else {
+            entry = size < capacity ? size++ : evict();
+            // Eviction may have moved the bucket for the key
+            bucket = find(key);
+            table[bucket] = entry + 1;
+            keys[entry] = key;
+        }
+        versions[entry] = version;
+        medians[entry] = median;
+        expiresAt[entry] = ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0;
+        referenced[entry] = false;
+    }
+
+    /**
+     * Advance the hand past entries used since it last passed them, and remove the first one that was not.
+     *
+     * @return the number of the entry removed
+     */
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = hand + 1 == capacity ? 0 : hand + 1;
+        }
+        int victim = hand;
+        hand = hand + 1 == capacity ? 0 : hand + 1;
+        removeBucket(find(keys[victim]));
+        evictions++;
+        return victim;
+    }
+
+    /**
+     * Empty a bucket, shifting back the entries after it that would no longer be found past the gap.
+     */
+    private void removeBucket(int bucket) {
+        int gap = bucket;
+        table[gap] = 0;
+        for (int next = (gap + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = bucket(keys[table[next] - 1]);
+            // Leave entries whose home bucket is cyclically in (gap, next]
+            boolean reachable = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+            if (!reachable) {
+                table[gap] = table[next];
+                table[next] = 0;
+                gap = next;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
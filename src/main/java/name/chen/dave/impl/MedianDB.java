@@ -3,57 +3,716 @@
  *
  * Uses the date/month/year histograms {@link name.chen.dave.impl.ArrayDateHistogram} to calculate median values
  *
+ * Medians are cached by date range and version of the histogram in a {@link name.chen.dave.impl.MedianCache}, so
+ * repeated queries for the same ranges are a hash lookup until birthdays are added.
+ *
+ * Queries are timed in the {@link name.chen.dave.impl.MedianDBMetrics} of the histogram.
+ *
+ * Birthdays can also be added to a segment, such as an account or a region, and queried by segment. Each segment
+ * has its own compact {@link name.chen.dave.impl.SegmentHistogram}, created on its first birthday. Birthdays added
+ * to a segment are added to the global histogram too, so global queries don't look at the segments.
+ *
+ * The global histogram can be exported, for other nodes to merge with theirs: see
+ * {@link name.chen.dave.impl.HistogramExport} and {@link name.chen.dave.impl.MergedHistogram}.
+ *
+ * A leader ships the changes of its global histogram to followers from its {@link name.chen.dave.impl.ChangeLog}. A
+ * follower is a read-only replica: it takes no adds, only the changes of its leader, or a whole export of it when it
+ * is too far behind.
+ *
+ * Ranges queried all the time, such as cohorts on a dashboard, can be registered as standing ranges. Each keeps its
+ * median in a {@link name.chen.dave.impl.StandingMedian}, moved along with the birthdays added rather than found
+ * again, and queries for exactly that range read it ahead of the cache.
+ *
+ * When enabled, birthdays are also counted by the time they were added, in
+ * {@link name.chen.dave.impl.IngestionWindows}, for medians over the birthdays added in the last minutes, hours or
+ * days.
  */
 
 package name.chen.dave.impl;
 
 import name.chen.dave.api.Reporter;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import static java.time.temporal.ChronoUnit.DAYS;
 
-public class MedianDB {
+public class MedianDB implements Closeable {
+
+    // Returned by findMedianEpochDay for a range with no birthdays
+    public static final long NO_MEDIAN = MedianCache.NO_MEDIAN;
+    // Ranges of a batch of medians found by one task
+    static final int RANGES_PER_TASK = 4096;
+    // Most ranges that can be registered with registerStandingRange
+    static final int MAX_STANDING_RANGES = 64;
+    // Most birthdays a single pre-aggregated (epoch day, count) pair can add
+    public static final int MAX_COUNT = 1_000_000;
+    // Most birthdays in all, so that no day, month or year count, nor any total, overflows an int. One short of
+    // the largest int, as the rank one past the last birthday of a range is computed too.
+    public static final int MAX_BIRTHDAYS = Integer.MAX_VALUE - 1;
 
     private ArrayDateHistogram histogramEngine;
+    // Null if disabled
+    private final MedianCache medianCache;
+    private final HistogramLayout layout;
+    private final int maxSegments;
+    private final ConcurrentHashMap<String, SegmentHistogram> segments = new ConcurrentHashMap<>();
+    // Segments created, and places reserved for segments being created, so that there are never more than the most
+    private final AtomicInteger segmentsReserved = new AtomicInteger();
+    // Tells exports of this instance from those of earlier runs, whose versions started over from the same numbers
+    private final long instanceId = ThreadLocalRandom.current().nextLong();
+    private final boolean replica;
+    // Null if disabled
+    private final IngestionWindows ingestionWindows;
 
     public MedianDB() throws IOException {
         this(true, true);
     }
 
     public MedianDB(boolean recoverFromPersistFile, boolean persistToDisk) throws IOException {
-        histogramEngine = new ArrayDateHistogram(recoverFromPersistFile, persistToDisk);
+        this(MedianDBConfig.fromSystemProperties().setRecoverFromPersistFile(recoverFromPersistFile)
+                .setPersistToDisk(persistToDisk));
+    }
+
+    public MedianDB(MedianDBConfig config) throws IOException {
+        histogramEngine = new ArrayDateHistogram(config);
+        medianCache = config.getMedianCacheSize() > 0
+                ? new MedianCache(config.getMedianCacheSize(), config.getMedianCacheTtlSeconds()) : null;
+        layout = new HistogramLayout(config.getFirstYear(), config.getLastYear());
+        maxSegments = config.getMaxSegments();
+        replica = config.isReplica();
+        ingestionWindows = config.getIngestionWindowDays() > 0
+                ? new IngestionWindows(layout, config.getIngestionWindowDays()) : null;
+        for (LocalDate[] range : config.getStandingRanges()) {
+            registerStandingRange(range[0], range[1]);
+        }
+    }
+
+    private void checkWritable() {
+        if (replica) {
+            throw new IllegalStateException("Read-only replica: add birthdays at the leader");
+        }
     }
 
     public void addBirthday(LocalDate date) {
+        checkWritable();
         histogramEngine.addDate(date);
+        if (ingestionWindows != null) {
+            ingestionWindows.add(SegmentHistogram.getDaySlot(layout, date), 1, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Same as {@link #addBirthday(LocalDate)}, for a birthday given as its epoch day (days since 1970-01-01). With
+     * ingestion windows disabled, allocates nothing once warmed up.
+     *
+     * @throws IllegalArgumentException if the date is not supported
+     */
+    public void addBirthday(int epochDay) {
+        checkWritable();
+        histogramEngine.addEpochDay(epochDay);
+        if (ingestionWindows != null) {
+            ingestionWindows.add(layout.daySlot(epochDay), 1, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Add a birthday to a segment, and to the global histogram.
+     *
+     * @throws IllegalArgumentException if the date is not supported, or the segment is new and there are already
+     * as many segments as configured
+     */
+    public void addBirthday(String segment, LocalDate date) {
+        checkWritable();
+        int daySlot = SegmentHistogram.getDaySlot(layout, date);
+        SegmentHistogram histogram = segments.get(segment);
+        if (histogram == null) {
+            boolean reserved = reserveSegment(segment);
+            try {
+                histogramEngine.addDate(date);
+            } catch (RuntimeException e) {
+                // Refused: leave no empty segment behind
+                if (reserved) {
+                    segmentsReserved.decrementAndGet();
+                }
+                throw e;
+            }
+            SegmentHistogram created = new SegmentHistogram(layout);
+            histogram = segments.putIfAbsent(segment, created);
+            if (histogram == null) {
+                histogram = created;
+            } else if (reserved) {
+                // Created by another add meanwhile
+                segmentsReserved.decrementAndGet();
+            }
+        } else {
+            histogramEngine.addDate(date);
+        }
+        if (ingestionWindows != null) {
+            ingestionWindows.add(daySlot, 1, System.currentTimeMillis());
+        }
+        synchronized (histogram) {
+            histogram.add(daySlot, 1);
+        }
+    }
+
+    /**
+     * Reserve a place for a new segment, before the add that creates it
+     *
+     * @return false if there is no need to, as the segment was created meanwhile
+     * @throws IllegalArgumentException if there are already as many segments as configured
+     */
+    private boolean reserveSegment(String segment) {
+        while (true) {
+            int reserved = segmentsReserved.get();
+            if (reserved >= maxSegments) {
+                // Segments are never removed, so one created is there for good
+                if (segments.containsKey(segment)) {
+                    return false;
+                }
+                throw new IllegalArgumentException("Segment " + segment + " not added: there are already "
+                        + maxSegments + " segments");
+            }
+            if (segmentsReserved.compareAndSet(reserved, reserved + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Add a batch of birthdays as (epoch day, count) pairs. Pairs with a date not supported, or a count that is not
+     * from 1 to {@link #MAX_COUNT}, are rejected. So are the pairs from the first one that would take the birthdays
+     * past {@link #MAX_BIRTHDAYS}.
+     *
+     * @return number of pairs rejected
+     */
+    public int addBirthdays(int[] epochDays, int[] counts, int length) {
+        checkWritable();
+        int rejected = histogramEngine.addEpochDays(epochDays, counts, length);
+        if (ingestionWindows != null && rejected < length) {
+            int[] daySlots = new int[length - rejected];
+            int[] acceptedCounts = new int[length - rejected];
+            int accepted = 0;
+            for (int i = 0; i < length && accepted < length - rejected; i++) {
+                int daySlot = layout.daySlot(epochDays[i]);
+                if (daySlot >= 0 && counts[i] > 0 && counts[i] <= MAX_COUNT) {
+                    daySlots[accepted] = daySlot;
+                    acceptedCounts[accepted++] = counts[i];
+                }
+            }
+            ingestionWindows.addAll(daySlots, acceptedCounts, accepted, System.currentTimeMillis());
+        }
+        return rejected;
     }
 
     public Optional<LocalDate> findMedian(LocalDate startDate, LocalDate endDate) {
-        Reporter reporter = getReporter(histogramEngine);
-        int birthdaysFound = reporter.traverseDates(startDate, endDate);
-        LocalDate median;
+        long startEpochDay = startDate.toEpochDay();
+        long endEpochDay = endDate.toEpochDay();
+        // Dates too far out to be an int epoch day are never supported
+        if ((int) startEpochDay != startEpochDay || (int) endEpochDay != endEpochDay) {
+            SegmentHistogram.getDaySlot(layout, startDate);
+            SegmentHistogram.getDaySlot(layout, endDate);
+        }
+        long median = findMedianEpochDay((int) startEpochDay, (int) endEpochDay);
+        return median == NO_MEDIAN ? Optional.empty() : Optional.of(LocalDate.ofEpochDay(median));
+    }
 
+    /**
+     * Same as {@link #findMedian(LocalDate, LocalDate)}, for dates given as epoch days. Allocates nothing while no
+     * birthdays are added, as the snapshot stays the same.
+     *
+     * @return the epoch day of the median, or {@link #NO_MEDIAN} if there are no birthdays in the range
+     * @throws IllegalArgumentException if a date is not supported
+     */
+    public long findMedianEpochDay(int startEpochDay, int endEpochDay) {
+        long start = histogramEngine.getMetrics().queries.start();
+        SnapshotReport snapshot = histogramEngine.getSnapshot();
+        StandingMedian standing = findStandingMedian(startEpochDay, endEpochDay);
+        long median;
+        if (standing != null) {
+            // Moved along by the snapshot just published, if any, or by one published since
+            median = standing.getMedianEpochDay();
+        } else if (medianCache == null) {
+            median = snapshot.findMedianEpochDay(startEpochDay, endEpochDay);
+        } else {
+            median = medianCache.get(startEpochDay, endEpochDay, snapshot.getVersion());
+            if (median == MedianCache.MISS) {
+                median = snapshot.findMedianEpochDay(startEpochDay, endEpochDay);
+                medianCache.put(startEpochDay, endEpochDay, snapshot.getVersion(), median);
+            }
+        }
+        histogramEngine.getMetrics().queryCount.increment();
+        histogramEngine.getMetrics().queries.recordSince(start);
+        return median;
+    }
+
+    private StandingMedian findStandingMedian(int startEpochDay, int endEpochDay) {
+        for (StandingMedian standing : histogramEngine.getStandingMedians()) {
+            if (standing.isFor(startEpochDay, endEpochDay)) {
+                return standing;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep the median of a range up to date as birthdays are added, for queries of exactly that range to read
+     * instead of finding it again. Meant for a few ranges queried all the time: every query looks through them.
+     *
+     * @return false if the range was already registered
+     * @throws IllegalArgumentException if a date is not supported, the range ends before it starts, or there are
+     * already {@value #MAX_STANDING_RANGES} standing ranges
+     */
+    public synchronized boolean registerStandingRange(LocalDate startDate, LocalDate endDate) {
+        int startEpochDay = layout.epochDayOf(SegmentHistogram.getDaySlot(layout, startDate));
+        int endEpochDay = layout.epochDayOf(SegmentHistogram.getDaySlot(layout, endDate));
+        if (findStandingMedian(startEpochDay, endEpochDay) != null) {
+            return false;
+        }
+        if (histogramEngine.getStandingMedians().length >= MAX_STANDING_RANGES) {
+            throw new IllegalArgumentException("Range " + startDate + " to " + endDate + " not registered: there "
+                    + "are already " + MAX_STANDING_RANGES + " standing ranges");
+        }
+        histogramEngine.addStandingMedian(new StandingMedian(layout, startEpochDay, endEpochDay));
+        return true;
+    }
+
+    /**
+     * @return false if the range was not registered
+     */
+    public synchronized boolean unregisterStandingRange(LocalDate startDate, LocalDate endDate) {
+        for (StandingMedian standing : histogramEngine.getStandingMedians()) {
+            if (standing.getStartDate().equals(startDate) && standing.getEndDate().equals(endDate)) {
+                histogramEngine.removeStandingMedian(standing);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the standing ranges, as start and end dates, in the order registered
+     */
+    public List<LocalDate[]> getStandingRanges() {
+        List<LocalDate[]> ranges = new ArrayList<>();
+        for (StandingMedian standing : histogramEngine.getStandingMedians()) {
+            ranges.add(new LocalDate[] {standing.getStartDate(), standing.getEndDate()});
+        }
+        return ranges;
+    }
+
+    /**
+     * Find the median of each of many ranges, all from one snapshot. The boundaries of the ranges are sorted so
+     * that ranges sharing a boundary, such as adjacent cohorts, count it once, and the medians are found in one
+     * ordered sweep of the day index. Batches of more than {@value #RANGES_PER_TASK} ranges are split across cores.
+     * Not cached.
+     *
+     * @return the median of each range, in the order given, or empty if there are no birthdays in it
+     * @throws IllegalArgumentException if there are not as many start dates as end dates, or a date is not supported
+     */
+    public List<Optional<LocalDate>> findMedians(List<LocalDate> startDates, List<LocalDate> endDates) {
+        if (startDates.size() != endDates.size()) {
+            throw new IllegalArgumentException(startDates.size() + " start dates for " + endDates.size()
+                    + " end dates");
+        }
+        long start = histogramEngine.getMetrics().queries.start();
+        SnapshotReport snapshot = histogramEngine.getSnapshot();
+        LocalDate[] starts = startDates.toArray(new LocalDate[0]);
+        LocalDate[] ends = endDates.toArray(new LocalDate[0]);
+        LocalDate[] medians = new LocalDate[starts.length];
+        int numTasks = (starts.length + RANGES_PER_TASK - 1) / RANGES_PER_TASK;
+        if (numTasks <= 1) {
+            snapshot.findMedians(starts, ends, 0, starts.length, medians);
+        } else {
+            IntStream.range(0, numTasks).parallel().forEach(task -> snapshot.findMedians(starts, ends,
+                    task * RANGES_PER_TASK, Math.min(starts.length, (task + 1) * RANGES_PER_TASK), medians));
+        }
+        List<Optional<LocalDate>> results = new ArrayList<>(medians.length);
+        for (LocalDate median : medians) {
+            results.add(Optional.ofNullable(median));
+        }
+        histogramEngine.getMetrics().queryCount.add(medians.length);
+        histogramEngine.getMetrics().queries.recordSince(start);
+        return results;
+    }
+
+    /**
+     * Same as {@link #findMedian(LocalDate, LocalDate)}, for the birthdays of a segment only. Not cached.
+     */
+    public Optional<LocalDate> findMedian(String segment, LocalDate startDate, LocalDate endDate) {
+        Optional<List<LocalDate>> median = findQuantiles(segment, startDate, endDate, 0.5);
+        return median.isPresent() ? Optional.of(median.get().get(0)) : Optional.empty();
+    }
+
+    /**
+     * Same as {@link #findQuantiles(LocalDate, LocalDate, double...)}, for the birthdays of a segment only. A
+     * segment with no birthdays yet has no quantiles.
+     */
+    public Optional<List<LocalDate>> findQuantiles(String segment, LocalDate startDate, LocalDate endDate,
+                                                   double... quantiles) {
+        checkQuantiles(quantiles);
+        long start = histogramEngine.getMetrics().queries.start();
+        SegmentHistogram histogram = segments.get(segment);
+        LocalDate[] dates = null;
+        if (histogram != null) {
+            synchronized (histogram) {
+                dates = findQuantiles(histogram, startDate, endDate, quantiles);
+            }
+        } else {
+            SegmentHistogram.getDaySlot(layout, startDate);
+            SegmentHistogram.getDaySlot(layout, endDate);
+        }
+        histogramEngine.getMetrics().queryCount.increment();
+        histogramEngine.getMetrics().queries.recordSince(start);
+        return dates == null ? Optional.empty() : Optional.of(Arrays.asList(dates));
+    }
+
+    /**
+     * Same as {@link #findMedian(LocalDate, LocalDate)}, for the birthdays added in a recent window of time only,
+     * see {@link #findWindowQuantiles(Duration, LocalDate, LocalDate, double...)}. Not cached.
+     */
+    public Optional<LocalDate> findWindowMedian(Duration window, LocalDate startDate, LocalDate endDate) {
+        Optional<List<LocalDate>> median = findWindowQuantiles(window, startDate, endDate, 0.5);
+        return median.isPresent() ? Optional.of(median.get().get(0)) : Optional.empty();
+    }
+
+    /**
+     * Same as {@link #findQuantiles(LocalDate, LocalDate, double...)}, for the birthdays added in the window of time
+     * before now only, e.g. the last hour. The window is exact to the minute up to an hour, and to the hour up to a
+     * day; longer ones start at the start of a day (UTC). See {@link name.chen.dave.impl.IngestionWindows}.
+     *
+     * @throws IllegalStateException if ingestion windows are not enabled
+     * @throws IllegalArgumentException if the window is longer than the days kept, a quantile is not between 0 and
+     * 1, or a date is not supported
+     */
+    public Optional<List<LocalDate>> findWindowQuantiles(Duration window, LocalDate startDate, LocalDate endDate,
+                                                         double... quantiles) {
+        if (ingestionWindows == null) {
+            throw new IllegalStateException("Ingestion windows are not enabled: set mediandb.windows.days");
+        }
+        checkQuantiles(quantiles);
+        long start = histogramEngine.getMetrics().queries.start();
+        LocalDate[] dates = findQuantiles(ingestionWindows.window(window.toMillis(), System.currentTimeMillis()),
+                startDate, endDate, quantiles);
+        histogramEngine.getMetrics().queryCount.increment();
+        histogramEngine.getMetrics().queries.recordSince(start);
+        return dates == null ? Optional.empty() : Optional.of(Arrays.asList(dates));
+    }
+
+    /**
+     * Find quantiles of the birthdays from startDate to endDate (inclusive), e.g. 0.1 for the 10th percentile.
+     *
+     * Of n birthdays in order, quantile q is at position 1 + (n - 1) * q. Between two birthdays, it is the date
+     * that fraction of the way from the earlier one to the later one, rounded down. This makes the 0.5 quantile the
+     * median, 0 the earliest birthday and 1 the latest.
+     *
+     * @return the date of each quantile, in the order asked for, or empty if there are no birthdays in the range
+     * @throws IllegalArgumentException if a quantile is not between 0 and 1, or a date is not supported
+     */
+    public Optional<List<LocalDate>> findQuantiles(LocalDate startDate, LocalDate endDate, double... quantiles) {
+        checkQuantiles(quantiles);
+        long start = histogramEngine.getMetrics().queries.start();
+        LocalDate[] dates = findQuantiles(histogramEngine.getSnapshot(), startDate, endDate, quantiles);
+        histogramEngine.getMetrics().queryCount.increment();
+        histogramEngine.getMetrics().queries.recordSince(start);
+        return dates == null ? Optional.empty() : Optional.of(Arrays.asList(dates));
+    }
+
+    /**
+     * Count the birthdays at each age as of a date, in buckets of bucketWidth years of age, from one snapshot.
+     *
+     * @throws IllegalArgumentException if the bucket width is not positive
+     */
+    public AgeDistribution findAgeDistribution(LocalDate asOf, int bucketWidth) {
+        long start = histogramEngine.getMetrics().queries.start();
+        AgeDistribution distribution = AgeDistribution.of(histogramEngine.getSnapshot(),
+                LocalDate.ofEpochDay(layout.getFirstEpochDay()), LocalDate.ofEpochDay(layout.getLastEpochDay()),
+                asOf, bucketWidth);
+        histogramEngine.getMetrics().queryCount.increment();
+        histogramEngine.getMetrics().queries.recordSince(start);
+        return distribution;
+    }
+
+    /**
+     * Same as {@link #findAgeDistribution(LocalDate, int)}, for the birthdays of a segment only
+     */
+    public AgeDistribution findAgeDistribution(String segment, LocalDate asOf, int bucketWidth) {
+        long start = histogramEngine.getMetrics().queries.start();
+        SegmentHistogram histogram = segments.get(segment);
+        if (histogram == null) {
+            histogram = new SegmentHistogram(layout);
+        }
+        AgeDistribution distribution;
+        synchronized (histogram) {
+            distribution = AgeDistribution.of(histogram, LocalDate.ofEpochDay(layout.getFirstEpochDay()),
+                    LocalDate.ofEpochDay(layout.getLastEpochDay()), asOf, bucketWidth);
+        }
+        histogramEngine.getMetrics().queryCount.increment();
+        histogramEngine.getMetrics().queries.recordSince(start);
+        return distribution;
+    }
+
+    static void checkQuantiles(double[] quantiles) {
+        for (double quantile : quantiles) {
+            if (!(quantile >= 0 && quantile <= 1)) {
+                throw new IllegalArgumentException("Quantile " + quantile + " is not between 0 and 1");
+            }
+        }
+    }
+
+    /**
+     * Count the birthdays in the range once, then find the two birthdays around each quantile in one pass.
+     *
+     * @return the date of each quantile, or null if there are no birthdays in the range
+     */
+    static LocalDate[] findQuantiles(Reporter reporter, LocalDate startDate, LocalDate endDate,
+                                             double[] quantiles) {
+        int birthdaysFound = reporter.traverseDates(startDate, endDate);
         if (birthdaysFound == 0) {
-            return Optional.empty();
-        }
-        if (birthdaysFound % 2 == 0) {
-            int halfBirthdays = birthdaysFound/2;
-            Optional<LocalDate> evenCountMedianDate1 = reporter.traverseUntil(startDate, halfBirthdays);
-            Optional<LocalDate> evenCountMedianDate2 = reporter.traverseUntil(evenCountMedianDate1.get(), 2);
-            long inBetween = DAYS.between(evenCountMedianDate1.get(), evenCountMedianDate2.get());
-            return Optional.of(evenCountMedianDate1.get().plusDays(inBetween/2));
+            return null;
+        }
+        // The birthday at or before each quantile, and the one after it
+        int[] ranks = new int[2 * quantiles.length];
+        double[] fractions = new double[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+            double position = (birthdaysFound - 1) * quantiles[i];
+            int lower = (int) Math.floor(position);
+            fractions[i] = position - lower;
+            ranks[2 * i] = lower + 1;
+            ranks[2 * i + 1] = Math.min(lower + 2, birthdaysFound);
+        }
+        LocalDate[] birthdays = new LocalDate[ranks.length];
+        reporter.traverseUntil(startDate, ranks, birthdays);
+        LocalDate[] dates = new LocalDate[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+            LocalDate lower = birthdays[2 * i];
+            long inBetween = DAYS.between(lower, birthdays[2 * i + 1]);
+            dates[i] = lower.plusDays((long) Math.floor(fractions[i] * inBetween));
+        }
+        return dates;
+    }
+
+    Reporter getReporter() {
+        return getReporter(histogramEngine);
+    }
+
+    /**
+     * @return the cache of medians, or null if disabled
+     */
+    public MedianCache getMedianCache() {
+        return medianCache;
+    }
+
+    /**
+     * @return the tag of the current version of the global histogram, as {@link #export()} would give it
+     */
+    public String getExportTag() {
+        return HistogramExport.tag(instanceId, histogramEngine.getSnapshot().getVersion());
+    }
+
+    /**
+     * @return the day counts of the current version of the global histogram
+     */
+    public HistogramExport export() {
+        SnapshotReport snapshot = histogramEngine.getSnapshot();
+        int[] dayCounts = new int[layout.getNumDays()];
+        snapshot.getDayIndex().copyTo(dayCounts, 0);
+        return new HistogramExport(instanceId, snapshot.getVersion(), layout.getFirstEpochDay(),
+                layout.getLastEpochDay(), dayCounts);
+    }
+
+    /**
+     * Add up exports, from this node or others, into the range of years of this node.
+     *
+     * @throws IllegalArgumentException if they hold more than {@link #MAX_BIRTHDAYS} in that range
+     */
+    public MergedHistogram merge(List<HistogramExport> exports) {
+        return new MergedHistogram(layout, exports);
+    }
+
+    /**
+     * @return the changes of the global histogram after a version of this instance, or null if that version is not
+     * in the change log anymore, is ahead of it, or is of another instance: the follower must resync from an export
+     * @throws IllegalStateException if this DB keeps no change log
+     */
+    public ChangeLog.Batch readChanges(long instanceId, long afterVersion, int maxRecords) {
+        ChangeLog changeLog = histogramEngine.getChangeLog();
+        if (changeLog == null) {
+            throw new IllegalStateException("No change log is kept: set mediandb.replication.logRecords to lead "
+                    + "followers");
+        }
+        if (instanceId != this.instanceId) {
+            return null;
+        }
+        // Publish adds not in a snapshot yet, so they are in the log
+        histogramEngine.getSnapshot();
+        return changeLog.read(instanceId, afterVersion, maxRecords);
+    }
+
+    public boolean isReplica() {
+        return replica;
+    }
+
+    /**
+     * @return how far this replica has applied the changes of its leader, or null if it must resync from an export
+     */
+    public ReplicaPosition getReplicaPosition() {
+        return histogramEngine.getReplicaPosition();
+    }
+
+    /**
+     * Apply a batch of the leader's changes to this replica. Called by one thread at a time.
+     *
+     * @throws IllegalArgumentException if the batch does not start where this replica is
+     */
+    public void applyChanges(ChangeLog.Batch batch) {
+        ReplicaPosition position = histogramEngine.getReplicaPosition();
+        if (position == null || position.getInstanceId() != batch.getInstanceId()
+                || position.getVersion() != batch.getAfterVersion()) {
+            throw new IllegalArgumentException("Changes after " + new ReplicaPosition(batch.getInstanceId(),
+                    batch.getAfterVersion()) + " don't follow replica position " + position);
+        }
+        histogramEngine.applyReplicated(batch.getEpochDays(), batch.getDeltas(), batch.size(),
+                new ReplicaPosition(batch.getInstanceId(), batch.getToVersion()));
+    }
+
+    /**
+     * Make this replica's histogram equal to an export of its leader's, by applying the differences, and move it to
+     * the export's position. Called by one thread at a time.
+     *
+     * @return number of birthdays in the export outside of the range of years of this replica, left out
+     */
+    public long resync(HistogramExport export) {
+        int[] current = new int[layout.getNumDays()];
+        histogramEngine.getSnapshot().getDayIndex().copyTo(current, 0);
+        int[] target = new int[layout.getNumDays()];
+        long leftOut = 0;
+        for (int day = 0; day < export.getNumDays(); day++) {
+            int count = export.getDayCount(day);
+            int slot = layout.daySlot(export.getFirstEpochDay() + day);
+            if (slot >= 0) {
+                target[slot] = count;
+            } else {
+                leftOut += count;
+            }
+        }
+        int[] epochDays = new int[layout.getNumDays()];
+        int[] deltas = new int[layout.getNumDays()];
+        int length = 0;
+        for (int slot = 0; slot < target.length; slot++) {
+            if (target[slot] != current[slot]) {
+                epochDays[length] = layout.epochDayOf(slot);
+                deltas[length++] = target[slot] - current[slot];
+            }
+        }
+        histogramEngine.applyReplicated(epochDays, deltas, length,
+                new ReplicaPosition(export.getInstanceId(), export.getVersion()));
+        return leftOut;
+    }
+
+    /**
+     * @return the role of this DB in replication and how far along it is, by name, for JSON output
+     */
+    public Map<String, Object> getReplicationReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        ChangeLog changeLog = histogramEngine.getChangeLog();
+        if (replica) {
+            ReplicaPosition position = histogramEngine.getReplicaPosition();
+            report.put("role", "replica");
+            report.put("leaderInstance", position == null ? null : Long.toHexString(position.getInstanceId()));
+            report.put("appliedVersion", position == null ? null : position.getVersion());
+        } else if (changeLog != null) {
+            report.put("role", "leader");
+            report.put("instance", Long.toHexString(instanceId));
+            report.put("version", histogramEngine.getSnapshot().getVersion());
+            report.put("oldestVersion", changeLog.getOldestVersion());
         } else {
-            int middleBirthday = birthdaysFound/2 + 1;
-            Optional<LocalDate> medianDate = reporter.traverseUntil(startDate, middleBirthday);
-            return medianDate;
+            report.put("role", "none");
+        }
+        return report;
+    }
+
+    /**
+     * @return the number of birthdays in a segment, 0 if it has none
+     */
+    public int getSegmentTotal(String segment) {
+        SegmentHistogram histogram = segments.get(segment);
+        if (histogram == null) {
+            return 0;
+        }
+        synchronized (histogram) {
+            return histogram.total();
         }
     }
 
+    public int getNumSegments() {
+        return segments.size();
+    }
+
+    /**
+     * @return an estimate of the heap taken by the histogram of a segment, 0 if it has none
+     */
+    long getSegmentSizeInBytes(String segment) {
+        SegmentHistogram histogram = segments.get(segment);
+        if (histogram == null) {
+            return 0;
+        }
+        synchronized (histogram) {
+            return histogram.sizeInBytes();
+        }
+    }
+
+    public MedianDBMetrics getMetrics() {
+        return histogramEngine.getMetrics();
+    }
+
+    /**
+     * @return the metrics of the histogram and the median cache by name, as nested maps of numbers, for JSON output
+     */
+    public Map<String, Object> getMetricsReport() {
+        Map<String, Object> report = histogramEngine.getMetrics().toMap();
+        if (medianCache != null) {
+            Map<String, Object> cache = new LinkedHashMap<>();
+            cache.put("size", medianCache.size());
+            cache.put("capacity", medianCache.getCapacity());
+            cache.put("hits", medianCache.getHits());
+            cache.put("misses", medianCache.getMisses());
+            cache.put("evictions", medianCache.getEvictions());
+            report.put("medianCache", cache);
+        }
+        long segmentBytes = 0;
+        for (SegmentHistogram histogram : segments.values()) {
+            synchronized (histogram) {
+                segmentBytes += histogram.sizeInBytes();
+            }
+        }
+        report.put("standingRanges", histogramEngine.getStandingMedians().length);
+        report.put("segments", segments.size());
+        report.put("segmentBytes", segmentBytes);
+        if (ingestionWindows != null) {
+            report.put("ingestionWindowBytes", ingestionWindows.sizeInBytes());
+        }
+        return report;
+    }
+
+    @Override
+    public void close() throws IOException {
+        histogramEngine.close();
+    }
+
     private Reporter getReporter(ArrayDateHistogram histogram) {
-        int[] histogramArraySnapshot = histogram.getHistogramArrayCopy();
-        return new SnapshotReport(histogram, histogramArraySnapshot);
+        return histogram.getSnapshot();
     }
 }
@@ -0,0 +1,321 @@
+/**
+ * Configuration of {@link name.chen.dave.impl.MedianDB} and its histogram.
+ *
+ * Defaults can be overridden by properties prefixed with "mediandb.", e.g. -Dmediandb.wal.fsync=interval
+ */
+package name.chen.dave.impl;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+public class MedianDBConfig {
+
+    /**
+     * Where the merged histogram lives: on the heap, checkpointed by writing a copy of it (HEAP), or also in a
+     * memory-mapped histogram file, checkpointed by forcing the mapping to disk (MAPPED)
+     */
+    public enum StorageMode { HEAP, MAPPED }
+
+    private boolean recoverFromPersistFile = true;
+    private boolean persistToDisk = true;
+    private String dataDirectory = System.getProperty("java.io.tmpdir");
+    private int checkpointIntervalSeconds = 10;
+    private boolean writeAheadLog = true;
+    private WriteAheadLog.FsyncPolicy fsyncPolicy = WriteAheadLog.FsyncPolicy.BATCH;
+    private int fsyncIntervalMillis = 10;
+    private StorageMode storageMode = StorageMode.HEAP;
+    private HistogramFile.Codec codec = HistogramFile.Codec.DENSE;
+    private int firstYear = 1850;
+    private int lastYear = 2049;
+    private int medianCacheSize = 1024;
+    private int medianCacheTtlSeconds = 0;
+    private int metricsSampleEvery = 16;
+    private int maxSegments = 100_000;
+    private int replicationLogRecords = 0;
+    private boolean replica = false;
+    private int ingestionWindowDays = 0;
+    private final List<LocalDate[]> standingRanges = new ArrayList<>();
+
+    public static MedianDBConfig fromSystemProperties() {
+        return fromProperties(System::getProperty);
+    }
+
+    /**
+     * @param properties looks up a property by name, returning null when it is not set
+     */
+    public static MedianDBConfig fromProperties(Function<String, String> properties) {
+        MedianDBConfig config = new MedianDBConfig();
+        String value;
+        if ((value = properties.apply("mediandb.dataDirectory")) != null) {
+            config.setDataDirectory(value);
+        }
+        if ((value = properties.apply("mediandb.checkpointIntervalSeconds")) != null) {
+            config.setCheckpointIntervalSeconds(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.wal.enabled")) != null) {
+            config.setWriteAheadLog(Boolean.parseBoolean(value));
+        }
+        if ((value = properties.apply("mediandb.wal.fsync")) != null) {
+            config.setFsyncPolicy(WriteAheadLog.FsyncPolicy.valueOf(value.toUpperCase()));
+        }
+        if ((value = properties.apply("mediandb.wal.fsyncIntervalMillis")) != null) {
+            config.setFsyncIntervalMillis(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.storage")) != null) {
+            config.setStorageMode(StorageMode.valueOf(value.toUpperCase()));
+        }
+        if ((value = properties.apply("mediandb.codec")) != null) {
+            config.setCodec(HistogramFile.Codec.valueOf(value.toUpperCase()));
+        }
+        if ((value = properties.apply("mediandb.firstYear")) != null) {
+            config.setFirstYear(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.lastYear")) != null) {
+            config.setLastYear(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.cache.size")) != null) {
+            config.setMedianCacheSize(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.cache.ttlSeconds")) != null) {
+            config.setMedianCacheTtlSeconds(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.segments.max")) != null) {
+            config.setMaxSegments(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.replication.logRecords")) != null) {
+            config.setReplicationLogRecords(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.replication.leader")) != null && !value.trim().isEmpty()) {
+            config.setReplica(true);
+        }
+        if ((value = properties.apply("mediandb.windows.days")) != null) {
+            config.setIngestionWindowDays(Integer.parseInt(value));
+        }
+        if ((value = properties.apply("mediandb.standingRanges")) != null) {
+            for (String range : value.split(",")) {
+                if (!range.trim().isEmpty()) {
+                    String[] dates = range.trim().split("/");
+                    if (dates.length != 2) {
+                        throw new IllegalArgumentException("Standing range " + range + " is not start/end");
+                    }
+                    config.addStandingRange(LocalDate.parse(dates[0]), LocalDate.parse(dates[1]));
+                }
+            }
+        }
+        if ((value = properties.apply("mediandb.metrics.sampleEvery")) != null) {
+            config.setMetricsSampleEvery(Integer.parseInt(value));
+        }
+        return config;
+    }
+
+    public boolean isRecoverFromPersistFile() {
+        return recoverFromPersistFile;
+    }
+
+    public MedianDBConfig setRecoverFromPersistFile(boolean recoverFromPersistFile) {
+        this.recoverFromPersistFile = recoverFromPersistFile;
+        return this;
+    }
+
+    public boolean isPersistToDisk() {
+        return persistToDisk;
+    }
+
+    public MedianDBConfig setPersistToDisk(boolean persistToDisk) {
+        this.persistToDisk = persistToDisk;
+        return this;
+    }
+
+    public String getDataDirectory() {
+        return dataDirectory;
+    }
+
+    public MedianDBConfig setDataDirectory(String dataDirectory) {
+        this.dataDirectory = dataDirectory;
+        return this;
+    }
+
+    public int getCheckpointIntervalSeconds() {
+        return checkpointIntervalSeconds;
+    }
+
+    public MedianDBConfig setCheckpointIntervalSeconds(int checkpointIntervalSeconds) {
+        this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+        return this;
+    }
+
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public MedianDBConfig setWriteAheadLog(boolean writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        return this;
+    }
+
+    public WriteAheadLog.FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public MedianDBConfig setFsyncPolicy(WriteAheadLog.FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+        return this;
+    }
+
+    public int getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    public MedianDBConfig setFsyncIntervalMillis(int fsyncIntervalMillis) {
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        return this;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public MedianDBConfig setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+
+    public HistogramFile.Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @param codec how checkpoint files are written. They are read with whichever codec they were written with.
+     */
+    public MedianDBConfig setCodec(HistogramFile.Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public int getFirstYear() {
+        return firstYear;
+    }
+
+    /**
+     * @param firstYear first year of birthdays the histogram holds. Earlier birthdays are rejected.
+     */
+    public MedianDBConfig setFirstYear(int firstYear) {
+        this.firstYear = firstYear;
+        return this;
+    }
+
+    public int getLastYear() {
+        return lastYear;
+    }
+
+    /**
+     * @param lastYear last year of birthdays the histogram holds. Later birthdays are rejected.
+     */
+    public MedianDBConfig setLastYear(int lastYear) {
+        this.lastYear = lastYear;
+        return this;
+    }
+
+    public int getMedianCacheSize() {
+        return medianCacheSize;
+    }
+
+    /**
+     * @param medianCacheSize maximum number of date ranges whose median is cached, or 0 for no cache
+     */
+    public MedianDBConfig setMedianCacheSize(int medianCacheSize) {
+        this.medianCacheSize = medianCacheSize;
+        return this;
+    }
+
+    public int getMedianCacheTtlSeconds() {
+        return medianCacheTtlSeconds;
+    }
+
+    /**
+     * @param medianCacheTtlSeconds how long a cached median is kept, or 0 to keep it until evicted
+     */
+    public MedianDBConfig setMedianCacheTtlSeconds(int medianCacheTtlSeconds) {
+        this.medianCacheTtlSeconds = medianCacheTtlSeconds;
+        return this;
+    }
+
+    public int getMetricsSampleEvery() {
+        return metricsSampleEvery;
+    }
+
+    /**
+     * @param metricsSampleEvery time 1 in metricsSampleEvery adds and queries, a power of two, or 0 to time nothing.
+     *                           Snapshots and checkpoints are all timed unless 0, and counters are always kept.
+     */
+    public MedianDBConfig setMetricsSampleEvery(int metricsSampleEvery) {
+        this.metricsSampleEvery = metricsSampleEvery;
+        return this;
+    }
+
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * @param maxSegments maximum number of segments birthdays can be added to. Adds to new segments past it fail.
+     */
+    public MedianDBConfig setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+        return this;
+    }
+
+    public int getReplicationLogRecords() {
+        return replicationLogRecords;
+    }
+
+    /**
+     * @param replicationLogRecords number of changes kept for followers, 8 bytes each. 0 keeps none, and the
+     *                              histogram can't lead followers.
+     */
+    public MedianDBConfig setReplicationLogRecords(int replicationLogRecords) {
+        this.replicationLogRecords = replicationLogRecords;
+        return this;
+    }
+
+    public boolean isReplica() {
+        return replica;
+    }
+
+    /**
+     * @param replica whether the histogram is a read-only follower, changed only by its leader's changes. Set when
+     *                mediandb.replication.leader is. A replica has no write-ahead log, and its storage is on the heap.
+     */
+    public MedianDBConfig setReplica(boolean replica) {
+        this.replica = replica;
+        return this;
+    }
+
+    public int getIngestionWindowDays() {
+        return ingestionWindowDays;
+    }
+
+    /**
+     * @param ingestionWindowDays number of days of adds kept by the time they were added, for medians over the
+     *                            birthdays added in a recent window. 0 keeps none, and adds cost nothing more.
+     */
+    public MedianDBConfig setIngestionWindowDays(int ingestionWindowDays) {
+        this.ingestionWindowDays = ingestionWindowDays;
+        return this;
+    }
+
+    public List<LocalDate[]> getStandingRanges() {
+        return standingRanges;
+    }
+
+    /**
+     * Register a range whose median is kept up to date as birthdays are added, see
+     * {@link MedianDB#registerStandingRange(LocalDate, LocalDate)}
+     */
+    public MedianDBConfig addStandingRange(LocalDate startDate, LocalDate endDate) {
+        standingRanges.add(new LocalDate[] {startDate, endDate});
+        return this;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Latencies and counters of the adds, queries, snapshots and checkpoints of a {@link name.chen.dave.impl.MedianDB},
+ * since it was created.
+ *
+ * Counters are always exact. Latencies of adds and queries are recorded for a random sample of them, as reading
+ * the clock around every one is a measurable part of their cost; latencies of the rarer snapshots and checkpoints
+ * are recorded for every one. Latencies can also be turned off.
+ */
+package name.chen.dave.impl;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MedianDBMetrics {
+
+    // Calls to add one birthday or a batch
+    final LatencyRecorder adds;
+    // Median and quantile queries, including those answered from the cache
+    final LatencyRecorder queries;
+    final LongAdder addCount = new LongAdder();
+    final LongAdder queryCount = new LongAdder();
+    // Waiting for the lock that publishes snapshots, by queries and checkpoints
+    final LatencyRecorder publishLockWait;
+    // Draining the stripes into a new snapshot, with the publish lock held
+    final LatencyRecorder snapshotPublishes;
+    final LatencyRecorder checkpoints;
+    // Holding the publish lock during a checkpoint, which blocks queries that need a new snapshot
+    final LatencyRecorder checkpointLockHolds;
+    final LongAdder birthdaysAdded = new LongAdder();
+    final LongAdder snapshotBytesCopied = new LongAdder();
+    final LongAdder checkpointBytesWritten = new LongAdder();
+    final LongAdder checkpointFailures = new LongAdder();
+    // Milliseconds since the epoch, or 0 if there was none
+    volatile long lastCheckpointMillis;
+
+    /**
+     * @param sampleEvery time 1 in sampleEvery adds and queries, a power of two, or 0 to record no latencies
+     */
+    public MedianDBMetrics(int sampleEvery) {
+        int every = sampleEvery > 0 ? 1 : 0;
+        adds = new LatencyRecorder(sampleEvery);
+        queries = new LatencyRecorder(sampleEvery);
+        publishLockWait = new LatencyRecorder(every);
+        snapshotPublishes = new LatencyRecorder(every);
+        checkpoints = new LatencyRecorder(every);
+        checkpointLockHolds = new LatencyRecorder(every);
+    }
+
+    public LatencyRecorder.Summary getAddLatency() {
+        return adds.summary();
+    }
+
+    public LatencyRecorder.Summary getQueryLatency() {
+        return queries.summary();
+    }
+
+    public long getAddCount() {
+        return addCount.sum();
+    }
+
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    public long getBirthdaysAdded() {
+        return birthdaysAdded.sum();
+    }
+
+    public long getSnapshotBytesCopied() {
+        return snapshotBytesCopied.sum();
+    }
+
+    public long getCheckpointBytesWritten() {
+        return checkpointBytesWritten.sum();
+    }
+
+    public long getCheckpointFailures() {
+        return checkpointFailures.sum();
+    }
+
+    /**
+     * @return when the last checkpoint succeeded, in milliseconds since the epoch, or 0 if none has yet
+     */
+    public long getLastCheckpointMillis() {
+        return lastCheckpointMillis;
+    }
+
+    /**
+     * @return every metric by name, as nested maps of numbers, for JSON output
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("adds", getAddCount());
+        map.put("birthdaysAdded", getBirthdaysAdded());
+        map.put("addLatency", adds.summary().toMap());
+        map.put("queries", getQueryCount());
+        map.put("queryLatency", queries.summary().toMap());
+        map.put("publishLockWait", publishLockWait.summary().toMap());
+        map.put("snapshotPublishLatency", snapshotPublishes.summary().toMap());
+        map.put("snapshotBytesCopied", getSnapshotBytesCopied());
+        map.put("checkpointLatency", checkpoints.summary().toMap());
+        map.put("checkpointLockHold", checkpointLockHolds.summary().toMap());
+        map.put("checkpointBytesWritten", getCheckpointBytesWritten());
+        map.put("checkpointFailures", getCheckpointFailures());
+        long lastCheckpoint = lastCheckpointMillis;
+        map.put("lastCheckpoint", lastCheckpoint == 0 ? null : Instant.ofEpochMilli(lastCheckpoint).toString());
+        return map;
+    }
+}
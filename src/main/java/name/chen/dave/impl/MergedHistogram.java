@@ -0,0 +1,117 @@
+/**
+ * The union of the histograms of several nodes, from their {@link name.chen.dave.impl.HistogramExport}s: day counts
+ * are added up element by element into one day index, so medians and quantiles over it are exact.
+ *
+ * Immutable once merged, so it can be queried concurrently and kept until any of the exports changes.
+ *
+ * Each node holds up to {@link name.chen.dave.impl.MedianDB#MAX_BIRTHDAYS}, and so does the union: counts are added
+ * up as longs, and exports that would take a day or the total past it are not merged.
+ */
+package name.chen.dave.impl;
+
+import name.chen.dave.api.Reporter;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+public final class MergedHistogram implements Reporter {
+
+    private final HistogramLayout layout;
+    private final DayCountIndex index;
+    private final long leftOut;
+
+    /**
+     * Add up exports into a layout. Days outside of it are left out and counted.
+     *
+     * @throws IllegalArgumentException if the exports hold more than {@link MedianDB#MAX_BIRTHDAYS} in the layout
+     */
+    MergedHistogram(HistogramLayout layout, List<HistogramExport> exports) {
+        this.layout = layout;
+        long[] merged = new long[layout.getNumDays()];
+        long total = 0;
+        long outside = 0;
+        for (HistogramExport export : exports) {
+            for (int day = 0; day < export.getNumDays(); day++) {
+                int count = export.getDayCount(day);
+                if (count == 0) {
+                    continue;
+                }
+                int slot = layout.daySlot(export.getFirstEpochDay() + day);
+                if (slot < 0) {
+                    outside += count;
+                } else {
+                    merged[slot] += count;
+                    total += count;
+                }
+            }
+        }
+        if (total > MedianDB.MAX_BIRTHDAYS) {
+            throw new IllegalArgumentException("The histograms merged hold " + total + " birthdays, more than the "
+                    + MedianDB.MAX_BIRTHDAYS + " a histogram can count");
+        }
+        int[] dayCounts = new int[merged.length];
+        for (int slot = 0; slot < merged.length; slot++) {
+            // Only past it if another day is negative, which no valid export has
+            if (merged[slot] < 0 || merged[slot] > MedianDB.MAX_BIRTHDAYS) {
+                throw new IllegalArgumentException("The histograms merged hold " + merged[slot] + " birthdays on "
+                        + LocalDate.ofEpochDay(layout.epochDayOf(slot)));
+            }
+            dayCounts[slot] = (int) merged[slot];
+        }
+        this.index = DayCountIndex.fromCounts(dayCounts, 0, dayCounts.length);
+        this.leftOut = outside;
+    }
+
+    public int total() {
+        return index.total();
+    }
+
+    /**
+     * @return number of birthdays in the exports on days outside of the range of years of this node
+     */
+    public long getLeftOut() {
+        return leftOut;
+    }
+
+    public Optional<LocalDate> findMedian(LocalDate startDate, LocalDate endDate) {
+        Optional<List<LocalDate>> median = findQuantiles(startDate, endDate, 0.5);
+        return median.isPresent() ? Optional.of(median.get().get(0)) : Optional.empty();
+    }
+
+    /**
+     * Same as {@link name.chen.dave.impl.MedianDB#findQuantiles(LocalDate, LocalDate, double...)}, over the union
+     */
+    public Optional<List<LocalDate>> findQuantiles(LocalDate startDate, LocalDate endDate, double... quantiles) {
+        MedianDB.checkQuantiles(quantiles);
+        LocalDate[] dates = MedianDB.findQuantiles(this, startDate, endDate, quantiles);
+        return dates == null ? Optional.empty() : Optional.of(Arrays.asList(dates));
+    }
+
+    @Override
+    public int traverseDates(LocalDate startDate, LocalDate endDate) {
+        return index.count(SegmentHistogram.getDaySlot(layout, startDate),
+                SegmentHistogram.getDaySlot(layout, endDate));
+    }
+
+    @Override
+    public Optional<LocalDate> traverseUntil(LocalDate startDate, int untilNumBirthdays) {
+        LocalDate[] dates = new LocalDate[1];
+        traverseUntil(startDate, new int[]{untilNumBirthdays}, dates);
+        return Optional.ofNullable(dates[0]);
+    }
+
+    @Override
+    public void traverseUntil(LocalDate startDate, int[] untilNumBirthdays, LocalDate[] dates) {
+        int before = index.prefixCount(SegmentHistogram.getDaySlot(layout, startDate) - 1);
+        for (int i = 0; i < untilNumBirthdays.length; i++) {
+            if (untilNumBirthdays[i] <= 0) {
+                dates[i] = startDate;
+                continue;
+            }
+            int slot = index.findKth(before + untilNumBirthdays[i]);
+            dates[i] = slot < 0 ? null : LocalDate.ofEpochDay(layout.epochDayOf(slot));
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class PersistenceService {
@@ -23,21 +24,23 @@ public class PersistenceService {
     private final int secondsInterval;
     private ScheduledFuture<?> scheduledFuture;
     private DiskPersistable diskPersist;
-    private boolean newChanges = false;
+    // Written on every add, so it is a volatile flag rather than a monitor every writer would queue on
+    private volatile boolean newChanges = false;
 
     Runnable persistTask = () -> {
+        if (!newChanges) {
+            LOGGER.fine("No changes since last check. No need to persist to disk");
+            return;
+        }
+        // Cleared before persisting, so that adds made while persisting are picked up next time
+        newChanges = false;
         try {
-            synchronized (this) {
-                if (newChanges) {
-                    LOGGER.info("Persisting to local disk");
-                    diskPersist.persistToLocalDisk();
-                    newChanges = false;
-                } else {
-                    LOGGER.fine("No changes since last check. No need to persist to disk");
-                }
-            }
-        } catch (IOException e) {
-            LOGGER.warning("Error in persisting Median DB to disk");
+            LOGGER.info("Persisting to local disk");
+            diskPersist.persistToLocalDisk();
+        } catch (IOException | RuntimeException e) {
+            // A runtime exception escaping the task would cancel every later run
+            newChanges = true;
+            LOGGER.log(Level.WARNING, "Error in persisting Median DB to disk", e);
         }
     };
 
@@ -46,8 +49,11 @@ public class PersistenceService {
         this.secondsInterval = secondsInterval;
     }
 
-    public synchronized void indicateNewChanges() {
-        this.newChanges = true;
+    public void indicateNewChanges() {
+        // Only write when needed, to keep the flag's cache line shared between writers
+        if (!newChanges) {
+            this.newChanges = true;
+        }
     }
 
     public void start() {
@@ -0,0 +1,88 @@
+/**
+ * How far a follower has applied the changes of its leader: the leader's instance id, and the version of the
+ * leader's histogram the follower's is equal to.
+ *
+ * A follower writes its position next to its checkpoint each time it writes one, with the generation of that
+ * checkpoint, so that on restart it only resumes from the position if it loaded that same checkpoint. The file is
+ * 32 bytes, big-endian: magic, instance id, version, checkpoint generation and a CRC-32C of the rest, replaced
+ * atomically by renaming a temporary file over it.
+ */
+package name.chen.dave.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+public final class ReplicaPosition {
+    private final static Logger LOGGER = Logger.getLogger(ReplicaPosition.class.getName());
+
+    private static final int MAGIC = 0x42445250;  // "BDRP"
+    private static final int SIZE = 32;
+
+    private final long instanceId;
+    private final long version;
+
+    ReplicaPosition(long instanceId, long version) {
+        this.instanceId = instanceId;
+        this.version = version;
+    }
+
+    public long getInstanceId() {
+        return instanceId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the position in the file, or null if there is none, it is corrupt, or it was written with another
+     * checkpoint than the one of the given generation
+     */
+    static ReplicaPosition read(File file, long checkpointGeneration) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length != SIZE || buffer.getInt() != MAGIC
+                || Crc32c.checksum(buffer, 0, SIZE - 4) != buffer.getInt(SIZE - 4)) {
+            LOGGER.warning("Invalid replica position file " + file + ", ignored");
+            return null;
+        }
+        long instanceId = buffer.getLong();
+        long version = buffer.getLong();
+        long generation = buffer.getLong();
+        if (generation != checkpointGeneration) {
+            LOGGER.info("Replica position in " + file + " is for checkpoint generation " + generation
+                    + ", not the " + checkpointGeneration + " loaded, ignored");
+            return null;
+        }
+        return new ReplicaPosition(instanceId, version);
+    }
+
+    void write(File file, long checkpointGeneration) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC).putLong(instanceId).putLong(version).putLong(checkpointGeneration);
+        buffer.putInt(Crc32c.checksum(buffer, 0, buffer.position()));
+        buffer.flip();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            HistogramFile.writeFully(channel, buffer, 0);
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toHexString(instanceId) + "@" + version;
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Day histogram of one segment of the birthdays, such as an account or a region, sized for many small segments.
+ *
+ * Days are kept in pages of 64, and pages in chunks of 64, both allocated on the first birthday recorded in them.
+ * A page starts out as a byte per day and is widened to a short, then an int, per day when a count no longer fits,
+ * so a segment with a few birthdays takes well under a kilobyte. The total of every page and of every chunk is
+ * kept, so counting the birthdays up to a day or finding the k-th one adds up at most a chunk total per chunk, a
+ * page total per page of the chunk and a day count per day of the page.
+ *
+ * Not thread safe: callers hold the segment's monitor, across the queries for one answer too, so that the count of
+ * a range and the birthdays found in it agree.
+ */
+package name.chen.dave.impl;
+
+import name.chen.dave.api.Reporter;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+final class SegmentHistogram implements Reporter {
+
+    private static final int PAGE_SHIFT = 6;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int CHUNK_SHIFT = 2 * PAGE_SHIFT;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final HistogramLayout layout;
+    // Pages by chunk, each a byte[], short[] or int[] of day counts
+    private final Object[][] chunks;
+    private final int[][] pageTotals;
+    private final int[] chunkTotals;
+    private int total;
+
+    SegmentHistogram(HistogramLayout layout) {
+        this.layout = layout;
+        int numChunks = (layout.getNumDays() + CHUNK_MASK) >>> CHUNK_SHIFT;
+        this.chunks = new Object[numChunks][];
+        this.pageTotals = new int[numChunks][];
+        this.chunkTotals = new int[numChunks];
+    }
+
+    private static int get(Object page, int day) {
+        if (page instanceof byte[]) {
+            return ((byte[]) page)[day] & 0xFF;
+        } else if (page instanceof short[]) {
+            return ((short[]) page)[day] & 0xFFFF;
+        }
+        return ((int[]) page)[day];
+    }
+
+    /**
+     * @return the page, widened if needed to hold count on any day
+     */
+    private static Object widen(Object page, int count) {
+        if (page instanceof byte[] && count > 0xFF) {
+            byte[] bytes = (byte[]) page;
+            if (count <= 0xFFFF) {
+                short[] shorts = new short[PAGE_SIZE];
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    shorts[i] = (short) (bytes[i] & 0xFF);
+                }
+                return shorts;
+            }
+            int[] ints = new int[PAGE_SIZE];
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                ints[i] = bytes[i] & 0xFF;
+            }
+            return ints;
+        }
+        if (page instanceof short[] && count > 0xFFFF) {
+            short[] shorts = (short[]) page;
+            int[] ints = new int[PAGE_SIZE];
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                ints[i] = shorts[i] & 0xFFFF;
+            }
+            return ints;
+        }
+        return page;
+    }
+
+    private static void set(Object page, int day, int count) {
+        if (page instanceof byte[]) {
+            ((byte[]) page)[day] = (byte) count;
+        } else if (page instanceof short[]) {
+            ((short[]) page)[day] = (short) count;
+        } else {
+            ((int[]) page)[day] = count;
+        }
+    }
+
+    /**
+     * @param count number of birthdays to add, positive
+     */
+    void add(int slot, int count) {
+        int chunk = slot >>> CHUNK_SHIFT;
+        int pageInChunk = (slot & CHUNK_MASK) >>> PAGE_SHIFT;
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Object[PAGE_SIZE];
+            pageTotals[chunk] = new int[PAGE_SIZE];
+        }
+        Object page = chunks[chunk][pageInChunk];
+        if (page == null) {
+            page = new byte[PAGE_SIZE];
+        }
+        int day = slot & PAGE_MASK;
+        int updated = get(page, day) + count;
+        page = widen(page, updated);
+        set(page, day, updated);
+        chunks[chunk][pageInChunk] = page;
+        pageTotals[chunk][pageInChunk] += count;
+        chunkTotals[chunk] += count;
+        total += count;
+    }
+
+    private static Object copy(Object page) {
+        if (page instanceof byte[]) {
+            return ((byte[]) page).clone();
+        } else if (page instanceof short[]) {
+            return ((short[]) page).clone();
+        }
+        return ((int[]) page).clone();
+    }
+
+    /**
+     * Add every birthday of another histogram of the same layout, a page at a time: a page this histogram does not
+     * have yet is copied whole.
+     */
+    void addAll(SegmentHistogram other) {
+        for (int chunk = 0; chunk < other.chunks.length; chunk++) {
+            Object[] pages = other.chunks[chunk];
+            if (pages == null) {
+                continue;
+            }
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new Object[PAGE_SIZE];
+                pageTotals[chunk] = new int[PAGE_SIZE];
+            }
+            for (int pageInChunk = 0; pageInChunk < PAGE_SIZE; pageInChunk++) {
+                Object page = pages[pageInChunk];
+                if (page == null) {
+                    continue;
+                }
+                Object target = chunks[chunk][pageInChunk];
+                if (target == null) {
+                    target = copy(page);
+                } else {
+                    for (int day = 0; day < PAGE_SIZE; day++) {
+                        int count = get(page, day);
+                        if (count > 0) {
+                            int updated = get(target, day) + count;
+                            target = widen(target, updated);
+                            set(target, day, updated);
+                        }
+                    }
+                }
+                chunks[chunk][pageInChunk] = target;
+                int pageTotal = other.pageTotals[chunk][pageInChunk];
+                pageTotals[chunk][pageInChunk] += pageTotal;
+                chunkTotals[chunk] += pageTotal;
+                total += pageTotal;
+            }
+        }
+    }
+
+    int get(int slot) {
+        Object[] pages = chunks[slot >>> CHUNK_SHIFT];
+        Object page = pages == null ? null : pages[(slot & CHUNK_MASK) >>> PAGE_SHIFT];
+        return page == null ? 0 : get(page, slot & PAGE_MASK);
+    }
+
+    int total() {
+        return total;
+    }
+
+    /**
+     * @return number of birthdays in slots 0 to slot (inclusive). A slot of -1 counts nothing.
+     */
+    int prefixCount(int slot) {
+        if (slot < 0) {
+            return 0;
+        }
+        int chunk = slot >>> CHUNK_SHIFT;
+        int count = 0;
+        for (int i = 0; i < chunk; i++) {
+            count += chunkTotals[i];
+        }
+        Object[] pages = chunks[chunk];
+        if (pages == null) {
+            return count;
+        }
+        int pageInChunk = (slot & CHUNK_MASK) >>> PAGE_SHIFT;
+        for (int i = 0; i < pageInChunk; i++) {
+            count += pageTotals[chunk][i];
+        }
+        Object page = pages[pageInChunk];
+        if (page != null) {
+            for (int day = 0; day <= (slot & PAGE_MASK); day++) {
+                count += get(page, day);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param k 1-based rank of the birthday
+     * @return the first slot at which the running count reaches k, or -1 if there are fewer than k birthdays
+     */
+    int findKth(int k) {
+        if (k <= 0 || k > total) {
+            return -1;
+        }
+        int remaining = k;
+        int chunk = 0;
+        while (chunkTotals[chunk] < remaining) {
+            remaining -= chunkTotals[chunk++];
+        }
+        int pageInChunk = 0;
+        while (pageTotals[chunk][pageInChunk] < remaining) {
+            remaining -= pageTotals[chunk][pageInChunk++];
+        }
+        Object page = chunks[chunk][pageInChunk];
+        int day = 0;
+        while ((remaining -= get(page, day)) > 0) {
+            day++;
+        }
+        return (chunk << CHUNK_SHIFT) | (pageInChunk << PAGE_SHIFT) | day;
+    }
+
+    /**
+     * @return an estimate of the heap taken by this histogram, with 16-byte array headers and 4-byte references
+     */
+    long sizeInBytes() {
+        long size = 32 + 3 * (16 + 4L * chunks.length);
+        for (Object[] pages : chunks) {
+            if (pages == null) {
+                continue;
+            }
+            size += 2 * (16 + 4 * PAGE_SIZE);
+            for (Object page : pages) {
+                if (page instanceof byte[]) {
+                    size += 16 + PAGE_SIZE;
+                } else if (page instanceof short[]) {
+                    size += 16 + 2 * PAGE_SIZE;
+                } else if (page != null) {
+                    size += 16 + 4 * PAGE_SIZE;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the date is outside of the range of years of the layout
+     */
+    static int getDaySlot(HistogramLayout layout, LocalDate date) {
+        long epochDay = date.toEpochDay();
+        int daySlot = (int) epochDay == epochDay ? layout.daySlot((int) epochDay) : -1;
+        if (daySlot < 0) {
+            throw new IllegalArgumentException("Date: " + date + " not supported. "
+                    + "Min Date: " + LocalDate.ofEpochDay(layout.getFirstEpochDay())
+                    + ", Max Date: " + LocalDate.ofEpochDay(layout.getLastEpochDay()));
+        }
+        return daySlot;
+    }
+
+    private LocalDate getDateOfDaySlot(int daySlot) {
+        return LocalDate.ofEpochDay(layout.epochDayOf(daySlot));
+    }
+
+    @Override
+    public int traverseDates(LocalDate startDate, LocalDate endDate) {
+        int startSlot = getDaySlot(layout, startDate);
+        int endSlot = getDaySlot(layout, endDate);
+        return endSlot < startSlot ? 0 : prefixCount(endSlot) - prefixCount(startSlot - 1);
+    }
+
+    @Override
+    public Optional<LocalDate> traverseUntil(LocalDate startDate, int untilNumBirthdays) {
+        LocalDate[] dates = new LocalDate[1];
+        traverseUntil(startDate, new int[]{untilNumBirthdays}, dates);
+        return Optional.ofNullable(dates[0]);
+    }
+
+    @Override
+    public void traverseUntil(LocalDate startDate, int[] untilNumBirthdays, LocalDate[] dates) {
+        int before = prefixCount(getDaySlot(layout, startDate) - 1);
+        for (int i = 0; i < untilNumBirthdays.length; i++) {
+            if (untilNumBirthdays[i] <= 0) {
+                dates[i] = startDate;
+                continue;
+            }
+            int slot = findKth(before + untilNumBirthdays[i]);
+            dates[i] = slot < 0 ? null : getDateOfDaySlot(slot);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 /**
- * A way to query and traverse dates/months/years in the histogram by taking a point-in-time
- * snapshot of the int[] array that represents the histogram.
+ * A way to query dates in the histogram through a point-in-time snapshot of the
+ * day index ({@link name.chen.dave.impl.DayCountIndex}) of the histogram.
+ *
+ * Snapshots are immutable and versioned. The histogram publishes a new one only when birthdays were added
+ * since the last one, so readers of an idle histogram all share the same snapshot.
  */
 
 package name.chen.dave.impl;
@@ -9,27 +12,57 @@ import name.chen.dave.api.Reporter;
 
 import java.time.LocalDate;
 import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
 
 public class SnapshotReport implements Reporter {
 
     private final ArrayDateHistogram histogram;
     private final long snapshotEpoch;
-    private int[] histogramArray;
+    private final long version;
+    private final DayCountIndex dayIndex;
 
 
-    SnapshotReport(ArrayDateHistogram histogram, int[] histogramArray) {
+    SnapshotReport(ArrayDateHistogram histogram, DayCountIndex dayIndex, long version) {
         this.histogram = histogram;
-        this.histogramArray = histogramArray;
+        this.dayIndex = dayIndex;
+        this.version = version;
         this.snapshotEpoch = Instant.now().getEpochSecond();
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    DayCountIndex getDayIndex() {
+        return dayIndex;
+    }
+
     public int traverseDates(LocalDate startDate, LocalDate endDate) {
-        return histogram.traverseDates(startDate, endDate, Optional.of(histogramArray));
+        return histogram.countDates(startDate, endDate, dayIndex);
     }
 
     public Optional<LocalDate> traverseUntil(LocalDate startDate, int untilNumBirthdays) {
-        return histogram.traverseUntil(startDate, untilNumBirthdays, Optional.of(histogramArray));
+        return histogram.findDateUntil(startDate, untilNumBirthdays, dayIndex);
+    }
+
+    public void traverseUntil(LocalDate startDate, int[] untilNumBirthdays, LocalDate[] dates) {
+        histogram.findDatesUntil(startDate, untilNumBirthdays, dates, dayIndex);
+    }
+
+    /**
+     * @return the epoch day of the median of the range, or {@link name.chen.dave.impl.MedianDB#NO_MEDIAN}
+     */
+    long findMedianEpochDay(int startEpochDay, int endEpochDay) {
+        return histogram.findMedianEpochDay(startEpochDay, endEpochDay, dayIndex);
+    }
+
+    /**
+     * Find the median of ranges from..to (exclusive) of startDates and endDates, see
+     * {@link name.chen.dave.impl.MedianDB#findMedians(List, List)}
+     */
+    void findMedians(LocalDate[] startDates, LocalDate[] endDates, int from, int to, LocalDate[] medians) {
+        histogram.findMedians(startDates, endDates, from, to, medians, dayIndex);
     }
 
 }
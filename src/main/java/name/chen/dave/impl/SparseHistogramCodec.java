@@ -0,0 +1,117 @@
+/**
+ * Compact encoding of histogram counters, most of which are zero.
+ *
+ * The counters are encoded as a sequence of runs: the number of zero counters, the number of non-zero counters
+ * that follow, then each of those counters as the difference from the one before it. Every number is a varint
+ * (7 bits per byte, high bit set on all but the last byte); differences are zigzag encoded first, so that small
+ * negative differences stay small. Counts on neighbouring days are close, and the padding days that every month
+ * has in the day histogram cost a byte or two per month.
+ */
+package name.chen.dave.impl;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public final class SparseHistogramCodec {
+
+    private SparseHistogramCodec() {
+    }
+
+    /**
+     * @return values[from, to) encoded
+     */
+    public static byte[] encode(int[] values, int from, int to) {
+        Output out = new Output(Math.max(16, (to - from) / 8));
+        int i = from;
+        while (i < to) {
+            int zeros = i;
+            while (i < to && values[i] == 0) {
+                i++;
+            }
+            int literals = i;
+            while (i < to && values[i] != 0) {
+                i++;
+            }
+            out.putVarint(literals - zeros);
+            out.putVarint(i - literals);
+            int previous = 0;
+            for (int j = literals; j < i; j++) {
+                int delta = values[j] - previous;
+                out.putVarint((delta << 1) ^ (delta >> 31));
+                previous = values[j];
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode counters encoded by {@link #encode} into values[from, to), from the position of encoded to its limit.
+     *
+     * @throws IllegalArgumentException if the encoding is malformed, or does not hold exactly to - from counters
+     */
+    public static void decode(ByteBuffer encoded, int[] values, int from, int to) {
+        try {
+            int i = from;
+            while (i < to) {
+                int zeros = getVarint(encoded);
+                if (zeros < 0 || zeros > to - i) {
+                    throw new IllegalArgumentException("Run of " + zeros + " zeros past the end at counter " + i);
+                }
+                Arrays.fill(values, i, i + zeros, 0);
+                i += zeros;
+                int literals = getVarint(encoded);
+                if (literals < 0 || literals > to - i) {
+                    throw new IllegalArgumentException("Run of " + literals + " counters past the end at counter " + i);
+                }
+                int previous = 0;
+                for (int end = i + literals; i < end; i++) {
+                    int zigzag = getVarint(encoded);
+                    previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                    values[i] = previous;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Encoded counters end early", e);
+        }
+        if (encoded.hasRemaining()) {
+            throw new IllegalArgumentException(encoded.remaining() + " bytes left after the last counter");
+        }
+    }
+
+    private static int getVarint(ByteBuffer encoded) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = encoded.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint longer than 5 bytes");
+    }
+
+    private static final class Output {
+        private byte[] bytes;
+        private int length;
+
+        Output(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void putVarint(int value) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+            }
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * The median of one registered range of birthdays, kept up to date as birthdays are added rather than found from
+ * scratch on each query. See {@link name.chen.dave.impl.MedianDB#registerStandingRange(LocalDate, LocalDate)}.
+ *
+ * It keeps the number of birthdays in the range and a cursor on each of the birthdays around the middle: the slot
+ * of the day it is on and the number of birthdays in the range before that day. Each version the histogram
+ * publishes moves them along, with the publish lock held: only the pages of the day index written for that version
+ * are compared with the previous one, each changed day moves the totals by its change, and the cursors step over the
+ * few days the middle moved by. Queries read the median with a single volatile load.
+ */
+package name.chen.dave.impl;
+
+import java.time.LocalDate;
+
+final class StandingMedian {
+
+    // A cursor further than this from where it should be is found again from the index instead of stepping
+    private static final int MAX_STEPS = 2 * DayCountIndex.PAGE_SIZE;
+
+    private final HistogramLayout layout;
+    private final int startEpochDay;
+    private final int endEpochDay;
+    private final int startSlot;
+    private final int endSlot;
+    private volatile long median = MedianDB.NO_MEDIAN;
+
+    // Guarded by the publish lock of the histogram
+    private int birthdays;
+    // Cursors on the lower and upper birthday around the middle, when there are birthdays
+    private int lowerSlot;
+    private int lowerBefore;
+    private int upperSlot;
+    private int upperBefore;
+
+    StandingMedian(HistogramLayout layout, int startEpochDay, int endEpochDay) {
+        this.layout = layout;
+        this.startEpochDay = startEpochDay;
+        this.endEpochDay = endEpochDay;
+        this.startSlot = layout.daySlot(startEpochDay);
+        this.endSlot = layout.daySlot(endEpochDay);
+        if (startSlot < 0 || endSlot < 0) {
+            throw new IllegalArgumentException("Range " + LocalDate.ofEpochDay(startEpochDay) + " to "
+                    + LocalDate.ofEpochDay(endEpochDay) + " not supported");
+        }
+        if (endSlot < startSlot) {
+            throw new IllegalArgumentException("Range " + LocalDate.ofEpochDay(startEpochDay) + " to "
+                    + LocalDate.ofEpochDay(endEpochDay) + " ends before it starts");
+        }
+    }
+
+    boolean isFor(int startEpochDay, int endEpochDay) {
+        return this.startEpochDay == startEpochDay && this.endEpochDay == endEpochDay;
+    }
+
+    LocalDate getStartDate() {
+        return LocalDate.ofEpochDay(startEpochDay);
+    }
+
+    LocalDate getEndDate() {
+        return LocalDate.ofEpochDay(endEpochDay);
+    }
+
+    /**
+     * @return the epoch day of the median of the range in the latest version moved to, or
+     * {@link MedianDB#NO_MEDIAN}
+     */
+    long getMedianEpochDay() {
+        return median;
+    }
+
+    /**
+     * Find the totals and cursors from an index, in log time
+     */
+    void reset(DayCountIndex index) {
+        birthdays = index.count(startSlot, endSlot);
+        position(index);
+        publishMedian();
+    }
+
+    /**
+     * Move from a version of the day index to the next, copied from it by {@link DayCountIndex#copyOnWrite()}
+     */
+    void advance(DayCountIndex previous, DayCountIndex next) {
+        applyChanges(previous, next);
+        if (birthdays != 0 && !moveCursors(next)) {
+            position(next);
+        }
+        publishMedian();
+    }
+
+    private void publishMedian() {
+        median = birthdays == 0 ? MedianDB.NO_MEDIAN : layout.epochDayOf(lowerSlot + (upperSlot - lowerSlot) / 2);
+    }
+
+    /**
+     * Move the total and the counts before the cursors by the change of every day of the range in the pages
+     * written for the next index
+     */
+    private void applyChanges(DayCountIndex previous, DayCountIndex next) {
+        int hadBirthdays = birthdays;
+        int firstPage = startSlot >>> DayCountIndex.PAGE_SHIFT;
+        int lastPage = endSlot >>> DayCountIndex.PAGE_SHIFT;
+        for (int i = 0; i < next.numPagesWritten(); i++) {
+            int page = next.writtenPage(i);
+            if (page < firstPage || page > lastPage) {
+                continue;
+            }
+            int[] before = previous.page(page);
+            int[] after = next.page(page);
+            int pageStart = page << DayCountIndex.PAGE_SHIFT;
+            int from = Math.max(startSlot, pageStart);
+            int to = Math.min(endSlot, pageStart + DayCountIndex.PAGE_SIZE - 1);
+            for (int slot = from; slot <= to; slot++) {
+                int delta = (after == null ? 0 : after[slot - pageStart])
+                        - (before == null ? 0 : before[slot - pageStart]);
+                if (delta != 0) {
+                    birthdays += delta;
+                    if (slot < lowerSlot) {
+                        lowerBefore += delta;
+                    }
+                    if (slot < upperSlot) {
+                        upperBefore += delta;
+                    }
+                }
+            }
+        }
+        if (hadBirthdays == 0 && birthdays != 0) {
+            // The cursors were on nothing: start them at the beginning of the range
+            lowerSlot = startSlot;
+            lowerBefore = 0;
+            upperSlot = startSlot;
+            upperBefore = 0;
+        }
+    }
+
+    /**
+     * Find the cursors from the index, in log time
+     */
+    private void position(DayCountIndex next) {
+        if (birthdays == 0) {
+            return;
+        }
+        int before = next.prefixCount(startSlot - 1);
+        lowerSlot = next.findKth(before + (birthdays + 1) / 2);
+        lowerBefore = next.prefixCount(lowerSlot - 1) - before;
+        upperSlot = birthdays % 2 == 0 ? next.findKth(before + birthdays / 2 + 1) : lowerSlot;
+        upperBefore = next.prefixCount(upperSlot - 1) - before;
+    }
+
+    /**
+     * Step the cursors to the birthdays now around the middle
+     *
+     * @return false if a cursor would take more than {@link #MAX_STEPS} steps to get there
+     */
+    private boolean moveCursors(DayCountIndex next) {
+        int lowerRank = (birthdays + 1) / 2;
+        int upperRank = birthdays % 2 == 0 ? lowerRank + 1 : lowerRank;
+        long lower = step(next, lowerSlot, lowerBefore, lowerRank);
+        if (lower < 0) {
+            return false;
+        }
+        long upper = step(next, upperSlot, upperBefore, upperRank);
+        if (upper < 0) {
+            return false;
+        }
+        lowerSlot = (int) (lower >>> 32);
+        lowerBefore = (int) lower;
+        upperSlot = (int) (upper >>> 32);
+        upperBefore = (int) upper;
+        return true;
+    }
+
+    /**
+     * Step a cursor from a slot, after the given number of birthdays of the range, to the slot of the birthday of
+     * the given rank (1-based) in the range
+     *
+     * @return the slot in the high half and the birthdays before it in the low half, or -1 if too far
+     */
+    private static long step(DayCountIndex next, int slot, int before, int rank) {
+        int steps = 0;
+        while (rank <= before) {
+            if (++steps > MAX_STEPS) {
+                return -1;
+            }
+            slot--;
+            before -= next.get(slot);
+        }
+        while (rank > before + next.get(slot)) {
+            if (++steps > MAX_STEPS) {
+                return -1;
+            }
+            before += next.get(slot);
+            slot++;
+        }
+        return (long) slot << 32 | (before & 0xFFFFFFFFL);
+    }
+}
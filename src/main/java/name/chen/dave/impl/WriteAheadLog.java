@@ -0,0 +1,444 @@
+/**
+ * Append-only log of birthday adds, so that adds made since the last checkpoint survive a crash.
+ *
+ * Each record is 8 bytes: the epoch day of the birthday and the number of birthdays added (both ints).
+ * Records are appended to one buffer per histogram stripe, under the stripe's monitor, and a single writer thread
+ * writes out whatever has accumulated in all buffers as one group (group commit). How the group is made durable
+ * depends on the {@link FsyncPolicy}.
+ *
+ * The log is split in generations, one segment file per generation. A checkpoint rotates the log to a new
+ * generation while no add is in progress, and the segment header records the total number of birthdays in the
+ * histogram at that point. Once the checkpoint is on disk, older segments are deleted. On recovery, segments are
+ * replayed starting from the one whose header total matches the total of the checkpoint that was loaded.
+ *
+ * A failed write or fsync is fatal for writes: the log may end in a torn record, so nothing more is written to it,
+ * and the histogram refuses adds until restarted (see {@link #getFailure()}). The adds in the groups that failed
+ * were already counted in memory, and stay counted: their callers get an error, but a retry is refused rather than
+ * counted twice. Checkpoints still rotate the log, so the next one saves them along with everything else.
+ */
+package name.chen.dave.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class WriteAheadLog implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+
+    public enum FsyncPolicy {
+        // Adds wait until the group holding their record has been fsynced
+        BATCH,
+        // Adds don't wait; groups are written and fsynced every fsyncIntervalMillis
+        INTERVAL,
+        // Adds don't wait; groups are written every fsyncIntervalMillis and left to the OS to flush
+        NONE
+    }
+
+    private static final int MAGIC = 0x57414C31; // "WAL1"
+    private static final int HEADER_BYTES = 12;
+    private static final int RECORD_BYTES = 8;
+    private static final String SEGMENT_INFIX = ".wal.";
+
+    interface RecordSink {
+        void accept(int epochDay, int delta);
+    }
+
+    /**
+     * Completed once the group of records it belongs to has been written according to the fsync policy.
+     */
+    static final class Commit {
+        private boolean done = false;
+        private IOException failure;
+
+        synchronized void await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for write-ahead log commit");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Write-ahead log commit failed", failure);
+            }
+        }
+
+        synchronized void complete(IOException failure) {
+            this.done = true;
+            this.failure = failure;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records appended by one stripe, waiting for the writer thread.
+     */
+    final class LogBuffer {
+        private int[] records = new int[1024];
+        // The records last taken by the writer. Only touched by the writer, under the io lock.
+        private int[] taken = new int[1024];
+        private int size = 0;
+        private Commit commit = new Commit();
+
+        synchronized Commit append(int epochDay, int delta) {
+            boolean wasEmpty = size == 0;
+            ensureCapacity(2);
+            records[size++] = epochDay;
+            records[size++] = delta;
+            return appended(wasEmpty);
+        }
+
+        synchronized Commit appendAll(int[] epochDays, int[] deltas, int length) {
+            boolean wasEmpty = size == 0;
+            ensureCapacity(2 * length);
+            for (int i = 0; i < length; i++) {
+                records[size++] = epochDays[i];
+                records[size++] = deltas[i];
+            }
+            return appended(wasEmpty);
+        }
+
+        private void ensureCapacity(int ints) {
+            if (size + ints > records.length) {
+                int[] grown = new int[Math.max(records.length * 2, size + ints)];
+                System.arraycopy(records, 0, grown, 0, size);
+                records = grown;
+            }
+        }
+
+        private Commit appended(boolean wasEmpty) {
+            if (fsyncPolicy == FsyncPolicy.BATCH) {
+                if (wasEmpty) {
+                    LockSupport.unpark(writer);
+                }
+                return commit;
+            }
+            return null;
+        }
+
+        /**
+         * Swap the buffered records out for the writer, which must hold the io lock.
+         *
+         * @return number of ints taken, found in the taken array
+         */
+        synchronized int take(List<Commit> commits) {
+            if (size == 0) {
+                return 0;
+            }
+            int[] swapped = taken;
+            taken = records;
+            records = swapped;
+            int length = size;
+            size = 0;
+            commits.add(commit);
+            commit = new Commit();
+            return length;
+        }
+    }
+
+    private final File directory;
+    private final String baseName;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final LogBuffer[] buffers;
+    private final Object ioLock = new Object();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final List<Commit> pendingCommits = new ArrayList<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    // The first write or fsync that failed, after which nothing more is written
+    private volatile IOException failure;
+    private long generation;
+    private FileChannel segment;
+
+    /**
+     * Open a new segment, after every segment already in the directory.
+     */
+    WriteAheadLog(File directory, String baseName, FsyncPolicy fsyncPolicy, int fsyncIntervalMillis,
+                  int numBuffers, long baseTotal) throws IOException {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.buffers = new LogBuffer[numBuffers];
+        for (int i = 0; i < numBuffers; i++) {
+            buffers[i] = new LogBuffer();
+        }
+        List<Long> generations = listGenerations(directory, baseName);
+        this.generation = generations.isEmpty() ? 1 : generations.get(generations.size() - 1) + 1;
+        this.segment = openSegment(generation, baseTotal);
+        this.writer = new Thread(this::writeLoop, "wal-writer-" + baseName);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    LogBuffer buffer(int i) {
+        return buffers[i];
+    }
+
+    /**
+     * @return the write or fsync that failed, or null if none did
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the segment being written to, e.g. for tests to make a write fail
+     */
+    FileChannel currentSegment() {
+        synchronized (ioLock) {
+            return segment;
+        }
+    }
+
+    long getGeneration() {
+        synchronized (ioLock) {
+            return generation;
+        }
+    }
+
+    private void writeLoop() {
+        while (running) {
+            boolean wrote = false;
+            try {
+                wrote = writeGroup(fsyncPolicy != FsyncPolicy.NONE);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error in writing to write-ahead log, adds are refused until restarted", e);
+            }
+            if (fsyncPolicy == FsyncPolicy.BATCH) {
+                if (!wrote) {
+                    // Woken up by the first append into an empty buffer
+                    LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+                }
+            } else {
+                LockSupport.parkNanos(this, fsyncIntervalNanos);
+            }
+        }
+    }
+
+    /**
+     * Write whatever all buffers hold to the current segment, and complete the commits of those records. Once a
+     * write has failed, the records are dropped instead, and their commits fail.
+     *
+     * @return whether anything was written or dropped
+     */
+    private boolean writeGroup(boolean force) throws IOException {
+        synchronized (ioLock) {
+            IOException groupFailure = failure;
+            try {
+                for (LogBuffer buffer : buffers) {
+                    int length = buffer.take(pendingCommits);
+                    if (groupFailure != null) {
+                        continue;
+                    }
+                    for (int i = 0; i < length; i++) {
+                        if (!writeBuffer.hasRemaining()) {
+                            flush(writeBuffer, segment);
+                        }
+                        writeBuffer.putInt(buffer.taken[i]);
+                    }
+                }
+                if (pendingCommits.isEmpty()) {
+                    return false;
+                }
+                if (groupFailure == null) {
+                    flush(writeBuffer, segment);
+                    if (force) {
+                        segment.force(false);
+                    }
+                }
+            } catch (IOException e) {
+                groupFailure = e;
+                failure = e;
+                writeBuffer.clear();
+                throw e;
+            } finally {
+                for (Commit commit : pendingCommits) {
+                    commit.complete(groupFailure);
+                }
+                pendingCommits.clear();
+            }
+            return true;
+        }
+    }
+
+    private static void flush(ByteBuffer out, FileChannel channel) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Write out and fsync the current generation, then start the next one. The caller must make sure no records
+     * are being appended, and that baseTotal counts every record appended so far. After a failure, the records
+     * not written are dropped, as the checkpoint the rotation is for holds them.
+     *
+     * @return the new generation
+     */
+    long rotate(long baseTotal) throws IOException {
+        synchronized (ioLock) {
+            writeGroup(true);
+            segment.close();
+            generation++;
+            segment = openSegment(generation, baseTotal);
+            return generation;
+        }
+    }
+
+    /**
+     * Delete the segments of generations before the given one, once a checkpoint covers them.
+     */
+    void deleteSegmentsBefore(long generation) {
+        for (long existing : listGenerations(directory, baseName)) {
+            if (existing < generation && !segmentFile(directory, baseName, existing).delete()) {
+                LOGGER.warning("Could not delete write-ahead log segment " + existing);
+            }
+        }
+    }
+
+    private FileChannel openSegment(long generation, long baseTotal) throws IOException {
+        FileChannel channel = new RandomAccessFile(segmentFile(directory, baseName, generation), "rw").getChannel();
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putLong(baseTotal).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(true);
+        // Before any record goes in, so that a power loss can't take the segment and the adds it acknowledged
+        HistogramFile.syncDirectory(directory);
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ioLock) {
+            try {
+                writeGroup(true);
+            } finally {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Replay the records not covered by a checkpoint holding checkpointTotal birthdays.
+     *
+     * @return number of records replayed
+     */
+    static long replay(File directory, String baseName, long checkpointTotal, RecordSink sink) throws IOException {
+        List<Long> generations = listGenerations(directory, baseName);
+        long[] baseTotals = new long[generations.size()];
+        int first = -1;
+        for (int i = 0; i < generations.size(); i++) {
+            baseTotals[i] = readBaseTotal(segmentFile(directory, baseName, generations.get(i)));
+            if (baseTotals[i] == checkpointTotal) {
+                first = i;
+            }
+        }
+        if (first < 0) {
+            // No segment starts where the checkpoint ends. Replay what can't be in the checkpoint.
+            first = 0;
+            while (first < generations.size() && baseTotals[first] < checkpointTotal) {
+                first++;
+            }
+            if (!generations.isEmpty()) {
+                LOGGER.warning("No write-ahead log segment starts at checkpoint total " + checkpointTotal
+                        + ". Replaying " + (generations.size() - first) + " of " + generations.size() + " segments");
+            }
+        }
+        long replayed = 0;
+        for (int i = first; i < generations.size(); i++) {
+            replayed += replaySegment(segmentFile(directory, baseName, generations.get(i)), sink);
+        }
+        return replayed;
+    }
+
+    /**
+     * Delete every segment, e.g. when starting over without recovering.
+     */
+    static void deleteAllSegments(File directory, String baseName) {
+        for (long generation : listGenerations(directory, baseName)) {
+            if (!segmentFile(directory, baseName, generation).delete()) {
+                LOGGER.warning("Could not delete write-ahead log segment " + generation);
+            }
+        }
+    }
+
+    private static long readBaseTotal(File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                return -1;
+            }
+            return header.getLong(4);
+        }
+    }
+
+    private static long replaySegment(File file, RecordSink sink) throws IOException {
+        long replayed = 0;
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            channel.position(HEADER_BYTES);
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(in) >= 0) {
+                in.flip();
+                while (in.remaining() >= RECORD_BYTES) {
+                    sink.accept(in.getInt(), in.getInt());
+                    replayed++;
+                }
+                in.compact();
+            }
+            if (in.position() > 0) {
+                LOGGER.warning("Ignoring torn record at the end of write-ahead log segment " + file);
+            }
+        }
+        return replayed;
+    }
+
+    private static File segmentFile(File directory, String baseName, long generation) {
+        return new File(directory, baseName + SEGMENT_INFIX + generation);
+    }
+
+    static List<Long> listGenerations(File directory, String baseName) {
+        List<Long> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            String prefix = baseName + SEGMENT_INFIX;
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+}
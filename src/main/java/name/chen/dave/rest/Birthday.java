@@ -1,30 +1,58 @@
 /**
  * Class called by the Rest controller ({@link name.chen.dave.rest.ProfileMedianReporter}. Dispatches to
  * {@link name.chen.dave.impl.MedianDB} to add birthday as well as calculate median birthday given a date range
+ *
+ * Cluster queries go through a {@link name.chen.dave.rest.ClusterCoordinator}, over the birthdays of this node and
+ * of its peers.
+ *
+ * A node configured with a leader is a read-only replica of it, kept in step by a
+ * {@link name.chen.dave.rest.ReplicationFollower}.
  */
 package name.chen.dave.rest;
 
+import name.chen.dave.impl.AgeDistribution;
+import name.chen.dave.impl.BatchIngester;
+import name.chen.dave.impl.ChangeLog;
+import name.chen.dave.impl.HistogramExport;
+import name.chen.dave.impl.IsoDateParser;
 import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MedianDBConfig;
 import org.springframework.http.HttpStatus;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
-import java.time.Period;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Logger;
 
 public class Birthday {
     private final static Logger LOGGER = Logger.getLogger(Birthday.class.getName());
-    private final static DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss z");
-    private final static DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
     private MedianDB medianDB;
+    private final ClusterCoordinator coordinator;
+    // Null unless this node is a replica of a leader
+    private ReplicationFollower follower;
 
     public Birthday() throws IOException {
-        medianDB = new MedianDB();
+        this(MedianDBConfig.fromSystemProperties(), Collections.emptyList(), 2000);
+    }
+
+    /**
+     * @param peers base URLs of the other nodes of the cluster, e.g. http://10.0.0.2:8080
+     * @param peerTimeoutMillis connect and read timeout when fetching the histogram of a peer
+     */
+    public Birthday(MedianDBConfig config, List<String> peers, int peerTimeoutMillis) throws IOException {
+        medianDB = new MedianDB(config);
+        coordinator = new ClusterCoordinator(medianDB, peers, peerTimeoutMillis);
     }
 
     public static class Add {
@@ -33,7 +61,7 @@ public class Birthday {
 
         public Add(String birthdayAdded) {
             this.birthdayAdded = birthdayAdded;
-            this.timeAdded = dateTimeFormatter.format(ZonedDateTime.now());
+            this.timeAdded = ResponseTime.now().getFormatted();
         }
         public String getBirthdayAdded() {
             return birthdayAdded;
@@ -50,12 +78,162 @@ public class Birthday {
 
         public Median(Integer medianAge) {
             this.medianAge = medianAge;
-            this.fulfillmentTime = dateTimeFormatter.format(ZonedDateTime.now());
+            this.fulfillmentTime = ResponseTime.now().getFormatted();
+        }
+        public Integer getMedianAge() {
+            return medianAge;
+        }
+
+        public String getFulfillmentTime() {
+            return fulfillmentTime;
+        }
+    }
+
+    public static class Percentiles {
+        private final Map<String, Integer> percentileAges;
+        private final String fulfillmentTime;
+
+        public Percentiles(Map<String, Integer> percentileAges) {
+            this.percentileAges = percentileAges;
+            this.fulfillmentTime = ResponseTime.now().getFormatted();
+        }
+        public Map<String, Integer> getPercentileAges() {
+            return percentileAges;
+        }
+
+        public String getFulfillmentTime() {
+            return fulfillmentTime;
+        }
+    }
+
+    public static class AgeBucket {
+        private final int fromAge;
+        private final int toAge;
+        private final long count;
+
+        public AgeBucket(int fromAge, int toAge, long count) {
+            this.fromAge = fromAge;
+            this.toAge = toAge;
+            this.count = count;
+        }
+        public int getFromAge() {
+            return fromAge;
+        }
+
+        public int getToAge() {
+            return toAge;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public static class Distribution {
+        private final String asOf;
+        private final long total;
+        private final Integer minAge;
+        private final Integer maxAge;
+        private final Double meanAge;
+        private final Integer medianAge;
+        private final List<AgeBucket> buckets;
+        private final String fulfillmentTime;
+
+        public Distribution(AgeDistribution distribution) {
+            this.asOf = distribution.getAsOf().toString();
+            this.total = distribution.getTotal();
+            boolean empty = distribution.getTotal() == 0;
+            this.minAge = empty ? null : distribution.getMinAge();
+            this.maxAge = empty ? null : distribution.getMaxAge();
+            this.meanAge = empty ? null : Math.round(distribution.getMeanAge() * 100) / 100.0;
+            this.medianAge = empty ? null : distribution.getMedianAge();
+            this.buckets = new ArrayList<>();
+            int width = distribution.getBucketWidth();
+            for (int i = 0; i < distribution.getNumBuckets(); i++) {
+                buckets.add(new AgeBucket(i * width, (i + 1) * width - 1, distribution.getBucketCount(i)));
+            }
+            this.fulfillmentTime = ResponseTime.now().getFormatted();
         }
+        public String getAsOf() {
+            return asOf;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public Integer getMinAge() {
+            return minAge;
+        }
+
+        public Integer getMaxAge() {
+            return maxAge;
+        }
+
+        public Double getMeanAge() {
+            return meanAge;
+        }
+
         public Integer getMedianAge() {
             return medianAge;
         }
 
+        public List<AgeBucket> getBuckets() {
+            return buckets;
+        }
+
+        public String getFulfillmentTime() {
+            return fulfillmentTime;
+        }
+    }
+
+    public static class BatchAdd {
+        private final long accepted;
+        private final long rejected;
+        private final long elapsedMillis;
+        private final long recordsPerSecond;
+        private final String timeAdded;
+
+        public BatchAdd(BatchIngester.Result result) {
+            this.accepted = result.getAccepted();
+            this.rejected = result.getRejected();
+            this.elapsedMillis = result.getElapsedNanos() / 1_000_000;
+            this.recordsPerSecond = result.getRecordsPerSecond();
+            this.timeAdded = ResponseTime.now().getFormatted();
+        }
+        public long getAccepted() {
+            return accepted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public long getRecordsPerSecond() {
+            return recordsPerSecond;
+        }
+
+        public String getTimeAdded() {
+            return timeAdded;
+        }
+    }
+
+    public static class Medians {
+        private final List<Integer> medianAges;
+        private final String fulfillmentTime;
+
+        public Medians(List<Integer> medianAges) {
+            this.medianAges = medianAges;
+            this.fulfillmentTime = ResponseTime.now().getFormatted();
+        }
+        public List<Integer> getMedianAges() {
+            return medianAges;
+        }
+
         public String getFulfillmentTime() {
             return fulfillmentTime;
         }
@@ -79,23 +257,283 @@ public class Birthday {
         }
     }
 
+    public void close() throws IOException {
+        if (follower != null) {
+            follower.close();
+        }
+        coordinator.close();
+        medianDB.close();
+    }
+
     public Add addBirthday(String birthday) {
-        LocalDate bdayDate = LocalDate.parse(birthday, dateFormatter);
-        medianDB.addBirthday(bdayDate);
+        return addBirthday(birthday, null);
+    }
+
+    /**
+     * @param segment segment to add the birthday to, as well as to all birthdays, or null for none
+     */
+    public Add addBirthday(String birthday, String segment) {
+        int epochDay = parseEpochDay(birthday);
+        if (segment == null) {
+            medianDB.addBirthday(epochDay);
+        } else {
+            medianDB.addBirthday(segment, LocalDate.ofEpochDay(epochDay));
+        }
         return new Add(birthday);
     }
 
+    /**
+     * @param date yyyy-MM-dd
+     * @throws IllegalArgumentException if it is not a valid date
+     */
+    static int parseEpochDay(String date) {
+        int epochDay = IsoDateParser.parseEpochDay(date);
+        if (epochDay == IsoDateParser.INVALID_DATE) {
+            throw new IllegalArgumentException("Date " + date + " is not a valid yyyy-MM-dd date");
+        }
+        return epochDay;
+    }
+
+    private static Integer toAge(long epochDay) {
+        return IsoDateParser.ageInYears((int) epochDay, ResponseTime.now().getTodayEpochDay());
+    }
+
+    public BatchAdd addBirthdays(InputStream body, String format) throws IOException {
+        BatchIngester.Format batchFormat = BatchIngester.Format.valueOf(format.toUpperCase());
+        return new BatchAdd(new BatchIngester(medianDB).ingest(body, batchFormat));
+    }
+
     public Median getMedianAge(String start, String end) {
-        LocalDate startDate = LocalDate.parse(start, dateFormatter);
-        LocalDate endDate = LocalDate.parse(end, dateFormatter);
-        Optional<LocalDate> medianBirthdayOptional = medianDB.findMedian(startDate, endDate);
-        if (medianBirthdayOptional.isPresent()) {
-            LocalDate medianBirthday = medianBirthdayOptional.get();
-            LocalDate today = LocalDate.now();
-            int medianAge = Period.between(medianBirthday, today).getYears();
-            return new Median(medianAge);
-        } else {
-            return new Median(null);
+        return getMedianAge(start, end, null);
+    }
+
+    /**
+     * @param segment segment to find the median age of, or null for all birthdays
+     */
+    public Median getMedianAge(String start, String end, String segment) {
+        return getMedianAge(start, end, segment, null);
+    }
+
+    /**
+     * @param window only the birthdays added in this window of time before now, e.g. 15m, 1h, 7d or PT90M, or null
+     *               for all of them. Can't be combined with a segment.
+     */
+    public Median getMedianAge(String start, String end, String segment, String window) {
+        if (segment == null && window == null) {
+            return getMedianAge(parseEpochDay(start), parseEpochDay(end));
+        }
+        LocalDate startDate = LocalDate.ofEpochDay(parseEpochDay(start));
+        LocalDate endDate = LocalDate.ofEpochDay(parseEpochDay(end));
+        if (window != null) {
+            return toMedian(medianDB.findWindowMedian(toWindow(window, segment), startDate, endDate));
+        }
+        return toMedian(medianDB.findMedian(segment, startDate, endDate));
+    }
+
+    /**
+     * Median age of all birthdays in a range of epoch days
+     */
+    Median getMedianAge(int startEpochDay, int endEpochDay) {
+        long median = medianDB.findMedianEpochDay(startEpochDay, endEpochDay);
+        return new Median(median == MedianDB.NO_MEDIAN ? null : toAge(median));
+    }
+
+    /**
+     * @param window a number of minutes, hours or days (15m, 1h, 7d), or an ISO-8601 duration (PT90M)
+     */
+    private static Duration toWindow(String window, String segment) {
+        if (segment != null) {
+            throw new IllegalArgumentException("Windows of segments are not supported");
+        }
+        window = window.trim();
+        if (window.startsWith("P") || window.startsWith("p")) {
+            return Duration.parse(window);
+        }
+        long amount = Long.parseLong(window.substring(0, Math.max(0, window.length() - 1)));
+        switch (window.charAt(window.length() - 1)) {
+            case 'm':
+                return Duration.ofMinutes(amount);
+            case 'h':
+                return Duration.ofHours(amount);
+            case 'd':
+                return Duration.ofDays(amount);
+            default:
+                throw new IllegalArgumentException("Window " + window + " is not minutes (m), hours (h) or days (d)");
+        }
+    }
+
+    /**
+     * Median ages of many ranges at once, from one snapshot
+     *
+     * @param body one range per line, as start,end (1900-01-01,1949-12-31). Blank lines are skipped.
+     * @return the median age of each range, in the order of the lines, null for a range with no birthdays
+     * @throws IllegalArgumentException if a line is not a range of supported dates, with its line number
+     */
+    public Medians getMedianAges(InputStream body) throws IOException {
+        List<LocalDate> startDates = new ArrayList<>();
+        List<LocalDate> endDates = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] range = line.split("\\s*,\\s*");
+            try {
+                if (range.length != 2) {
+                    throw new IllegalArgumentException("expected start,end");
+                }
+                startDates.add(LocalDate.ofEpochDay(parseEpochDay(range[0])));
+                endDates.add(LocalDate.ofEpochDay(parseEpochDay(range[1])));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": " + line + ": " + e.getMessage(), e);
+            }
         }
+        List<Integer> medianAges = new ArrayList<>(startDates.size());
+        for (Optional<LocalDate> median : medianDB.findMedians(startDates, endDates)) {
+            medianAges.add(median.isPresent() ? toAge(median.get().toEpochDay()) : null);
+        }
+        return new Medians(medianAges);
+    }
+
+    /**
+     * Median age over the birthdays of this node and its peers
+     */
+    public Median getClusterMedianAge(String start, String end) {
+        LocalDate startDate = LocalDate.ofEpochDay(parseEpochDay(start));
+        LocalDate endDate = LocalDate.ofEpochDay(parseEpochDay(end));
+        return toMedian(coordinator.mergedHistogram().findMedian(startDate, endDate));
+    }
+
+    private static Median toMedian(Optional<LocalDate> medianBirthday) {
+        return new Median(medianBirthday.isPresent() ? toAge(medianBirthday.get().toEpochDay()) : null);
+    }
+
+    /**
+     * @param percentiles comma-separated percentiles of age, from 0 to 100, e.g. "10,50,90". The p-th percentile
+     *                    of age is the (100 - p)-th percentile of birthdays, so p50 is the median age.
+     * @param segment segment to find the percentiles of, or null for all birthdays
+     * @return the age at each percentile, keyed by "p" and the percentile as given, or null ages if there are no
+     * birthdays in the range
+     */
+    public Percentiles getPercentileAges(String start, String end, String percentiles, String segment) {
+        return getPercentileAges(start, end, percentiles, segment, null);
+    }
+
+    /**
+     * @param window only the birthdays added in this window of time before now, see
+     *               {@link #getMedianAge(String, String, String, String)}, or null for all of them
+     */
+    public Percentiles getPercentileAges(String start, String end, String percentiles, String segment,
+                                         String window) {
+        LocalDate startDate = LocalDate.ofEpochDay(parseEpochDay(start));
+        LocalDate endDate = LocalDate.ofEpochDay(parseEpochDay(end));
+        String[] names = percentiles.split(",");
+        double[] quantiles = toQuantiles(names);
+        if (window != null) {
+            return toPercentiles(names, medianDB.findWindowQuantiles(toWindow(window, segment), startDate, endDate,
+                    quantiles));
+        }
+        return toPercentiles(names, segment == null ? medianDB.findQuantiles(startDate, endDate, quantiles)
+                : medianDB.findQuantiles(segment, startDate, endDate, quantiles));
+    }
+
+    /**
+     * Same as {@link #getPercentileAges(String, String, String, String)}, over the birthdays of this node and its
+     * peers
+     */
+    public Percentiles getClusterPercentileAges(String start, String end, String percentiles) {
+        LocalDate startDate = LocalDate.ofEpochDay(parseEpochDay(start));
+        LocalDate endDate = LocalDate.ofEpochDay(parseEpochDay(end));
+        String[] names = percentiles.split(",");
+        double[] quantiles = toQuantiles(names);
+        return toPercentiles(names, coordinator.mergedHistogram().findQuantiles(startDate, endDate, quantiles));
+    }
+
+    /**
+     * Trims the names of the percentiles in place
+     */
+    private static double[] toQuantiles(String[] names) {
+        double[] quantiles = new double[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim();
+            double percentile = Double.parseDouble(names[i]);
+            if (!(percentile >= 0 && percentile <= 100)) {
+                throw new IllegalArgumentException("Percentile " + names[i] + " is not between 0 and 100");
+            }
+            quantiles[i] = (100 - percentile) / 100;
+        }
+        return quantiles;
+    }
+
+    private static Percentiles toPercentiles(String[] names, Optional<List<LocalDate>> birthdays) {
+        Map<String, Integer> ages = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            ages.put("p" + names[i], birthdays.isPresent() ? toAge(birthdays.get().get(i).toEpochDay()) : null);
+        }
+        return new Percentiles(ages);
+    }
+
+    /**
+     * @param asOf date the ages are as of, or null for today
+     * @param bucketWidth years of age in each bucket
+     * @param segment segment to find the distribution of, or null for all birthdays
+     */
+    public Distribution getAgeDistribution(String asOf, int bucketWidth, String segment) {
+        LocalDate asOfDate = LocalDate.ofEpochDay(asOf == null ? ResponseTime.now().getTodayEpochDay()
+                : parseEpochDay(asOf));
+        return new Distribution(segment == null ? medianDB.findAgeDistribution(asOfDate, bucketWidth)
+                : medianDB.findAgeDistribution(segment, asOfDate, bucketWidth));
+    }
+
+    /**
+     * @return tag of the current version of the histogram of this node, see {@link #exportHistogram()}
+     */
+    public String getExportTag() {
+        return medianDB.getExportTag();
+    }
+
+    /**
+     * @return the histogram of this node, encoded for its peers
+     */
+    public HistogramExport exportHistogram() {
+        return medianDB.export();
+    }
+
+    /**
+     * @return latencies and counters of the adds, queries, snapshots and checkpoints so far, by name
+     */
+    public Map<String, Object> getMetrics() {
+        return medianDB.getMetricsReport();
+    }
+
+    /**
+     * Follow a leader: apply its changes until closed. The median DB must be configured as a replica.
+     *
+     * @param leader base URL of the leader, e.g. http://10.0.0.1:8080
+     */
+    public void follow(String leader, int pollMillis, int timeoutMillis) {
+        if (!medianDB.isReplica()) {
+            throw new IllegalStateException("Only a replica can follow a leader");
+        }
+        follower = new ReplicationFollower(medianDB, leader, pollMillis, timeoutMillis);
+    }
+
+    /**
+     * @param instance instance id of the leader the follower is at, in hex
+     * @param after version of the leader the follower is at
+     * @return the changes after it, or null if the follower must resync from the export
+     */
+    public ChangeLog.Batch readChanges(String instance, long after, int maxRecords) {
+        return medianDB.readChanges(Long.parseUnsignedLong(instance, 16), after, maxRecords);
+    }
+
+    /**
+     * @return the role of this node in replication, and for a replica how far behind its leader it is, by name
+     */
+    public Map<String, Object> getReplicationStatus() {
+        return follower != null ? follower.status() : medianDB.getReplicationReport();
     }
 }
@@ -0,0 +1,164 @@
+/**
+ * Answers queries over the birthdays of every node: fetches the histogram exports of the peers in parallel, merges
+ * them with this node's by adding up day counts, and queries the merged histogram.
+ *
+ * Each peer's export is fetched with the tag of the one fetched last in If-None-Match, so a peer whose histogram
+ * didn't change answers 304 and sends nothing. The merged histogram is kept until the tag of any node changes.
+ * A peer that can't be reached fails the query, as the answer would not be exact without it.
+ */
+package name.chen.dave.rest;
+
+import name.chen.dave.impl.HistogramExport;
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.MergedHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+class ClusterCoordinator implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(ClusterCoordinator.class.getName());
+
+    static final String EXPORT_PATH = "/birthday/export";
+
+    private final MedianDB medianDB;
+    private final List<String> peers;
+    private final int timeoutMillis;
+    private final ExecutorService fetchers;
+    // Last export fetched from each peer, and from this node
+    private final ConcurrentHashMap<String, HistogramExport> exports = new ConcurrentHashMap<>();
+    private volatile HistogramExport localExport;
+    private volatile Merged merged;
+
+    private static final class Merged {
+        final List<String> tags;
+        final MergedHistogram histogram;
+
+        Merged(List<String> tags, MergedHistogram histogram) {
+            this.tags = tags;
+            this.histogram = histogram;
+        }
+    }
+
+    /**
+     * @param peers base URLs of the other nodes, e.g. http://10.0.0.2:8080
+     */
+    ClusterCoordinator(MedianDB medianDB, List<String> peers, int timeoutMillis) {
+        this.medianDB = medianDB;
+        this.peers = peers;
+        this.timeoutMillis = timeoutMillis;
+        this.fetchers = Executors.newFixedThreadPool(Math.max(1, peers.size()), runnable -> {
+            Thread thread = new Thread(runnable, "peer-histogram-fetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    List<String> getPeers() {
+        return peers;
+    }
+
+    /**
+     * @return the histograms of every node merged, as of the time of the call
+     * @throws UncheckedIOException if a peer can't be reached or answers with an error
+     * @throws IllegalArgumentException if the nodes hold more birthdays together than a histogram can count
+     */
+    MergedHistogram mergedHistogram() {
+        List<Future<HistogramExport>> fetches = new ArrayList<>();
+        for (String peer : peers) {
+            fetches.add(fetchers.submit(() -> fetch(peer)));
+        }
+        List<HistogramExport> current = new ArrayList<>();
+        current.add(localExport());
+        for (int i = 0; i < fetches.size(); i++) {
+            try {
+                current.add(fetches.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while fetching histograms", e);
+            } catch (ExecutionException e) {
+                throw new UncheckedIOException(new IOException("Could not fetch the histogram of peer "
+                        + peers.get(i) + ": " + e.getCause().getMessage(), e.getCause()));
+            }
+        }
+        List<String> tags = new ArrayList<>();
+        for (HistogramExport export : current) {
+            tags.add(export.getTag());
+        }
+        Merged last = merged;
+        if (last != null && last.tags.equals(tags)) {
+            return last.histogram;
+        }
+        MergedHistogram histogram = medianDB.merge(current);
+        if (histogram.getLeftOut() > 0) {
+            LOGGER.warning(histogram.getLeftOut() + " birthdays of peers are outside of the years of this node");
+        }
+        merged = new Merged(tags, histogram);
+        return histogram;
+    }
+
+    private HistogramExport localExport() {
+        HistogramExport export = localExport;
+        if (export == null || !export.getTag().equals(medianDB.getExportTag())) {
+            export = medianDB.export();
+            localExport = export;
+        }
+        return export;
+    }
+
+    private HistogramExport fetch(String peer) throws IOException {
+        HistogramExport last = exports.get(peer);
+        HttpURLConnection connection = (HttpURLConnection) new URL(peer + EXPORT_PATH).openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            if (last != null) {
+                connection.setRequestProperty("If-None-Match", "\"" + last.getTag() + "\"");
+            }
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && last != null) {
+                return last;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP status " + status);
+            }
+            HistogramExport export;
+            try (InputStream in = connection.getInputStream()) {
+                export = HistogramExport.decode(readAll(in));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            exports.put(peer, export);
+            return export;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        fetchers.shutdownNow();
+    }
+}
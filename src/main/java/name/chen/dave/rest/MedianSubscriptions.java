@@ -0,0 +1,323 @@
+/**
+ * Pushes the median age of a range of birthdays to subscribers, as server-sent events, when it changes, instead of
+ * every dashboard asking for it every few seconds.
+ *
+ * Subscribers of the same range share a topic. A single thread looks for changes at most once per interval: when
+ * birthdays were added since its last look, or the day changed, it finds the median of each topic once, and sends it
+ * to every subscriber of the topic only if the age differs from the last one sent. Adds in between are coalesced, so
+ * a topic costs one median per interval at most, however many subscribers it has and however many birthdays were
+ * added.
+ *
+ * A subscriber first gets the current median, then the changes. Subscriptions end after a timeout, and browsers
+ * reconnect by themselves. Past the maximum number of subscribers, subscribing fails with a
+ * {@link RejectedExecutionException}.
+ *
+ * Events are written to the subscribers on a pool of threads of their own, never with a topic's monitor held, so a
+ * client that stops reading only holds up the thread writing to it. A subscriber has at most one write in progress,
+ * and changes found meanwhile replace each other, so that only the latest is sent next. A subscriber whose write
+ * takes longer than the send timeout is dropped: nothing more is sent to it, and its subscription ends with its
+ * timeout.
+ */
+package name.chen.dave.rest;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+final class MedianSubscriptions {
+
+    private final static Logger LOGGER = Logger.getLogger(MedianSubscriptions.class.getName());
+
+    static final String EVENT_NAME = "median";
+
+    private final Birthday birthday;
+    private final int maxSubscribers;
+    private final long timeoutMillis;
+    private final long sendTimeoutNanos;
+    private final ConcurrentHashMap<Long, Topic> topics = new ConcurrentHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder recomputes = new LongAdder();
+    private final LongAdder eventsSent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final ScheduledExecutorService scheduler;
+    private final ThreadPoolExecutor senders;
+    // Only used by the scheduler thread: what the medians of the topics were last found for
+    private String lastTag;
+    private int lastDay;
+
+    private static final class Topic {
+        final int startEpochDay;
+        final int endEpochDay;
+        // Guarded by this
+        final List<Subscriber> subscribers = new ArrayList<>();
+        Birthday.Median lastSent;
+        // Set once the last subscriber left and the topic was removed: subscribers must make a new one
+        boolean removed;
+
+        Topic(int startEpochDay, int endEpochDay) {
+            this.startEpochDay = startEpochDay;
+            this.endEpochDay = endEpochDay;
+        }
+    }
+
+    private static final class Subscriber {
+        final SseEmitter emitter;
+        // Guarded by this: the latest median not sent yet, and whether a sender owns the subscriber
+        Birthday.Median next;
+        boolean sending;
+        // When the write in progress started, or 0 if there is none
+        volatile long sendingSince;
+
+        Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    /**
+     * @param intervalMillis least time between two events of a topic
+     * @param maxSubscribers subscribers of all topics, past which subscribing is rejected
+     * @param timeoutMillis how long a subscription lasts
+     * @param sendThreads threads writing events to subscribers
+     * @param sendTimeoutMillis how long writing an event may take before its subscriber is dropped
+     */
+    MedianSubscriptions(Birthday birthday, int intervalMillis, int maxSubscribers, long timeoutMillis,
+                        int sendThreads, long sendTimeoutMillis) {
+        if (intervalMillis < 1 || maxSubscribers < 0 || timeoutMillis < 1 || sendThreads < 1
+                || sendTimeoutMillis < 1) {
+            throw new IllegalArgumentException("Subscriptions need an interval and timeouts of 1 ms or more, 1 "
+                    + "thread or more and 0 subscribers or more, not " + intervalMillis + ", " + timeoutMillis + ", "
+                    + sendTimeoutMillis + ", " + sendThreads + " and " + maxSubscribers);
+        }
+        this.birthday = birthday;
+        this.maxSubscribers = maxSubscribers;
+        this.timeoutMillis = timeoutMillis;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mediandb-subscriptions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A subscriber is in the queue once at most, so it never fills up
+        senders = new ThreadPoolExecutor(sendThreads, sendThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, maxSubscribers)), runnable -> {
+            Thread thread = new Thread(runnable, "mediandb-subscription-sends");
+            thread.setDaemon(true);
+            return thread;
+        });
+        senders.allowCoreThreadTimeOut(true);
+        scheduler.scheduleWithFixedDelay(this::publishChanges, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribe to the median age of a range, sent now and whenever it changes
+     *
+     * @throws RejectedExecutionException if there are already as many subscribers as allowed
+     */
+    SseEmitter subscribe(int startEpochDay, int endEpochDay) {
+        return subscribe(startEpochDay, endEpochDay, new SseEmitter(timeoutMillis));
+    }
+
+    SseEmitter subscribe(int startEpochDay, int endEpochDay, SseEmitter emitter) {
+        if (subscribers.incrementAndGet() > maxSubscribers) {
+            subscribers.decrementAndGet();
+            rejected.increment();
+            throw new RejectedExecutionException("There are already " + maxSubscribers + " subscribers");
+        }
+        Subscriber subscriber = new Subscriber(emitter);
+        long key = (long) startEpochDay << 32 | (endEpochDay & 0xFFFFFFFFL);
+        while (true) {
+            Topic topic = topics.computeIfAbsent(key, k -> new Topic(startEpochDay, endEpochDay));
+            synchronized (topic) {
+                if (topic.removed) {
+                    continue;
+                }
+                if (topic.lastSent == null) {
+                    try {
+                        topic.lastSent = findMedian(topic);
+                    } catch (RuntimeException e) {
+                        // A date not supported: leave no topic behind
+                        subscribers.decrementAndGet();
+                        if (topic.subscribers.isEmpty()) {
+                            topic.removed = true;
+                            topics.remove(key, topic);
+                        }
+                        throw e;
+                    }
+                }
+                topic.subscribers.add(subscriber);
+                emitter.onCompletion(() -> unsubscribe(key, topic, subscriber));
+                emitter.onTimeout(emitter::complete);
+                // Queued with the monitor held, so that it can't overtake a later change
+                offer(key, topic, subscriber, topic.lastSent);
+                return emitter;
+            }
+        }
+    }
+
+    private void unsubscribe(long key, Topic topic, Subscriber subscriber) {
+        synchronized (topic) {
+            if (topic.subscribers.remove(subscriber)) {
+                subscribers.decrementAndGet();
+            }
+            if (topic.subscribers.isEmpty() && !topic.removed) {
+                topic.removed = true;
+                topics.remove(key, topic);
+            }
+        }
+    }
+
+    private Birthday.Median findMedian(Topic topic) {
+        recomputes.increment();
+        return birthday.getMedianAge(topic.startEpochDay, topic.endEpochDay);
+    }
+
+    /**
+     * Queue a median to be sent to a subscriber, replacing any not sent yet. Never waits for the write.
+     */
+    private void offer(long key, Topic topic, Subscriber subscriber, Birthday.Median median) {
+        synchronized (subscriber) {
+            subscriber.next = median;
+            if (subscriber.sending) {
+                return;
+            }
+            subscriber.sending = true;
+        }
+        try {
+            senders.execute(() -> send(key, topic, subscriber));
+        } catch (RejectedExecutionException e) {
+            // Closed
+            unsubscribe(key, topic, subscriber);
+        }
+    }
+
+    /**
+     * Send the medians queued for a subscriber until there are none, on a sender thread. A subscriber that can't be
+     * sent to is dropped.
+     */
+    private void send(long key, Topic topic, Subscriber subscriber) {
+        while (true) {
+            Birthday.Median median;
+            synchronized (subscriber) {
+                median = subscriber.next;
+                subscriber.next = null;
+                if (median == null) {
+                    subscriber.sending = false;
+                    return;
+                }
+            }
+            subscriber.sendingSince = System.nanoTime();
+            try {
+                subscriber.emitter.send(SseEmitter.event().name(EVENT_NAME).data(median, MediaType.APPLICATION_JSON));
+                eventsSent.increment();
+            } catch (IOException | IllegalStateException e) {
+                // Gone, or timed out: the container ends the request itself. Still marked as sending, so it never
+                // gets another sender.
+                unsubscribe(key, topic, subscriber);
+                return;
+            } finally {
+                subscriber.sendingSince = 0;
+            }
+        }
+    }
+
+    /**
+     * Drop the subscribers whose write has taken longer than the send timeout. The thread writing stays blocked
+     * until the connection times out, but nothing more is queued for them.
+     */
+    private void dropStuckSubscribers() {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, Topic> entry : topics.entrySet()) {
+            Topic topic = entry.getValue();
+            List<Subscriber> subscribersOfTopic;
+            synchronized (topic) {
+                subscribersOfTopic = new ArrayList<>(topic.subscribers);
+            }
+            for (Subscriber subscriber : subscribersOfTopic) {
+                long since = subscriber.sendingSince;
+                if (since != 0 && now - since > sendTimeoutNanos) {
+                    dropped.increment();
+                    unsubscribe(entry.getKey(), topic, subscriber);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the median of every topic once, if birthdays were added or the day changed since the last time, and send
+     * those that changed to their subscribers
+     */
+    private void publishChanges() {
+        try {
+            dropStuckSubscribers();
+            String tag = birthday.getExportTag();
+            int today = ResponseTime.now().getTodayEpochDay();
+            if (tag.equals(lastTag) && today == lastDay) {
+                return;
+            }
+            lastTag = tag;
+            lastDay = today;
+            for (Map.Entry<Long, Topic> entry : topics.entrySet()) {
+                Topic topic = entry.getValue();
+                Birthday.Median median = findMedian(topic);
+                synchronized (topic) {
+                    if (topic.lastSent != null
+                            && Objects.equals(median.getMedianAge(), topic.lastSent.getMedianAge())) {
+                        continue;
+                    }
+                    topic.lastSent = median;
+                    // Queued with the monitor held, in the order of the changes. Over a copy, as a closed pool
+                    // unsubscribes.
+                    for (Subscriber subscriber : new ArrayList<>(topic.subscribers)) {
+                        offer(entry.getKey(), topic, subscriber, median);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep the scheduled task running
+            LOGGER.log(Level.WARNING, "Publishing median changes failed", e);
+        }
+    }
+
+    /**
+     * @return topics, subscribers, subscriptions rejected, medians found, events sent and subscribers dropped for
+     * not reading them
+     */
+    Map<String, Object> getMetrics() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("topics", topics.size());
+        report.put("subscribers", subscribers.get());
+        report.put("rejected", rejected.sum());
+        report.put("recomputes", recomputes.sum());
+        report.put("eventsSent", eventsSent.sum());
+        report.put("dropped", dropped.sum());
+        return report;
+    }
+
+    /**
+     * Stop looking for changes. The subscriptions end as the server stops and closes their connections: completing
+     * them here would dispatch each of them again while the server is stopping.
+     */
+    void close() {
+        scheduler.shutdownNow();
+        senders.shutdownNow();
+    }
+}
@@ -1,19 +1,46 @@
 /**
  * The REST controller
+ *
+ * The median DB is configured from the Spring environment, so from application properties, command line arguments
+ * or system properties. The other nodes of a cluster are listed in mediandb.peers, comma-separated. A node with a
+ * mediandb.replication.leader is a read-only replica of that node.
+ *
+ * With mediandb.rest.readThreads or mediandb.rest.writeThreads set, queries or adds are answered asynchronously on
+ * pools of their own, see {@link name.chen.dave.rest.RequestExecutors}. Peer, replication and metrics requests are
+ * always answered on the request thread.
+ *
+ * Dashboards can subscribe to the median age of a range instead of asking for it over and over, and get it as
+ * server-sent events when it changes, see {@link name.chen.dave.rest.MedianSubscriptions}.
  */
 package name.chen.dave.rest;
 
+import name.chen.dave.impl.ChangeLog;
+import name.chen.dave.impl.HistogramExport;
+import name.chen.dave.impl.MedianDBConfig;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 
 @RestController
 public class ProfileMedianReporter {
@@ -21,20 +48,193 @@ public class ProfileMedianReporter {
     private final static Logger LOGGER = Logger.getLogger(ProfileMedianReporter.class.getName());
 
     private Birthday birthday;
+    private final RequestExecutors executors;
+    private final MedianSubscriptions subscriptions;
 
-    public ProfileMedianReporter() throws IOException {
-        birthday = new Birthday();
+    public ProfileMedianReporter(Environment environment) throws IOException {
+        executors = new RequestExecutors(environment.getProperty("mediandb.rest.readThreads", Integer.class, 0),
+                environment.getProperty("mediandb.rest.writeThreads", Integer.class, 0),
+                environment.getProperty("mediandb.rest.queueSize", Integer.class, 10000));
+        String peers = environment.getProperty("mediandb.peers", "").trim();
+        birthday = new Birthday(MedianDBConfig.fromProperties(environment::getProperty),
+                peers.isEmpty() ? Collections.emptyList() : Arrays.asList(peers.split("\\s*,\\s*")),
+                environment.getProperty("mediandb.peers.timeoutMillis", Integer.class, 2000));
+        String leader = environment.getProperty("mediandb.replication.leader", "").trim();
+        if (!leader.isEmpty()) {
+            birthday.follow(leader, environment.getProperty("mediandb.replication.pollMillis", Integer.class, 100),
+                    environment.getProperty("mediandb.replication.timeoutMillis", Integer.class, 2000));
+        }
+        subscriptions = new MedianSubscriptions(birthday,
+                environment.getProperty("mediandb.rest.subscriptions.intervalMillis", Integer.class, 1000),
+                environment.getProperty("mediandb.rest.subscriptions.max", Integer.class, 10000),
+                environment.getProperty("mediandb.rest.subscriptions.timeoutMillis", Long.class, 600000L),
+                environment.getProperty("mediandb.rest.subscriptions.sendThreads", Integer.class, 4),
+                environment.getProperty("mediandb.rest.subscriptions.sendTimeoutMillis", Long.class, 10000L));
     }
 
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        subscriptions.close();
+        executors.close();
+        birthday.close();
+    }
+
+    /**
+     * Add a birthday, optionally to a segment such as an account or a region as well
+     */
     @RequestMapping(value = "/birthday/add", method = RequestMethod.GET)
-    public Birthday.Add addBirthday(@RequestParam(value="birthday") String birthdayParam) {
-        return birthday.addBirthday(birthdayParam);
+    public CompletableFuture<Birthday.Add> addBirthday(@RequestParam(value="birthday") String birthdayParam,
+                                                       @RequestParam(value="segment", required=false)
+                                                               String segment) {
+        return executors.write(() -> birthday.addBirthday(birthdayParam, segment));
+    }
+
+    /**
+     * Add birthdays streamed in the request body, one per line: CSV (date or date,count) or NDJSON
+     */
+    @RequestMapping(value = "/birthday/batch", method = RequestMethod.POST)
+    public CompletableFuture<Birthday.BatchAdd> addBirthdays(@RequestParam(value="format", defaultValue="csv")
+                                                                     String format,
+                                                             InputStream body) {
+        return executors.write(() -> birthday.addBirthdays(body, format));
     }
 
+    /**
+     * Median age of all birthdays, of a segment's, or of those added in a recent window such as window=1h
+     */
     @RequestMapping(value = "/birthday/medianage", method = RequestMethod.GET)
-    public Birthday.Median getMedianAge(@RequestParam(value="start") String start,
-                                        @RequestParam(value="end") String end) {
-        return birthday.getMedianAge(start, end);
+    public CompletableFuture<Birthday.Median> getMedianAge(@RequestParam(value="start") String start,
+                                                           @RequestParam(value="end") String end,
+                                                           @RequestParam(value="segment", required=false)
+                                                                   String segment,
+                                                           @RequestParam(value="window", required=false)
+                                                                   String window) {
+        return executors.read(() -> birthday.getMedianAge(start, end, segment, window));
+    }
+
+    /**
+     * Median age of all birthdays in a range as server-sent events named "median": the current one, then each new
+     * one, at most once per mediandb.rest.subscriptions.intervalMillis
+     */
+    @RequestMapping(value = "/birthday/medianage/subscribe", method = RequestMethod.GET)
+    public SseEmitter subscribeMedianAge(@RequestParam(value="start") String start,
+                                         @RequestParam(value="end") String end) {
+        return subscriptions.subscribe(Birthday.parseEpochDay(start), Birthday.parseEpochDay(end));
+    }
+
+    /**
+     * Median ages of many ranges in one request, one start,end range per line of the body, answered in order
+     */
+    @RequestMapping(value = "/birthday/medianage/batch", method = RequestMethod.POST)
+    public CompletableFuture<Birthday.Medians> getMedianAges(InputStream body) {
+        return executors.read(() -> birthday.getMedianAges(body));
+    }
+
+    /**
+     * Several percentiles of age in one request, e.g. p=10,25,50,75,90,99
+     */
+    @RequestMapping(value = "/birthday/percentileage", method = RequestMethod.GET)
+    public CompletableFuture<Birthday.Percentiles> getPercentileAges(
+            @RequestParam(value="start") String start,
+            @RequestParam(value="end") String end,
+            @RequestParam(value="p", defaultValue="10,25,50,75,90,99") String percentiles,
+            @RequestParam(value="segment", required=false) String segment,
+            @RequestParam(value="window", required=false) String window) {
+        return executors.read(() -> birthday.getPercentileAges(start, end, percentiles, segment, window));
+    }
+
+    /**
+     * Number of birthdays in each bucket of width years of age as of a date (today by default), with the min, max,
+     * mean and median age, from one snapshot. Optionally for a segment.
+     */
+    @RequestMapping(value = "/birthday/agedistribution", method = RequestMethod.GET)
+    public CompletableFuture<Birthday.Distribution> getAgeDistribution(
+            @RequestParam(value="asOf", required=false) String asOf,
+            @RequestParam(value="width", defaultValue="10") int width,
+            @RequestParam(value="segment", required=false) String segment) {
+        return executors.read(() -> birthday.getAgeDistribution(asOf, width, segment));
+    }
+
+    /**
+     * Latencies and counters of the median DB, and the threads and queues of the request pools, as JSON
+     */
+    @RequestMapping(value = "/birthday/metrics", method = RequestMethod.GET)
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(birthday.getMetrics());
+        metrics.put("requests", executors.getMetrics());
+        metrics.put("subscriptions", subscriptions.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * The histogram of this node, for its peers to merge: binary, tagged with its version in the ETag. Answers 304
+     * to an If-None-Match of the current tag.
+     */
+    @RequestMapping(value = "/birthday/export", method = RequestMethod.GET)
+    public ResponseEntity<byte[]> exportHistogram(
+            @RequestHeader(value="If-None-Match", required=false) String ifNoneMatch) {
+        String etag = "\"" + birthday.getExportTag() + "\"";
+        if (etag.equals(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        HistogramExport export = birthday.exportHistogram();
+        return ResponseEntity.ok()
+                .eTag("\"" + export.getTag() + "\"")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .body(export.encode());
+    }
+
+    /**
+     * Median age of the birthdays of every node of the cluster
+     */
+    @RequestMapping(value = "/birthday/cluster/medianage", method = RequestMethod.GET)
+    public CompletableFuture<Birthday.Median> getClusterMedianAge(@RequestParam(value="start") String start,
+                                                                  @RequestParam(value="end") String end) {
+        return executors.read(() -> birthday.getClusterMedianAge(start, end));
+    }
+
+    /**
+     * Percentiles of age of the birthdays of every node of the cluster
+     */
+    @RequestMapping(value = "/birthday/cluster/percentileage", method = RequestMethod.GET)
+    public CompletableFuture<Birthday.Percentiles> getClusterPercentileAges(
+            @RequestParam(value="start") String start,
+            @RequestParam(value="end") String end,
+            @RequestParam(value="p", defaultValue="10,25,50,75,90,99") String percentiles) {
+        return executors.read(() -> birthday.getClusterPercentileAges(start, end, percentiles));
+    }
+
+    /**
+     * Changes of the histogram of this leader after a version, for its followers: binary. Answers 410 if they are
+     * not kept anymore, or the instance is not this one, so the follower must resync from the export.
+     */
+    @RequestMapping(value = "/birthday/replication/log", method = RequestMethod.GET)
+    public ResponseEntity<byte[]> readChanges(@RequestParam(value="instance") String instance,
+                                              @RequestParam(value="after") long after,
+                                              @RequestParam(value="max", defaultValue="65536") int maxRecords) {
+        ChangeLog.Batch batch = birthday.readChanges(instance, after, maxRecords);
+        if (batch == null) {
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                .body(batch.encode());
+    }
+
+    /**
+     * Role of this node in replication, and for a replica its lag behind the leader, as JSON
+     */
+    @RequestMapping(value = "/birthday/replication/status", method = RequestMethod.GET)
+    public Map<String, Object> getReplicationStatus() {
+        return birthday.getReplicationStatus();
+    }
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    public final ResponseEntity<Birthday.ErrorResponse> handleRejectedRequest(RejectedExecutionException ex) {
+        return errorResponse(SERVICE_UNAVAILABLE,
+                Collections.singletonList("Too many requests queued, try again later"));
     }
 
     @ExceptionHandler(Exception.class)
@@ -42,7 +242,15 @@ public class ProfileMedianReporter {
             (Exception ex, WebRequest request) {
         List<String> details = new ArrayList<>();
         details.add(ex.getLocalizedMessage());
-        Birthday.ErrorResponse error = new Birthday.ErrorResponse(BAD_REQUEST, details);
-        return new ResponseEntity<>(error, HttpStatus.BAD_REQUEST);
+        return errorResponse(BAD_REQUEST, details);
+    }
+
+    /**
+     * Errors are JSON whatever the request accepts, so that subscribers asking for text/event-stream get the status
+     * rather than a 406
+     */
+    private static ResponseEntity<Birthday.ErrorResponse> errorResponse(HttpStatus status, List<String> details) {
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON)
+                .body(new Birthday.ErrorResponse(status, details));
     }
 }
@@ -0,0 +1,191 @@
+/**
+ * Keeps a read-only replica in step with its leader: polls the leader for the changes after the replica's position
+ * and applies them, in batches of whole versions, until it has every change the leader had when asked.
+ *
+ * A replica with no position, such as a new one or one whose last position was not checkpointed, or one whose
+ * position the leader no longer has the changes after (410 Gone), copies the leader's whole histogram from its
+ * export, and goes on from the export's version. A leader that restarted is a new instance, so its followers
+ * resync from it too.
+ *
+ * Lag is reported as the number of leader versions not applied yet, as of the last poll, and the time since the
+ * replica last had every change of its leader, which is the poll interval plus a round trip when all is well.
+ */
+package name.chen.dave.rest;
+
+import name.chen.dave.impl.ChangeLog;
+import name.chen.dave.impl.HistogramExport;
+import name.chen.dave.impl.MedianDB;
+import name.chen.dave.impl.ReplicaPosition;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class ReplicationFollower implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(ReplicationFollower.class.getName());
+
+    static final String LOG_PATH = "/birthday/replication/log";
+    private static final int MAX_RECORDS = 64 * 1024;
+
+    private final MedianDB medianDB;
+    private final String leader;
+    private final int timeoutMillis;
+    private final ScheduledExecutorService poller;
+    // Latest version of the leader seen, or -1 if none yet
+    private volatile long leaderVersion = -1;
+    // When the replica last had every change the leader had, or 0 if never
+    private volatile long caughtUpMillis;
+    private final LongAdder batchesApplied = new LongAdder();
+    private final LongAdder recordsApplied = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile String lastError;
+
+    /**
+     * @param leader base URL of the leader, e.g. http://10.0.0.1:8080
+     * @param pollMillis how long to wait between polls, once caught up
+     */
+    ReplicationFollower(MedianDB medianDB, String leader, int pollMillis, int timeoutMillis) {
+        this.medianDB = medianDB;
+        this.leader = leader;
+        this.timeoutMillis = timeoutMillis;
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication-follower");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::pollSafely, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void pollSafely() {
+        try {
+            poll();
+            lastError = null;
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            if (lastError == null) {
+                LOGGER.log(Level.WARNING, "Could not replicate from " + leader, e);
+            }
+            lastError = e.toString();
+        }
+    }
+
+    /**
+     * Fetch and apply changes until caught up with the leader, resyncing first if needed.
+     */
+    private void poll() throws IOException {
+        while (true) {
+            long requested = System.currentTimeMillis();
+            ReplicaPosition position = medianDB.getReplicaPosition();
+            if (position == null) {
+                resync();
+                continue;
+            }
+            HttpURLConnection connection = open(LOG_PATH + "?instance=" + Long.toHexString(position.getInstanceId())
+                    + "&after=" + position.getVersion() + "&max=" + MAX_RECORDS);
+            ChangeLog.Batch batch;
+            try {
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_GONE) {
+                    LOGGER.info("Leader " + leader + " no longer has the changes after " + position + ", resyncing");
+                    resync();
+                    continue;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP status " + status + " from " + leader + LOG_PATH);
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    batch = ChangeLog.Batch.decode(ClusterCoordinator.readAll(in));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            } finally {
+                connection.disconnect();
+            }
+            if (batch.getToVersion() > batch.getAfterVersion()) {
+                medianDB.applyChanges(batch);
+                batchesApplied.increment();
+                recordsApplied.add(batch.size());
+            }
+            leaderVersion = batch.getLatestVersion();
+            if (batch.getToVersion() == batch.getLatestVersion()) {
+                caughtUpMillis = requested;
+                return;
+            }
+        }
+    }
+
+    private void resync() throws IOException {
+        HttpURLConnection connection = open(ClusterCoordinator.EXPORT_PATH);
+        HistogramExport export;
+        try {
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP status " + status + " from " + leader + ClusterCoordinator.EXPORT_PATH);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                export = HistogramExport.decode(ClusterCoordinator.readAll(in));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        } finally {
+            connection.disconnect();
+        }
+        long leftOut = medianDB.resync(export);
+        if (leftOut > 0) {
+            LOGGER.warning(leftOut + " birthdays of the leader are outside of the years of this replica");
+        }
+        resyncs.increment();
+        leaderVersion = export.getVersion();
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(leader + path).openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        return connection;
+    }
+
+    /**
+     * @return the replica's position, the lag behind the leader and counters of the replication so far, by name
+     */
+    Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>(medianDB.getReplicationReport());
+        ReplicaPosition position = medianDB.getReplicaPosition();
+        long latest = leaderVersion;
+        long caughtUp = caughtUpMillis;
+        status.put("leader", leader);
+        status.put("leaderVersion", latest < 0 ? null : latest);
+        status.put("lagVersions", position == null || latest < 0 ? null : Math.max(0, latest - position.getVersion()));
+        status.put("lagMillis", caughtUp == 0 ? null : System.currentTimeMillis() - caughtUp);
+        status.put("batchesApplied", batchesApplied.sum());
+        status.put("recordsApplied", recordsApplied.sum());
+        status.put("resyncs", resyncs.sum());
+        status.put("failures", failures.sum());
+        status.put("lastError", lastError);
+        return status;
+    }
+
+    /**
+     * Stop polling, waiting for a batch being applied
+     */
+    @Override
+    public void close() {
+        poller.shutdownNow();
+        try {
+            poller.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
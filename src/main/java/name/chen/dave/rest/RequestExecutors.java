@@ -0,0 +1,134 @@
+/**
+ * Runs the add and query requests of the REST API on two bounded pools of their own, one for adds and one for
+ * queries, rather than on the Tomcat thread of the request.
+ *
+ * The controller returns a future, so Spring MVC hands the request over to the pool through servlet async and the
+ * Tomcat thread goes back to accepting requests. Adds backed up behind a checkpoint or a slow write-ahead log fsync
+ * then only fill the add pool and its queue, and queries keep their own threads. A request that finds its queue
+ * full is rejected at once, with a 503, instead of waiting for a thread.
+ *
+ * With 0 threads for a pool its requests run on the request thread, as before, and the future is already done when
+ * the controller returns it.
+ */
+package name.chen.dave.rest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+final class RequestExecutors {
+
+    private final Pool reads;
+    private final Pool writes;
+
+    private static final class Pool {
+        // Null when requests run on the request thread
+        final ThreadPoolExecutor executor;
+        final LongAdder rejected = new LongAdder();
+
+        Pool(String name, int threads, int queueSize) {
+            if (threads < 0 || queueSize < 1) {
+                throw new IllegalArgumentException("A pool of " + name + " needs 0 threads or more and a queue "
+                        + "of 1 or more, not " + threads + " and " + queueSize);
+            }
+            if (threads == 0) {
+                executor = null;
+                return;
+            }
+            AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), runnable -> {
+                        Thread thread = new Thread(runnable, "mediandb-" + name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+
+        <T> CompletableFuture<T> submit(Callable<T> request) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            Runnable task = () -> {
+                try {
+                    future.complete(request.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            };
+            if (executor == null) {
+                task.run();
+                return future;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        Map<String, Object> report() {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("threads", executor == null ? 0 : executor.getMaximumPoolSize());
+            report.put("active", executor == null ? 0 : executor.getActiveCount());
+            report.put("queued", executor == null ? 0 : executor.getQueue().size());
+            report.put("rejected", rejected.sum());
+            return report;
+        }
+
+        void close() throws InterruptedException {
+            if (executor != null) {
+                executor.shutdown();
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * @param readThreads threads answering queries, 0 to answer them on the request thread
+     * @param writeThreads threads adding birthdays, 0 to add them on the request thread
+     * @param queueSize requests each pool holds while its threads are busy, past which they are rejected
+     */
+    RequestExecutors(int readThreads, int writeThreads, int queueSize) {
+        reads = new Pool("reads", readThreads, queueSize);
+        writes = new Pool("writes", writeThreads, queueSize);
+    }
+
+    /**
+     * @return the result of the query, failed with a {@link RejectedExecutionException} if the queue is full
+     */
+    <T> CompletableFuture<T> read(Callable<T> query) {
+        return reads.submit(query);
+    }
+
+    /**
+     * @return the result of the add, failed with a {@link RejectedExecutionException} if the queue is full
+     */
+    <T> CompletableFuture<T> write(Callable<T> add) {
+        return writes.submit(add);
+    }
+
+    /**
+     * @return threads, active and queued requests and rejections of each pool
+     */
+    Map<String, Object> getMetrics() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("reads", reads.report());
+        report.put("writes", writes.report());
+        return report;
+    }
+
+    /**
+     * Stop taking requests, and wait a while for those queued to finish
+     */
+    void close() throws InterruptedException {
+        writes.close();
+        reads.close();
+    }
+}
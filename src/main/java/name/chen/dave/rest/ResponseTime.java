@@ -0,0 +1,59 @@
+/**
+ * The time stamped on responses and today's date, worked out once per second and shared by every response of that
+ * second, so that a response does not format a date and time, or create the date to work out ages from.
+ */
+package name.chen.dave.rest;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+final class ResponseTime {
+
+    private static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss z");
+
+    private static volatile ResponseTime current = of(System.currentTimeMillis() / 1000);
+
+    private final long epochSecond;
+    private final String formatted;
+    private final int todayEpochDay;
+
+    private ResponseTime(long epochSecond, String formatted, int todayEpochDay) {
+        this.epochSecond = epochSecond;
+        this.formatted = formatted;
+        this.todayEpochDay = todayEpochDay;
+    }
+
+    private static ResponseTime of(long epochSecond) {
+        ZonedDateTime time = ZonedDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault());
+        return new ResponseTime(epochSecond, dateTimeFormatter.format(time), (int) time.toLocalDate().toEpochDay());
+    }
+
+    /**
+     * @return the time of the current second. Threads that see a new second at once may each work it out.
+     */
+    static ResponseTime now() {
+        long epochSecond = System.currentTimeMillis() / 1000;
+        ResponseTime time = current;
+        if (time.epochSecond != epochSecond) {
+            time = of(epochSecond);
+            current = time;
+        }
+        return time;
+    }
+
+    /**
+     * @return the time as yyyy-MM-dd HH:mm:ss and time zone, e.g. 2019-08-20 02:17:27 EDT
+     */
+    String getFormatted() {
+        return formatted;
+    }
+
+    /**
+     * @return today in the default time zone, as an epoch day
+     */
+    int getTodayEpochDay() {
+        return todayEpochDay;
+    }
+}
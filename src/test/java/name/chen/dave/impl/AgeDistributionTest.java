@@ -0,0 +1,110 @@
+/**
+ * Test age distributions against ages computed birthday by birthday
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class AgeDistributionTest {
+
+    private MedianDB medianDB;
+    private final List<LocalDate> birthdays = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        medianDB = new MedianDB(false, false);
+        Random random = new Random(18);
+        for (int i = 0; i < 2000; i++) {
+            LocalDate birthday = LocalDate.ofEpochDay(-43000 + random.nextInt(72000));
+            birthdays.add(birthday);
+            medianDB.addBirthday(i % 3 == 0 ? "thirds" : "others", birthday);
+        }
+        // Leap days, to check ages on and around them
+        for (int year = 1904; year <= 2024; year += 4) {
+            LocalDate leapDay = LocalDate.of(year, 2, 29);
+            birthdays.add(leapDay);
+            medianDB.addBirthday("others", leapDay);
+        }
+    }
+
+    private void assertDistribution(List<LocalDate> birthdays, AgeDistribution distribution, LocalDate asOf,
+                                    int width) {
+        List<Integer> ages = new ArrayList<>();
+        for (LocalDate birthday : birthdays) {
+            if (!birthday.isAfter(asOf)) {
+                ages.add(Period.between(birthday, asOf).getYears());
+            }
+        }
+        Assert.assertEquals(ages.size(), distribution.getTotal());
+        if (ages.isEmpty()) {
+            Assert.assertEquals(0, distribution.getNumBuckets());
+            return;
+        }
+        Collections.sort(ages);
+        Assert.assertEquals((int) ages.get(0), distribution.getMinAge());
+        Assert.assertEquals((int) ages.get(ages.size() - 1), distribution.getMaxAge());
+        long[] buckets = new long[ages.get(ages.size() - 1) / width + 1];
+        double sum = 0;
+        for (int age : ages) {
+            buckets[age / width]++;
+            sum += age;
+        }
+        Assert.assertEquals(buckets.length, distribution.getNumBuckets());
+        for (int i = 0; i < buckets.length; i++) {
+            Assert.assertEquals("Bucket " + i, buckets[i], distribution.getBucketCount(i));
+        }
+        Assert.assertEquals(sum / ages.size(), distribution.getMeanAge(), 1e-9);
+    }
+
+    @Test
+    public void testMatchesAgesOfEachBirthday() {
+        LocalDate[] asOfs = {LocalDate.of(2019, 8, 20), LocalDate.of(2024, 2, 29), LocalDate.of(2023, 2, 28),
+                LocalDate.of(1950, 1, 1), LocalDate.of(2049, 12, 31), LocalDate.of(2100, 3, 1)};
+        for (LocalDate asOf : asOfs) {
+            for (int width : new int[]{1, 5, 10, 37}) {
+                assertDistribution(birthdays, medianDB.findAgeDistribution(asOf, width), asOf, width);
+            }
+        }
+    }
+
+    @Test
+    public void testMedianAgeMatchesMedian() {
+        LocalDate asOf = LocalDate.of(2019, 8, 20);
+        AgeDistribution distribution = medianDB.findAgeDistribution(asOf, 10);
+        LocalDate median = medianDB.findMedian(LocalDate.of(1850, 1, 1), asOf).get();
+        Assert.assertEquals(Period.between(median, asOf).getYears(), distribution.getMedianAge());
+    }
+
+    @Test
+    public void testSegment() {
+        List<LocalDate> thirds = new ArrayList<>();
+        for (int i = 0; i < 2000; i += 3) {
+            thirds.add(birthdays.get(i));
+        }
+        LocalDate asOf = LocalDate.of(2000, 6, 15);
+        assertDistribution(thirds, medianDB.findAgeDistribution("thirds", asOf, 5), asOf, 5);
+        Assert.assertEquals(0, medianDB.findAgeDistribution("none", asOf, 5).getTotal());
+    }
+
+    @Test
+    public void testBeforeAnyBirthday() {
+        AgeDistribution distribution = medianDB.findAgeDistribution(LocalDate.of(1800, 1, 1), 10);
+        Assert.assertEquals(0, distribution.getTotal());
+        Assert.assertEquals(0, distribution.getNumBuckets());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBucketWidthMustBePositive() {
+        medianDB.findAgeDistribution(LocalDate.of(2019, 8, 20), 0);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Test that the primitive add and median paths allocate nothing once warmed up, measured by the bytes the JVM
+ * counts as allocated by the test's thread. Skipped on JVMs that don't count them.
+ */
+package name.chen.dave.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+
+public class AllocationTest {
+
+    private static final int FIRST_DAY = -30000;
+    private static final int DAYS = 40000;
+
+    private com.sun.management.ThreadMXBean threads;
+    private MedianDB medianDB;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (medianDB != null) {
+            medianDB.close();
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void add(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            medianDB.addBirthday(FIRST_DAY + (i * 7919) % DAYS);
+        }
+    }
+
+    private long query(int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            int start = FIRST_DAY + (i * 7919) % DAYS;
+            sum += medianDB.findMedianEpochDay(start, start + (i * 31) % 19000);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the least bytes allocated by the runnable in 3 runs, less what reading the count allocates. A run
+     * during which the JIT recompiles a method on the path may allocate a few objects it would otherwise elide.
+     */
+    private long leastBytesAllocatedBy(Runnable runnable) {
+        long least = Long.MAX_VALUE;
+        for (int run = 0; run < 3 && least > 0; run++) {
+            long overhead = -allocatedBytes() + allocatedBytes();
+            long before = allocatedBytes();
+            runnable.run();
+            least = Math.min(least, allocatedBytes() - before - overhead);
+        }
+        return least;
+    }
+
+    private void assertAllocationFree(MedianDBConfig config) throws IOException {
+        medianDB = new MedianDB(config.setPersistToDisk(false).setRecoverFromPersistFile(false));
+        // Every stripe page touched, every cached range seen, and the code compiled
+        for (int round = 0; round < 5; round++) {
+            add(DAYS);
+            query(20000);
+        }
+        Assert.assertEquals("Bytes allocated by adds", 0, leastBytesAllocatedBy(() -> add(DAYS)));
+        // The first query publishes the adds
+        query(1);
+        Assert.assertEquals("Bytes allocated by queries", 0, leastBytesAllocatedBy(() -> query(20000)));
+    }
+
+    @Test
+    public void testCachedPathsAllocateNothing() throws IOException {
+        assertAllocationFree(new MedianDBConfig().setMedianCacheSize(1 << 15));
+    }
+
+    @Test
+    public void testUncachedPathsAllocateNothing() throws IOException {
+        assertAllocationFree(new MedianDBConfig().setMedianCacheSize(0));
+    }
+
+    @Test
+    public void testStandingRangesAllocateNothing() throws IOException {
+        // The first two ranges queried, and ranges never queried, looked through by every query
+        MedianDBConfig config = new MedianDBConfig().setMedianCacheSize(0)
+                .addStandingRange(LocalDate.ofEpochDay(FIRST_DAY), LocalDate.ofEpochDay(FIRST_DAY))
+                .addStandingRange(LocalDate.ofEpochDay(FIRST_DAY + 7919), LocalDate.ofEpochDay(FIRST_DAY + 7919 + 31));
+        for (int i = 1; i <= 6; i++) {
+            config.addStandingRange(LocalDate.ofEpochDay(FIRST_DAY), LocalDate.ofEpochDay(FIRST_DAY + i * 1000));
+        }
+        assertAllocationFree(config);
+    }
+}
@@ -12,6 +12,8 @@ import org.junit.Test;
 import java.io.IOException;
 import java.time.LocalDate;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
 public class ArrayDateHistogramTest {
 
@@ -74,4 +76,124 @@ public class ArrayDateHistogramTest {
         Assert.assertFalse(dateUntil.isPresent());
 
     }
+
+    @Test
+    public void testTraverseDatesIncludesEndOfYearBoundary() {
+        histogram.addDate(LocalDate.of(2001, 1, 1));
+        int bdays = histogram.traverseDates(LocalDate.of(2000, 12, 1),
+                LocalDate.of(2001, 1, 1), Optional.empty());
+        Assert.assertEquals(1, bdays);
+    }
+
+    @Test
+    public void testIndexMatchesReferenceWalk() {
+        Random random = new Random(7);
+        LocalDate earliest = LocalDate.of(1850, 1, 1);
+        for (int i = 0; i < 3000; i++) {
+            // cluster most birthdays in recent decades, like real traffic
+            long day = random.nextInt(4) == 0 ? random.nextInt(73000) : 40000 + random.nextInt(33000);
+            histogram.addDate(earliest.plusDays(day));
+        }
+        DayCountIndex index = histogram.getSnapshot().getDayIndex();
+        for (int i = 0; i < 300; i++) {
+            LocalDate start = earliest.plusDays(random.nextInt(73000));
+            LocalDate end = start.plusDays(random.nextInt(3000) == 0 ? 0 : random.nextInt(20000));
+            if (end.getYear() > 2049) {
+                end = LocalDate.of(2049, 12, 31);
+            }
+            int expected = histogram.traverseDates(start, end, Optional.empty());
+            Assert.assertEquals(start + ".." + end, expected, histogram.countDates(start, end, index));
+            int until = 1 + random.nextInt(Math.max(1, expected));
+            Assert.assertEquals(start + " until " + until, histogram.traverseUntil(start, until, Optional.empty()),
+                    histogram.findDateUntil(start, until, index));
+            LocalDate[] dates = new LocalDate[2];
+            histogram.findDatesUntil(start, new int[]{until, expected + 1 + until}, dates, index);
+            Assert.assertEquals(histogram.findDateUntil(start, until, index).orElse(null), dates[0]);
+            Assert.assertEquals(histogram.findDateUntil(start, expected + 1 + until, index).orElse(null), dates[1]);
+        }
+    }
+
+    @Test
+    public void testConfiguredRangeOfYears() throws IOException {
+        ArrayDateHistogram wide = new ArrayDateHistogram(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false).setFirstYear(1600).setLastYear(2300));
+        wide.addDate(LocalDate.of(1600, 1, 1));
+        wide.addDate(LocalDate.of(1620, 2, 29));
+        wide.addDate(LocalDate.of(1700, 3, 1));
+        wide.addDate(LocalDate.of(2300, 12, 31));
+        Assert.assertEquals(1, wide.addEpochDays(new int[]{(int) LocalDate.of(1599, 12, 31).toEpochDay(),
+                (int) LocalDate.of(2000, 2, 29).toEpochDay()}, new int[]{1, 1}, 2));
+
+        DayCountIndex index = wide.getSnapshot().getDayIndex();
+        LocalDate first = LocalDate.of(1600, 1, 1);
+        LocalDate last = LocalDate.of(2300, 12, 31);
+        Assert.assertEquals(5, wide.countDates(first, last, index));
+        Assert.assertEquals(5, wide.traverseDates(first, last, Optional.empty()));
+        Assert.assertEquals(2, wide.countDates(LocalDate.of(1620, 2, 29), LocalDate.of(1700, 3, 1), index));
+        Assert.assertEquals(2, wide.traverseDates(LocalDate.of(1620, 2, 29), LocalDate.of(1700, 3, 1),
+                Optional.empty()));
+        for (int k = 1; k <= 6; k++) {
+            Assert.assertEquals(wide.traverseUntil(first, k, Optional.empty()), wide.findDateUntil(first, k, index));
+        }
+        Assert.assertEquals(Optional.of(LocalDate.of(2000, 2, 29)), wide.findDateUntil(first, 4, index));
+        try {
+            wide.addDate(LocalDate.of(2301, 1, 1));
+            Assert.fail("Added a date after the configured range");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("2300-12-31"));
+        }
+    }
+
+    @Test
+    public void testConcurrentAdds() throws InterruptedException {
+        int numThreads = 8;
+        int addsPerThread = 5000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            LocalDate date = LocalDate.of(1990 + t, 3, 1 + t);
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < addsPerThread; i++) {
+                    histogram.addDate(date);
+                    if (i % 1000 == 0) {
+                        // readers drain the stripes while writers are adding
+                        histogram.getSnapshot().getDayIndex();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(numThreads * addsPerThread, histogram.traverseDates(LocalDate.of(1990, 1, 1),
+                LocalDate.of(2000, 1, 1), Optional.empty()));
+        DayCountIndex index = histogram.getSnapshot().getDayIndex();
+        for (int t = 0; t < numThreads; t++) {
+            LocalDate date = LocalDate.of(1990 + t, 3, 1 + t);
+            Assert.assertEquals(addsPerThread, histogram.countDates(date, date, index));
+        }
+    }
+
+    @Test
+    public void testSnapshotVersions() {
+        SnapshotReport first = histogram.getSnapshot();
+        Assert.assertSame(first, histogram.getSnapshot());
+
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        SnapshotReport second = histogram.getSnapshot();
+        Assert.assertEquals(first.getVersion() + 1, second.getVersion());
+        Assert.assertSame(second, histogram.getSnapshot());
+
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        SnapshotReport third = histogram.getSnapshot();
+        Assert.assertEquals(1, second.traverseDates(LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+        Assert.assertEquals(2, third.traverseDates(LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+    }
 }
@@ -0,0 +1,125 @@
+/**
+ * Test streaming birthdays in with {@link name.chen.dave.impl.BatchIngester}
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+public class BatchIngesterTest {
+
+    private MedianDB bdayMedians;
+
+    @Before
+    public void setUp() throws IOException {
+        bdayMedians = new MedianDB(false, false);
+    }
+
+    private BatchIngester.Result ingest(String body, BatchIngester.Format format, int bufferSize)
+            throws IOException {
+        return new BatchIngester(bdayMedians, bufferSize)
+                .ingest(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), format);
+    }
+
+    private int count(LocalDate start, LocalDate end) {
+        return bdayMedians.getReporter().traverseDates(start, end);
+    }
+
+    @Test
+    public void testParseEpochDay() {
+        Assert.assertEquals(LocalDate.of(1999, 1, 5).toEpochDay(), IsoDateParser.parseEpochDay("1999-01-05"));
+        Assert.assertEquals(LocalDate.of(1850, 1, 1).toEpochDay(), IsoDateParser.parseEpochDay("1850-01-01"));
+        Assert.assertEquals(LocalDate.of(2000, 2, 29).toEpochDay(), IsoDateParser.parseEpochDay("2000-02-29"));
+        Assert.assertEquals(IsoDateParser.INVALID_DATE, IsoDateParser.parseEpochDay("1900-02-29"));
+        Assert.assertEquals(IsoDateParser.INVALID_DATE, IsoDateParser.parseEpochDay("1999-13-01"));
+        Assert.assertEquals(IsoDateParser.INVALID_DATE, IsoDateParser.parseEpochDay("1999-1-05"));
+        Assert.assertEquals(IsoDateParser.INVALID_DATE, IsoDateParser.parseEpochDay("BADDATA"));
+    }
+
+    @Test
+    public void testIngestCsv() throws IOException {
+        BatchIngester.Result result = ingest("1999-01-05\n1999-01-06,3\r\n\nBADDATA\n1999-02-30\n1700-01-01\n"
+                + "2000-01-01,0\n2000-01-01", BatchIngester.Format.CSV, 1024);
+        Assert.assertEquals(3, result.getAccepted());
+        Assert.assertEquals(4, result.getRejected());
+        Assert.assertEquals(5, count(LocalDate.of(1999, 1, 1), LocalDate.of(2000, 12, 31)));
+    }
+
+    @Test
+    public void testIngestNdjson() throws IOException {
+        BatchIngester.Result result = ingest("{\"birthday\":\"1999-01-05\"}\n"
+                + "{\"birthday\": \"1999-01-06\", \"count\": 2}\n"
+                + "{\"count\":2}\n"
+                + "{\"birthday\":1999}\n", BatchIngester.Format.NDJSON, 1024);
+        Assert.assertEquals(2, result.getAccepted());
+        Assert.assertEquals(2, result.getRejected());
+        Assert.assertEquals(3, count(LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+    }
+
+    @Test
+    public void testLinesAcrossBufferBoundaries() throws IOException {
+        StringBuilder body = new StringBuilder();
+        LocalDate date = LocalDate.of(1950, 1, 1);
+        for (int i = 0; i < 20000; i++) {
+            body.append(date.plusDays(i % 1000)).append('\n');
+        }
+        // a line longer than the buffer is rejected without losing its neighbours
+        body.append("1999-01-05,").append(new String(new char[40]).replace('\0', '1')).append('\n');
+        body.append("1999-01-05");
+        BatchIngester.Result result = ingest(body.toString(), BatchIngester.Format.CSV, 32);
+        Assert.assertEquals(20001, result.getAccepted());
+        Assert.assertEquals(1, result.getRejected());
+        Assert.assertEquals(20000, count(date, date.plusDays(999)));
+    }
+
+    @Test
+    public void testLongLastLineFillingTheBuffer() throws IOException {
+        String longLine = "1999-01-05," + new String(new char[32 - 11]).replace('\0', '1');
+        BatchIngester.Result result = ingest("1999-01-05\n" + longLine, BatchIngester.Format.CSV, 32);
+        Assert.assertEquals(1, result.getAccepted());
+        Assert.assertEquals(1, result.getRejected());
+        result = ingest(longLine, BatchIngester.Format.CSV, 32);
+        Assert.assertEquals(0, result.getAccepted());
+        Assert.assertEquals(1, result.getRejected());
+    }
+
+    @Test
+    public void testCountsKeptFromOverflowing() throws IOException {
+        BatchIngester.Result result = ingest("1999-01-01,2000000000\n1999-01-01,2000000000\n"
+                + "1999-01-01," + (MedianDB.MAX_COUNT + 1), BatchIngester.Format.CSV, 1024);
+        Assert.assertEquals(0, result.getAccepted());
+        Assert.assertEquals(3, result.getRejected());
+
+        // Counts up to the most birthdays, and no further
+        StringBuilder body = new StringBuilder();
+        int full = MedianDB.MAX_BIRTHDAYS / MedianDB.MAX_COUNT;
+        for (int i = 0; i <= full; i++) {
+            body.append("1999-01-01,").append(MedianDB.MAX_COUNT).append('\n');
+        }
+        body.append("1999-01-02,1\n");
+        result = ingest(body.toString(), BatchIngester.Format.CSV, 1024);
+        Assert.assertEquals(full, result.getAccepted());
+        Assert.assertEquals(2, result.getRejected());
+        int room = MedianDB.MAX_BIRTHDAYS - full * MedianDB.MAX_COUNT;
+        result = ingest("1999-01-02," + room + "\n1999-01-03,1", BatchIngester.Format.CSV, 1024);
+        Assert.assertEquals(1, result.getAccepted());
+        Assert.assertEquals(1, result.getRejected());
+        try {
+            bdayMedians.addBirthday(LocalDate.of(1999, 1, 3));
+            Assert.fail("Added a birthday past the most birthdays");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Assert.assertEquals(MedianDB.MAX_BIRTHDAYS, count(LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+        Assert.assertEquals(room, count(LocalDate.of(1999, 1, 2), LocalDate.of(1999, 1, 3)));
+        Assert.assertEquals(LocalDate.of(1999, 1, 1),
+                bdayMedians.findMedian(LocalDate.of(1999, 1, 1), LocalDate.of(1999, 1, 2)).get());
+    }
+}
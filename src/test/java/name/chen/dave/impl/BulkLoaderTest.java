@@ -0,0 +1,207 @@
+/**
+ * Test that a checkpoint built by {@link name.chen.dave.impl.BulkLoader} from files split into many small chunks
+ * holds the same birthdays as streaming the files through {@link name.chen.dave.impl.BatchIngester}
+ */
+package name.chen.dave.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class BulkLoaderTest {
+
+    private File dataDirectory;
+    private File inputDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-bulk").toFile();
+        inputDirectory = Files.createTempDirectory("mediandb-bulk-input").toFile();
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dataDirectory);
+        delete(inputDirectory);
+    }
+
+    private MedianDBConfig config() {
+        return new MedianDBConfig().setDataDirectory(dataDirectory.getAbsolutePath())
+                .setCheckpointIntervalSeconds(3600);
+    }
+
+    private File write(String name, String text) throws IOException {
+        File file = new File(inputDirectory, name);
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String csv(Random random, int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            LocalDate date = LocalDate.ofEpochDay(-45000 + random.nextInt(76000));
+            switch (random.nextInt(20)) {
+                case 0:
+                    text.append("BADDATA");
+                    break;
+                case 1:
+                    text.append(date).append(',').append(1 + random.nextInt(100));
+                    break;
+                case 2:
+                    text.append(date).append('\r');
+                    break;
+                case 3:
+                    text.append(date).append(",0");
+                    break;
+                default:
+                    text.append(date);
+            }
+            text.append(i % 97 == 0 ? "\n\n" : "\n");
+        }
+        return text.toString();
+    }
+
+    private static String longLine(int length) {
+        char[] line = new char[length];
+        Arrays.fill(line, 'x');
+        return new String(line) + "\n";
+    }
+
+    /**
+     * Load the texts with the bulk loader and with a batch ingester, and compare the two
+     */
+    private void assertLoadsAsIngested(BulkLoader loader, BatchIngester.Format format, String... texts)
+            throws IOException {
+        File[] inputs = new File[texts.length];
+        MedianDB ingested = new MedianDB(false, false);
+        long accepted = 0;
+        long rejected = 0;
+        for (int i = 0; i < texts.length; i++) {
+            inputs[i] = write("input" + i, texts[i]);
+            BatchIngester.Result result = new BatchIngester(ingested).ingest(
+                    new ByteArrayInputStream(texts[i].getBytes(StandardCharsets.UTF_8)), format);
+            accepted += result.getAccepted();
+            rejected += result.getRejected();
+        }
+        BulkLoader.Result result = loader.load(Arrays.asList(inputs), format, false);
+        Assert.assertEquals(accepted + rejected, result.getLines());
+        Assert.assertEquals(rejected, result.getMalformed() + result.getOutOfRange());
+
+        try (MedianDB loaded = new MedianDB(config())) {
+            Assert.assertEquals(ingested.getReporter().traverseDates(LocalDate.of(1850, 1, 1),
+                    LocalDate.of(2049, 12, 31)), result.getBirthdays());
+            Random random = new Random(23);
+            for (int i = 0; i < 200; i++) {
+                int start = -43829 + random.nextInt(73000);
+                int end = start + random.nextInt(73049 - (start + 43829));
+                Assert.assertEquals(ingested.findMedianEpochDay(start, end), loaded.findMedianEpochDay(start, end));
+            }
+            for (int year = 1850; year < 2050; year += 7) {
+                LocalDate first = LocalDate.of(year, 1, 1);
+                LocalDate last = LocalDate.of(year, 12, 31);
+                Assert.assertEquals(ingested.getReporter().traverseDates(first, last),
+                        loaded.getReporter().traverseDates(first, last));
+            }
+        }
+        ingested.close();
+    }
+
+    @Test
+    public void testChunksSplitAcrossLines() throws IOException {
+        Random random = new Random(11);
+        // Chunks of a prime number of bytes, so they end anywhere in a line, on 3 threads
+        assertLoadsAsIngested(new BulkLoader(config(), 3, 997), BatchIngester.Format.CSV,
+                csv(random, 20000), csv(random, 3) + "1999-01-05", "");
+    }
+
+    @Test
+    public void testLinesLongerThanAllowed() throws IOException {
+        Random random = new Random(12);
+        // A line running over several whole chunks, and one over the line length of the batch ingester
+        assertLoadsAsIngested(new BulkLoader(config(), 2, 4096), BatchIngester.Format.CSV,
+                csv(random, 500) + longLine(20000) + csv(random, 500) + longLine(BulkLoader.MAX_LINE_LENGTH + 10)
+                        + csv(random, 500));
+    }
+
+    @Test
+    public void testNdjson() throws IOException {
+        String text = "{\"birthday\":\"1999-01-05\"}\n{\"birthday\": \"1999-01-06\", \"count\": 2}\n{\"count\":2}\n"
+                + "{\"birthday\":\"1700-01-01\"}\n";
+        assertLoadsAsIngested(new BulkLoader(config(), 2, 17), BatchIngester.Format.NDJSON, text, text);
+    }
+
+    @Test
+    public void testMostBirthdays() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < MedianDB.MAX_BIRTHDAYS / MedianDB.MAX_COUNT; i++) {
+            text.append("1999-01-05,").append(MedianDB.MAX_COUNT).append('\n');
+        }
+        int room = MedianDB.MAX_BIRTHDAYS % MedianDB.MAX_COUNT;
+        List<File> inputs = Collections.singletonList(write("input", text + "1999-01-06," + (room + 1) + "\n"));
+        try {
+            new BulkLoader(config(), 2).load(inputs, BatchIngester.Format.CSV, false);
+            Assert.fail("Loaded more birthdays than a histogram can count");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        inputs = Collections.singletonList(write("input", text + "1999-01-06," + room + "\n"));
+        Assert.assertEquals(MedianDB.MAX_BIRTHDAYS,
+                new BulkLoader(config(), 2).load(inputs, BatchIngester.Format.CSV, false).getBirthdays());
+        try (MedianDB loaded = new MedianDB(config())) {
+            Assert.assertEquals(LocalDate.of(1999, 1, 5),
+                    loaded.findMedian(LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)).get());
+        }
+    }
+
+    @Test
+    public void testThreadsDontChangeTheFile() throws IOException {
+        File input = write("input", csv(new Random(13), 20000));
+        List<File> inputs = Collections.singletonList(input);
+        new BulkLoader(config(), 1).load(inputs, BatchIngester.Format.CSV, false);
+        int[] oneThread = HistogramFileTest.readLatestCheckpoint(dataDirectory);
+        new BulkLoader(config(), 4, 1000).load(inputs, BatchIngester.Format.CSV, true);
+        Assert.assertArrayEquals(oneThread, HistogramFileTest.readLatestCheckpoint(dataDirectory));
+    }
+
+    @Test
+    public void testExistingCheckpointReplacedOnlyIfAsked() throws IOException {
+        try (MedianDB existing = new MedianDB(config())) {
+            existing.addBirthday(LocalDate.of(1900, 1, 1));
+        }
+        List<File> inputs = Collections.singletonList(write("input", "1999-01-05\n"));
+        try {
+            new BulkLoader(config(), 1).load(inputs, BatchIngester.Format.CSV, false);
+            Assert.fail("Overwrote a checkpoint");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        new BulkLoader(config(), 1).load(inputs, BatchIngester.Format.CSV, true);
+        try (MedianDB loaded = new MedianDB(config())) {
+            Assert.assertEquals(LocalDate.of(1999, 1, 5),
+                    loaded.findMedian(LocalDate.of(1850, 1, 1), LocalDate.of(2049, 12, 31)).get());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Test keeping, reading and shipping the changes of a leader's histogram
+ */
+
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ChangeLogTest {
+
+    private static void append(ChangeLog log, long version, int... epochDaysAndDeltas) {
+        int[] epochDays = new int[epochDaysAndDeltas.length / 2];
+        int[] deltas = new int[epochDays.length];
+        for (int i = 0; i < epochDays.length; i++) {
+            epochDays[i] = epochDaysAndDeltas[2 * i];
+            deltas[i] = epochDaysAndDeltas[2 * i + 1];
+        }
+        log.append(version, epochDays, deltas);
+    }
+
+    @Test
+    public void testRead() {
+        ChangeLog log = new ChangeLog(100, 3);
+        append(log, 4, 10, 1, 11, 2);
+        append(log, 5, 10, 1);
+        append(log, 6, 12, 5, 13, 1, 14, 1);
+
+        ChangeLog.Batch batch = log.read(7, 3, 100);
+        Assert.assertEquals(3, batch.getAfterVersion());
+        Assert.assertEquals(6, batch.getToVersion());
+        Assert.assertEquals(6, batch.getLatestVersion());
+        Assert.assertArrayEquals(new int[]{10, 11, 10, 12, 13, 14}, batch.getEpochDays());
+        Assert.assertArrayEquals(new int[]{1, 2, 1, 5, 1, 1}, batch.getDeltas());
+
+        batch = log.read(7, 5, 100);
+        Assert.assertEquals(6, batch.getToVersion());
+        Assert.assertArrayEquals(new int[]{12, 13, 14}, batch.getEpochDays());
+
+        // Caught up: nothing to read
+        batch = log.read(7, 6, 100);
+        Assert.assertEquals(6, batch.getToVersion());
+        Assert.assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void testReadWholeVersionsUpToMax() {
+        ChangeLog log = new ChangeLog(100, 0);
+        append(log, 1, 10, 1, 11, 1);
+        append(log, 2, 12, 1, 13, 1);
+        append(log, 3, 14, 1, 15, 1, 16, 1);
+
+        ChangeLog.Batch batch = log.read(7, 0, 5);
+        Assert.assertEquals(2, batch.getToVersion());
+        Assert.assertEquals(3, batch.getLatestVersion());
+        Assert.assertEquals(4, batch.size());
+        // A version bigger than the max is read whole
+        batch = log.read(7, 2, 1);
+        Assert.assertEquals(3, batch.getToVersion());
+        Assert.assertEquals(3, batch.size());
+    }
+
+    @Test
+    public void testEviction() {
+        ChangeLog log = new ChangeLog(4, 0);
+        append(log, 1, 10, 1, 11, 1);
+        append(log, 2, 12, 1, 13, 1);
+        Assert.assertEquals(0, log.getOldestVersion());
+        append(log, 3, 14, 1);
+        Assert.assertEquals(1, log.getOldestVersion());
+        Assert.assertNull(log.read(7, 0, 100));
+        Assert.assertArrayEquals(new int[]{12, 13, 14}, log.read(7, 1, 100).getEpochDays());
+
+        // The latest version is kept, even if bigger than the log
+        append(log, 4, 1, 1, 2, 1, 3, 1, 4, 1, 5, 1);
+        Assert.assertEquals(3, log.getOldestVersion());
+        Assert.assertEquals(5, log.read(7, 3, 100).size());
+        // Ahead of the log
+        Assert.assertNull(log.read(7, 5, 100));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAppendSkippingVersion() {
+        ChangeLog log = new ChangeLog(100, 0);
+        append(log, 2, 10, 1);
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        ChangeLog log = new ChangeLog(100, 0);
+        append(log, 1, -40000, 3, 0, -2, 29000, 1);
+        ChangeLog.Batch batch = log.read(0x8000000000000001L, 0, 100);
+        byte[] bytes = batch.encode();
+        ChangeLog.Batch decoded = ChangeLog.Batch.decode(bytes);
+        Assert.assertEquals(0x8000000000000001L, decoded.getInstanceId());
+        Assert.assertEquals(0, decoded.getAfterVersion());
+        Assert.assertEquals(1, decoded.getToVersion());
+        Assert.assertEquals(1, decoded.getLatestVersion());
+        Assert.assertArrayEquals(batch.getEpochDays(), decoded.getEpochDays());
+        Assert.assertArrayEquals(batch.getDeltas(), decoded.getDeltas());
+
+        byte[] corrupt = bytes.clone();
+        corrupt[50] ^= 1;
+        assertRejected(corrupt, "checksum");
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 8), "header");
+        byte[] notABatch = bytes.clone();
+        notABatch[0] = 0;
+        assertRejected(notABatch, "Not a change log batch");
+    }
+
+    private static void assertRejected(byte[] bytes, String message) {
+        try {
+            ChangeLog.Batch.decode(bytes);
+            Assert.fail("Decoded a corrupt batch");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
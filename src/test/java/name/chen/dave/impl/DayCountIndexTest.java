@@ -0,0 +1,133 @@
+/**
+ * Test {@link name.chen.dave.impl.DayCountIndex}, checking range counts and k-th birthday lookups
+ * against a plain array of counts.
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class DayCountIndexTest {
+
+    @Test
+    public void testEmptyIndex() {
+        DayCountIndex index = new DayCountIndex(1000);
+        Assert.assertEquals(0, index.total());
+        Assert.assertEquals(0, index.count(0, 999));
+        Assert.assertEquals(-1, index.findKth(1));
+    }
+
+    @Test
+    public void testCountAndFindKth() {
+        DayCountIndex index = new DayCountIndex(1000);
+        index.add(5, 2);
+        index.add(64, 1);
+        index.add(999, 3);
+        Assert.assertEquals(6, index.total());
+        Assert.assertEquals(2, index.count(0, 63));
+        Assert.assertEquals(3, index.count(5, 64));
+        Assert.assertEquals(1, index.count(6, 998));
+        Assert.assertEquals(5, index.findKth(1));
+        Assert.assertEquals(5, index.findKth(2));
+        Assert.assertEquals(64, index.findKth(3));
+        Assert.assertEquals(999, index.findKth(6));
+        Assert.assertEquals(-1, index.findKth(7));
+    }
+
+    @Test
+    public void testMatchesDenseCounts() {
+        Random random = new Random(42);
+        int[] counts = new int[5000];
+        DayCountIndex index = new DayCountIndex(counts.length);
+        for (int i = 0; i < 2000; i++) {
+            int slot = random.nextInt(counts.length);
+            counts[slot]++;
+            index.add(slot, 1);
+        }
+        DayCountIndex built = DayCountIndex.fromCounts(counts, 0, counts.length);
+        for (int i = 0; i < 500; i++) {
+            int from = random.nextInt(counts.length);
+            int to = from + random.nextInt(counts.length - from);
+            int expected = 0;
+            for (int slot = from; slot <= to; slot++) {
+                expected += counts[slot];
+            }
+            Assert.assertEquals(expected, index.count(from, to));
+            Assert.assertEquals(expected, built.count(from, to));
+        }
+        int running = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            for (int k = running + 1; k <= running + counts[slot]; k++) {
+                Assert.assertEquals(slot, index.findKth(k));
+                Assert.assertEquals(slot, built.findKth(k));
+            }
+            running += counts[slot];
+        }
+    }
+
+    @Test
+    public void testSweepsMatchSingleLookups() {
+        Random random = new Random(43);
+        DayCountIndex index = new DayCountIndex(5000);
+        for (int i = 0; i < 3000; i++) {
+            // Crowded into a few pages, with empty pages in between
+            index.add(random.nextInt(10) * 500 + random.nextInt(100), 1 + random.nextInt(3));
+        }
+        // Ascending slots with repeats, starting from -1, and ascending ranks with repeats and some past the total
+        int[] slots = new int[1000];
+        int[] ks = new int[1000];
+        slots[0] = -1;
+        ks[0] = 1;
+        for (int i = 1; i < slots.length; i++) {
+            slots[i] = Math.min(4999, slots[i - 1] + random.nextInt(random.nextBoolean() ? 3 : 40));
+            ks[i] = ks[i - 1] + random.nextInt(random.nextBoolean() ? 2 : 30);
+        }
+        int[] counts = new int[slots.length];
+        int[] kthSlots = new int[ks.length];
+        index.prefixCounts(slots, slots.length, counts);
+        index.findKths(ks, ks.length, kthSlots);
+        for (int i = 0; i < slots.length; i++) {
+            Assert.assertEquals("Slot " + slots[i], index.prefixCount(slots[i]), counts[i]);
+            Assert.assertEquals("Rank " + ks[i], index.findKth(ks[i]), kthSlots[i]);
+        }
+        Assert.assertEquals(-1, kthSlots[ks.length - 1]);
+    }
+
+    @Test
+    public void testCopyOnWriteIsIndependent() {
+        DayCountIndex index = new DayCountIndex(200);
+        index.add(10, 1);
+        index.add(150, 1);
+        DayCountIndex copy = index.copyOnWrite();
+        copy.add(10, 1);
+        index.add(150, 1);
+        Assert.assertEquals(1, index.get(10));
+        Assert.assertEquals(2, copy.get(10));
+        Assert.assertEquals(2, index.get(150));
+        Assert.assertEquals(1, copy.get(150));
+        Assert.assertEquals(3, copy.total());
+        Assert.assertEquals(3, index.count(0, 199));
+    }
+
+    @Test
+    public void testChangedPagesSince() {
+        DayCountIndex index = new DayCountIndex(1000);
+        index.add(10, 1);
+        index.add(700, 1);
+        DayCountIndex copy = index.copyOnWrite();
+        Assert.assertTrue(copy.changedPagesSince(index).isEmpty());
+        copy.add(11, 1);
+        copy.add(999, 1);
+        DayCountIndex later = copy.copyOnWrite();
+        later.add(300, 1);
+        Assert.assertEquals("{0, 15}", copy.changedPagesSince(index).toString());
+        Assert.assertEquals("{0, 4, 15}", later.changedPagesSince(index).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSlotOutOfRange() {
+        new DayCountIndex(100).add(100, 1);
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Test exporting histograms and merging the exports of several nodes
+ */
+
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Random;
+
+public class HistogramExportTest {
+
+    private static MedianDBConfig inMemory() {
+        return new MedianDBConfig().setRecoverFromPersistFile(false).setPersistToDisk(false);
+    }
+
+    @Test
+    public void testEncodeDecode() throws IOException {
+        MedianDB db = new MedianDB(inMemory());
+        db.addBirthday(LocalDate.of(1850, 1, 1));
+        db.addBirthday(LocalDate.of(1999, 2, 5));
+        db.addBirthday(LocalDate.of(1999, 2, 5));
+        db.addBirthday(LocalDate.of(2049, 12, 31));
+        HistogramExport export = db.export();
+        Assert.assertEquals(db.getExportTag(), export.getTag());
+
+        HistogramExport decoded = HistogramExport.decode(export.encode());
+        Assert.assertEquals(export.getTag(), decoded.getTag());
+        Assert.assertEquals(export.getVersion(), decoded.getVersion());
+        Assert.assertEquals(export.getFirstEpochDay(), decoded.getFirstEpochDay());
+        Assert.assertEquals(export.getLastEpochDay(), decoded.getLastEpochDay());
+        Assert.assertEquals(export.getNumDays(), decoded.getNumDays());
+        for (int day = 0; day < export.getNumDays(); day++) {
+            Assert.assertEquals(export.getDayCount(day), decoded.getDayCount(day));
+        }
+        Assert.assertEquals(2, decoded.getDayCount((int) LocalDate.of(1999, 2, 5).toEpochDay()
+                - decoded.getFirstEpochDay()));
+        db.close();
+    }
+
+    @Test
+    public void testTagChangesWithHistogram() throws IOException {
+        MedianDB db = new MedianDB(inMemory());
+        MedianDB other = new MedianDB(inMemory());
+        String tag = db.getExportTag();
+        Assert.assertEquals(tag, db.getExportTag());
+        Assert.assertNotEquals(tag, other.getExportTag());
+        db.addBirthday(LocalDate.of(1999, 2, 5));
+        Assert.assertNotEquals(tag, db.getExportTag());
+        db.close();
+        other.close();
+    }
+
+    private static HistogramExport export(HistogramLayout layout, LocalDate day, int count) {
+        int[] dayCounts = new int[layout.getNumDays()];
+        dayCounts[layout.daySlot((int) day.toEpochDay())] = count;
+        return new HistogramExport(1, 1, layout.getFirstEpochDay(), layout.getLastEpochDay(), dayCounts);
+    }
+
+    @Test
+    public void testMergeKeptFromOverflowing() throws IOException {
+        MedianDB db = new MedianDB(inMemory());
+        HistogramLayout layout = new HistogramLayout(1850, 2049);
+        int half = MedianDB.MAX_BIRTHDAYS / 2;
+        LocalDate early = LocalDate.of(1950, 1, 1);
+        LocalDate late = LocalDate.of(1990, 1, 1);
+
+        // Up to the most birthdays a histogram can count, on the same day or not
+        MergedHistogram merged = db.merge(Arrays.asList(export(layout, early, half - 1),
+                export(layout, late, MedianDB.MAX_BIRTHDAYS - half + 1)));
+        Assert.assertEquals(MedianDB.MAX_BIRTHDAYS, merged.total());
+        Assert.assertEquals(late, merged.findMedian(early, late).get());
+        merged = db.merge(Arrays.asList(export(layout, early, half), export(layout, early, half)));
+        Assert.assertEquals(2 * half, merged.traverseDates(early, early));
+
+        // Past it, as two nodes of 1.5 billion birthdays, on different days or the same
+        int large = 1500000000;
+        try {
+            db.merge(Arrays.asList(export(layout, early, large), export(layout, late, large)));
+            Assert.fail("Merged more birthdays than a histogram can count");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            db.merge(Arrays.asList(export(layout, early, large), export(layout, early, large)));
+            Assert.fail("Merged more birthdays on a day than a histogram can count");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        db.close();
+    }
+
+    @Test
+    public void testDecodeRejectsCorruptExports() throws IOException {
+        MedianDB db = new MedianDB(inMemory());
+        db.addBirthday(LocalDate.of(1999, 2, 5));
+        byte[] bytes = db.export().encode();
+
+        byte[] corrupt = bytes.clone();
+        corrupt[corrupt.length - 6] ^= 1;
+        assertRejected(corrupt, "checksum");
+        byte[] badMagic = bytes.clone();
+        badMagic[0] ^= 1;
+        assertRejected(badMagic, "Not a histogram export");
+        byte[] badVersion = bytes.clone();
+        badVersion[7] = 9;
+        assertRejected(badVersion, "format version 9");
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 1), "header");
+        assertRejected(new byte[3], "Not a histogram export");
+        db.close();
+    }
+
+    private static void assertRejected(byte[] bytes, String message) {
+        try {
+            HistogramExport.decode(bytes);
+            Assert.fail("Decoded a corrupt export");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void testMergeMatchesOneNode() throws IOException {
+        MedianDB[] nodes = {new MedianDB(inMemory()), new MedianDB(inMemory()), new MedianDB(inMemory())};
+        MedianDB all = new MedianDB(inMemory());
+        Random random = new Random(16);
+        for (int i = 0; i < 3000; i++) {
+            LocalDate birthday = LocalDate.ofEpochDay(-43000 + random.nextInt(72000));
+            // Skew each node differently, so no node alone has the median of the union
+            MedianDB node = nodes[random.nextInt(i % 7 == 0 ? 3 : 2)];
+            node.addBirthday(birthday);
+            all.addBirthday(birthday);
+        }
+        MergedHistogram merged = nodes[0].merge(Arrays.asList(HistogramExport.decode(nodes[0].export().encode()),
+                HistogramExport.decode(nodes[1].export().encode()), nodes[2].export()));
+        Assert.assertEquals(3000, merged.total());
+        Assert.assertEquals(0, merged.getLeftOut());
+
+        LocalDate[][] ranges = {
+                {LocalDate.of(1850, 1, 1), LocalDate.of(2049, 12, 31)},
+                {LocalDate.of(1900, 6, 1), LocalDate.of(1960, 1, 31)},
+                {LocalDate.of(1970, 1, 1), LocalDate.of(1970, 1, 1)},
+                {LocalDate.of(2040, 1, 1), LocalDate.of(2049, 12, 31)},
+        };
+        for (LocalDate[] range : ranges) {
+            Assert.assertEquals(all.findMedian(range[0], range[1]), merged.findMedian(range[0], range[1]));
+            Assert.assertEquals(all.findQuantiles(range[0], range[1], 0.01, 0.25, 0.75, 0.99),
+                    merged.findQuantiles(range[0], range[1], 0.01, 0.25, 0.75, 0.99));
+        }
+        for (MedianDB node : nodes) {
+            node.close();
+        }
+        all.close();
+    }
+
+    @Test
+    public void testMergeLeavesOutDaysOutsideOfLayout() throws IOException {
+        MedianDB narrow = new MedianDB(inMemory().setFirstYear(1990).setLastYear(1999));
+        MedianDB wide = new MedianDB(inMemory());
+        wide.addBirthday(LocalDate.of(1989, 12, 31));
+        wide.addBirthday(LocalDate.of(1995, 6, 15));
+        wide.addBirthday(LocalDate.of(2000, 1, 1));
+        narrow.addBirthday(LocalDate.of(1995, 6, 17));
+
+        MergedHistogram merged = narrow.merge(Arrays.asList(narrow.export(), wide.export()));
+        Assert.assertEquals(2, merged.total());
+        Assert.assertEquals(2, merged.getLeftOut());
+        Assert.assertEquals(LocalDate.of(1995, 6, 16),
+                merged.findMedian(LocalDate.of(1990, 1, 1), LocalDate.of(1999, 12, 31)).get());
+        narrow.close();
+        wide.close();
+    }
+}
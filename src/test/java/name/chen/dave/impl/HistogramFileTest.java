@@ -0,0 +1,363 @@
+/**
+ * Test the checksummed histogram file format, and recovering from torn, corrupt and legacy files
+ */
+package name.chen.dave.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+public class HistogramFileTest {
+
+    private static final int FIRST_EPOCH_DAY = (int) LocalDate.of(1850, 1, 1).toEpochDay();
+    private static final int LAST_EPOCH_DAY = (int) LocalDate.of(2049, 12, 31).toEpochDay();
+    // Years, months and days by epoch day, of 1850 to 2049
+    static final int NUM_VALUES = 200 + 200 * 12 + (LAST_EPOCH_DAY - FIRST_EPOCH_DAY + 1);
+
+    private File dataDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-file").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    /**
+     * @return the histogram in the checkpoint file with the latest generation, checking both files are valid
+     */
+    static int[] readLatestCheckpoint(File dataDirectory) throws IOException {
+        int[] latest = null;
+        long latestGeneration = -1;
+        for (String name : new String[]{"bdayhistogram.bin", "bdayhistogram.1.bin"}) {
+            File file = new File(dataDirectory, name);
+            if (file.exists()) {
+                HistogramFile histogramFile = new HistogramFile(file, FIRST_EPOCH_DAY, LAST_EPOCH_DAY, NUM_VALUES);
+                int[] values = histogramFile.read();
+                if (histogramFile.getGeneration() > latestGeneration) {
+                    latest = values;
+                    latestGeneration = histogramFile.getGeneration();
+                }
+            }
+        }
+        return latest;
+    }
+
+    private HistogramFile histogramFile(String name) {
+        return new HistogramFile(new File(dataDirectory, name), FIRST_EPOCH_DAY, LAST_EPOCH_DAY, NUM_VALUES);
+    }
+
+    private static int[] randomValues(Random random) {
+        int[] values = new int[NUM_VALUES];
+        for (int i = 0; i < values.length; i += 1 + random.nextInt(100)) {
+            values[i] = random.nextInt(1000);
+        }
+        return values;
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(position);
+            int b = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(b ^ 1);
+        }
+    }
+
+    @Test
+    public void testCrc32c() {
+        Assert.assertEquals(0xE3069283, Crc32c.checksum(
+                ByteBuffer.wrap("123456789".getBytes(StandardCharsets.US_ASCII)), 0, 9));
+        Assert.assertEquals(0x8A9136AA, Crc32c.checksum(ByteBuffer.allocate(32), 0, 32));
+        byte[] ascending = new byte[32];
+        for (int i = 0; i < ascending.length; i++) {
+            ascending[i] = (byte) i;
+        }
+        Assert.assertEquals(0x46DD794E, Crc32c.checksum(ByteBuffer.wrap(ascending), 0, 32));
+
+        // The table implementation, used before Java 9, agrees at every length and offset
+        byte[] bytes = new byte[300];
+        new Random(5).nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int from = 0; from < 9; from++) {
+            for (int to = from; to < bytes.length; to += 7) {
+                Assert.assertEquals(Crc32c.checksum(buffer, from, to), Crc32c.tableChecksum(buffer, from, to));
+            }
+        }
+        Assert.assertEquals(0xE3069283, Crc32c.tableChecksum(
+                ByteBuffer.wrap("123456789".getBytes(StandardCharsets.US_ASCII)), 0, 9));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        int[] values = randomValues(new Random(1));
+        histogramFile("test.bin").write(values, 42);
+        HistogramFile read = histogramFile("test.bin");
+        Assert.assertEquals(42, read.readGeneration());
+        Assert.assertArrayEquals(values, read.read());
+        Assert.assertEquals(42, read.getGeneration());
+        Assert.assertFalse(new File(dataDirectory, "test.bin.tmp").exists());
+    }
+
+    @Test
+    public void testUpdateInPlace() throws IOException {
+        Random random = new Random(2);
+        int[] values = randomValues(random);
+        HistogramFile file = histogramFile("test.bin");
+        file.write(values, 1);
+
+        BitSet blocks = new BitSet();
+        for (int block : new int[]{0, 5, 6, 7, 1000, file.getNumBlocks() - 1}) {
+            blocks.set(block);
+            for (int i = block * 64; i < Math.min(block * 64 + 64, NUM_VALUES); i++) {
+                values[i] = random.nextInt();
+            }
+        }
+        file.update(blocks, (from, to, dest) -> dest.put(values, from, to - from), 2);
+        HistogramFile read = histogramFile("test.bin");
+        Assert.assertArrayEquals(values, read.read());
+        Assert.assertEquals(2, read.getGeneration());
+    }
+
+    @Test
+    public void testTornBlockIsDetected() throws IOException {
+        HistogramFile file = histogramFile("test.bin");
+        file.write(randomValues(new Random(3)), 1);
+        flipByte(file.getFile(), file.bodyOffset() + 4 * 5000 + 2);
+        try {
+            histogramFile("test.bin").read();
+            Assert.fail("A corrupt block was read");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("block 78"));
+        }
+    }
+
+    @Test
+    public void testCorruptHeaderIsDetected() throws IOException {
+        HistogramFile file = histogramFile("test.bin");
+        file.write(randomValues(new Random(4)), 1);
+        flipByte(file.getFile(), 25);
+        Assert.assertEquals(-1, histogramFile("test.bin").readGeneration());
+        try {
+            histogramFile("test.bin").read();
+            Assert.fail("A corrupt header was read");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("header checksum"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherDateRangeIsRejected() throws IOException {
+        histogramFile("test.bin").write(new int[NUM_VALUES], 1);
+        new HistogramFile(new File(dataDirectory, "test.bin"), FIRST_EPOCH_DAY, LAST_EPOCH_DAY - 1, NUM_VALUES)
+                .read();
+    }
+
+    @Test
+    public void testLegacyFileIsRecognised() throws IOException {
+        new IntArrayPersistence().toLocalDisk(new int[NUM_VALUES], new File(dataDirectory, "test.bin").getPath());
+        Assert.assertTrue(histogramFile("test.bin").isLegacyFile());
+        Assert.assertEquals(-1, histogramFile("test.bin").readGeneration());
+        histogramFile("other.bin").write(new int[NUM_VALUES], 1);
+        Assert.assertFalse(histogramFile("other.bin").isLegacyFile());
+    }
+
+    @Test
+    public void testSparseFile() throws IOException {
+        int[] values = randomValues(new Random(6));
+        HistogramFile file = histogramFile("test.bin").setCodec(HistogramFile.Codec.SPARSE, 2600);
+        long written = file.write(values, 7);
+        Assert.assertTrue(written < 4 * NUM_VALUES);
+        Assert.assertFalse(file.isKnown());
+
+        HistogramFile read = histogramFile("test.bin");
+        Assert.assertEquals(7, read.readGeneration());
+        Assert.assertEquals(HistogramFile.Codec.SPARSE, read.readCodec());
+        Arrays.fill(values, 0, 2600, 0);
+        Assert.assertArrayEquals(values, read.read());
+
+        flipByte(file.getFile(), HistogramFile.HEADER_SIZE + 100);
+        try {
+            histogramFile("test.bin").read();
+            Assert.fail("A corrupt sparse file was read");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void testSwitchCodecs() throws IOException {
+        ArrayDateHistogram dense = open();
+        dense.addDate(LocalDate.of(1999, 2, 5));
+        dense.close();
+
+        ArrayDateHistogram sparse = new ArrayDateHistogram(new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setWriteAheadLog(false)
+                .setCodec(HistogramFile.Codec.SPARSE));
+        sparse.addDate(LocalDate.of(1980, 5, 5));
+        sparse.persistToLocalDisk();
+        sparse.addDate(LocalDate.of(1980, 5, 6));
+        sparse.close();
+        Assert.assertEquals(HistogramFile.Codec.SPARSE, histogramFile("bdayhistogram.bin").readCodec());
+        Assert.assertEquals(HistogramFile.Codec.SPARSE, histogramFile("bdayhistogram.1.bin").readCodec());
+
+        ArrayDateHistogram denseAgain = open();
+        Assert.assertArrayEquals(sparse.getHistogramArrayCopy(), denseAgain.getHistogramArrayCopy());
+        denseAgain.close();
+    }
+
+    private ArrayDateHistogram open() throws IOException {
+        return new ArrayDateHistogram(new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setWriteAheadLog(false)
+                .setCheckpointIntervalSeconds(3600));
+    }
+
+    /**
+     * @return a histogram of the dates, with 31 day slots for every month of 1850 to 2049
+     */
+    private static int[] monthSlotHistogram(LocalDate... dates) {
+        int[] histogram = new int[HistogramLayout.MONTH_SLOTS_NUM_VALUES];
+        for (LocalDate date : dates) {
+            int year = date.getYear() - 1850;
+            histogram[year]++;
+            histogram[200 + 12 * year + date.getMonthValue() - 1]++;
+            histogram[2600 + 372 * year + 31 * (date.getMonthValue() - 1) + date.getDayOfMonth() - 1]++;
+        }
+        return histogram;
+    }
+
+    private static ArrayDateHistogram inMemory(LocalDate... dates) throws IOException {
+        ArrayDateHistogram histogram = new ArrayDateHistogram(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false));
+        for (LocalDate date : dates) {
+            histogram.addDate(date);
+        }
+        return histogram;
+    }
+
+    @Test
+    public void testMigrateLegacyFile() throws IOException {
+        LocalDate[] dates = {LocalDate.of(1999, 2, 5), LocalDate.of(1960, 7, 1), LocalDate.of(2049, 12, 31)};
+        new IntArrayPersistence().toLocalDisk(monthSlotHistogram(dates),
+                new File(dataDirectory, "bdayhistogram.bin").getPath());
+
+        ArrayDateHistogram migrated = open();
+        Assert.assertArrayEquals(inMemory(dates).getHistogramArrayCopy(), migrated.getHistogramArrayCopy());
+        migrated.addDate(LocalDate.of(2001, 1, 1));
+        migrated.persistToLocalDisk();
+        migrated.addDate(LocalDate.of(2001, 1, 1));
+        migrated.close();
+        Assert.assertFalse(new HistogramFile(new File(dataDirectory, "bdayhistogram.bin"), FIRST_EPOCH_DAY,
+                LAST_EPOCH_DAY, HistogramLayout.MONTH_SLOTS_NUM_VALUES).isLegacyFile());
+        Assert.assertArrayEquals(migrated.getHistogramArrayCopy(), readLatestCheckpoint(dataDirectory));
+    }
+
+    @Test
+    public void testMigrateMonthSlotFile() throws IOException {
+        LocalDate[] dates = {LocalDate.of(1850, 1, 1), LocalDate.of(1996, 2, 29), LocalDate.of(1996, 3, 1)};
+        new HistogramFile(new File(dataDirectory, "bdayhistogram.1.bin"), FIRST_EPOCH_DAY, LAST_EPOCH_DAY,
+                HistogramLayout.MONTH_SLOTS_NUM_VALUES).write(monthSlotHistogram(dates), 5);
+
+        ArrayDateHistogram migrated = open();
+        Assert.assertArrayEquals(inMemory(dates).getHistogramArrayCopy(), migrated.getHistogramArrayCopy());
+        migrated.addDate(LocalDate.of(2001, 1, 1));
+        migrated.persistToLocalDisk();
+        Assert.assertEquals(6, histogramFile("bdayhistogram.bin").readGeneration());
+        // The next checkpoint replaces the migrated file
+        migrated.addDate(LocalDate.of(2001, 1, 2));
+        migrated.close();
+        Assert.assertEquals(7, histogramFile("bdayhistogram.1.bin").readGeneration());
+        Assert.assertArrayEquals(migrated.getHistogramArrayCopy(), readLatestCheckpoint(dataDirectory));
+    }
+
+    @Test
+    public void testMigrateToOtherRangeOfYears() throws IOException {
+        ArrayDateHistogram histogram = open();
+        histogram.addDate(LocalDate.of(1899, 12, 31));
+        histogram.addDate(LocalDate.of(1900, 1, 1));
+        histogram.addDate(LocalDate.of(2049, 12, 31));
+        histogram.close();
+
+        ArrayDateHistogram narrower = new ArrayDateHistogram(new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setWriteAheadLog(false)
+                .setFirstYear(1900)
+                .setLastYear(2100));
+        Assert.assertEquals(2, narrower.getSnapshot().traverseDates(LocalDate.of(1900, 1, 1),
+                LocalDate.of(2100, 12, 31)));
+        narrower.addDate(LocalDate.of(2100, 12, 31));
+        narrower.close();
+        Assert.assertEquals(1, narrower.getSnapshot().traverseDates(LocalDate.of(2050, 1, 1),
+                LocalDate.of(2100, 12, 31)));
+
+        ArrayDateHistogram restarted = new ArrayDateHistogram(new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setWriteAheadLog(false)
+                .setFirstYear(1900)
+                .setLastYear(2100));
+        Assert.assertArrayEquals(narrower.getHistogramArrayCopy(), restarted.getHistogramArrayCopy());
+        restarted.close();
+    }
+
+    @Test
+    public void testFallBackToPreviousCheckpoint() throws IOException {
+        ArrayDateHistogram histogram = open();
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        histogram.persistToLocalDisk();
+        int[] previous = histogram.getHistogramArrayCopy();
+        histogram.addDate(LocalDate.of(1999, 2, 6));
+        histogram.persistToLocalDisk();
+
+        // The first checkpoint went to the second file, and the latest to the first: tear it
+        HistogramFile latest = histogramFile("bdayhistogram.bin");
+        Assert.assertEquals(2, latest.readGeneration());
+        flipByte(latest.getFile(), latest.bodyOffset() + 4 * 30000);
+
+        ArrayDateHistogram restarted = open();
+        Assert.assertArrayEquals(previous, restarted.getHistogramArrayCopy());
+        restarted.addDate(LocalDate.of(1999, 2, 6));
+        restarted.close();
+        Assert.assertArrayEquals(restarted.getHistogramArrayCopy(), readLatestCheckpoint(dataDirectory));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoValidCheckpointIsAnError() throws IOException {
+        HistogramFile file = histogramFile("bdayhistogram.bin");
+        file.write(new int[NUM_VALUES], 1);
+        flipByte(file.getFile(), 3);
+        open();
+    }
+
+    @Test
+    public void testBulkTransfersKeepByteOrder() {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(new int[]{1, -2});
+        Assert.assertEquals(1, buffer.getInt(0));
+        Assert.assertEquals(-2, buffer.getInt(4));
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Test the layout of the histogram array, with days indexed by epoch day
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+import java.time.LocalDate;
+import java.util.Random;
+
+public class HistogramLayoutTest {
+
+    private final HistogramLayout layout = new HistogramLayout(1850, 2049);
+
+    @Test
+    public void testDaySlots() {
+        Assert.assertEquals(73049, layout.getNumDays());
+        Assert.assertEquals(200 + 2400 + 73049, layout.numValues());
+        Assert.assertEquals(0, layout.daySlot((int) LocalDate.of(1850, 1, 1).toEpochDay()));
+        Assert.assertEquals(73048, layout.daySlot((int) LocalDate.of(2049, 12, 31).toEpochDay()));
+        Assert.assertEquals(-1, layout.daySlot((int) LocalDate.of(1849, 12, 31).toEpochDay()));
+        Assert.assertEquals(-1, layout.daySlot((int) LocalDate.of(2050, 1, 1).toEpochDay()));
+        Assert.assertEquals(-1, layout.daySlot(Integer.MIN_VALUE));
+        Assert.assertEquals(-1, layout.daySlot(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testMonths() {
+        for (LocalDate date = LocalDate.of(1850, 1, 1); date.getYear() < 2050; date = date.plusDays(1)) {
+            int month = layout.monthOf(layout.daySlot((int) date.toEpochDay()));
+            Assert.assertEquals(date.toString(), 12 * (date.getYear() - 1850) + date.getMonthValue() - 1, month);
+            if (date.getDayOfMonth() == 1) {
+                Assert.assertEquals(layout.daySlot((int) date.toEpochDay()), layout.monthStart(month));
+            }
+        }
+        Assert.assertEquals(layout.getNumDays(), layout.monthStart(2400));
+    }
+
+    @Test
+    public void testHistogramArray() {
+        Random random = new Random(10);
+        DayCountIndex index = new DayCountIndex(layout.getNumDays());
+        int[] expected = new int[layout.numValues()];
+        for (int i = 0; i < 2000; i++) {
+            LocalDate date = LocalDate.of(1850, 1, 1).plusDays(random.nextInt(layout.getNumDays()));
+            index.add(layout.daySlot((int) date.toEpochDay()), 1);
+            expected[date.getYear() - 1850]++;
+            expected[200 + 12 * (date.getYear() - 1850) + date.getMonthValue() - 1]++;
+            expected[2600 + layout.daySlot((int) date.toEpochDay())]++;
+        }
+        Assert.assertArrayEquals(expected, layout.toHistogramArray(index));
+
+        IntBuffer values = IntBuffer.allocate(3000);
+        layout.putValues(index, 100, 3100, values);
+        for (int i = 0; i < 3000; i++) {
+            Assert.assertEquals(expected[100 + i], values.get(i));
+        }
+    }
+
+    @Test
+    public void testCopyDaysToOtherRange() {
+        HistogramLayout narrower = new HistogramLayout(1900, 1999);
+        int[] source = new int[layout.numValues()];
+        source[layout.daysOffset() + layout.daySlot((int) LocalDate.of(1899, 12, 31).toEpochDay())] = 2;
+        source[layout.daysOffset() + layout.daySlot((int) LocalDate.of(1960, 2, 29).toEpochDay())] = 3;
+        int[] dest = new int[narrower.numValues()];
+        Assert.assertEquals(2, narrower.copyDaysFrom(layout, source, dest));
+        Assert.assertEquals(3, dest[narrower.daysOffset() + narrower.daySlot((int) LocalDate.of(1960, 2, 29)
+                .toEpochDay())]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectPartialYears() {
+        HistogramLayout.ofEpochDays((int) LocalDate.of(1850, 1, 2).toEpochDay(),
+                (int) LocalDate.of(2049, 12, 31).toEpochDay());
+    }
+}
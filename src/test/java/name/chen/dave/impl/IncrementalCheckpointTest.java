@@ -0,0 +1,120 @@
+/**
+ * Test that checkpoints only rewrite the parts of the histogram file that changed, and leave it complete
+ */
+package name.chen.dave.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Random;
+
+public class IncrementalCheckpointTest {
+
+    private File dataDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-checkpoint").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    private ArrayDateHistogram open(boolean writeAheadLog) throws IOException {
+        return new ArrayDateHistogram(new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setWriteAheadLog(writeAheadLog)
+                .setCheckpointIntervalSeconds(3600));
+    }
+
+    private int[] readFile() throws IOException {
+        return HistogramFileTest.readLatestCheckpoint(dataDirectory);
+    }
+
+    @Test
+    public void testOnlyChangedPagesAreWritten() throws IOException {
+        ArrayDateHistogram histogram = open(false);
+        // The first checkpoint to each of the two files writes it whole
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        histogram.persistToLocalDisk();
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        histogram.persistToLocalDisk();
+        long fullWrites = histogram.getCheckpointBytesWritten();
+        Assert.assertTrue(fullWrites > 2 * 4 * HistogramFileTest.NUM_VALUES);
+
+        histogram.addDate(LocalDate.of(1999, 2, 6));
+        histogram.addDate(LocalDate.of(2030, 12, 31));
+        histogram.persistToLocalDisk();
+        Assert.assertArrayEquals(histogram.getHistogramArrayCopy(), readFile());
+        // Two changed days: a few blocks of days, months and years, their checksums and the header
+        long incrementalWrite = histogram.getCheckpointBytesWritten() - fullWrites;
+        Assert.assertTrue(incrementalWrite + " bytes written", incrementalWrite < 8 * 4 * 64 + 64);
+        histogram.close();
+    }
+
+    @Test
+    public void testIncrementalCheckpointsMatchFullCopy() throws IOException {
+        for (boolean writeAheadLog : new boolean[]{false, true}) {
+            ArrayDateHistogram histogram = open(writeAheadLog);
+            Random random = new Random(7);
+            for (int checkpoint = 0; checkpoint < 20; checkpoint++) {
+                for (int i = 0; i < random.nextInt(50); i++) {
+                    histogram.addDate(LocalDate.of(1850, 1, 1).plusDays(random.nextInt(200 * 365)));
+                }
+                histogram.persistToLocalDisk();
+                Assert.assertArrayEquals(histogram.getHistogramArrayCopy(), readFile());
+            }
+            histogram.close();
+
+            // After a restart, the first checkpoint is incremental against the loaded file
+            ArrayDateHistogram restarted = open(writeAheadLog);
+            restarted.addDate(LocalDate.of(2049, 12, 31));
+            restarted.persistToLocalDisk();
+            Assert.assertArrayEquals(restarted.getHistogramArrayCopy(), readFile());
+            restarted.close();
+            tearDown();
+            setUp();
+        }
+    }
+
+    @Test
+    public void testCheckpointMetrics() throws IOException {
+        ArrayDateHistogram histogram = open(false);
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        histogram.persistToLocalDisk();
+        MedianDBMetrics metrics = histogram.getMetrics();
+        Assert.assertEquals(histogram.getCheckpointBytesWritten(), metrics.getCheckpointBytesWritten());
+        Assert.assertTrue(metrics.getLastCheckpointMillis() > 0);
+        Assert.assertEquals(0, metrics.getCheckpointFailures());
+
+        // A checkpoint that can't be written is counted, and leaves the time of the last one
+        long lastCheckpoint = metrics.getLastCheckpointMillis();
+        tearDown();
+        histogram.addDate(LocalDate.of(1999, 2, 6));
+        try {
+            histogram.persistToLocalDisk();
+            Assert.fail("Checkpoint to a deleted directory succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(1, metrics.getCheckpointFailures());
+        Assert.assertEquals(lastCheckpoint, metrics.getLastCheckpointMillis());
+        Assert.assertEquals(1L, metrics.toMap().get("checkpointFailures"));
+        Assert.assertTrue(dataDirectory.mkdir());
+        histogram.close();
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Test which buckets cover a window of adds, and that old buckets expire, with the clock given to each call
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static name.chen.dave.impl.IngestionWindows.DAY_MILLIS;
+import static name.chen.dave.impl.IngestionWindows.HOUR_MILLIS;
+import static name.chen.dave.impl.IngestionWindows.MINUTE_MILLIS;
+
+public class IngestionWindowsTest {
+
+    // 10:30:30 on a day, UTC
+    private static final long NOW = 18000 * DAY_MILLIS + 10 * HOUR_MILLIS + 30 * MINUTE_MILLIS + 30_000;
+
+    private final HistogramLayout layout = new HistogramLayout(1850, 2049);
+    private IngestionWindows windows;
+
+    @Before
+    public void setUp() {
+        windows = new IngestionWindows(layout, 7);
+        // One birthday at the start of every minute of the last 3 days
+        for (long minute = 3 * 24 * 60; minute >= 0; minute--) {
+            windows.add((int) (minute % 20000), 1, NOW - 30_000 - minute * MINUTE_MILLIS);
+        }
+    }
+
+    private int total(long windowMillis) {
+        return windows.window(windowMillis, NOW).total();
+    }
+
+    @Test
+    public void testMinutesAreExact() {
+        // The minute around the start of the window is taken whole
+        Assert.assertEquals(2, total(MINUTE_MILLIS));
+        Assert.assertEquals(16, total(15 * MINUTE_MILLIS));
+        Assert.assertEquals(61, total(60 * MINUTE_MILLIS));
+        Assert.assertEquals(1, total(1000));
+    }
+
+    @Test
+    public void testHoursAndDaysStartAtTheirBucket() {
+        // From 09:00, as 09:00:30 is no longer in the minutes kept
+        Assert.assertEquals(91, total(90 * MINUTE_MILLIS));
+        // From 10:00 the day before
+        Assert.assertEquals(24 * 60 + 31, total(DAY_MILLIS));
+        // From the start of the day 2 days before, then 3 whole days
+        Assert.assertEquals(2 * 24 * 60 + 10 * 60 + 31, total(2 * DAY_MILLIS));
+        Assert.assertEquals(3 * 24 * 60 + 1, total(7 * DAY_MILLIS));
+    }
+
+    @Test
+    public void testWindowHasTheBirthdaysAdded() {
+        SegmentHistogram window = windows.window(5 * MINUTE_MILLIS, NOW);
+        for (int minute = 0; minute <= 5; minute++) {
+            Assert.assertEquals(1, window.get(minute));
+        }
+        Assert.assertEquals(0, window.get(6));
+    }
+
+    @Test
+    public void testOldBucketsExpire() {
+        Assert.assertEquals(0, windows.window(7 * DAY_MILLIS, NOW + 10 * DAY_MILLIS).total());
+        // Only the last day, from the start of the day
+        Assert.assertEquals(10 * 60 + 31, windows.window(7 * DAY_MILLIS, NOW + 7 * DAY_MILLIS).total());
+    }
+
+    @Test
+    public void testBatchAdds() {
+        windows.addAll(new int[]{5, 6, 7}, new int[]{1, 2, 3}, 2, NOW);
+        SegmentHistogram window = windows.window(MINUTE_MILLIS, NOW);
+        Assert.assertEquals(5, window.total());
+        Assert.assertEquals(2, window.get(6));
+        Assert.assertEquals(0, window.get(7));
+    }
+
+    @Test
+    public void testMemoryStaysBounded() {
+        long size = windows.sizeInBytes();
+        for (long minute = 1; minute <= 30 * 24 * 60; minute++) {
+            windows.add((int) (minute % 20000), 1, NOW + minute * MINUTE_MILLIS);
+        }
+        Assert.assertTrue(windows.sizeInBytes() + " bytes after 30 days, " + size + " after 3",
+                windows.sizeInBytes() < 2 * size);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowLongerThanDaysKept() {
+        total(7 * DAY_MILLIS + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowNotPositive() {
+        total(0);
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Test parsing dates to epoch days, and ages between epoch days, against java.time
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.Random;
+
+public class IsoDateParserTest {
+
+    @Test
+    public void testParse() {
+        Assert.assertEquals(LocalDate.of(1999, 1, 5).toEpochDay(), IsoDateParser.parseEpochDay("1999-01-05"));
+        Assert.assertEquals(LocalDate.of(2000, 2, 29).toEpochDay(), IsoDateParser.parseEpochDay("2000-02-29"));
+        Assert.assertEquals(IsoDateParser.INVALID_DATE, IsoDateParser.parseEpochDay("1900-02-29"));
+        Assert.assertEquals(IsoDateParser.INVALID_DATE, IsoDateParser.parseEpochDay("1999-1-05"));
+        Assert.assertEquals(IsoDateParser.INVALID_DATE, IsoDateParser.parseEpochDay("1999-01-0x"));
+    }
+
+    @Test
+    public void testPackedDateMatchesLocalDate() {
+        for (int epochDay = -800_000; epochDay < 800_000; epochDay += 13) {
+            LocalDate date = LocalDate.ofEpochDay(epochDay);
+            Assert.assertEquals(date.toString(), date.getYear() * 10000 + date.getMonthValue() * 100
+                    + date.getDayOfMonth(), IsoDateParser.toPackedDate(epochDay));
+        }
+    }
+
+    @Test
+    public void testAgeMatchesPeriod() {
+        Random random = new Random(21);
+        for (int i = 0; i < 100_000; i++) {
+            int birth = -60000 + random.nextInt(100000);
+            // Birthdays and ages around leap days and month ends too
+            int asOf = random.nextBoolean() ? birth + random.nextInt(40000) - 1000
+                    : (int) LocalDate.ofEpochDay(birth).plusYears(random.nextInt(100)).toEpochDay()
+                    + random.nextInt(3) - 1;
+            Assert.assertEquals(LocalDate.ofEpochDay(birth) + " as of " + LocalDate.ofEpochDay(asOf),
+                    Period.between(LocalDate.ofEpochDay(birth), LocalDate.ofEpochDay(asOf)).getYears(),
+                    IsoDateParser.ageInYears(birth, asOf));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Test the latency recorder: bucket boundaries, percentiles against the exact ones, sampling, and recording when
+ * disabled
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        Assert.assertEquals(0, LatencyRecorder.bucket(0));
+        Assert.assertEquals(31, LatencyRecorder.bucket(31));
+        Assert.assertEquals(LatencyRecorder.NUM_BUCKETS - 1, LatencyRecorder.bucket((1L << 40) - 1));
+        for (int bucket = 1; bucket < LatencyRecorder.NUM_BUCKETS; bucket++) {
+            long lowest = LatencyRecorder.highestInBucket(bucket - 1) + 1;
+            Assert.assertEquals(bucket, LatencyRecorder.bucket(lowest));
+            Assert.assertEquals(bucket, LatencyRecorder.bucket(LatencyRecorder.highestInBucket(bucket)));
+            // Within 1/16 of the lowest value in the bucket
+            Assert.assertTrue(LatencyRecorder.highestInBucket(bucket) - lowest <= lowest / 16);
+        }
+    }
+
+    @Test
+    public void testPercentilesAgainstSortedValues() {
+        LatencyRecorder recorder = new LatencyRecorder(1);
+        Random random = new Random(3);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20);
+            recorder.record(values[i]);
+        }
+        Arrays.sort(values);
+        LatencyRecorder.Summary summary = recorder.summary();
+        Assert.assertEquals(values.length, summary.getCount());
+        Assert.assertEquals(values[values.length - 1], summary.getMaxNanos());
+        Assert.assertEquals(Arrays.stream(values).sum() / values.length, summary.getMeanNanos());
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long reported = summary.getPercentileNanos(percentile);
+            Assert.assertTrue(percentile + ": " + reported + " for " + exact,
+                    reported >= exact && reported <= exact + exact / 16);
+        }
+    }
+
+    @Test
+    public void testEmptyAndDisabled() {
+        LatencyRecorder.Summary empty = new LatencyRecorder(1).summary();
+        Assert.assertEquals(0, empty.getCount());
+        Assert.assertEquals(0, empty.getPercentileNanos(99));
+
+        LatencyRecorder disabled = new LatencyRecorder(0);
+        Assert.assertEquals(LatencyRecorder.NOT_SAMPLED, disabled.start());
+        disabled.recordSince(disabled.start());
+        disabled.record(100);
+        Assert.assertEquals(0, disabled.summary().getCount());
+    }
+
+    @Test
+    public void testSampling() {
+        LatencyRecorder recorder = new LatencyRecorder(16);
+        int sampled = 0;
+        for (int i = 0; i < 16000; i++) {
+            long start = recorder.start();
+            if (start != LatencyRecorder.NOT_SAMPLED) {
+                sampled++;
+            }
+            recorder.recordSince(start);
+        }
+        Assert.assertEquals(sampled, recorder.summary().getCount());
+        Assert.assertTrue(sampled + " sampled", sampled > 800 && sampled < 1200);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSamplingNotPowerOfTwo() {
+        new LatencyRecorder(10);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Test the mapped storage mode, and that its histogram file is interchangeable with the heap mode's
+ */
+package name.chen.dave.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+
+public class MappedHistogramFileTest {
+
+    private File dataDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-mapped").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    private ArrayDateHistogram open(MedianDBConfig.StorageMode storageMode) throws IOException {
+        return new ArrayDateHistogram(new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setStorageMode(storageMode)
+                .setWriteAheadLog(false)
+                .setCheckpointIntervalSeconds(3600));
+    }
+
+    private int[] readFile() throws IOException {
+        return HistogramFileTest.readLatestCheckpoint(dataDirectory);
+    }
+
+    @Test
+    public void testMappedFileFollowsPublishedVersions() throws IOException {
+        ArrayDateHistogram histogram = open(MedianDBConfig.StorageMode.MAPPED);
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        histogram.addDate(LocalDate.of(1850, 1, 1));
+        histogram.persistToLocalDisk();
+        Assert.assertArrayEquals(histogram.getHistogramArrayCopy(), readFile());
+
+        histogram.addDate(LocalDate.of(2049, 12, 31));
+        histogram.addEpochDays(new int[]{(int) LocalDate.of(1999, 3, 1).toEpochDay()}, new int[]{4}, 1);
+        histogram.persistToLocalDisk();
+        Assert.assertArrayEquals(histogram.getHistogramArrayCopy(), readFile());
+        histogram.close();
+    }
+
+    @Test
+    public void testRestartFromMappedFile() throws IOException {
+        ArrayDateHistogram histogram = open(MedianDBConfig.StorageMode.MAPPED);
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        histogram.addDate(LocalDate.of(2001, 7, 9));
+        histogram.close();
+
+        ArrayDateHistogram restarted = open(MedianDBConfig.StorageMode.MAPPED);
+        Assert.assertEquals(2, restarted.getSnapshot().traverseDates(LocalDate.of(1850, 1, 1),
+                LocalDate.of(2049, 12, 31)));
+        restarted.addDate(LocalDate.of(1999, 2, 5));
+        Assert.assertEquals(2, restarted.getSnapshot().traverseDates(LocalDate.of(1999, 2, 5),
+                LocalDate.of(1999, 2, 5)));
+        restarted.close();
+    }
+
+    @Test
+    public void testFileSharedWithHeapMode() throws IOException {
+        ArrayDateHistogram heap = open(MedianDBConfig.StorageMode.HEAP);
+        heap.addDate(LocalDate.of(1999, 2, 5));
+        heap.close();
+
+        ArrayDateHistogram mapped = open(MedianDBConfig.StorageMode.MAPPED);
+        mapped.addDate(LocalDate.of(1987, 11, 30));
+        mapped.close();
+
+        ArrayDateHistogram heapAgain = open(MedianDBConfig.StorageMode.HEAP);
+        Assert.assertEquals(2, heapAgain.getSnapshot().traverseDates(LocalDate.of(1850, 1, 1),
+                LocalDate.of(2049, 12, 31)));
+        Assert.assertArrayEquals(heapAgain.getHistogramArrayCopy(), readFile());
+        heapAgain.close();
+    }
+
+    @Test
+    public void testKeepCountersAfterUnfinishedCheckpoint() throws IOException {
+        ArrayDateHistogram histogram = open(MedianDBConfig.StorageMode.MAPPED);
+        histogram.addDate(LocalDate.of(1999, 2, 5));
+        histogram.persistToLocalDisk();
+        // Published into the mapping, but the process stops before the next checkpoint updates the checksums
+        histogram.addDate(LocalDate.of(1999, 2, 6));
+        Assert.assertEquals(2, histogram.getSnapshot().traverseDates(LocalDate.of(1999, 1, 1),
+                LocalDate.of(1999, 12, 31)));
+
+        ArrayDateHistogram restarted = open(MedianDBConfig.StorageMode.MAPPED);
+        Assert.assertEquals(2, restarted.getSnapshot().traverseDates(LocalDate.of(1999, 1, 1),
+                LocalDate.of(1999, 12, 31)));
+        restarted.close();
+        Assert.assertArrayEquals(restarted.getHistogramArrayCopy(), readFile());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectFileOfWrongSize() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(dataDirectory, "bdayhistogram.bin"))) {
+            out.write(new byte[12]);
+        }
+        open(MedianDBConfig.StorageMode.MAPPED);
+    }
+}
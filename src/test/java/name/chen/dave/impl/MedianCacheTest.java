@@ -0,0 +1,83 @@
+/**
+ * Test the median cache: versions, eviction, and its hash table against a map
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class MedianCacheTest {
+
+    @Test
+    public void testHitsAndVersions() {
+        MedianCache cache = new MedianCache(4, 0);
+        Assert.assertEquals(MedianCache.MISS, cache.get(1, 2, 0));
+        cache.put(1, 2, 0, 10);
+        cache.put(-5, 2, 0, MedianCache.NO_MEDIAN);
+        Assert.assertEquals(10, cache.get(1, 2, 0));
+        Assert.assertEquals(MedianCache.NO_MEDIAN, cache.get(-5, 2, 0));
+        Assert.assertEquals(MedianCache.MISS, cache.get(2, 1, 0));
+
+        // A newer version replaces the entry, and an older one doesn't
+        Assert.assertEquals(MedianCache.MISS, cache.get(1, 2, 1));
+        cache.put(1, 2, 1, 11);
+        cache.put(1, 2, 0, 10);
+        Assert.assertEquals(11, cache.get(1, 2, 1));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testEvictionSparesRecentlyUsed() {
+        MedianCache cache = new MedianCache(3, 0);
+        cache.put(1, 1, 0, 1);
+        cache.put(2, 2, 0, 2);
+        cache.put(3, 3, 0, 3);
+        cache.get(1, 1, 0);
+        cache.put(4, 4, 0, 4);
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(1, cache.get(1, 1, 0));
+        Assert.assertEquals(MedianCache.MISS, cache.get(2, 2, 0));
+        Assert.assertEquals(3, cache.get(3, 3, 0));
+        Assert.assertEquals(4, cache.get(4, 4, 0));
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testMatchesMap() {
+        Random random = new Random(11);
+        MedianCache cache = new MedianCache(100, 0);
+        Map<Long, Long> latest = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            int start = random.nextInt(300) - 150;
+            int end = start + random.nextInt(3);
+            long key = ((long) start << 32) | (end & 0xFFFFFFFFL);
+            long median = cache.get(start, end, 0);
+            if (median == MedianCache.MISS) {
+                median = random.nextInt();
+                cache.put(start, end, 0, median);
+                latest.put(key, median);
+            } else {
+                Assert.assertEquals(latest.get(key).longValue(), median);
+            }
+            Assert.assertTrue(cache.size() <= 100);
+        }
+        Assert.assertTrue(cache.getEvictions() > 0);
+        Assert.assertEquals(200000, cache.getHits() + cache.getMisses());
+        Assert.assertEquals(cache.getMisses(), cache.getEvictions() + cache.size());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        MedianCache cache = new MedianCache(4, 1);
+        cache.put(1, 2, 0, 10);
+        Assert.assertEquals(10, cache.get(1, 2, 0));
+        Thread.sleep(1100);
+        Assert.assertEquals(MedianCache.MISS, cache.get(1, 2, 0));
+    }
+}
@@ -9,8 +9,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 
 public class MedianDBTest {
 
@@ -78,4 +84,243 @@ public class MedianDBTest {
                 LocalDate.of(2019,2,5));
         Assert.assertEquals(LocalDate.of(1999, 2,5), medianBDay.get());
     }
+
+    @Test
+    public void testCachedMedianFollowsAdds() {
+        LocalDate start = LocalDate.of(1950, 1, 1);
+        LocalDate end = LocalDate.of(2019, 2, 5);
+        Assert.assertFalse(bdayMedians.findMedian(start, end).isPresent());
+        Assert.assertFalse(bdayMedians.findMedian(start, end).isPresent());
+        MedianCache cache = bdayMedians.getMedianCache();
+        Assert.assertEquals(1, cache.getHits());
+
+        bdayMedians.addBirthday(LocalDate.of(1999, 2, 5));
+        Assert.assertEquals(LocalDate.of(1999, 2, 5), bdayMedians.findMedian(start, end).get());
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(LocalDate.of(1999, 2, 5), bdayMedians.findMedian(start, end).get());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedDatesAreNotCached() {
+        bdayMedians.findMedian(LocalDate.of(-999999, 1, 1), LocalDate.of(1999, 2, 5));
+    }
+
+    @Test
+    public void testGetMedianEvenCountWithSharedMiddleDate() {
+        bdayMedians.addBirthday(LocalDate.of(1999,2,5));
+        bdayMedians.addBirthday(LocalDate.of(1999,2,5));
+        bdayMedians.addBirthday(LocalDate.of(1999,2,9));
+        bdayMedians.addBirthday(LocalDate.of(1999,2,9));
+        Optional<LocalDate> medianBDay = bdayMedians.findMedian(LocalDate.of(1999,1,1),
+                LocalDate.of(1999,3,1));
+        Assert.assertEquals(LocalDate.of(1999, 2,7), medianBDay.get());
+    }
+
+    @Test
+    public void testQuantiles() {
+        LocalDate first = LocalDate.of(1980, 1, 1);
+        for (int i = 0; i < 100; i++) {
+            bdayMedians.addBirthday(first.plusDays(10 * i));
+        }
+        List<LocalDate> quantiles = bdayMedians.findQuantiles(LocalDate.of(1979, 1, 1), LocalDate.of(1990, 1, 1),
+                0, 0.1, 0.5, 0.99, 1).get();
+        Assert.assertEquals(Arrays.asList(first, first.plusDays(99), first.plusDays(495), first.plusDays(980),
+                first.plusDays(990)), quantiles);
+        Assert.assertEquals(bdayMedians.findMedian(LocalDate.of(1979, 1, 1), LocalDate.of(1990, 1, 1)).get(),
+                quantiles.get(2));
+        Assert.assertFalse(bdayMedians.findQuantiles(LocalDate.of(2000, 1, 1), LocalDate.of(2001, 1, 1), 0.5)
+                .isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQuantileOutOfRange() {
+        bdayMedians.findQuantiles(LocalDate.of(2000, 1, 1), LocalDate.of(2001, 1, 1), 1.5);
+    }
+
+    @Test
+    public void testMediansOfManyRangesMatchOneByOne() {
+        Random random = new Random(19);
+        for (int i = 0; i < 5000; i++) {
+            bdayMedians.addBirthday(LocalDate.ofEpochDay(-43000 + random.nextInt(72000)));
+        }
+        // Adjacent yearly cohorts, random ranges, reversed ones and single days, more than one task's worth
+        List<LocalDate> startDates = new ArrayList<>();
+        List<LocalDate> endDates = new ArrayList<>();
+        for (int year = 1850; year < 2049; year++) {
+            startDates.add(LocalDate.of(year, 1, 1));
+            endDates.add(LocalDate.of(year + 1, 1, 1).minusDays(1));
+        }
+        while (startDates.size() < 2 * MedianDB.RANGES_PER_TASK + 100) {
+            LocalDate start = LocalDate.ofEpochDay(-43827 + random.nextInt(73000));
+            LocalDate end = start.plusDays(random.nextInt(3) == 0 ? random.nextInt(3) - 2 : random.nextInt(20000));
+            startDates.add(start);
+            endDates.add(end.isAfter(LocalDate.of(2049, 12, 31)) ? LocalDate.of(2049, 12, 31) : end);
+        }
+        List<Optional<LocalDate>> medians = bdayMedians.findMedians(startDates, endDates);
+        Assert.assertEquals(startDates.size(), medians.size());
+        for (int i = 0; i < startDates.size(); i++) {
+            Assert.assertEquals(startDates.get(i) + ".." + endDates.get(i),
+                    bdayMedians.findMedian(startDates.get(i), endDates.get(i)), medians.get(i));
+        }
+    }
+
+    @Test
+    public void testMediansOfNoRanges() {
+        Assert.assertTrue(bdayMedians.findMedians(new ArrayList<>(), new ArrayList<>()).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMediansOfUnsupportedDates() {
+        bdayMedians.findMedians(Arrays.asList(LocalDate.of(1999, 1, 1), LocalDate.of(1700, 1, 1)),
+                Arrays.asList(LocalDate.of(1999, 12, 31), LocalDate.of(1999, 12, 31)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMediansNeedAnEndForEachStart() {
+        bdayMedians.findMedians(Arrays.asList(LocalDate.of(1999, 1, 1)), new ArrayList<>());
+    }
+
+    @Test
+    public void testWindowMedians() throws IOException {
+        MedianDB medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false).setIngestionWindowDays(1));
+        LocalDate start = LocalDate.of(1900, 1, 1);
+        LocalDate end = LocalDate.of(2000, 1, 1);
+        Assert.assertFalse(medianDB.findWindowMedian(Duration.ofHours(1), start, end).isPresent());
+        medianDB.addBirthday(LocalDate.of(1950, 3, 1));
+        medianDB.addBirthday("eu", LocalDate.of(1960, 3, 1));
+        medianDB.addBirthdays(new int[]{(int) LocalDate.of(1970, 3, 1).toEpochDay(), 1_000_000}, new int[]{3, 1}, 2);
+        Assert.assertEquals(medianDB.findMedian(start, end),
+                medianDB.findWindowMedian(Duration.ofMinutes(5), start, end));
+        Assert.assertEquals(medianDB.findQuantiles(start, end, 0, 0.5, 1),
+                medianDB.findWindowQuantiles(Duration.ofDays(1), start, end, 0, 0.5, 1));
+        Assert.assertTrue(medianDB.getMetricsReport().containsKey("ingestionWindowBytes"));
+        try {
+            medianDB.findWindowMedian(Duration.ofDays(2), start, end);
+            Assert.fail("Found a median over more days than kept");
+        } catch (IllegalArgumentException expected) {
+        }
+        medianDB.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWindowsNotEnabled() {
+        bdayMedians.findWindowMedian(Duration.ofHours(1), LocalDate.of(1900, 1, 1), LocalDate.of(2000, 1, 1));
+    }
+
+    @Test
+    public void testMetrics() throws IOException {
+        MedianDB medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false).setMetricsSampleEvery(1));
+        medianDB.addBirthday(LocalDate.of(1999,2,5));
+        medianDB.addBirthdays(new int[]{(int) LocalDate.of(1999,2,6).toEpochDay(),
+                (int) LocalDate.of(1700,1,1).toEpochDay()}, new int[]{3, 1}, 2);
+        medianDB.findMedian(LocalDate.of(1999,1,1), LocalDate.of(1999,12,31));
+        medianDB.findMedian(LocalDate.of(1999,1,1), LocalDate.of(1999,12,31));
+        medianDB.findQuantiles(LocalDate.of(1999,1,1), LocalDate.of(1999,12,31), 0.1, 0.9);
+
+        MedianDBMetrics metrics = medianDB.getMetrics();
+        Assert.assertEquals(2, metrics.getAddCount());
+        Assert.assertEquals(2, metrics.getAddLatency().getCount());
+        Assert.assertEquals(4, metrics.getBirthdaysAdded());
+        Assert.assertEquals(3, metrics.getQueryCount());
+        Assert.assertEquals(3, metrics.getQueryLatency().getCount());
+        Assert.assertTrue(metrics.getQueryLatency().getMaxNanos() > 0);
+        Assert.assertTrue(metrics.getSnapshotBytesCopied() > 0);
+        Assert.assertEquals(0, metrics.getLastCheckpointMillis());
+
+        Map<String, Object> report = medianDB.getMetricsReport();
+        Assert.assertEquals(4L, report.get("birthdaysAdded"));
+        Assert.assertEquals(3L, report.get("queries"));
+        Assert.assertEquals(3L, ((Map<?, ?>) report.get("queryLatency")).get("samples"));
+        Assert.assertEquals(1L, ((Map<?, ?>) report.get("medianCache")).get("hits"));
+        Assert.assertNull(report.get("lastCheckpoint"));
+    }
+
+    @Test
+    public void testLatenciesDisabled() throws IOException {
+        MedianDB medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false).setMetricsSampleEvery(0));
+        medianDB.addBirthday(LocalDate.of(1999,2,5));
+        medianDB.findMedian(LocalDate.of(1999,1,1), LocalDate.of(1999,12,31));
+        Assert.assertEquals(0, medianDB.getMetrics().getAddLatency().getCount());
+        Assert.assertEquals(0, medianDB.getMetrics().getQueryLatency().getCount());
+        Assert.assertEquals(1, medianDB.getMetrics().getAddCount());
+        Assert.assertEquals(1, medianDB.getMetrics().getQueryCount());
+    }
+
+    @Test
+    public void testSegments() {
+        bdayMedians.addBirthday("eu", LocalDate.of(1999,2,5));
+        bdayMedians.addBirthday("eu", LocalDate.of(1999,2,7));
+        bdayMedians.addBirthday("us", LocalDate.of(1980,1,1));
+        bdayMedians.addBirthday(LocalDate.of(2001,1,1));
+        LocalDate start = LocalDate.of(1950,1,1);
+        LocalDate end = LocalDate.of(2010,1,1);
+        Assert.assertEquals(Optional.of(LocalDate.of(1999,2,6)), bdayMedians.findMedian("eu", start, end));
+        Assert.assertEquals(Optional.of(LocalDate.of(1980,1,1)), bdayMedians.findMedian("us", start, end));
+        Assert.assertEquals(Optional.empty(), bdayMedians.findMedian("asia", start, end));
+        // The global histogram holds every segment
+        Assert.assertEquals(Optional.of(LocalDate.of(1999,2,6)), bdayMedians.findMedian(start, end));
+        Assert.assertEquals(Arrays.asList(LocalDate.of(1999,2,5), LocalDate.of(1999,2,7)),
+                bdayMedians.findQuantiles("eu", start, end, 0, 1).get());
+        Assert.assertEquals(2, bdayMedians.getSegmentTotal("eu"));
+        Assert.assertEquals(2, bdayMedians.getNumSegments());
+        Assert.assertEquals(2, bdayMedians.getMetricsReport().get("segments"));
+    }
+
+    @Test
+    public void testSegmentRejectsUnsupportedDate() {
+        try {
+            bdayMedians.addBirthday("eu", LocalDate.of(1700,1,1));
+            Assert.fail("Added an unsupported date");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(0, bdayMedians.getNumSegments());
+        Assert.assertEquals(0, bdayMedians.getMetrics().getBirthdaysAdded());
+    }
+
+    @Test
+    public void testMaxSegments() throws IOException {
+        MedianDB medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false).setMaxSegments(2));
+        medianDB.addBirthday("a", LocalDate.of(1999,2,5));
+        medianDB.addBirthday("b", LocalDate.of(1999,2,5));
+        medianDB.addBirthday("a", LocalDate.of(1999,2,5));
+        try {
+            medianDB.addBirthday("c", LocalDate.of(1999,2,5));
+            Assert.fail("Added a third segment");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(2, medianDB.getNumSegments());
+        Assert.assertEquals(3, medianDB.getMetrics().getBirthdaysAdded());
+    }
+
+    @Test
+    public void testRefusedAddLeavesNoSegment() throws IOException {
+        MedianDB medianDB = new MedianDB(new MedianDBConfig().setPersistToDisk(false)
+                .setRecoverFromPersistFile(false).setMaxSegments(1));
+        int full = MedianDB.MAX_BIRTHDAYS / MedianDB.MAX_COUNT;
+        int[] epochDays = new int[full + 1];
+        int[] counts = new int[full + 1];
+        Arrays.fill(epochDays, (int) LocalDate.of(1999,1,1).toEpochDay());
+        Arrays.fill(counts, MedianDB.MAX_COUNT);
+        counts[full] = MedianDB.MAX_BIRTHDAYS - full * MedianDB.MAX_COUNT;
+        Assert.assertEquals(0, medianDB.addBirthdays(epochDays, counts, full + 1));
+        // Each add is refused for the birthdays, not for a place kept by the add refused before it
+        for (String segment : Arrays.asList("a", "b")) {
+            try {
+                medianDB.addBirthday(segment, LocalDate.of(1999,2,5));
+                Assert.fail("Added a birthday past the most birthdays");
+            } catch (IllegalArgumentException e) {
+                Assert.assertFalse(e.getMessage(), e.getMessage().contains("segments"));
+            }
+        }
+        Assert.assertEquals(0, medianDB.getNumSegments());
+        Assert.assertEquals(0, medianDB.getMetricsReport().get("segments"));
+    }
 }
@@ -0,0 +1,232 @@
+/**
+ * Test shipping a leader's changes to a replica, resyncing a replica from an export, and resuming from the
+ * checkpointed position after a restart
+ */
+package name.chen.dave.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Random;
+
+public class ReplicaTest {
+
+    private static final LocalDate FIRST = LocalDate.of(1850, 1, 1);
+    private static final LocalDate LAST = LocalDate.of(2049, 12, 31);
+
+    private File dataDirectory;
+    private MedianDB leader;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-replica").toFile();
+        leader = new MedianDB(new MedianDBConfig().setRecoverFromPersistFile(false).setPersistToDisk(false)
+                .setReplicationLogRecords(1000));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        leader.close();
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    private MedianDB openReplica() throws IOException {
+        return new MedianDB(new MedianDBConfig().setDataDirectory(dataDirectory.getAbsolutePath())
+                .setCheckpointIntervalSeconds(3600).setReplica(true));
+    }
+
+    private static long instanceId(MedianDB db) {
+        return db.export().getInstanceId();
+    }
+
+    /**
+     * Apply the leader's changes to the replica, resyncing from an export first if needed
+     */
+    private void catchUp(MedianDB replica, int maxRecords) {
+        while (true) {
+            ReplicaPosition position = replica.getReplicaPosition();
+            if (position == null) {
+                replica.resync(HistogramExport.decode(leader.export().encode()));
+                continue;
+            }
+            ChangeLog.Batch batch = leader.readChanges(position.getInstanceId(), position.getVersion(), maxRecords);
+            if (batch == null) {
+                replica.resync(leader.export());
+                continue;
+            }
+            if (batch.getToVersion() > batch.getAfterVersion()) {
+                replica.applyChanges(ChangeLog.Batch.decode(batch.encode()));
+            }
+            if (batch.getToVersion() == batch.getLatestVersion()) {
+                return;
+            }
+        }
+    }
+
+    private void addRandomBirthdays(Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            leader.addBirthday(LocalDate.ofEpochDay(-43000 + random.nextInt(72000)));
+            if (random.nextInt(50) == 0) {
+                // Publish a version now and then, as queries on the leader would
+                leader.findMedian(FIRST, LAST);
+            }
+        }
+    }
+
+    private void assertSameHistogram(MedianDB replica) {
+        Assert.assertEquals(leader.findQuantiles(FIRST, LAST, 0, 0.1, 0.5, 0.9, 1),
+                replica.findQuantiles(FIRST, LAST, 0, 0.1, 0.5, 0.9, 1));
+        HistogramExport leaderExport = leader.export();
+        HistogramExport replicaExport = replica.export();
+        for (int day = 0; day < leaderExport.getNumDays(); day++) {
+            Assert.assertEquals(leaderExport.getDayCount(day), replicaExport.getDayCount(day));
+        }
+    }
+
+    @Test
+    public void testReplicaFollowsLeader() throws IOException {
+        MedianDB replica = openReplica();
+        Random random = new Random(17);
+        addRandomBirthdays(random, 500);
+        catchUp(replica, 64);
+        assertSameHistogram(replica);
+        Assert.assertEquals(leader.readChanges(instanceId(leader), 0, 1).getLatestVersion(),
+                replica.getReplicaPosition().getVersion());
+
+        addRandomBirthdays(random, 300);
+        catchUp(replica, 64);
+        assertSameHistogram(replica);
+        Assert.assertEquals("replica", replica.getReplicationReport().get("role"));
+        Assert.assertEquals("leader", leader.getReplicationReport().get("role"));
+        replica.close();
+    }
+
+    @Test
+    public void testReplicaRejectsAdds() throws IOException {
+        MedianDB replica = openReplica();
+        try {
+            replica.addBirthday(LocalDate.of(1999, 2, 5));
+            Assert.fail("Added a birthday to a replica");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("Read-only replica"));
+        }
+        try {
+            replica.addBirthdays(new int[]{0}, new int[]{1}, 1);
+            Assert.fail("Added birthdays to a replica");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("Read-only replica"));
+        }
+        replica.close();
+    }
+
+    @Test
+    public void testChangesMustFollowPosition() throws IOException {
+        MedianDB replica = openReplica();
+        leader.addBirthday(LocalDate.of(1999, 2, 5));
+        leader.findMedian(FIRST, LAST);
+        leader.addBirthday(LocalDate.of(1999, 2, 6));
+        leader.findMedian(FIRST, LAST);
+        ChangeLog.Batch second = leader.readChanges(instanceId(leader), 1, 100);
+        try {
+            // No position yet
+            replica.applyChanges(second);
+            Assert.fail("Applied changes to a replica with no position");
+        } catch (IllegalArgumentException expected) {
+        }
+        replica.resync(leader.export());
+        try {
+            // Already applied
+            replica.applyChanges(second);
+            Assert.fail("Applied changes twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertSameHistogram(replica);
+        replica.close();
+    }
+
+    @Test
+    public void testChangesOfOtherInstanceOrEvictedAreGone() {
+        Random random = new Random(18);
+        addRandomBirthdays(random, 3000);
+        Assert.assertNull(leader.readChanges(instanceId(leader) + 1, 0, 100));
+        // 3000 birthdays are more than the 1000 records kept
+        Assert.assertNull(leader.readChanges(instanceId(leader), 0, 100));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoChangeLog() throws IOException {
+        new MedianDB(false, false).readChanges(0, 0, 100);
+    }
+
+    @Test
+    public void testResyncRemovesWhatLeaderDoesNotHave() throws IOException {
+        MedianDB replica = openReplica();
+        leader.addBirthday(LocalDate.of(1999, 2, 5));
+        leader.addBirthday(LocalDate.of(1999, 2, 5));
+        catchUp(replica, 100);
+
+        // A new leader with other birthdays
+        leader.close();
+        leader = new MedianDB(new MedianDBConfig().setRecoverFromPersistFile(false).setPersistToDisk(false)
+                .setReplicationLogRecords(1000));
+        leader.addBirthday(LocalDate.of(1999, 2, 5));
+        leader.addBirthday(LocalDate.of(1960, 7, 1));
+        catchUp(replica, 100);
+        assertSameHistogram(replica);
+        Assert.assertEquals(instanceId(leader), replica.getReplicaPosition().getInstanceId());
+        replica.close();
+    }
+
+    @Test
+    public void testReplicaResumesAfterRestart() throws IOException {
+        MedianDB replica = openReplica();
+        Random random = new Random(19);
+        addRandomBirthdays(random, 200);
+        catchUp(replica, 64);
+        ReplicaPosition position = replica.getReplicaPosition();
+        replica.close();
+
+        replica = openReplica();
+        Assert.assertEquals(position.getInstanceId(), replica.getReplicaPosition().getInstanceId());
+        Assert.assertEquals(position.getVersion(), replica.getReplicaPosition().getVersion());
+        assertSameHistogram(replica);
+        addRandomBirthdays(random, 200);
+        // Only the changes after the position are applied, so the histograms stay equal
+        ChangeLog.Batch batch = leader.readChanges(position.getInstanceId(), position.getVersion(), 100000);
+        replica.applyChanges(batch);
+        assertSameHistogram(replica);
+        replica.close();
+    }
+
+    @Test
+    public void testPositionOfAnotherCheckpointIsIgnored() throws IOException {
+        MedianDB replica = openReplica();
+        leader.addBirthday(LocalDate.of(1999, 2, 5));
+        catchUp(replica, 100);
+        replica.close();
+
+        // A checkpoint the position was not written with, as if the process died in between
+        ArrayDateHistogram histogram = new ArrayDateHistogram(new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath()).setWriteAheadLog(false));
+        histogram.addDate(LocalDate.of(1999, 2, 6));
+        histogram.close();
+
+        replica = openReplica();
+        Assert.assertNull(replica.getReplicaPosition());
+        catchUp(replica, 100);
+        assertSameHistogram(replica);
+        replica.close();
+    }
+}
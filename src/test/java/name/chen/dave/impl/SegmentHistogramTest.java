@@ -0,0 +1,112 @@
+/**
+ * Test segment histograms against the day index of the global histogram, and their size
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.Random;
+
+public class SegmentHistogramTest {
+
+    private final HistogramLayout layout = new HistogramLayout(1850, 2049);
+
+    @Test
+    public void testCountsMatchDayIndex() {
+        Random random = new Random(11);
+        SegmentHistogram segment = new SegmentHistogram(layout);
+        DayCountIndex index = new DayCountIndex(layout.getNumDays());
+        for (int i = 0; i < 5000; i++) {
+            // Mostly single birthdays, some large counts to widen pages to shorts and ints
+            int slot = random.nextInt(layout.getNumDays());
+            int count = random.nextInt(100) == 0 ? 1 + random.nextInt(100_000) : 1;
+            segment.add(slot, count);
+            index.add(slot, count);
+        }
+        Assert.assertEquals(index.total(), segment.total());
+        for (int i = 0; i < 2000; i++) {
+            int slot = random.nextInt(layout.getNumDays());
+            Assert.assertEquals(index.get(slot), segment.get(slot));
+            Assert.assertEquals(index.prefixCount(slot), segment.prefixCount(slot));
+            int k = 1 + random.nextInt(index.total());
+            Assert.assertEquals(index.findKth(k), segment.findKth(k));
+        }
+        Assert.assertEquals(-1, segment.findKth(index.total() + 1));
+        Assert.assertEquals(0, segment.prefixCount(-1));
+    }
+
+    @Test
+    public void testAddAllMatchesAddingEachDay() {
+        Random random = new Random(12);
+        SegmentHistogram merged = new SegmentHistogram(layout);
+        DayCountIndex index = new DayCountIndex(layout.getNumDays());
+        for (int part = 0; part < 4; part++) {
+            SegmentHistogram histogram = new SegmentHistogram(layout);
+            for (int i = 0; i < 1000; i++) {
+                // Some days in every part, so pages are both copied and added to, and widened
+                int slot = random.nextBoolean() ? random.nextInt(200) : random.nextInt(layout.getNumDays());
+                int count = random.nextInt(50) == 0 ? 1 + random.nextInt(100_000) : 1;
+                histogram.add(slot, count);
+                index.add(slot, count);
+            }
+            merged.addAll(histogram);
+        }
+        Assert.assertEquals(index.total(), merged.total());
+        for (int slot = 0; slot < layout.getNumDays(); slot += 7) {
+            Assert.assertEquals(index.get(slot), merged.get(slot));
+            Assert.assertEquals(index.prefixCount(slot), merged.prefixCount(slot));
+        }
+        for (int i = 0; i < 1000; i++) {
+            int k = 1 + random.nextInt(index.total());
+            Assert.assertEquals(index.findKth(k), merged.findKth(k));
+        }
+    }
+
+    @Test
+    public void testPagesAreWidened() {
+        SegmentHistogram segment = new SegmentHistogram(layout);
+        segment.add(100, 255);
+        segment.add(101, 1);
+        long bytePage = segment.sizeInBytes();
+        segment.add(100, 1);
+        Assert.assertEquals(256, segment.get(100));
+        Assert.assertEquals(bytePage + 64, segment.sizeInBytes());
+        segment.add(101, 70_000);
+        Assert.assertEquals(256, segment.get(100));
+        Assert.assertEquals(70_001, segment.get(101));
+        Assert.assertEquals(bytePage + 3 * 64, segment.sizeInBytes());
+        Assert.assertEquals(70_257, segment.total());
+    }
+
+    @Test
+    public void testSmallSegmentsAreSmall() {
+        SegmentHistogram empty = new SegmentHistogram(layout);
+        Assert.assertTrue(empty.sizeInBytes() + " bytes", empty.sizeInBytes() < 300);
+        SegmentHistogram segment = new SegmentHistogram(layout);
+        for (int year = 1960; year < 2000; year += 10) {
+            segment.add(layout.daySlot((int) LocalDate.of(year, 6, 1).toEpochDay()), 1);
+        }
+        // Against 4 * 73049 bytes for the global day level
+        Assert.assertTrue(segment.sizeInBytes() + " bytes", segment.sizeInBytes() < 4000);
+    }
+
+    @Test
+    public void testReporter() {
+        SegmentHistogram segment = new SegmentHistogram(layout);
+        segment.add(layout.daySlot((int) LocalDate.of(1999, 2, 5).toEpochDay()), 2);
+        segment.add(layout.daySlot((int) LocalDate.of(2001, 3, 7).toEpochDay()), 1);
+        Assert.assertEquals(3, segment.traverseDates(LocalDate.of(1999, 1, 1), LocalDate.of(2001, 12, 31)));
+        Assert.assertEquals(0, segment.traverseDates(LocalDate.of(2001, 12, 31), LocalDate.of(1999, 1, 1)));
+        Assert.assertEquals(Optional.of(LocalDate.of(2001, 3, 7)),
+                segment.traverseUntil(LocalDate.of(1999, 2, 6), 1));
+        Assert.assertEquals(Optional.empty(), segment.traverseUntil(LocalDate.of(1999, 2, 6), 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedDate() {
+        new SegmentHistogram(layout).traverseDates(LocalDate.of(1849, 12, 31), LocalDate.of(1999, 1, 1));
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Test that the sparse encoding of counters round-trips, and rejects malformed input
+ */
+package name.chen.dave.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SparseHistogramCodecTest {
+
+    private static int[] roundTrip(int[] values, int from) {
+        byte[] encoded = SparseHistogramCodec.encode(values, from, values.length);
+        int[] decoded = new int[values.length];
+        SparseHistogramCodec.decode(ByteBuffer.wrap(encoded), decoded, from, values.length);
+        return decoded;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(9);
+        int[] values = new int[10000];
+        for (int i = 0; i < values.length; i++) {
+            int kind = random.nextInt(4);
+            values[i] = kind == 0 ? 0 : kind == 1 ? random.nextInt(50) : kind == 2 ? random.nextInt() : 1;
+        }
+        values[values.length - 1] = Integer.MIN_VALUE;
+        values[0] = Integer.MAX_VALUE;
+        Assert.assertArrayEquals(values, roundTrip(values, 0));
+
+        int[] expected = values.clone();
+        Arrays.fill(expected, 0, 100, 0);
+        Assert.assertArrayEquals(expected, roundTrip(values, 100));
+    }
+
+    @Test
+    public void testZerosAreCompact() {
+        int[] values = new int[77000];
+        Assert.assertEquals(4, SparseHistogramCodec.encode(values, 0, values.length).length);
+        values[50000] = 3;
+        values[50001] = 4;
+        Assert.assertArrayEquals(values, roundTrip(values, 0));
+        Assert.assertTrue(SparseHistogramCodec.encode(values, 0, values.length).length <= 10);
+        Assert.assertEquals(0, SparseHistogramCodec.encode(values, 0, 0).length);
+    }
+
+    @Test
+    public void testMalformedInputIsRejected() {
+        int[] values = new int[100];
+        values[10] = 5;
+        byte[] encoded = SparseHistogramCodec.encode(values, 0, values.length);
+        for (byte[] malformed : new byte[][]{
+                Arrays.copyOf(encoded, encoded.length - 1),
+                Arrays.copyOf(encoded, encoded.length + 1),
+                {(byte) 101, 0},
+                {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0}}) {
+            try {
+                SparseHistogramCodec.decode(ByteBuffer.wrap(malformed), new int[100], 0, 100);
+                Assert.fail("Decoded " + Arrays.toString(malformed));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
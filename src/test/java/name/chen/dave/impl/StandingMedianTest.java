@@ -0,0 +1,165 @@
+/**
+ * Test that the medians of standing ranges, moved along with the birthdays added, are the medians found from
+ * scratch, whether the adds are a few, a batch moving the middle far, or a replica resynced from an export
+ */
+package name.chen.dave.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class StandingMedianTest {
+
+    private MedianDB standing;
+    private MedianDB fromScratch;
+    private final List<LocalDate[]> ranges = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        ranges.add(new LocalDate[] {LocalDate.of(1980, 1, 1), LocalDate.of(1999, 12, 31)});
+        ranges.add(new LocalDate[] {LocalDate.of(1850, 1, 1), LocalDate.of(2008, 10, 18)});
+        ranges.add(new LocalDate[] {LocalDate.of(1990, 6, 1), LocalDate.of(1990, 6, 30)});
+        ranges.add(new LocalDate[] {LocalDate.of(1975, 3, 3), LocalDate.of(1975, 3, 3)});
+        MedianDBConfig config = new MedianDBConfig().setRecoverFromPersistFile(false).setPersistToDisk(false)
+                .setMedianCacheSize(0);
+        for (LocalDate[] range : ranges) {
+            config.addStandingRange(range[0], range[1]);
+        }
+        standing = new MedianDB(config);
+        fromScratch = new MedianDB(new MedianDBConfig().setRecoverFromPersistFile(false).setPersistToDisk(false)
+                .setMedianCacheSize(0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        standing.close();
+        fromScratch.close();
+    }
+
+    private void add(LocalDate date) {
+        standing.addBirthday(date);
+        fromScratch.addBirthday(date);
+    }
+
+    private void assertMediansFromScratch(MedianDB db) {
+        for (LocalDate[] range : ranges) {
+            Assert.assertEquals(range[0] + " to " + range[1], fromScratch.findMedian(range[0], range[1]),
+                    db.findMedian(range[0], range[1]));
+        }
+    }
+
+    @Test
+    public void testEmptyRanges() {
+        assertMediansFromScratch(standing);
+        Assert.assertFalse(standing.findMedian(LocalDate.of(1975, 3, 3), LocalDate.of(1975, 3, 3)).isPresent());
+        add(LocalDate.of(1975, 3, 3));
+        add(LocalDate.of(2020, 1, 1));
+        assertMediansFromScratch(standing);
+        Assert.assertEquals(LocalDate.of(1975, 3, 3),
+                standing.findMedian(LocalDate.of(1980, 1, 1).minusYears(5), LocalDate.of(1999, 12, 31)).get());
+    }
+
+    @Test
+    public void testMatchesMediansFromScratch() {
+        Random random = new Random(24);
+        for (int round = 0; round < 2000; round++) {
+            // Mostly a few adds spread over the ranges, sometimes a burst on one day far from the middle
+            if (random.nextInt(50) == 0) {
+                LocalDate day = LocalDate.of(1850 + random.nextInt(160), 1, 1).plusDays(random.nextInt(365));
+                for (int i = 0; i < 500; i++) {
+                    add(day);
+                }
+            } else {
+                for (int i = random.nextInt(10); i >= 0; i--) {
+                    add(LocalDate.of(1970, 1, 1).plusDays(random.nextInt(365 * 40)));
+                }
+            }
+            assertMediansFromScratch(standing);
+        }
+    }
+
+    @Test
+    public void testReplicaResynced() throws IOException {
+        MedianDBConfig config = new MedianDBConfig().setRecoverFromPersistFile(false).setPersistToDisk(false)
+                .setReplica(true);
+        for (LocalDate[] range : ranges) {
+            config.addStandingRange(range[0], range[1]);
+        }
+        try (MedianDB replica = new MedianDB(config)) {
+            Random random = new Random(25);
+            for (int round = 0; round < 50; round++) {
+                for (int i = 0; i < 200; i++) {
+                    add(LocalDate.of(1960 + round, 1, 1).plusDays(random.nextInt(365 * 40)));
+                }
+                replica.resync(fromScratch.export());
+                assertMediansFromScratch(replica);
+            }
+        }
+    }
+
+    @Test
+    public void testRegisterAndUnregister() {
+        Random random = new Random(26);
+        for (int i = 0; i < 1000; i++) {
+            add(LocalDate.of(1900, 1, 1).plusDays(random.nextInt(365 * 100)));
+        }
+        LocalDate start = LocalDate.of(1930, 2, 2);
+        LocalDate end = LocalDate.of(1950, 2, 2);
+        Assert.assertTrue(standing.registerStandingRange(start, end));
+        Assert.assertFalse(standing.registerStandingRange(start, end));
+        Assert.assertEquals(fromScratch.findMedian(start, end), standing.findMedian(start, end));
+        Assert.assertEquals(5, standing.getStandingRanges().size());
+        Assert.assertTrue(standing.unregisterStandingRange(start, end));
+        Assert.assertFalse(standing.unregisterStandingRange(start, end));
+        Assert.assertEquals(ranges.size(), standing.getStandingRanges().size());
+        Assert.assertEquals(fromScratch.findMedian(start, end), standing.findMedian(start, end));
+
+        try {
+            standing.registerStandingRange(LocalDate.of(1700, 1, 1), end);
+            Assert.fail("Registered a range of dates not supported");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            standing.registerStandingRange(end, start);
+            Assert.fail("Registered a range ending before it starts");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        for (int i = standing.getStandingRanges().size(); i < MedianDB.MAX_STANDING_RANGES; i++) {
+            standing.registerStandingRange(start, start.plusDays(i));
+        }
+        try {
+            standing.registerStandingRange(start, end);
+            Assert.fail("Registered more standing ranges than allowed");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRangesFromProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("mediandb.standingRanges", "1980-01-01/1999-12-31, 1850-01-01/2008-10-18");
+        List<LocalDate[]> parsed = MedianDBConfig.fromProperties(properties::get).getStandingRanges();
+        Assert.assertEquals(2, parsed.size());
+        Assert.assertArrayEquals(ranges.get(0), parsed.get(0));
+        Assert.assertArrayEquals(ranges.get(1), parsed.get(1));
+        properties.put("mediandb.standingRanges", "1980-01-01");
+        try {
+            MedianDBConfig.fromProperties(properties::get);
+            Assert.fail("Parsed a range with no end");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Test recovering from the last checkpoint plus the write-ahead log, as after a crash
+ */
+package name.chen.dave.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WriteAheadLogTest {
+
+    private File dataDirectory;
+    private final List<ArrayDateHistogram> histograms = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("mediandb-wal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDirectory.delete();
+    }
+
+    private ArrayDateHistogram open(WriteAheadLog.FsyncPolicy fsyncPolicy) throws IOException {
+        MedianDBConfig config = new MedianDBConfig()
+                .setDataDirectory(dataDirectory.getAbsolutePath())
+                .setFsyncPolicy(fsyncPolicy)
+                // checkpoints are only taken when the test asks for one
+                .setCheckpointIntervalSeconds(3600);
+        ArrayDateHistogram histogram = new ArrayDateHistogram(config);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    private int count(ArrayDateHistogram histogram, LocalDate start, LocalDate end) {
+        return histogram.getSnapshot().traverseDates(start, end);
+    }
+
+    private File[] segments() {
+        return dataDirectory.listFiles((dir, name) -> name.contains(".wal."));
+    }
+
+    @Test
+    public void testRecoverWithoutCheckpoint() throws IOException {
+        ArrayDateHistogram crashed = open(WriteAheadLog.FsyncPolicy.BATCH);
+        crashed.addDate(LocalDate.of(1999, 2, 5));
+        crashed.addDate(LocalDate.of(1999, 2, 6));
+        crashed.addEpochDays(new int[]{(int) LocalDate.of(1999, 2, 7).toEpochDay()}, new int[]{3}, 1);
+
+        // never closed or checkpointed, so only the log has these
+        ArrayDateHistogram recovered = open(WriteAheadLog.FsyncPolicy.BATCH);
+        Assert.assertEquals(5, count(recovered, LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+        Assert.assertEquals(3, count(recovered, LocalDate.of(1999, 2, 7), LocalDate.of(1999, 2, 7)));
+    }
+
+    @Test
+    public void testRecoverFromCheckpointAndLogTail() throws IOException {
+        ArrayDateHistogram crashed = open(WriteAheadLog.FsyncPolicy.BATCH);
+        crashed.addDate(LocalDate.of(1999, 2, 5));
+        crashed.addDate(LocalDate.of(1999, 2, 6));
+        crashed.persistToLocalDisk();
+        Assert.assertEquals(1, segments().length);
+        crashed.addDate(LocalDate.of(2001, 2, 6));
+
+        ArrayDateHistogram recovered = open(WriteAheadLog.FsyncPolicy.BATCH);
+        Assert.assertEquals(3, count(recovered, LocalDate.of(1990, 1, 1), LocalDate.of(2010, 12, 31)));
+        Assert.assertEquals(1, segments().length);
+    }
+
+    @Test
+    public void testLogTruncatedByCheckpointIsNotReplayedTwice() throws IOException {
+        ArrayDateHistogram crashed = open(WriteAheadLog.FsyncPolicy.BATCH);
+        crashed.addDate(LocalDate.of(1999, 2, 5));
+        crashed.persistToLocalDisk();
+        crashed.addDate(LocalDate.of(1999, 2, 5));
+        crashed.persistToLocalDisk();
+        crashed.addDate(LocalDate.of(1999, 2, 5));
+
+        ArrayDateHistogram recovered = open(WriteAheadLog.FsyncPolicy.BATCH);
+        Assert.assertEquals(3, count(recovered, LocalDate.of(1999, 2, 5), LocalDate.of(1999, 2, 5)));
+        // and once more, from the checkpoint written when the log was reopened
+        ArrayDateHistogram recoveredAgain = open(WriteAheadLog.FsyncPolicy.BATCH);
+        Assert.assertEquals(3, count(recoveredAgain, LocalDate.of(1999, 2, 5), LocalDate.of(1999, 2, 5)));
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws IOException {
+        ArrayDateHistogram crashed = open(WriteAheadLog.FsyncPolicy.BATCH);
+        crashed.addDate(LocalDate.of(1999, 2, 5));
+        try (FileOutputStream segment = new FileOutputStream(segments()[0], true)) {
+            segment.write(new byte[]{0, 0, 1});
+        }
+        ArrayDateHistogram recovered = open(WriteAheadLog.FsyncPolicy.BATCH);
+        Assert.assertEquals(1, count(recovered, LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+    }
+
+    @Test
+    public void testIntervalAndNonePoliciesRecoverAfterClose() throws IOException {
+        for (WriteAheadLog.FsyncPolicy policy : new WriteAheadLog.FsyncPolicy[]{
+                WriteAheadLog.FsyncPolicy.INTERVAL, WriteAheadLog.FsyncPolicy.NONE}) {
+            ArrayDateHistogram histogram = open(policy);
+            histogram.addDate(LocalDate.of(1980, 6, 1));
+            histogram.close();
+        }
+        ArrayDateHistogram recovered = open(WriteAheadLog.FsyncPolicy.BATCH);
+        Assert.assertEquals(2, count(recovered, LocalDate.of(1980, 6, 1), LocalDate.of(1980, 6, 1)));
+    }
+
+    @Test
+    public void testFailedLogRefusesAdds() throws IOException {
+        ArrayDateHistogram failed = open(WriteAheadLog.FsyncPolicy.BATCH);
+        failed.addDate(LocalDate.of(1999, 2, 5));
+        failed.getWriteAheadLog().currentSegment().close();
+        try {
+            failed.addDate(LocalDate.of(1999, 2, 6));
+            Assert.fail("Add not logged succeeded");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+        // The add that failed stays counted, and a retry is refused rather than counted twice
+        try {
+            failed.addDate(LocalDate.of(1999, 2, 6));
+            Assert.fail("Added to a failed log");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            failed.addEpochDays(new int[]{(int) LocalDate.of(1999, 2, 7).toEpochDay()}, new int[]{3}, 1);
+            Assert.fail("Added to a failed log");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(2, count(failed, LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+
+        // A checkpoint still saves what is counted, and starts a new segment to recover from
+        failed.persistToLocalDisk();
+        ArrayDateHistogram recovered = open(WriteAheadLog.FsyncPolicy.BATCH);
+        Assert.assertEquals(2, count(recovered, LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+        recovered.addDate(LocalDate.of(1999, 2, 7));
+        Assert.assertEquals(3, count(recovered, LocalDate.of(1999, 1, 1), LocalDate.of(1999, 12, 31)));
+    }
+}
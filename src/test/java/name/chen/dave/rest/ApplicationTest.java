@@ -4,6 +4,7 @@
 
 package name.chen.dave.rest;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -17,29 +18,43 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
+
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
 
 public class ApplicationTest {
 
     private ApplicationContext context;
+    private Path dataDirectory;
     private RestTemplate restTemplate;
     private static final String addBirthday = "http://localhost:8080/birthday/add";
     private static final String medianAge = "http://localhost:8080/birthday/medianage";
+    private static final String percentileAge = "http://localhost:8080/birthday/percentileage";
+    private static final String metrics = "http://localhost:8080/birthday/metrics";
+    private static final String ageDistribution = "http://localhost:8080/birthday/agedistribution";
     private static final JSONParser parser = new JSONParser();
 
     @Before
-    public void setUp() {
-        String[] args = {};
-        context = SpringApplication.run(Application.class, args);
+    public void setUp() throws IOException {
+        // A data directory of its own, so that checkpoints and log segments of other runs aren't recovered
+        dataDirectory = Files.createTempDirectory("application-test");
+        context = run();
         restTemplate = new RestTemplate();
     }
 
+    private ApplicationContext run() {
+        return SpringApplication.run(Application.class, "--mediandb.dataDirectory=" + dataDirectory);
+    }
+
     @After
-    public void tearDown() {
+    public void tearDown() throws IOException {
         SpringApplication.exit(context);
-        File db = new File(System.getProperty("java.io.tmpdir") + File.separator + "bdayhistogram.bin");
-        if (db.exists()) {
-            db.deleteOnExit();
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
         }
         restTemplate = null;
     }
@@ -78,7 +93,7 @@ public class ApplicationTest {
         Thread.sleep(3000);
 
         // restart app
-        context = SpringApplication.run(Application.class);
+        context = run();
 
         // get median
         ResponseEntity<String> medianResp = restTemplate.getForEntity(
@@ -89,6 +104,104 @@ public class ApplicationTest {
         Assert.assertEquals(24L, jsonObject.get("medianAge"));
     }
 
+    @Test
+    public void testPercentileAges() throws ParseException {
+        for (String birthday : new String[]{"1861-03-04", "1862-03-04", "1863-03-04"}) {
+            ResponseEntity<String> response = restTemplate.getForEntity(addBirthday + "?birthday=" + birthday,
+                    String.class);
+            Assert.assertEquals(response.getStatusCode(), HttpStatus.OK);
+        }
+        String range = "?start=1860-01-01&end=1864-01-01";
+        JSONObject median = (JSONObject) parser.parse(restTemplate.getForEntity(medianAge + range, String.class)
+                .getBody());
+        JSONObject percentiles = (JSONObject) ((JSONObject) parser.parse(restTemplate.getForEntity(
+                percentileAge + range + "&p=0,50,100", String.class).getBody())).get("percentileAges");
+        Assert.assertEquals(median.get("medianAge"), percentiles.get("p50"));
+        Assert.assertEquals((Long) percentiles.get("p50") - 1, percentiles.get("p0"));
+        Assert.assertEquals((Long) percentiles.get("p50") + 1, percentiles.get("p100"));
+    }
+
+    @Test
+    public void testMetrics() throws ParseException {
+        JSONObject before = (JSONObject) parser.parse(restTemplate.getForEntity(metrics, String.class).getBody());
+        restTemplate.getForEntity(addBirthday + "?birthday=1870-05-06", String.class);
+        restTemplate.getForEntity(medianAge + "?start=1870-01-01&end=1870-12-31", String.class);
+        JSONObject after = (JSONObject) parser.parse(restTemplate.getForEntity(metrics, String.class).getBody());
+        Assert.assertEquals((Long) before.get("birthdaysAdded") + 1, after.get("birthdaysAdded"));
+        Assert.assertEquals((Long) before.get("queries") + 1, after.get("queries"));
+        Assert.assertNotNull(((JSONObject) after.get("queryLatency")).get("p99Nanos"));
+        Assert.assertNotNull(after.get("medianCache"));
+    }
+
+    @Test
+    public void testSegments() throws ParseException {
+        restTemplate.getForEntity(addBirthday + "?birthday=1875-05-06&segment=eu", String.class);
+        restTemplate.getForEntity(addBirthday + "?birthday=1877-05-06&segment=eu", String.class);
+        restTemplate.getForEntity(addBirthday + "?birthday=1879-05-06&segment=us", String.class);
+        String range = "?start=1875-01-01&end=1879-12-31";
+        JSONObject eu = (JSONObject) parser.parse(restTemplate.getForEntity(medianAge + range + "&segment=eu",
+                String.class).getBody());
+        JSONObject us = (JSONObject) parser.parse(restTemplate.getForEntity(medianAge + range + "&segment=us",
+                String.class).getBody());
+        JSONObject all = (JSONObject) parser.parse(restTemplate.getForEntity(medianAge + range, String.class)
+                .getBody());
+        Assert.assertEquals((Long) us.get("medianAge") + 3, eu.get("medianAge"));
+        Assert.assertEquals((Long) us.get("medianAge") + 2, all.get("medianAge"));
+    }
+
+    @Test
+    public void testAgeDistribution() throws ParseException {
+        restTemplate.getForEntity(addBirthday + "?birthday=1880-03-01&segment=ages", String.class);
+        restTemplate.getForEntity(addBirthday + "?birthday=1880-03-01&segment=ages", String.class);
+        restTemplate.getForEntity(addBirthday + "?birthday=1885-06-15&segment=ages", String.class);
+        JSONObject distribution = (JSONObject) parser.parse(restTemplate.getForEntity(
+                ageDistribution + "?asOf=2000-01-01&width=10&segment=ages", String.class).getBody());
+        Assert.assertEquals("2000-01-01", distribution.get("asOf"));
+        Assert.assertEquals(3L, distribution.get("total"));
+        Assert.assertEquals(114L, distribution.get("minAge"));
+        Assert.assertEquals(119L, distribution.get("maxAge"));
+        Assert.assertEquals(117.33, distribution.get("meanAge"));
+        Assert.assertEquals(119L, distribution.get("medianAge"));
+        JSONArray buckets = (JSONArray) distribution.get("buckets");
+        Assert.assertEquals(12, buckets.size());
+        JSONObject oldest = (JSONObject) buckets.get(11);
+        Assert.assertEquals(110L, oldest.get("fromAge"));
+        Assert.assertEquals(119L, oldest.get("toAge"));
+        Assert.assertEquals(3L, oldest.get("count"));
+        Assert.assertEquals(0L, ((JSONObject) buckets.get(0)).get("count"));
+    }
+
+    @Test
+    public void testMedianAgesOfManyRanges() throws ParseException {
+        restTemplate.getForEntity(addBirthday + "?birthday=1861-04-12", String.class);
+        restTemplate.getForEntity(addBirthday + "?birthday=1863-07-01", String.class);
+        restTemplate.getForEntity(addBirthday + "?birthday=1866-01-20", String.class);
+        String[][] ranges = {{"1860-01-01", "1869-12-31"}, {"1860-01-01", "1864-12-31"}, {"1865-01-01", "1869-12-31"},
+                {"1850-01-01", "1855-12-31"}};
+        StringBuilder body = new StringBuilder();
+        for (String[] range : ranges) {
+            body.append(range[0]).append(',').append(range[1]).append('\n');
+        }
+        JSONObject medians = (JSONObject) parser.parse(restTemplate.postForEntity(medianAge + "/batch",
+                body.toString(), String.class).getBody());
+        JSONArray medianAges = (JSONArray) medians.get("medianAges");
+        Assert.assertEquals(ranges.length, medianAges.size());
+        for (int i = 0; i < ranges.length; i++) {
+            JSONObject median = (JSONObject) parser.parse(restTemplate.getForEntity(
+                    medianAge + "?start=" + ranges[i][0] + "&end=" + ranges[i][1], String.class).getBody());
+            Assert.assertEquals(median.get("medianAge"), medianAges.get(i));
+        }
+        Assert.assertNull(medianAges.get(3));
+
+        try {
+            restTemplate.postForEntity(medianAge + "/batch", "1860-01-01,1869-12-31\n1860-01-01\n", String.class);
+            Assert.fail("Accepted a range with no end");
+        } catch (HttpClientErrorException e) {
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+            Assert.assertTrue(e.getResponseBodyAsString().contains("Line 2"));
+        }
+    }
+
     @Test(expected = HttpClientErrorException.class)
     public void testErrorRequest() {
         // add birthday
@@ -0,0 +1,98 @@
+/**
+ * Test the REST API with adds and queries answered asynchronously on pools of their own, against an instance of the
+ * application on its own port with its own data directory
+ */
+
+package name.chen.dave.rest;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class AsyncRequestTest {
+
+    private static final String URL = "http://localhost:8096/birthday";
+    private static final JSONParser parser = new JSONParser();
+
+    private ConfigurableApplicationContext context;
+    private Path dataDirectory;
+    private RestTemplate restTemplate;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("async-node");
+        context = SpringApplication.run(Application.class,
+                "--server.port=8096",
+                "--spring.jmx.enabled=false",
+                "--mediandb.dataDirectory=" + dataDirectory,
+                "--mediandb.rest.readThreads=2",
+                "--mediandb.rest.writeThreads=1");
+        restTemplate = new RestTemplate();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SpringApplication.exit(context);
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private JSONObject get(String path) throws ParseException {
+        ResponseEntity<String> response = restTemplate.getForEntity(URL + path, String.class);
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        return (JSONObject) parser.parse(response.getBody());
+    }
+
+    @Test
+    public void testAddsAndQueries() throws ParseException {
+        get("/add?birthday=1871-03-01");
+        JSONObject batch = (JSONObject) parser.parse(restTemplate.postForEntity(URL + "/batch",
+                "1872-03-01\n1873-03-01,2\n", String.class).getBody());
+        Assert.assertEquals(2L, batch.get("accepted"));
+        // Born 1871, 1872 and twice 1873: the median is the later of 1872 and 1873
+        String range = "?start=1870-01-01&end=1879-12-31";
+        JSONObject median = get("/medianage" + range);
+        JSONObject percentiles = (JSONObject) get("/percentileage" + range + "&p=0,100").get("percentileAges");
+        Assert.assertEquals((Long) percentiles.get("p100") - 1, median.get("medianAge"));
+        Assert.assertEquals(4L, get("/agedistribution?asOf=2000-01-01").get("total"));
+
+        JSONObject requests = (JSONObject) get("/metrics").get("requests");
+        Assert.assertEquals(2L, ((JSONObject) requests.get("reads")).get("threads"));
+        Assert.assertEquals(1L, ((JSONObject) requests.get("writes")).get("threads"));
+    }
+
+    @Test
+    public void testErrorsAnsweredAsBadRequest() {
+        try {
+            restTemplate.getForEntity(URL + "/add?birthday=BADDATA", String.class);
+            Assert.fail("Added a birthday that is not a date");
+        } catch (HttpClientErrorException e) {
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+            Assert.assertTrue(e.getResponseBodyAsString(), e.getResponseBodyAsString().contains("BADDATA"));
+        }
+        try {
+            restTemplate.getForEntity(URL + "/medianage?start=1870-01-01&end=nope", String.class);
+            Assert.fail("Answered a range with no end");
+        } catch (HttpClientErrorException e) {
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Test cluster queries against three instances of the application, each on its own port with its own data
+ * directory, peers of one another.
+ */
+
+package name.chen.dave.rest;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ClusterTest {
+
+    private static final int[] PORTS = {8091, 8092, 8093};
+    private static final JSONParser parser = new JSONParser();
+
+    private final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+    private final List<Path> dataDirectories = new ArrayList<>();
+    private RestTemplate restTemplate;
+
+    private static String url(int node) {
+        return "http://localhost:" + PORTS[node];
+    }
+
+    private ConfigurableApplicationContext start(int node, String peers) throws IOException {
+        Path dataDirectory = Files.createTempDirectory("cluster-node");
+        dataDirectories.add(dataDirectory);
+        return SpringApplication.run(Application.class,
+                "--server.port=" + PORTS[node],
+                "--spring.jmx.enabled=false",
+                "--mediandb.dataDirectory=" + dataDirectory,
+                "--mediandb.wal.enabled=false",
+                "--mediandb.peers=" + peers);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        for (int node = 0; node < PORTS.length; node++) {
+            List<String> peers = new ArrayList<>();
+            for (int peer = 0; peer < PORTS.length; peer++) {
+                if (peer != node) {
+                    peers.add(url(peer));
+                }
+            }
+            nodes.add(start(node, String.join(",", peers)));
+        }
+        restTemplate = new RestTemplate();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (ConfigurableApplicationContext node : nodes) {
+            SpringApplication.exit(node);
+        }
+        for (Path dataDirectory : dataDirectories) {
+            try (Stream<Path> files = Files.walk(dataDirectory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private void add(int node, String birthday) {
+        ResponseEntity<String> response = restTemplate.getForEntity(
+                url(node) + "/birthday/add?birthday=" + birthday, String.class);
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private JSONObject get(int node, String path) throws ParseException {
+        ResponseEntity<String> response = restTemplate.getForEntity(url(node) + path, String.class);
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        return (JSONObject) parser.parse(response.getBody());
+    }
+
+    @Test
+    public void testClusterMedianIsMedianOfUnion() throws ParseException {
+        // Born 1870 to 1879 at node 0, 1860 to 1869 at node 1 and 1850 to 1859 at node 2, plus one more at node 2:
+        // the median of the 31 birthdays is the 5th oldest at node 1, and no node's own median is near it
+        for (int node = 0; node < PORTS.length; node++) {
+            for (int i = 0; i < 10; i++) {
+                add(node, (1879 - 10 * node - i) + "-03-01");
+            }
+        }
+        add(2, "1855-01-01");
+        String range = "?start=1850-01-01&end=1880-12-31";
+        Object median = get(0, "/birthday/cluster/medianage" + range).get("medianAge");
+        Assert.assertEquals(median, get(2, "/birthday/cluster/medianage" + range).get("medianAge"));
+        Assert.assertEquals(median, get(1, "/birthday/cluster/medianage" + range).get("medianAge"));
+        Assert.assertNotEquals(median, get(0, "/birthday/medianage" + range).get("medianAge"));
+
+        JSONObject percentiles = (JSONObject) get(1, "/birthday/cluster/percentileage" + range + "&p=0,50,100")
+                .get("percentileAges");
+        Assert.assertEquals(median, percentiles.get("p50"));
+        Assert.assertEquals((Long) percentiles.get("p0") + 29, (long) (Long) percentiles.get("p100"));
+    }
+
+    @Test
+    public void testExportNotModified() {
+        add(0, "1870-03-01");
+        ResponseEntity<byte[]> export = restTemplate.getForEntity(url(0) + "/birthday/export", byte[].class);
+        Assert.assertEquals(HttpStatus.OK, export.getStatusCode());
+        String etag = export.getHeaders().getETag();
+        Assert.assertNotNull(etag);
+        Assert.assertTrue(export.getBody().length > 0);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(etag);
+        ResponseEntity<byte[]> unchanged = restTemplate.exchange(url(0) + "/birthday/export", HttpMethod.GET,
+                new HttpEntity<>(headers), byte[].class);
+        Assert.assertEquals(HttpStatus.NOT_MODIFIED, unchanged.getStatusCode());
+
+        add(0, "1870-03-02");
+        ResponseEntity<byte[]> changed = restTemplate.exchange(url(0) + "/birthday/export", HttpMethod.GET,
+                new HttpEntity<>(headers), byte[].class);
+        Assert.assertEquals(HttpStatus.OK, changed.getStatusCode());
+        Assert.assertNotEquals(etag, changed.getHeaders().getETag());
+    }
+
+    @Test
+    public void testClusterMedianFollowsPeerAdds() throws ParseException {
+        add(0, "1870-03-01");
+        String range = "?start=1850-01-01&end=1880-12-31";
+        Object before = get(0, "/birthday/cluster/medianage" + range).get("medianAge");
+        // Queried twice with no adds in between, the peers answer 304 and the merged histogram is reused
+        Assert.assertEquals(before, get(0, "/birthday/cluster/medianage" + range).get("medianAge"));
+        add(1, "1860-03-01");
+        add(2, "1860-03-01");
+        Object after = get(0, "/birthday/cluster/medianage" + range).get("medianAge");
+        Assert.assertEquals((Long) before + 10, (long) (Long) after);
+    }
+
+    @Test
+    public void testUnreachablePeerFailsClusterQuery() throws ParseException {
+        add(0, "1870-03-01");
+        SpringApplication.exit(nodes.remove(2));
+        try {
+            restTemplate.getForEntity(url(0) + "/birthday/cluster/medianage?start=1850-01-01&end=1880-12-31",
+                    String.class);
+            Assert.fail("Answered a cluster query without one of the peers");
+        } catch (HttpClientErrorException e) {
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+            Assert.assertTrue(e.getResponseBodyAsString(), e.getResponseBodyAsString().contains(url(2)));
+        }
+        // Queries of the node's own birthdays still work
+        Assert.assertNotNull(get(0, "/birthday/medianage?start=1850-01-01&end=1880-12-31").get("medianAge"));
+    }
+}
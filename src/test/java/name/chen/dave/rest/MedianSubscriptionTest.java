@@ -0,0 +1,277 @@
+/**
+ * Test subscriptions to the median age of a range, as server-sent events, against an instance of the application
+ * on its own port with its own data directory
+ */
+
+package name.chen.dave.rest;
+
+import name.chen.dave.impl.MedianDBConfig;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class MedianSubscriptionTest {
+
+    private static final String URL = "http://localhost:8098/birthday";
+    private static final String RANGE = "?start=1870-01-01&end=1879-12-31";
+    private static final JSONParser parser = new JSONParser();
+
+    private ConfigurableApplicationContext context;
+    private Path dataDirectory;
+    private RestTemplate restTemplate;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("subscriptions-node");
+        context = SpringApplication.run(Application.class,
+                "--server.port=8098",
+                "--spring.jmx.enabled=false",
+                "--mediandb.dataDirectory=" + dataDirectory,
+                "--mediandb.rest.subscriptions.intervalMillis=200",
+                "--mediandb.rest.subscriptions.max=3");
+        restTemplate = new RestTemplate();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SpringApplication.exit(context);
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Subscribe, and read the data of every "median" event into a queue on a thread of its own. Over a socket of its
+     * own, with HTTP/1.0 so that the events are not chunked, as closing an HttpURLConnection waits for its reads.
+     */
+    private BlockingQueue<JSONObject> subscribe(String range) throws IOException {
+        BufferedReader reader = openSubscription(range, 200, "text/event-stream");
+        BlockingQueue<JSONObject> events = new LinkedBlockingQueue<>();
+        Thread thread = new Thread(() -> {
+            try {
+                String event = null;
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.startsWith("event:")) {
+                        event = line.substring("event:".length());
+                    } else if (line.startsWith("data:") && MedianSubscriptions.EVENT_NAME.equals(event)) {
+                        events.add((JSONObject) parser.parse(line.substring("data:".length())));
+                    }
+                }
+            } catch (IOException | ParseException e) {
+                // The socket was closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return events;
+    }
+
+    /**
+     * Ask to subscribe as an event source does, and read the status and headers of the answer
+     *
+     * @return the reader of the rest of the answer
+     */
+    private BufferedReader openSubscription(String range, int status, String contentType) throws IOException {
+        Socket socket = new Socket("localhost", 8098);
+        sockets.add(socket);
+        socket.getOutputStream().write(("GET /birthday/medianage/subscribe" + range + " HTTP/1.0\r\n"
+                + "Accept: text/event-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+        String statusLine = reader.readLine();
+        Assert.assertTrue(statusLine, statusLine.contains(" " + status + " "));
+        boolean contentTypeFound = false;
+        for (String header = reader.readLine(); !header.isEmpty(); header = reader.readLine()) {
+            contentTypeFound |= header.toLowerCase().startsWith("content-type: " + contentType);
+        }
+        Assert.assertTrue(contentTypeFound);
+        return reader;
+    }
+
+    private static JSONObject next(BlockingQueue<JSONObject> events) throws InterruptedException {
+        JSONObject event = events.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull("No event", event);
+        return event;
+    }
+
+    private JSONObject get(String path) throws ParseException {
+        return (JSONObject) parser.parse(restTemplate.getForEntity(URL + path, String.class).getBody());
+    }
+
+    private JSONObject subscriptionMetrics() throws ParseException {
+        return (JSONObject) get("/metrics").get("subscriptions");
+    }
+
+    @Test
+    public void testChangesPushedOnce() throws IOException, InterruptedException, ParseException {
+        BlockingQueue<JSONObject> first = subscribe(RANGE);
+        BlockingQueue<JSONObject> second = subscribe(RANGE);
+        Assert.assertNull(next(first).get("medianAge"));
+        Assert.assertNull(next(second).get("medianAge"));
+        Assert.assertEquals(1L, subscriptionMetrics().get("topics"));
+        Assert.assertEquals(2L, subscriptionMetrics().get("subscribers"));
+
+        get("/add?birthday=1871-03-01");
+        Object medianAge = get("/medianage" + RANGE).get("medianAge");
+        Assert.assertNotNull(medianAge);
+        Assert.assertEquals(medianAge, next(first).get("medianAge"));
+        Assert.assertEquals(medianAge, next(second).get("medianAge"));
+
+        // Birthdays outside of the range, or that leave its median age as it was, send nothing
+        get("/add?birthday=1990-01-01");
+        get("/add?birthday=1871-03-02");
+        Thread.sleep(600);
+        Assert.assertTrue(first.isEmpty());
+        Assert.assertTrue(second.isEmpty());
+
+        // A burst of adds within an interval is one event, found once for both subscribers
+        long recomputes = (Long) subscriptionMetrics().get("recomputes");
+        restTemplate.postForEntity(URL + "/batch", "1878-01-01,20\n", String.class);
+        medianAge = get("/medianage" + RANGE).get("medianAge");
+        Assert.assertEquals(medianAge, next(first).get("medianAge"));
+        Assert.assertEquals(medianAge, next(second).get("medianAge"));
+        Thread.sleep(600);
+        Assert.assertTrue(first.isEmpty());
+        Assert.assertEquals(recomputes + 1, subscriptionMetrics().get("recomputes"));
+    }
+
+    @Test
+    public void testSubscriptionsLimited() throws IOException, InterruptedException, ParseException {
+        for (int i = 0; i < 3; i++) {
+            next(subscribe("?start=1870-01-01&end=187" + i + "-12-31"));
+        }
+        Assert.assertEquals(3L, subscriptionMetrics().get("topics"));
+        try {
+            restTemplate.getForEntity(URL + "/medianage/subscribe" + RANGE, String.class);
+            Assert.fail("Subscribed past the most subscribers allowed");
+        } catch (HttpServerErrorException e) {
+            Assert.assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+        }
+        Assert.assertEquals(1L, subscriptionMetrics().get("rejected"));
+        openSubscription(RANGE, 503, "application/json");
+        Assert.assertEquals(2L, subscriptionMetrics().get("rejected"));
+
+        // Subscribers that leave free their place, and their topic
+        sockets.remove(0).close();
+        get("/add?birthday=1870-03-01");
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((Long) subscriptionMetrics().get("subscribers") > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(2L, subscriptionMetrics().get("subscribers"));
+        Assert.assertEquals(2L, subscriptionMetrics().get("topics"));
+    }
+
+    /**
+     * An emitter that never sends, but blocks or hands the median of each event to a queue
+     */
+    private static SseEmitter emitter(BlockingQueue<Birthday.Median> sent, CountDownLatch blockUntil) {
+        return new SseEmitter() {
+            @Override
+            public void send(SseEventBuilder builder) {
+                try {
+                    blockUntil.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (ResponseBodyEmitter.DataWithMediaType data : builder.build()) {
+                    if (data.getData() instanceof Birthday.Median) {
+                        sent.add((Birthday.Median) data.getData());
+                    }
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testStuckSubscriberDropped() throws IOException, InterruptedException {
+        Birthday birthday = new Birthday(new MedianDBConfig().setRecoverFromPersistFile(false)
+                .setPersistToDisk(false), Collections.emptyList(), 2000);
+        MedianSubscriptions subscriptions = new MedianSubscriptions(birthday, 50, 10, 60000, 2, 300);
+        CountDownLatch stuck = new CountDownLatch(1);
+        try {
+            int start = (int) LocalDate.of(1870, 1, 1).toEpochDay();
+            int end = (int) LocalDate.of(1879, 12, 31).toEpochDay();
+            BlockingQueue<Birthday.Median> stuckSent = new LinkedBlockingQueue<>();
+            BlockingQueue<Birthday.Median> sent = new LinkedBlockingQueue<>();
+            subscriptions.subscribe(start, end, emitter(stuckSent, stuck));
+            subscriptions.subscribe(start, end, emitter(sent, new CountDownLatch(0)));
+            Assert.assertNull(sent.poll(5, TimeUnit.SECONDS).getMedianAge());
+
+            // A client that doesn't read holds up neither the changes of its topic nor new subscribers
+            birthday.addBirthday("1871-03-01");
+            Assert.assertNotNull(sent.poll(5, TimeUnit.SECONDS).getMedianAge());
+            BlockingQueue<Birthday.Median> late = new LinkedBlockingQueue<>();
+            subscriptions.subscribe(start, end, emitter(late, new CountDownLatch(0)));
+            Assert.assertNotNull(late.poll(5, TimeUnit.SECONDS).getMedianAge());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((Long) subscriptions.getMetrics().get("dropped") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(1L, subscriptions.getMetrics().get("dropped"));
+            Assert.assertEquals(2, subscriptions.getMetrics().get("subscribers"));
+            Assert.assertTrue(stuckSent.isEmpty());
+        } finally {
+            stuck.countDown();
+            subscriptions.close();
+            birthday.close();
+        }
+    }
+
+    @Test
+    public void testBadRangeAnsweredAsBadRequest() throws IOException, ParseException {
+        try {
+            restTemplate.getForEntity(URL + "/medianage/subscribe?start=1870-01-01&end=nope", String.class);
+            Assert.fail("Subscribed to a range with no end");
+        } catch (HttpClientErrorException e) {
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+        }
+        try {
+            restTemplate.getForEntity(URL + "/medianage/subscribe?start=1700-01-01&end=1870-01-01", String.class);
+            Assert.fail("Subscribed to a range of dates not supported");
+        } catch (HttpClientErrorException e) {
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+        }
+        // Also to event sources, which accept only text/event-stream
+        openSubscription("?start=1870-01-01&end=nope", 400, "application/json");
+        openSubscription("?start=1700-01-01&end=1870-01-01", 400, "application/json");
+        Assert.assertEquals(0L, subscriptionMetrics().get("topics"));
+        Assert.assertEquals(0L, subscriptionMetrics().get("subscribers"));
+    }
+}
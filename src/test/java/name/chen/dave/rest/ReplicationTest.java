@@ -0,0 +1,187 @@
+/**
+ * Test replication between a leader and a follower instance of the application, each on its own port with its own
+ * data directory: the follower catches up, serves the same medians, resumes after a restart and resyncs after the
+ * leader restarts.
+ */
+
+package name.chen.dave.rest;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class ReplicationTest {
+
+    private static final String LEADER = "http://localhost:8094";
+    private static final String FOLLOWER = "http://localhost:8095";
+    private static final String RANGE = "?start=1850-01-01&end=1880-12-31";
+    private static final JSONParser parser = new JSONParser();
+
+    private Path leaderDirectory;
+    private Path followerDirectory;
+    private ConfigurableApplicationContext leader;
+    private ConfigurableApplicationContext follower;
+    private RestTemplate restTemplate;
+
+    private ConfigurableApplicationContext startLeader() {
+        return SpringApplication.run(Application.class,
+                "--server.port=8094",
+                "--spring.jmx.enabled=false",
+                "--mediandb.dataDirectory=" + leaderDirectory,
+                "--mediandb.wal.enabled=false",
+                "--mediandb.replication.logRecords=10000");
+    }
+
+    private ConfigurableApplicationContext startFollower() {
+        return SpringApplication.run(Application.class,
+                "--server.port=8095",
+                "--spring.jmx.enabled=false",
+                "--mediandb.dataDirectory=" + followerDirectory,
+                "--mediandb.replication.leader=" + LEADER,
+                "--mediandb.replication.pollMillis=20");
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        leaderDirectory = Files.createTempDirectory("replication-leader");
+        followerDirectory = Files.createTempDirectory("replication-follower");
+        leader = startLeader();
+        follower = startFollower();
+        restTemplate = new RestTemplate();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (follower != null) {
+            SpringApplication.exit(follower);
+        }
+        if (leader != null) {
+            SpringApplication.exit(leader);
+        }
+        for (Path directory : new Path[]{leaderDirectory, followerDirectory}) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private void add(String node, String birthday) {
+        ResponseEntity<String> response = restTemplate.getForEntity(
+                node + "/birthday/add?birthday=" + birthday, String.class);
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private JSONObject get(String node, String path) throws ParseException {
+        ResponseEntity<String> response = restTemplate.getForEntity(node + path, String.class);
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        return (JSONObject) parser.parse(response.getBody());
+    }
+
+    /**
+     * Wait for the follower to have applied every version of the leader
+     *
+     * @return the status of the follower
+     */
+    private JSONObject awaitCaughtUp() throws ParseException, InterruptedException {
+        JSONObject leaderStatus = get(LEADER, "/birthday/replication/status");
+        Assert.assertEquals("leader", leaderStatus.get("role"));
+        JSONObject status = null;
+        for (int i = 0; i < 500; i++) {
+            status = get(FOLLOWER, "/birthday/replication/status");
+            if (leaderStatus.get("instance").equals(status.get("leaderInstance"))
+                    && leaderStatus.get("version").equals(status.get("appliedVersion"))) {
+                return status;
+            }
+            Thread.sleep(20);
+        }
+        Assert.fail("Follower did not catch up with " + leaderStatus + ": " + status);
+        return status;
+    }
+
+    private void addAtLeader(int from, int count) {
+        for (int i = 0; i < count; i++) {
+            add(LEADER, (1850 + (from + i) % 31) + "-0" + (1 + (from + i) % 9) + "-1" + (from + i) % 10);
+            if (i % 7 == 0) {
+                // Queries at the leader publish versions in between
+                restTemplate.getForEntity(LEADER + "/birthday/medianage" + RANGE, String.class);
+            }
+        }
+    }
+
+    private void assertSameAnswers() throws ParseException {
+        Assert.assertEquals(get(LEADER, "/birthday/percentileage" + RANGE + "&p=0,10,50,90,100").get("percentileAges"),
+                get(FOLLOWER, "/birthday/percentileage" + RANGE + "&p=0,10,50,90,100").get("percentileAges"));
+    }
+
+    @Test
+    public void testFollowerCatchesUp() throws ParseException, InterruptedException {
+        addAtLeader(0, 50);
+        JSONObject status = awaitCaughtUp();
+        assertSameAnswers();
+        Assert.assertEquals("replica", status.get("role"));
+        Assert.assertEquals(0L, status.get("lagVersions"));
+        Assert.assertNotNull(status.get("lagMillis"));
+        Assert.assertNull(status.get("lastError"));
+
+        addAtLeader(50, 50);
+        awaitCaughtUp();
+        assertSameAnswers();
+    }
+
+    @Test
+    public void testFollowerIsReadOnly() {
+        try {
+            restTemplate.getForEntity(FOLLOWER + "/birthday/add?birthday=1870-03-01", String.class);
+            Assert.fail("Added a birthday at the follower");
+        } catch (HttpClientErrorException e) {
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+            Assert.assertTrue(e.getResponseBodyAsString().contains("Read-only replica"));
+        }
+    }
+
+    @Test
+    public void testFollowerResumesAfterRestart() throws ParseException, InterruptedException {
+        addAtLeader(0, 30);
+        awaitCaughtUp();
+        SpringApplication.exit(follower);
+        follower = null;
+
+        addAtLeader(30, 30);
+        follower = startFollower();
+        JSONObject status = awaitCaughtUp();
+        // Resumed from the checkpointed position, with only the changes since
+        Assert.assertEquals(0L, status.get("resyncs"));
+        assertSameAnswers();
+    }
+
+    @Test
+    public void testFollowerResyncsAfterLeaderRestarts() throws ParseException, InterruptedException {
+        addAtLeader(0, 30);
+        String instance = (String) awaitCaughtUp().get("leaderInstance");
+        SpringApplication.exit(leader);
+        leader = startLeader();
+        addAtLeader(30, 10);
+
+        JSONObject status = awaitCaughtUp();
+        Assert.assertNotEquals(instance, status.get("leaderInstance"));
+        Assert.assertTrue((Long) status.get("resyncs") >= 2);
+        assertSameAnswers();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Test that queries are answered while adds are stuck, that a full queue rejects requests at once, and that with
+ * no threads requests run on the calling thread
+ */
+package name.chen.dave.rest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class RequestExecutorsTest {
+
+    private RequestExecutors executors;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (executors != null) {
+            executors.close();
+        }
+    }
+
+    @Test
+    public void testReadsNotBlockedBehindWrites() throws Exception {
+        executors = new RequestExecutors(1, 1, 1);
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = executors.write(() -> {
+            stuck.countDown();
+            release.await();
+            return "first";
+        });
+        Assert.assertTrue(stuck.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> queued = executors.write(() -> "queued");
+        CompletableFuture<String> rejected = executors.write(() -> "rejected");
+
+        Assert.assertEquals("read", executors.read(() -> "read").get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(rejected.isCompletedExceptionally());
+        try {
+            rejected.get();
+            Assert.fail("Queued an add past the size of the queue");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> writes = (Map<String, Object>) executors.getMetrics().get("writes");
+        Assert.assertEquals(1, writes.get("queued"));
+        Assert.assertEquals(1L, writes.get("rejected"));
+
+        release.countDown();
+        Assert.assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    private static void assertFailedWith(CompletableFuture<?> future, String message) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Completed a request that threw");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+            Assert.assertEquals(message, e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testFailuresKeepTheirException() throws Exception {
+        executors = new RequestExecutors(1, 0, 10);
+        assertFailedWith(executors.read(() -> {
+            throw new IllegalArgumentException("bad start");
+        }), "bad start");
+        assertFailedWith(executors.write(() -> {
+            throw new IllegalArgumentException("bad date");
+        }), "bad date");
+    }
+
+    @Test
+    public void testNoThreadsRunsOnCallingThread() throws Exception {
+        executors = new RequestExecutors(0, 0, 1);
+        Thread caller = Thread.currentThread();
+        CompletableFuture<Thread> read = executors.read(Thread::currentThread);
+        CompletableFuture<Thread> write = executors.write(Thread::currentThread);
+        Assert.assertTrue(read.isDone() && write.isDone());
+        Assert.assertSame(caller, read.get());
+        Assert.assertSame(caller, write.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeThreads() {
+        new RequestExecutors(-1, 0, 1);
+    }
+}